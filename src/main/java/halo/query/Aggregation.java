@@ -0,0 +1,358 @@
+package halo.query;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * 聚合查询定义，支持 count、sum、min、max、avg 与 group by。<br>
+ * 查询时每个分区只返回分组后的部分聚合结果，在客户端按照分组合并，avg 拆分为 sum 与 count 后合并。<br>
+ * 例如:
+ * <pre>
+ * Aggregation aggregation = Aggregation.create().groupBy("status").count("num").sum("amount", "total").avg("price", "avg_price");
+ * List&lt;Map&lt;String, Object&gt;&gt; list = shardQuery.aggregate(Order.class, aggregation, "where create_time&gt;?", values);
+ * </pre>
+ * 返回的map中key为分组列名称以及聚合结果的别名
+ *
+ * @author akwei
+ */
+public class Aggregation {
+
+    private static final Object NO_GROUP_KEY = new Object();
+
+    private enum Func {
+        COUNT, SUM, MIN, MAX, AVG
+    }
+
+    private static class Item {
+
+        private final Func func;
+
+        private final String column;
+
+        private final String alias;
+
+        /**
+         * 部分聚合结果在状态数组中的位置，avg 占用两个位置(sum, count)
+         */
+        private final int slot;
+
+        private Item(Func func, String column, String alias, int slot) {
+            this.func = func;
+            this.column = column;
+            this.alias = alias;
+            this.slot = slot;
+        }
+    }
+
+    private final List<String> groupColumns = new ArrayList<>();
+
+    private final List<Item> items = new ArrayList<>();
+
+    private int slotCount;
+
+    public static Aggregation create() {
+        return new Aggregation();
+    }
+
+    /**
+     * 分组列
+     *
+     * @param columns 列名称
+     * @return 当前对象
+     */
+    public Aggregation groupBy(String... columns) {
+        Collections.addAll(this.groupColumns, columns);
+        return this;
+    }
+
+    /**
+     * count(*)
+     *
+     * @param alias 结果名称
+     * @return 当前对象
+     */
+    public Aggregation count(String alias) {
+        return this.add(Func.COUNT, null, alias);
+    }
+
+    /**
+     * count(column)，不统计null
+     *
+     * @param column 列名称
+     * @param alias  结果名称
+     * @return 当前对象
+     */
+    public Aggregation count(String column, String alias) {
+        return this.add(Func.COUNT, column, alias);
+    }
+
+    public Aggregation sum(String column, String alias) {
+        return this.add(Func.SUM, column, alias);
+    }
+
+    public Aggregation min(String column, String alias) {
+        return this.add(Func.MIN, column, alias);
+    }
+
+    public Aggregation max(String column, String alias) {
+        return this.add(Func.MAX, column, alias);
+    }
+
+    public Aggregation avg(String column, String alias) {
+        return this.add(Func.AVG, column, alias);
+    }
+
+    private Aggregation add(Func func, String column, String alias) {
+        if (alias == null) {
+            throw new IllegalArgumentException("alias must be not null");
+        }
+        this.items.add(new Item(func, column, alias, this.slotCount));
+        this.slotCount += func == Func.AVG ? 2 : 1;
+        return this;
+    }
+
+    public List<String> getGroupColumns() {
+        return groupColumns;
+    }
+
+    /**
+     * 每个分区执行的select部分，分组列在前，之后为部分聚合结果
+     *
+     * @return sql片段
+     */
+    String buildSelectSQL() {
+        if (this.items.isEmpty()) {
+            throw new IllegalStateException("aggregation has no function");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String groupColumn : this.groupColumns) {
+            sb.append(groupColumn).append(',');
+        }
+        for (Item item : this.items) {
+            switch (item.func) {
+                case COUNT:
+                    sb.append("count(").append(item.column == null ? "*" : item.column).append(')');
+                    break;
+                case SUM:
+                    sb.append("sum(").append(item.column).append(')');
+                    break;
+                case MIN:
+                    sb.append("min(").append(item.column).append(')');
+                    break;
+                case MAX:
+                    sb.append("max(").append(item.column).append(')');
+                    break;
+                case AVG:
+                    sb.append("sum(").append(item.column).append("),count(").append(item.column).append(')');
+                    break;
+            }
+            sb.append(',');
+        }
+        sb.deleteCharAt(sb.length() - 1);
+        return sb.toString();
+    }
+
+    /**
+     * group by 部分，没有分组时返回null
+     *
+     * @return sql片段
+     */
+    String buildGroupBySQL() {
+        if (this.groupColumns.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder("group by ");
+        for (int i = 0; i < this.groupColumns.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(this.groupColumns.get(i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 创建保存部分聚合结果的map，key为分组值，value为聚合状态
+     *
+     * @return map
+     */
+    Map<Object, Object[]> newPartial() {
+        return new LinkedHashMap<>();
+    }
+
+    /**
+     * 把一行部分聚合结果合并到map中
+     *
+     * @param partial 部分聚合结果
+     * @param rs      当前行
+     * @throws SQLException 读取数据错误
+     */
+    void addRow(Map<Object, Object[]> partial, ResultSet rs) throws SQLException {
+        Object key = this.readGroupKey(rs);
+        int offset = this.groupColumns.size() + 1;
+        Object[] state = new Object[this.slotCount];
+        for (int i = 0; i < this.slotCount; i++) {
+            state[i] = rs.getObject(offset + i);
+        }
+        Object[] old = partial.get(key);
+        if (old == null) {
+            partial.put(key, state);
+        } else {
+            this.mergeState(old, state);
+        }
+    }
+
+    private Object readGroupKey(ResultSet rs) throws SQLException {
+        int size = this.groupColumns.size();
+        if (size == 0) {
+            return NO_GROUP_KEY;
+        }
+        if (size == 1) {
+            return rs.getObject(1);
+        }
+        Object[] values = new Object[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = rs.getObject(i + 1);
+        }
+        return Arrays.asList(values);
+    }
+
+    /**
+     * 合并两个分区的部分聚合结果
+     *
+     * @param target 合并到的结果
+     * @param source 需要合并的结果
+     */
+    void merge(Map<Object, Object[]> target, Map<Object, Object[]> source) {
+        for (Map.Entry<Object, Object[]> e : source.entrySet()) {
+            Object[] old = target.get(e.getKey());
+            if (old == null) {
+                target.put(e.getKey(), e.getValue());
+            } else {
+                this.mergeState(old, e.getValue());
+            }
+        }
+    }
+
+    private void mergeState(Object[] target, Object[] source) {
+        for (Item item : this.items) {
+            int slot = item.slot;
+            switch (item.func) {
+                case MIN:
+                    if (target[slot] == null || (source[slot] != null && compare(source[slot], target[slot]) < 0)) {
+                        target[slot] = source[slot];
+                    }
+                    break;
+                case MAX:
+                    if (target[slot] == null || (source[slot] != null && compare(source[slot], target[slot]) > 0)) {
+                        target[slot] = source[slot];
+                    }
+                    break;
+                case AVG:
+                    target[slot] = add((Number) target[slot], (Number) source[slot]);
+                    target[slot + 1] = add((Number) target[slot + 1], (Number) source[slot + 1]);
+                    break;
+                default:
+                    target[slot] = add((Number) target[slot], (Number) source[slot]);
+            }
+        }
+    }
+
+    /**
+     * 生成最终结果
+     *
+     * @param partial 所有分区合并后的结果
+     * @return 每个分组一个map
+     */
+    List<Map<String, Object>> toResult(Map<Object, Object[]> partial) {
+        List<Map<String, Object>> list = new ArrayList<>(partial.size());
+        if (partial.isEmpty() && this.groupColumns.isEmpty()) {
+            // 与sql一致，没有分组时总是返回一行
+            partial.put(NO_GROUP_KEY, new Object[this.slotCount]);
+        }
+        for (Map.Entry<Object, Object[]> e : partial.entrySet()) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            int size = this.groupColumns.size();
+            if (size == 1) {
+                map.put(this.groupColumns.get(0), e.getKey());
+            } else if (size > 1) {
+                List<?> values = (List<?>) e.getKey();
+                for (int i = 0; i < size; i++) {
+                    map.put(this.groupColumns.get(i), values.get(i));
+                }
+            }
+            Object[] state = e.getValue();
+            for (Item item : this.items) {
+                Object value;
+                if (item.func == Func.AVG) {
+                    value = avg((Number) state[item.slot], (Number) state[item.slot + 1]);
+                } else if (item.func == Func.COUNT && state[item.slot] == null) {
+                    value = 0L;
+                } else {
+                    value = state[item.slot];
+                }
+                map.put(item.alias, value);
+            }
+            list.add(map);
+        }
+        return list;
+    }
+
+    private static Object avg(Number sum, Number count) {
+        if (sum == null || count == null || count.longValue() == 0) {
+            return null;
+        }
+        if (sum instanceof BigDecimal || sum instanceof BigInteger) {
+            BigDecimal bd = toBigDecimal(sum);
+            return bd.divide(BigDecimal.valueOf(count.longValue()), Math.max(bd.scale(), 0) + 4, RoundingMode.HALF_UP);
+        }
+        return sum.doubleValue() / count.longValue();
+    }
+
+    private static Number add(Number a, Number b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float) {
+            return a.doubleValue() + b.doubleValue();
+        }
+        if (a instanceof BigDecimal || a instanceof BigInteger || b instanceof BigDecimal || b instanceof BigInteger) {
+            return toBigDecimal(a).add(toBigDecimal(b));
+        }
+        long x = a.longValue();
+        long y = b.longValue();
+        long r = x + y;
+        if (((x ^ r) & (y ^ r)) < 0) {
+            return BigDecimal.valueOf(x).add(BigDecimal.valueOf(y));
+        }
+        return r;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number && !a.getClass().equals(b.getClass())) {
+            return toBigDecimal((Number) a).compareTo(toBigDecimal((Number) b));
+        }
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    private static BigDecimal toBigDecimal(Number n) {
+        if (n instanceof BigDecimal) {
+            return (BigDecimal) n;
+        }
+        if (n instanceof BigInteger) {
+            return new BigDecimal((BigInteger) n);
+        }
+        if (n instanceof Double || n instanceof Float) {
+            return BigDecimal.valueOf(n.doubleValue());
+        }
+        return BigDecimal.valueOf(n.longValue());
+    }
+}
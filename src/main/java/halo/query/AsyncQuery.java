@@ -0,0 +1,428 @@
+package halo.query;
+
+import halo.query.dal.DALContext;
+import halo.query.dal.DALStatus;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * {@link Query} 的异步调用方式，所有操作在独立的线程池中执行，返回 {@link CompletableFuture}。<br>
+ * 分区信息通过 {@link DALContext} 传递到执行线程，没有传入 {@link DALContext} 时，使用调用线程中 {@link DALStatus} 的设置。<br>
+ * 异步操作不参与调用线程中的事务
+ */
+public class AsyncQuery implements InitializingBean {
+
+    private static final Log log = LogFactory.getLog(AsyncQuery.class);
+
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    private Query query;
+
+    /**
+     * 自定义线程池，设置后以下线程池参数无效
+     */
+    private ExecutorService executorService;
+
+    private int corePoolSize = 8;
+
+    private int maxPoolSize = 32;
+
+    private int queueSize = 1000;
+
+    private int keepAliveSeconds = 60;
+
+    /**
+     * 运行环境支持virtual thread时，是否使用virtual thread执行
+     */
+    private boolean useVirtualThreads;
+
+    /**
+     * 是否由本对象创建线程池，创建的线程池在destory时关闭
+     */
+    private boolean createdExecutor;
+
+    public void setQuery(Query query) {
+        this.query = query;
+    }
+
+    public Query getQuery() {
+        return query;
+    }
+
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    public ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    public void setCorePoolSize(int corePoolSize) {
+        this.corePoolSize = corePoolSize;
+    }
+
+    public void setMaxPoolSize(int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public void setKeepAliveSeconds(int keepAliveSeconds) {
+        this.keepAliveSeconds = keepAliveSeconds;
+    }
+
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
+    /**
+     * select count(*) 查询
+     *
+     * @param clazz      查询对象类型
+     * @param afterFrom  from table 之后的sql,例如select * from table where uid=?
+     *                   order name desc, afterFrom为where uid=? order name desc
+     * @param values     参数化查询值
+     * @param dalContext 分区context,可以为null
+     * @param <T>        对象泛型
+     * @return 查询数量
+     */
+    public <T> CompletableFuture<Integer> count(final Class<T> clazz, final String afterFrom, final Object[] values, DALContext dalContext) {
+        return this.submit(dalContext, ctx -> query.count(clazz, afterFrom, values, ctx));
+    }
+
+    public <T> CompletableFuture<Integer> count(Class<T> clazz, String afterFrom, Object[] values) {
+        return this.count(clazz, afterFrom, values, null);
+    }
+
+    /**
+     * sql select
+     *
+     * @param clazz      查询结果类型
+     * @param afterFrom  from之后的sql，例如 where col=? order by uid desc,
+     * @param values     参数化查询值
+     * @param dalContext 分区context,可以为null
+     * @param <T>        泛型
+     * @return 查询结果 T 类型的集合
+     */
+    public <T> CompletableFuture<List<T>> list(final Class<T> clazz, final String afterFrom, final Object[] values, DALContext dalContext) {
+        return this.submit(dalContext, ctx -> query.list(clazz, afterFrom, values, ctx));
+    }
+
+    public <T> CompletableFuture<List<T>> list(Class<T> clazz, String afterFrom, Object[] values) {
+        return this.list(clazz, afterFrom, values, null);
+    }
+
+    /**
+     * 使用 column in (?,?)的方式来获得集合数据
+     *
+     * @param clazz      操作的类
+     * @param afterFrom  from之后的sql，例如 where col=?,但是不包括 inColumn
+     * @param inColumn   进行in sql操作的列
+     * @param values     ?替换符对应的参数，不包括inColumn的参数
+     * @param inValues   inColumn对应的参数
+     * @param dalContext 分区context,可以为null
+     * @param <T>        集合中对象泛型
+     * @return 查询结果 T 类型的集合
+     */
+    public <T> CompletableFuture<List<T>> listInValues(final Class<T> clazz, final String afterFrom, final String inColumn, final Object[] values, final Object[] inValues, DALContext dalContext) {
+        return this.submit(dalContext, ctx -> query.listInValues(clazz, afterFrom, inColumn, values, inValues, ctx));
+    }
+
+    public <T> CompletableFuture<List<T>> listInValues(Class<T> clazz, String afterFrom, String inColumn, Object[] values, Object[] inValues) {
+        return this.listInValues(clazz, afterFrom, inColumn, values, inValues, null);
+    }
+
+    /**
+     * @param clazz      操作的类
+     * @param afterFrom  from之后的sql，例如 where col=?,但是不包括 inColumn
+     * @param inColumn   进行in sql操作的列
+     * @param values     ?替换符对应的参数，不包括inColumn的参数
+     * @param inValues   inColumn对应的参数
+     * @param dalContext 分区context,可以为null
+     * @param <E>        map中key的类型
+     * @param <T>        集合中对象泛型
+     * @return map对象
+     */
+    public <E, T> CompletableFuture<Map<E, T>> map(final Class<T> clazz, final String afterFrom, final String inColumn, final Object[] values, final Object[] inValues, DALContext dalContext) {
+        return this.submit(dalContext, ctx -> query.<E, T>map(clazz, afterFrom, inColumn, values, inValues, ctx));
+    }
+
+    public <E, T> CompletableFuture<Map<E, T>> map(Class<T> clazz, String afterFrom, String inColumn, Object[] values, Object[] inValues) {
+        return this.map(clazz, afterFrom, inColumn, values, inValues, null);
+    }
+
+    /**
+     * mysql的分页查询。
+     *
+     * @param clazz      查询对象类型
+     * @param afterFrom  from table 之后的sql,例如select * from table where uid=?
+     *                   order name desc, afterFrom为where uid=? order name
+     * @param begin      开始位置
+     * @param size       查询数量
+     * @param values     参数化查询值
+     * @param dalContext 分区context,可以为null
+     * @param <T>        对象泛型
+     * @return 查询结果 T 类型的集合
+     */
+    public <T> CompletableFuture<List<T>> mysqlList(final Class<T> clazz, final String afterFrom, final int begin, final int size, final Object[] values, DALContext dalContext) {
+        return this.submit(dalContext, ctx -> query.mysqlList(clazz, afterFrom, begin, size, values, ctx));
+    }
+
+    public <T> CompletableFuture<List<T>> mysqlList(Class<T> clazz, String afterFrom, int begin, int size, Object[] values) {
+        return this.mysqlList(clazz, afterFrom, begin, size, values, null);
+    }
+
+    /**
+     * select sql 返回对象
+     *
+     * @param clazz      查询对象类型
+     * @param afterFrom  from table 之后的sql,例如select * from table where uid=?
+     *                   order name desc, afterFrom为where uid=? order name desc
+     * @param values     参数化查询值
+     * @param dalContext 分区context,可以为null
+     * @param <T>        对象泛型
+     * @return 查询 T 类型对象，null表示没有搜索结果
+     */
+    public <T> CompletableFuture<T> obj(final Class<T> clazz, final String afterFrom, final Object[] values, DALContext dalContext) {
+        return this.submit(dalContext, ctx -> query.obj(clazz, afterFrom, values, ctx));
+    }
+
+    public <T> CompletableFuture<T> obj(Class<T> clazz, String afterFrom, Object[] values) {
+        return this.obj(clazz, afterFrom, values, null);
+    }
+
+    /**
+     * select sql 根据id查询，返回对象
+     *
+     * @param clazz      查询对象类型
+     * @param idValue    id参数
+     * @param dalContext 分区context,可以为null
+     * @param <T>        对象泛型
+     * @return 查询 T 类型对象，null表示没有搜索结果
+     */
+    public <T> CompletableFuture<T> objById(final Class<T> clazz, final Object idValue, DALContext dalContext) {
+        return this.submit(dalContext, ctx -> query.objById(clazz, idValue, ctx));
+    }
+
+    public <T> CompletableFuture<T> objById(Class<T> clazz, Object idValue) {
+        return this.objById(clazz, idValue, null);
+    }
+
+    /**
+     * select sql 根据id查询，返回对象
+     *
+     * @param clazz      查询对象类型
+     * @param idValues   id参数
+     * @param dalContext 分区context,可以为null
+     * @param <T>        对象泛型
+     * @return 查询 T 类型对象，null表示没有搜索结果
+     */
+    public <T> CompletableFuture<T> objByIds(final Class<T> clazz, final Object[] idValues, DALContext dalContext) {
+        return this.submit(dalContext, ctx -> query.objByIds(clazz, idValues, ctx));
+    }
+
+    public <T> CompletableFuture<T> objByIds(Class<T> clazz, Object[] idValues) {
+        return this.objByIds(clazz, idValues, null);
+    }
+
+    /**
+     * insert sql
+     *
+     * @param t          insert的对象
+     * @param dalContext 分区context,可以为null
+     * @param <T>        对象泛型
+     * @return 完成后返回null
+     */
+    public <T> CompletableFuture<Void> insert(final T t, DALContext dalContext) {
+        return this.submit(dalContext, ctx -> {
+            query.insert(t, ctx);
+            return null;
+        });
+    }
+
+    public <T> CompletableFuture<Void> insert(T t) {
+        return this.insert(t, null);
+    }
+
+    /**
+     * insert sql,返回自增数字id，联合主键的表，返回0. 如果表没有主键，直接insert,返回0
+     *
+     * @param t          insert的对象
+     * @param dalContext 分区context,可以为null
+     * @param <T>        对象泛型
+     * @return insert之后的自增数字
+     */
+    public <T> CompletableFuture<Number> insertForNumber(final T t, DALContext dalContext) {
+        return this.submit(dalContext, ctx -> query.insertForNumber(t, ctx));
+    }
+
+    public <T> CompletableFuture<Number> insertForNumber(T t) {
+        return this.insertForNumber(t, null);
+    }
+
+    /**
+     * update sql，返回更新的记录数量。只更新选中的字段 例如: update table set field0=?,field1=?
+     *
+     * @param clazz        需要更新的类
+     * @param updateSqlSeg sql片段,为update table 之后的sql。例如：set field0=?,field1=? where field3=?
+     * @param values       参数化查询值
+     * @param dalContext   分区context,可以为null
+     * @param <T>          对象泛型
+     * @return 更新数量
+     */
+    public <T> CompletableFuture<Integer> update(final Class<T> clazz, final String updateSqlSeg, final Object[] values, DALContext dalContext) {
+        return this.submit(dalContext, ctx -> query.update(clazz, updateSqlSeg, values, ctx));
+    }
+
+    public <T> CompletableFuture<Integer> update(Class<T> clazz, String updateSqlSeg, Object[] values) {
+        return this.update(clazz, updateSqlSeg, values, null);
+    }
+
+    /**
+     * update sql ,返回更新的记录数量
+     *
+     * @param t          update的对象
+     * @param dalContext 分区context,可以为null
+     * @param <T>        对象泛型
+     * @return 更新数量
+     */
+    public <T> CompletableFuture<Integer> update(final T t, DALContext dalContext) {
+        return this.submit(dalContext, ctx -> query.update(t, ctx));
+    }
+
+    public <T> CompletableFuture<Integer> update(T t) {
+        return this.update(t, null);
+    }
+
+    /**
+     * delete sql,返回删除的记录数量
+     *
+     * @param t          要删除的对象，必须有id
+     * @param dalContext 分区context,可以为null
+     * @param <T>        对象泛型
+     * @return 删除的记录数
+     */
+    public <T> CompletableFuture<Integer> delete(final T t, DALContext dalContext) {
+        return this.submit(dalContext, ctx -> query.delete(t, ctx));
+    }
+
+    public <T> CompletableFuture<Integer> delete(T t) {
+        return this.delete(t, null);
+    }
+
+    /**
+     * delete sql,根据id删除。返回删除的记录数量
+     *
+     * @param clazz      要删除的对象的类型
+     * @param idValues   主键id值
+     * @param dalContext 分区context,可以为null
+     * @param <T>        对象泛型
+     * @return 删除的记录数
+     */
+    public <T> CompletableFuture<Integer> deleteById(final Class<T> clazz, final Object[] idValues, DALContext dalContext) {
+        return this.submit(dalContext, ctx -> query.deleteById(clazz, idValues, ctx));
+    }
+
+    public <T> CompletableFuture<Integer> deleteById(Class<T> clazz, Object[] idValues) {
+        return this.deleteById(clazz, idValues, null);
+    }
+
+    /**
+     * 批量insert
+     *
+     * @param list       批量创建的对象
+     * @param dalContext 分区context,可以为null
+     * @param <T>        对象类型
+     * @return 返回自增id，如果id不是自增，就返回值为0的集合
+     */
+    public <T> CompletableFuture<List<T>> batchInsert(final List<T> list, DALContext dalContext) {
+        return this.submit(dalContext, ctx -> query.batchInsert(list, ctx));
+    }
+
+    public <T> CompletableFuture<List<T>> batchInsert(List<T> list) {
+        return this.batchInsert(list, null);
+    }
+
+    /**
+     * 在线程池中执行操作。分区信息在调用线程中复制，执行线程结束操作后清除线程中的分区信息
+     *
+     * @param dalContext 分区context,为null时使用当前线程 {@link DALStatus} 中的设置
+     * @param action     需要执行的操作
+     * @param <R>        返回值泛型
+     * @return future
+     */
+    public <R> CompletableFuture<R> submit(DALContext dalContext, final Function<DALContext, R> action) {
+        final DALContext ctx;
+        if (dalContext == null) {
+            ctx = DALContext.createFromDALStatus();
+            // 分区信息已经交给执行线程，与同步调用一样释放当前线程的设置
+            DALStatus.processDALConClose();
+        } else {
+            ctx = dalContext.copy();
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return action.apply(ctx);
+            } finally {
+                DALStatus.clear();
+            }
+        }, this.executorService);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (this.query == null) {
+            this.query = Query.getInstance();
+        }
+        if (this.executorService != null) {
+            return;
+        }
+        this.createdExecutor = true;
+        if (this.useVirtualThreads) {
+            this.executorService = createVirtualThreadExecutor();
+            if (this.executorService != null) {
+                log.info("AsyncQuery use virtual threads");
+                return;
+            }
+            log.warn("virtual threads not supported, AsyncQuery use thread pool");
+        }
+        this.executorService = new ThreadPoolExecutor(this.corePoolSize, this.maxPoolSize, this.keepAliveSeconds, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(this.queueSize), r -> {
+            Thread t = new Thread(r, "AsyncQuery-thread-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 关闭由本对象创建的线程池，等待已经提交的任务完成
+     */
+    public void destory() {
+        if (this.createdExecutor && this.executorService != null) {
+            this.executorService.shutdown();
+        }
+    }
+
+    /**
+     * jdk21以上使用 Executors.newVirtualThreadPerTaskExecutor()
+     *
+     * @return 不支持时返回null
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package halo.query;
+
+import halo.query.dal.DALContext;
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALStatus;
+import halo.query.dal.ParsedInfo;
+import halo.query.dal.parser.ShardDALParser;
+import halo.query.mapping.EntityTableInfo;
+import halo.query.mapping.HaloQueryEnum;
+import halo.query.mapping.SQLMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * 使用 mysql load data local infile 导入大量数据。<br>
+ * 对象通过 {@link SQLMapper#getParamsForInsert(Object, boolean)} 转换为tab分隔的文本，通过内存中的输入流边读取边发送，不创建临时文件。
+ * 每 chunkRows 行执行一次 load data。<br>
+ * 对象的解析器是 {@link ShardDALParser} 并且有与分区参数同名的字段时，按照字段值把数据分到各个分区，
+ * 所有分区共缓存 chunkRows 行时导入数据最多的分区，分区数量很多时也只缓存 chunkRows 行；
+ * 否则所有数据导入当前线程解析的分区。<br>
+ * 数据源的连接需要允许 local infile，导入不返回自增id，id为0时由数据库生成。返回的数量为数据库实际导入的数量，local 方式下重复的数据会被忽略
+ *
+ * @author akwei
+ */
+public class BulkLoader {
+
+    private Query query;
+
+    /**
+     * 一次 load data 最多导入的行数
+     */
+    private int chunkRows = 50000;
+
+    public Query getQuery() {
+        return query;
+    }
+
+    public void setQuery(Query query) {
+        this.query = query;
+    }
+
+    public int getChunkRows() {
+        return chunkRows;
+    }
+
+    public void setChunkRows(int chunkRows) {
+        this.chunkRows = chunkRows;
+    }
+
+    /**
+     * 导入数据
+     *
+     * @param clazz  对象类型
+     * @param stream 数据
+     * @param <T>    对象泛型
+     * @return 数据库实际导入的数据数量
+     */
+    public <T> long load(Class<T> clazz, Stream<T> stream) {
+        return this.load(clazz, stream.iterator());
+    }
+
+    /**
+     * 导入数据
+     *
+     * @param clazz 对象类型
+     * @param it    数据
+     * @param <T>   对象泛型
+     * @return 数据库实际导入的数据数量
+     */
+    public <T> long load(Class<T> clazz, Iterator<T> it) {
+        EntityTableInfo<T> info = Query.getEntityTableInfo(clazz);
+        Field shardField = Query.getShardField(info);
+        if (shardField == null) {
+            return this.loadCurrent(clazz, it);
+        }
+        ShardDALParser parser = (ShardDALParser) info.getDalParser();
+        Map<ParsedInfo, List<T>> groups = new HashMap<>();
+        long rows = 0;
+        int bufferedRows = 0;
+        while (it.hasNext()) {
+            T t = it.next();
+            ParsedInfo parsedInfo = parser.parse(Collections.singletonMap(parser.getParam(), info.getFieldValue(t, shardField)));
+            groups.computeIfAbsent(parsedInfo, k -> new ArrayList<>()).add(t);
+            bufferedRows++;
+            if (bufferedRows >= this.chunkRows) {
+                Map.Entry<ParsedInfo, List<T>> largest = null;
+                for (Map.Entry<ParsedInfo, List<T>> e : groups.entrySet()) {
+                    if (largest == null || e.getValue().size() > largest.getValue().size()) {
+                        largest = e;
+                    }
+                }
+                rows += this.loadShard(clazz, largest.getKey(), largest.getValue());
+                bufferedRows -= largest.getValue().size();
+                groups.remove(largest.getKey());
+            }
+        }
+        for (Map.Entry<ParsedInfo, List<T>> e : groups.entrySet()) {
+            rows += this.loadShard(clazz, e.getKey(), e.getValue());
+        }
+        return rows;
+    }
+
+    private <T> long loadCurrent(Class<T> clazz, Iterator<T> it) {
+        DALInfo dalInfo;
+        try {
+            SqlBuilder.buildLoadDataSQL(clazz);
+            dalInfo = DALStatus.getDalInfo();
+            dalInfo = dalInfo == null ? null : dalInfo.copy();
+        } finally {
+            Query.skipExecute();
+        }
+        long rows = 0;
+        while (it.hasNext()) {
+            rows += this.loadChunk(clazz, dalInfo, it);
+        }
+        return rows;
+    }
+
+    private <T> long loadShard(Class<T> clazz, ParsedInfo parsedInfo, List<T> list) {
+        DALInfo dalInfo = new DALInfo();
+        dalInfo.setDsKey(parsedInfo.getDsKey());
+        dalInfo.setRealTable(clazz, parsedInfo.getRealTableName());
+        return this.loadChunk(clazz, dalInfo, list.iterator());
+    }
+
+    /**
+     * 从迭代器中读取最多 chunkRows 行并导入
+     */
+    private <T> long loadChunk(final Class<T> clazz, DALInfo dalInfo, Iterator<T> it) {
+        DALContext dalContext = DALContext.create();
+        if (dalInfo != null) {
+            DALInfo specify = dalInfo.copy();
+            specify.setSpecify(true);
+            dalContext.setDalInfo(specify);
+        }
+        final JdbcSupport jdbcSupport = (this.query == null ? Query.getInstance() : this.query).getJdbcSupport();
+        final TsvInputStream<T> in = new TsvInputStream<>(Query.getSqlMapper(clazz), it, this.chunkRows);
+        try {
+            return DALStatus.call(dalContext, () -> jdbcSupport.loadData(SqlBuilder.buildLoadDataSQL(clazz), in));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 读取时才把对象转换为一行文本的输入流
+     */
+    static final class TsvInputStream<T> extends InputStream {
+
+        private final SQLMapper<T> mapper;
+
+        private final Iterator<T> it;
+
+        private final int maxRows;
+
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+        private byte[] buf = new byte[0];
+
+        private int pos;
+
+        private int rows;
+
+        TsvInputStream(SQLMapper<T> mapper, Iterator<T> it, int maxRows) {
+            this.mapper = mapper;
+            this.it = it;
+            this.maxRows = maxRows;
+        }
+
+        /**
+         * 当前行读取完成时转换下一行
+         *
+         * @return false:没有数据
+         */
+        private boolean fill() {
+            while (this.pos >= this.buf.length) {
+                if (this.rows >= this.maxRows || !this.it.hasNext()) {
+                    return false;
+                }
+                this.line.reset();
+                Object[] values = this.mapper.getParamsForInsert(this.it.next(), true);
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) {
+                        this.line.write('\t');
+                    }
+                    this.writeValue(values[i]);
+                }
+                this.line.write('\n');
+                this.buf = this.line.toByteArray();
+                this.pos = 0;
+                this.rows++;
+            }
+            return true;
+        }
+
+        private void writeValue(Object value) {
+            if (value instanceof HaloQueryEnum) {
+                value = ((HaloQueryEnum) value).getValue();
+            }
+            if (value == null) {
+                this.line.write('\\');
+                this.line.write('N');
+                return;
+            }
+            byte[] bytes;
+            if (value instanceof byte[]) {
+                bytes = (byte[]) value;
+            } else if (value instanceof Boolean) {
+                bytes = (Boolean) value ? new byte[]{'1'} : new byte[]{'0'};
+            } else if (value instanceof BigDecimal) {
+                bytes = ((BigDecimal) value).toPlainString().getBytes(StandardCharsets.US_ASCII);
+            } else if (value instanceof java.util.Date && !(value instanceof java.sql.Timestamp || value instanceof java.sql.Date || value instanceof java.sql.Time)) {
+                bytes = this.dateFormat.format((java.util.Date) value).getBytes(StandardCharsets.US_ASCII);
+            } else {
+                bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+            }
+            for (byte b : bytes) {
+                switch (b) {
+                    case '\\':
+                        this.line.write('\\');
+                        this.line.write('\\');
+                        break;
+                    case '\t':
+                        this.line.write('\\');
+                        this.line.write('t');
+                        break;
+                    case '\n':
+                        this.line.write('\\');
+                        this.line.write('n');
+                        break;
+                    case '\r':
+                        this.line.write('\\');
+                        this.line.write('r');
+                        break;
+                    case 0:
+                        this.line.write('\\');
+                        this.line.write('0');
+                        break;
+                    default:
+                        this.line.write(b);
+                }
+            }
+        }
+
+        @Override
+        public int read() {
+            if (!this.fill()) {
+                return -1;
+            }
+            return this.buf[this.pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            int n = 0;
+            while (n < len && this.fill()) {
+                int size = Math.min(len - n, this.buf.length - this.pos);
+                System.arraycopy(this.buf, this.pos, b, off + n, size);
+                this.pos += size;
+                n += size;
+            }
+            return n == 0 ? -1 : n;
+        }
+    }
+}
@@ -12,6 +12,8 @@ public class HaloConfig implements InitializingBean {
 
     private int logSlowConMillis;
 
+    private boolean enableIdentityMap;
+
     public static HaloConfig getInstance() {
         return instance;
     }
@@ -25,6 +27,20 @@ public class HaloConfig implements InitializingBean {
         this.logSlowConMillis = logSlowConMillis;
     }
 
+    public boolean isEnableIdentityMap() {
+        return enableIdentityMap;
+    }
+
+    /**
+     * 设置是否在 DALConnection 存在期间(例如事务中)缓存 objById 的结果，相同id的查询返回同一个对象。
+     * 表有写操作时清除此表的缓存，连接关闭、事务提交或者回滚时清除所有缓存
+     *
+     * @param enableIdentityMap true:开启
+     */
+    public void setEnableIdentityMap(boolean enableIdentityMap) {
+        this.enableIdentityMap = enableIdentityMap;
+    }
+
     public boolean isSlowCon(int time) {
         if (this.logSlowConMillis <= 0) {
             return false;
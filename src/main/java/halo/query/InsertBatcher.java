@@ -0,0 +1,370 @@
+package halo.query;
+
+import halo.query.dal.DALContext;
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALStatus;
+import halo.query.mapping.EntityTableInfo;
+import halo.query.mapping.SQLMapper;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 合并并发的insert，多个线程同时insert相同的真实表时，合并为一条多行insert执行，减少连接的占用与网络往返。<br>
+ * 第一个加入的线程等待最多 maxDelayMicros 微秒或者达到 maxBatchRows 行后，使用自己的线程执行合并后的sql，其他线程等待执行结果。
+ * 每个线程获得自己数据的自增id。多行insert执行失败时整条sql没有写入，每行再单独执行一次，每个线程获得自己数据的执行结果；
+ * 返回的自增id数量与行数不同时无法对应，所有线程抛出 {@link HaloIdException}。<br>
+ * 多行insert的自增id需要是连续的，mysql的 innodb_autoinc_lock_mode 不能为2。
+ * 当前线程处于事务中时不合并，直接使用 {@link Query#insertForNumber(Object)}
+ *
+ * @author akwei
+ */
+public class InsertBatcher {
+
+    private Query query;
+
+    /**
+     * 一次insert最多包含的行数
+     */
+    private int maxBatchRows = 100;
+
+    /**
+     * 第一行加入后等待其他行的最长时间(微秒)
+     */
+    private long maxDelayMicros = 200;
+
+    private final ConcurrentHashMap<BatchKey, Batch> openBatches = new ConcurrentHashMap<>();
+
+    private final LongAdder batchCount = new LongAdder();
+
+    private final LongAdder rowCount = new LongAdder();
+
+    public Query getQuery() {
+        return query;
+    }
+
+    public void setQuery(Query query) {
+        this.query = query;
+    }
+
+    public int getMaxBatchRows() {
+        return maxBatchRows;
+    }
+
+    public void setMaxBatchRows(int maxBatchRows) {
+        this.maxBatchRows = maxBatchRows;
+    }
+
+    public long getMaxDelayMicros() {
+        return maxDelayMicros;
+    }
+
+    public void setMaxDelayMicros(long maxDelayMicros) {
+        this.maxDelayMicros = maxDelayMicros;
+    }
+
+    /**
+     * 执行的insert sql数量
+     *
+     * @return 数量
+     */
+    public long getBatchCount() {
+        return batchCount.sum();
+    }
+
+    /**
+     * insert的数据行数
+     *
+     * @return 数量
+     */
+    public long getRowCount() {
+        return rowCount.sum();
+    }
+
+    private Query getCurrentQuery() {
+        return this.query == null ? Query.getInstance() : this.query;
+    }
+
+    /**
+     * insert sql
+     *
+     * @param t   insert的对象
+     * @param <T> 对象泛型
+     */
+    public <T> void insert(T t) {
+        this.insertForNumber(t);
+    }
+
+    /**
+     * insert sql,返回自增数字id，与 {@link Query#insertForNumber(Object)} 相同，id为自增时设置到对象中
+     *
+     * @param t   insert的对象
+     * @param <T> 对象泛型
+     * @return insert之后的自增数字，不是自增id时返回0
+     */
+    public <T> Number insertForNumber(T t) {
+        Query query = this.getCurrentQuery();
+        if (DALStatus.getCurrentDALConnection() != null) {
+            // 事务中的insert需要在当前连接中执行
+            return query.insertForNumber(t);
+        }
+        EntityTableInfo<T> info = Query.getEntityTableInfo(t.getClass());
+        SQLMapper<T> mapper = Query.getSqlMapper(t.getClass());
+        Field idField = null;
+        if (info.getIdFields().size() == 1 && query.isNumberIdType(info.getIdFields().get(0))) {
+            try {
+                Object idValue = info.getIdFields().get(0).get(t);
+                if (idValue == null || ((Number) idValue).longValue() <= 0) {
+                    idField = info.getIdFields().get(0);
+                }
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        boolean generatedKey = idField != null;
+        String sql;
+        DALInfo dalInfo;
+        try {
+            sql = SqlBuilder.buildInsertSQL(t.getClass(), !generatedKey);
+            dalInfo = DALStatus.getDalInfo();
+            dalInfo = dalInfo == null ? null : dalInfo.copy();
+        } finally {
+            // 只解析分区，由合并后的insert执行sql
+            Query.skipExecute();
+        }
+        Object[] values = mapper.getParamsForInsert(t, !generatedKey);
+        Number n = this.join(new BatchKey(dalInfo == null ? null : dalInfo.getDsKey(), sql, generatedKey), dalInfo, values);
+        if (!generatedKey) {
+            return 0;
+        }
+        if (n != null && n.intValue() > 0) {
+            query.setIdValue(t, idField, n);
+        }
+        return n;
+    }
+
+    private Number join(BatchKey key, DALInfo dalInfo, Object[] values) {
+        Batch batch;
+        int index;
+        while (true) {
+            batch = this.openBatches.computeIfAbsent(key, k -> new Batch(dalInfo));
+            synchronized (batch) {
+                if (batch.closed) {
+                    this.openBatches.remove(key, batch);
+                    continue;
+                }
+                index = batch.valuesList.size();
+                batch.valuesList.add(values);
+                if (batch.valuesList.size() >= this.maxBatchRows) {
+                    batch.closed = true;
+                    this.openBatches.remove(key, batch);
+                    batch.notifyAll();
+                }
+            }
+            break;
+        }
+        if (index == 0) {
+            this.lead(key, batch);
+        } else {
+            await(batch.done);
+        }
+        if (batch.errors[index] != null) {
+            throw batch.errors[index];
+        }
+        if (!key.generatedKey) {
+            return 0;
+        }
+        return batch.ids[index];
+    }
+
+    /**
+     * 第一个加入的线程等待其他行，然后执行insert
+     */
+    private void lead(BatchKey key, Batch batch) {
+        boolean interrupted = false;
+        synchronized (batch) {
+            long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(this.maxDelayMicros);
+            while (!batch.closed) {
+                long nanos = deadline - System.nanoTime();
+                if (nanos <= 0) {
+                    break;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(batch, nanos);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+            }
+            batch.closed = true;
+        }
+        this.openBatches.remove(key, batch);
+        try {
+            this.executeBatch(key, batch);
+        } finally {
+            batch.done.countDown();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void executeBatch(BatchKey key, Batch batch) {
+        int size = batch.valuesList.size();
+        batch.ids = new Number[size];
+        batch.errors = new RuntimeException[size];
+        List<Number> ids;
+        try {
+            ids = this.execute(key, batch.dalInfo, batch.valuesList);
+        } catch (RuntimeException e) {
+            if (size == 1) {
+                batch.errors[0] = e;
+                return;
+            }
+            // 一行数据的错误不影响其他行，每行单独执行
+            for (int i = 0; i < size; i++) {
+                try {
+                    this.setIds(key, batch, i, 1, this.execute(key, batch.dalInfo, Collections.singletonList(batch.valuesList.get(i))));
+                } catch (RuntimeException e1) {
+                    batch.errors[i] = e1;
+                }
+            }
+            return;
+        }
+        this.setIds(key, batch, 0, size, ids);
+    }
+
+    /**
+     * 记录执行成功的行的自增id
+     *
+     * @param from 第一行在batch中的位置
+     * @param size 执行的行数
+     * @param ids  执行返回的自增id
+     */
+    private void setIds(BatchKey key, Batch batch, int from, int size, List<Number> ids) {
+        int rows = ids == null ? 0 : ids.size();
+        this.batchCount.increment();
+        this.rowCount.add(size);
+        if (!key.generatedKey) {
+            return;
+        }
+        if (rows != size) {
+            HaloIdException e = new HaloIdException("insert " + size + " rows but got " + rows + " generated keys, sql [ " + key.sql + " ]");
+            Arrays.fill(batch.errors, from, from + size, e);
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            batch.ids[from + i] = ids.get(i);
+        }
+    }
+
+    private List<Number> execute(BatchKey key, DALInfo batchDalInfo, List<Object[]> valuesList) {
+        int columnCount = valuesList.get(0).length;
+        Object[] params = new Object[columnCount * valuesList.size()];
+        StringBuilder sb = new StringBuilder(key.sql);
+        // sql以 values(?,?) 结尾，每多一行增加一组 (?,?)
+        String rowSeg = key.sql.substring(key.sql.lastIndexOf('('));
+        for (int i = 0; i < valuesList.size(); i++) {
+            if (i > 0) {
+                sb.append(',').append(rowSeg);
+            }
+            System.arraycopy(valuesList.get(i), 0, params, i * columnCount, columnCount);
+        }
+        final String sql = sb.toString();
+        final List<Object[]> multiValuesList = Collections.singletonList(params);
+        final JdbcSupport jdbcSupport = this.getCurrentQuery().getJdbcSupport();
+        DALContext dalContext = DALContext.create();
+        if (batchDalInfo != null) {
+            DALInfo dalInfo = batchDalInfo.copy();
+            dalInfo.setSpecify(true);
+            dalContext.setDalInfo(dalInfo);
+        }
+        try {
+            return DALStatus.call(dalContext, () -> jdbcSupport.batchInsert(sql, multiValuesList, key.generatedKey));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                // 数据已经加入，必须等待执行结果
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Batch {
+
+        private final DALInfo dalInfo;
+
+        private final List<Object[]> valuesList = new ArrayList<>();
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /**
+         * true:不再接受新的行
+         */
+        private boolean closed;
+
+        /**
+         * 以下结果在 done 之前写入，每行对应一个位置
+         */
+        private Number[] ids;
+
+        private RuntimeException[] errors;
+
+        private Batch(DALInfo dalInfo) {
+            this.dalInfo = dalInfo;
+        }
+    }
+
+    /**
+     * 数据源与sql相同的insert可以合并，sql中包含真实表名称
+     */
+    private static final class BatchKey {
+
+        private final String dsKey;
+
+        private final String sql;
+
+        private final boolean generatedKey;
+
+        private BatchKey(String dsKey, String sql, boolean generatedKey) {
+            this.dsKey = dsKey;
+            this.sql = sql;
+            this.generatedKey = generatedKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(dsKey) + sql.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey o = (BatchKey) obj;
+            return Objects.equals(this.dsKey, o.dsKey) && this.sql.equals(o.sql) && this.generatedKey == o.generatedKey;
+        }
+    }
+}
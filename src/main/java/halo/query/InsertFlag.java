@@ -6,7 +6,11 @@ package halo.query;
 public enum InsertFlag {
     INSERT_INTO(0),
     REPLACE_INTO(1),
-    INSERT_IGNORE_INTO(2);
+    INSERT_IGNORE_INTO(2),
+    /**
+     * insert into ... on duplicate key update ...
+     */
+    INSERT_ON_DUPLICATE_KEY_UPDATE(3);
 
     private final int value;
 
@@ -26,6 +30,8 @@ public enum InsertFlag {
                 return REPLACE_INTO;
             case 2:
                 return INSERT_IGNORE_INTO;
+            case 3:
+                return INSERT_ON_DUPLICATE_KEY_UPDATE;
             default:
                 return null;
         }
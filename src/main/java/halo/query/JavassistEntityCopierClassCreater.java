@@ -1,5 +1,6 @@
 package halo.query;
 
+import halo.query.javassistutil.JavassistUtil;
 import javassist.*;
 
 import java.lang.reflect.Field;
@@ -22,62 +23,58 @@ class JavassistEntityCopierClassCreater<T, E> {
 
     private Class<E> toClazz;
 
-    private static final ClassPool pool = ClassPool.getDefault();
-
-    static {
-        pool.insertClassPath(new ClassClassPath(JavassistEntityCopierClassCreater.class));
-    }
-
     public static ClassPool getClassPool() {
-        return pool;
+        return JavassistUtil.getClassPool();
     }
 
     public JavassistEntityCopierClassCreater(Class<T> fromClazz, Class<E> toClazz) {
         this.fromClazz = fromClazz;
         this.toClazz = toClazz;
         String className = this.createClassName();
+        // 如果已经有同名类就赋值
+        Class<?> loadedClass = JavassistUtil.findLoadedClass(classLoader, className);
+        if (loadedClass != null) {
+            this.mapperClass = loadedClass;
+            return;
+        }
+        CtClass cc = null;
         try {
             ClassPool pool = JavassistEntityCopierClassCreater.getClassPool();
             CtClass beanCopierClass = pool.get(EntityCopier.class.getName());
-            try {
-                CtClass cc = pool.getCtClass(className);
-                // 如果已经有同名类就赋值
-                this.mapperClass = classLoader.loadClass(className);
-            } catch (NotFoundException e) {
-                // 没有找到，就创建新的class
-                CtClass cc = pool.makeClass(className);
-                cc.setInterfaces(new CtClass[]{beanCopierClass});
-                //                SignatureAttribute.ClassSignature cs = new SignatureAttribute
-                //                        .ClassSignature(new SignatureAttribute
-                //                        .TypeParameter[]{new SignatureAttribute.TypeParameter
-                //                        (from.getClass().getName()), new SignatureAttribute
-                //                        .TypeParameter(toClazz.getName())});
-                //                cc.setGenericSignature(cs.encode());
-                String src = this.createMethodSrc();
-                CtMethod method;
-                method = CtNewMethod.make(src, cc);
-                //create T E
-                //                SignatureAttribute.TypeVariable tvarT = new SignatureAttribute
-                //                        .TypeVariable(this.from.getClass().getName());
-                //                SignatureAttribute.TypeVariable tvarE = new SignatureAttribute
-                //                        .TypeVariable(this.toClazz.getName());
-                //                SignatureAttribute.MethodSignature ms = new
-                //                        SignatureAttribute.MethodSignature(null,
-                //                        new SignatureAttribute.TypeVariable[]{tvarT, tvarE},
-                //                        tvarE, null);
-                //                method.setGenericSignature(ms.encode());
-                cc.addMethod(method);
-                this.mapperClass = cc.toClass(classLoader, classLoader
-                                .getClass()
-                                .getProtectionDomain()
-                );
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException(e);
-            }
+            // 没有找到，就创建新的class
+            cc = pool.makeClass(className);
+            cc.setInterfaces(new CtClass[]{beanCopierClass});
+            //                SignatureAttribute.ClassSignature cs = new SignatureAttribute
+            //                        .ClassSignature(new SignatureAttribute
+            //                        .TypeParameter[]{new SignatureAttribute.TypeParameter
+            //                        (from.getClass().getName()), new SignatureAttribute
+            //                        .TypeParameter(toClazz.getName())});
+            //                cc.setGenericSignature(cs.encode());
+            String src = this.createMethodSrc();
+            CtMethod method;
+            method = CtNewMethod.make(src, cc);
+            //create T E
+            //                SignatureAttribute.TypeVariable tvarT = new SignatureAttribute
+            //                        .TypeVariable(this.from.getClass().getName());
+            //                SignatureAttribute.TypeVariable tvarE = new SignatureAttribute
+            //                        .TypeVariable(this.toClazz.getName());
+            //                SignatureAttribute.MethodSignature ms = new
+            //                        SignatureAttribute.MethodSignature(null,
+            //                        new SignatureAttribute.TypeVariable[]{tvarT, tvarE},
+            //                        tvarE, null);
+            //                method.setGenericSignature(ms.encode());
+            cc.addMethod(method);
+            this.mapperClass = cc.toClass(classLoader, classLoader
+                            .getClass()
+                            .getProtectionDomain()
+            );
         } catch (CannotCompileException e) {
             throw new RuntimeException(e);
         } catch (NotFoundException e) {
             throw new RuntimeException(e);
+        } finally {
+            // class已经加载，不再需要保留CtClass
+            JavassistUtil.detach(cc);
         }
     }
 
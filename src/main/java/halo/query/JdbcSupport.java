@@ -1,6 +1,8 @@
 package halo.query;
 
+import halo.query.dal.DALConnection;
 import halo.query.dal.DALInfo;
+import halo.query.dal.DALMigration;
 import halo.query.dal.DALStatus;
 import halo.query.mapping.HaloQueryEnum;
 import org.apache.commons.logging.Log;
@@ -11,6 +13,7 @@ import org.springframework.jdbc.core.*;
 import org.springframework.jdbc.core.support.JdbcDaoSupport;
 import org.springframework.jdbc.support.JdbcUtils;
 
+import java.io.InputStream;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
@@ -38,9 +41,16 @@ public class JdbcSupport extends JdbcDaoSupport {
         if (HaloQueryDebugInfo.getInstance().isEnableDebug()) {
             this.log("batch update sql [ " + sql + " ]");
         }
+        DALInfo migratingDalInfo = getMigratingDALInfo();
         try {
-            return this.getJdbcTemplate().batchUpdate(sql, bpss);
+            int[] result = this.getJdbcTemplate().batchUpdate(sql, bpss);
+            if (migratingDalInfo != null) {
+                final String migrateSql = migratingDalInfo.toMigrateSql(sql);
+                DALMigration.getInstance().write(migratingDalInfo, migrateSql, () -> this.batchUpdate(migrateSql, bpss));
+            }
+            return result;
         } finally {
+            this.afterWrite(sql);
             this.afterExeSql();
         }
     }
@@ -93,8 +103,9 @@ public class JdbcSupport extends JdbcDaoSupport {
         for (Object[] values : valuesList) {
             checkValues(values);
         }
+        DALInfo migratingDalInfo = getMigratingDALInfo();
         try {
-            return this.getJdbcTemplate().execute(new PreparedStatementCreator() {
+            List<Number> result = this.getJdbcTemplate().execute(new PreparedStatementCreator() {
                 public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
                     if (canGetGeneratedKeys) {
                         return con.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
@@ -125,7 +136,52 @@ public class JdbcSupport extends JdbcDaoSupport {
                     }
                 }
             });
+            if (migratingDalInfo != null) {
+                if (canGetGeneratedKeys) {
+                    DALMigration.getInstance().skipWrite(sql);
+                } else {
+                    final String migrateSql = migratingDalInfo.toMigrateSql(sql);
+                    DALMigration.getInstance().write(migratingDalInfo, migrateSql, () -> this.batchInsert(migrateSql, valuesList, false));
+                }
+            }
+            return result;
+        } finally {
+            this.afterWrite(sql);
+            this.afterExeSql();
+        }
+    }
+
+    /**
+     * 执行 load data local infile，从输入流读取数据，只支持mysql驱动。
+     * 迁移中的表无法重复读取输入流，不进行新路由的写操作
+     *
+     * @param sql load data local infile sql
+     * @param in  数据输入流，执行完成后不会关闭
+     * @return 导入的数据数量
+     */
+    public int loadData(final String sql, final InputStream in) {
+        if (HaloQueryDebugInfo.getInstance().isEnableDebug()) {
+            this.log("load data sql [ " + sql + " ]");
+        }
+        DALInfo migratingDalInfo = getMigratingDALInfo();
+        try {
+            int result = this.getJdbcTemplate().execute(new StatementCallback<Integer>() {
+                public Integer doInStatement(Statement stmt) throws SQLException, DataAccessException {
+                    com.mysql.jdbc.Statement mysqlStmt = stmt.unwrap(com.mysql.jdbc.Statement.class);
+                    mysqlStmt.setLocalInfileInputStream(in);
+                    try {
+                        return stmt.executeUpdate(sql);
+                    } finally {
+                        mysqlStmt.setLocalInfileInputStream(null);
+                    }
+                }
+            });
+            if (migratingDalInfo != null) {
+                DALMigration.getInstance().skipWrite(sql);
+            }
+            return result;
         } finally {
+            this.afterWrite(sql);
             this.afterExeSql();
         }
     }
@@ -139,12 +195,38 @@ public class JdbcSupport extends JdbcDaoSupport {
      * @return 自增id or null
      */
     public Object insert(final String sql, final Object[] values, final boolean canGetGeneratedKeys) {
+        checkValues(values);
+        return this.insert(sql, new PreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps) throws SQLException {
+                setPsValues(ps, values);
+            }
+        }, canGetGeneratedKeys, values);
+    }
+
+    /**
+     * insert 操作，由 setter 直接设置参数，例如 {@link halo.query.mapping.SQLMapper#bindInsert(PreparedStatement, int, Object, boolean)}。
+     * setter 在执行时才读取参数，迁移中的表无法得到执行时的参数，不进行新路由的写操作，需要双写时使用 {@link #insert(String, Object[], boolean)}
+     *
+     * @param sql                 sql
+     * @param setter              设置参数
+     * @param canGetGeneratedKeys true:可以返回自增id，返回值为Number类型.false:返回null
+     * @return 自增id or null
+     */
+    public Object insert(final String sql, final PreparedStatementSetter setter, final boolean canGetGeneratedKeys) {
+        return this.insert(sql, setter, canGetGeneratedKeys, null);
+    }
+
+    /**
+     * @param values 新路由执行写操作使用的参数，在调用时已经确定，为null时不进行新路由的写操作
+     */
+    private Object insert(final String sql, final PreparedStatementSetter setter, final boolean canGetGeneratedKeys, final Object[] values) {
         if (HaloQueryDebugInfo.getInstance().isEnableDebug()) {
             this.log("insert sql [ " + sql + " ]");
         }
-        checkValues(values);
+        DALInfo migratingDalInfo = getMigratingDALInfo();
         try {
-            return this.getJdbcTemplate().execute(new PreparedStatementCreator() {
+            Object result = this.getJdbcTemplate().execute(new PreparedStatementCreator() {
 
                 public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
                     if (canGetGeneratedKeys) {
@@ -157,21 +239,7 @@ public class JdbcSupport extends JdbcDaoSupport {
                 public Object doInPreparedStatement(PreparedStatement ps) throws SQLException, DataAccessException {
                     ResultSet rs = null;
                     try {
-                        if (values != null) {
-                            int i = 1;
-                            for (Object value : values) {
-                                if (value == null) {
-                                    // 貌似varchar通用mysql db2
-                                    ps.setNull(i++, Types.VARCHAR);
-                                } else {
-                                    if (value instanceof HaloQueryEnum) {
-                                        ps.setObject(i++, ((HaloQueryEnum) value).getValue());
-                                    } else {
-                                        ps.setObject(i++, value);
-                                    }
-                                }
-                            }
-                        }
+                        setter.setValues(ps);
                         ps.executeUpdate();
                         if (canGetGeneratedKeys) {
                             rs = ps.getGeneratedKeys();
@@ -186,7 +254,18 @@ public class JdbcSupport extends JdbcDaoSupport {
                     }
                 }
             });
+            if (migratingDalInfo != null) {
+                if (canGetGeneratedKeys || values == null) {
+                    // sql中没有自增id，新路由无法得到相同的id
+                    DALMigration.getInstance().skipWrite(sql);
+                } else {
+                    final String migrateSql = migratingDalInfo.toMigrateSql(sql);
+                    DALMigration.getInstance().write(migratingDalInfo, migrateSql, () -> this.insert(migrateSql, values, false));
+                }
+            }
+            return result;
         } finally {
+            this.afterWrite(sql);
             this.afterExeSql();
         }
     }
@@ -205,8 +284,33 @@ public class JdbcSupport extends JdbcDaoSupport {
             this.log("list sql [ " + sql + " ]");
         }
         checkValues(values);
+        DALInfo migratingDalInfo = getMigratingDALInfo();
         try {
-            return this.getJdbcTemplate().query(sql, values, rowMapper);
+            List<T> result = this.getJdbcTemplate().query(sql, values, rowMapper);
+            if (migratingDalInfo != null && DALMigration.getInstance().sampleShadowRead()) {
+                final String migrateSql = migratingDalInfo.toMigrateSql(sql);
+                DALMigration.getInstance().shadowRead(migratingDalInfo, migrateSql, result, () -> this.list(migrateSql, values, rowMapper));
+            }
+            return result;
+        } finally {
+            this.afterExeSql();
+        }
+    }
+
+    /**
+     * 查询并逐行处理结果，不保存查询结果
+     *
+     * @param sql                sql
+     * @param values             参数
+     * @param rowCallbackHandler spring {@link RowCallbackHandler}
+     */
+    public void query(String sql, Object[] values, RowCallbackHandler rowCallbackHandler) {
+        if (HaloQueryDebugInfo.getInstance().isEnableDebug()) {
+            this.log("query sql [ " + sql + " ]");
+        }
+        checkValues(values);
+        try {
+            this.getJdbcTemplate().query(sql, values, rowCallbackHandler);
         } finally {
             this.afterExeSql();
         }
@@ -224,8 +328,14 @@ public class JdbcSupport extends JdbcDaoSupport {
             this.log("num sql [ " + sql + " ]");
         }
         checkValues(values);
+        DALInfo migratingDalInfo = getMigratingDALInfo();
         try {
-            return this.getJdbcTemplate().queryForObject(sql, values, Number.class);
+            Number result = this.getJdbcTemplate().queryForObject(sql, values, Number.class);
+            if (migratingDalInfo != null && DALMigration.getInstance().sampleShadowRead()) {
+                final String migrateSql = migratingDalInfo.toMigrateSql(sql);
+                DALMigration.getInstance().shadowRead(migratingDalInfo, migrateSql, result, () -> this.num(migrateSql, values));
+            }
+            return result;
         } finally {
             this.afterExeSql();
         }
@@ -243,14 +353,21 @@ public class JdbcSupport extends JdbcDaoSupport {
             this.log("update sql [ " + sql + " ]");
         }
         checkValues(values);
+        DALInfo migratingDalInfo = getMigratingDALInfo();
         try {
-            return this.getJdbcTemplate().update(sql, new PreparedStatementSetter() {
+            int result = this.getJdbcTemplate().update(sql, new PreparedStatementSetter() {
                 public void setValues(PreparedStatement ps)
                         throws SQLException {
                     setPsValues(ps, values);
                 }
             });
+            if (migratingDalInfo != null) {
+                final String migrateSql = migratingDalInfo.toMigrateSql(sql);
+                DALMigration.getInstance().write(migratingDalInfo, migrateSql, () -> this.update(migrateSql, values));
+            }
+            return result;
         } finally {
+            this.afterWrite(sql);
             this.afterExeSql();
         }
     }
@@ -271,7 +388,11 @@ public class JdbcSupport extends JdbcDaoSupport {
     }
 
     public void execute(String sql) {
-        this.getJdbcTemplate().execute(sql);
+        try {
+            this.getJdbcTemplate().execute(sql);
+        } finally {
+            this.afterWrite(sql);
+        }
     }
 
     /**
@@ -331,6 +452,39 @@ public class JdbcSupport extends JdbcDaoSupport {
         log.info(v);
     }
 
+    /**
+     * 获得当前处于迁移模式的分区信息，需要在执行sql之前获得，执行后连接关闭会清除分区信息
+     *
+     * @return 不在迁移模式时返回null
+     */
+    private DALInfo getMigratingDALInfo() {
+        DALInfo dalInfo = DALStatus.getDalInfo();
+        if (dalInfo != null && dalInfo.isMigrating()) {
+            return dalInfo;
+        }
+        return null;
+    }
+
+    /**
+     * 写操作执行后使查询结果缓存、不存在数据的缓存以及当前连接中根据id查询的对象失效
+     *
+     * @param sql 写操作sql
+     */
+    private void afterWrite(String sql) {
+        QueryResultCache resultCache = QueryResultCache.getInstance();
+        if (resultCache != null) {
+            resultCache.afterWrite(sql);
+        }
+        NegativeLookupCache negativeLookupCache = NegativeLookupCache.getInstance();
+        if (negativeLookupCache != null) {
+            negativeLookupCache.afterWrite(sql);
+        }
+        DALConnection dalConnection = DALStatus.getCurrentDALConnection();
+        if (dalConnection != null) {
+            dalConnection.evictIdentity(SqlBuilder.parseWriteTable(sql));
+        }
+    }
+
     private void afterExeSql() {
         DALInfo dalInfo = DALStatus.getDalInfo();
         if (dalInfo != null && dalInfo.isSpecify()) {
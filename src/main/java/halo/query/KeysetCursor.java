@@ -0,0 +1,165 @@
+package halo.query;
+
+import halo.query.mapping.EntityTableInfo;
+
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * keyset分页的游标，每个分区一个游标，编码为token在客户端与服务端之间传递。<br>
+ * 游标的状态: null 表示从第一条数据开始，key数组表示从该key之后开始，{@link #DONE} 表示分区已经没有数据
+ *
+ * @author akwei
+ */
+@SuppressWarnings("unchecked")
+class KeysetCursor {
+
+    static final Object[] DONE = new Object[0];
+
+    private KeysetCursor() {
+    }
+
+    /**
+     * 获得对象的key。key的值为null时无法作为下一页的查询条件
+     *
+     * @param info       对象信息
+     * @param obj        对象
+     * @param keyColumns key对应的列
+     * @return key数组
+     * @throws IllegalArgumentException key的值为null
+     */
+    static Object[] readKey(EntityTableInfo<?> info, Object obj, String[] keyColumns) {
+        Object[] key = new Object[keyColumns.length];
+        for (int i = 0; i < keyColumns.length; i++) {
+            key[i] = info.getFieldValue(obj, getField(info, keyColumns[i]));
+            if (key[i] == null) {
+                throw new IllegalArgumentException("key column [ " + keyColumns[i] + " ] of " + info.getClazz().getName() + " must be not null");
+            }
+        }
+        return key;
+    }
+
+    private static Field getField(EntityTableInfo<?> info, String column) {
+        Field field = info.getField(column);
+        if (field == null) {
+            throw new IllegalArgumentException("column [ " + column + " ] not found in " + info.getClazz().getName());
+        }
+        return field;
+    }
+
+    static int compareKey(Object[] a, Object[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int c = ((Comparable<Object>) a[i]).compareTo(b[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    static String encode(List<Object[]> cursors) {
+        List<Object> list = new ArrayList<>(cursors.size());
+        for (Object[] cursor : cursors) {
+            if (cursor == null) {
+                list.add(null);
+            } else if (cursor == DONE) {
+                list.add(Boolean.FALSE);
+            } else {
+                List<Object> key = new ArrayList<>(cursor.length);
+                for (Object value : cursor) {
+                    key.add(value instanceof Date ? ((Date) value).getTime() : value);
+                }
+                list.add(key);
+            }
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(JsonUtil.build(list).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 解析token，key的值转换为对象中对应field的类型
+     *
+     * @param token      token
+     * @param info       对象信息
+     * @param keyColumns key对应的列
+     * @return 每个分区的游标
+     */
+    static List<Object[]> decode(String token, EntityTableInfo<?> info, String[] keyColumns) {
+        List<Object> list;
+        try {
+            list = (List<Object>) JsonUtil.parse(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8), List.class);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("invalid token [ " + token + " ]", e);
+        }
+        if (list == null) {
+            throw new IllegalArgumentException("invalid token [ " + token + " ]");
+        }
+        List<Object[]> cursors = new ArrayList<>(list.size());
+        for (Object obj : list) {
+            if (obj == null) {
+                cursors.add(null);
+            } else if (Boolean.FALSE.equals(obj)) {
+                cursors.add(DONE);
+            } else {
+                List<Object> key = (List<Object>) obj;
+                if (key.size() != keyColumns.length) {
+                    throw new IllegalArgumentException("invalid token [ " + token + " ]");
+                }
+                Object[] cursor = new Object[keyColumns.length];
+                for (int i = 0; i < keyColumns.length; i++) {
+                    cursor[i] = convert(key.get(i), getField(info, keyColumns[i]).getType());
+                }
+                cursors.add(cursor);
+            }
+        }
+        return cursors;
+    }
+
+    private static Object convert(Object value, Class<?> type) {
+        if (value == null || type.isInstance(value)) {
+            return value;
+        }
+        if (value instanceof Number) {
+            Number n = (Number) value;
+            if (type == long.class || type == Long.class) {
+                return n.longValue();
+            }
+            if (type == int.class || type == Integer.class) {
+                return n.intValue();
+            }
+            if (type == short.class || type == Short.class) {
+                return n.shortValue();
+            }
+            if (type == byte.class || type == Byte.class) {
+                return n.byteValue();
+            }
+            if (type == double.class || type == Double.class) {
+                return n.doubleValue();
+            }
+            if (type == float.class || type == Float.class) {
+                return n.floatValue();
+            }
+            if (type == BigDecimal.class) {
+                return new BigDecimal(n.toString());
+            }
+            if (type == BigInteger.class) {
+                return new BigInteger(n.toString());
+            }
+            if (type == java.sql.Timestamp.class) {
+                return new java.sql.Timestamp(n.longValue());
+            }
+            if (type == java.sql.Date.class) {
+                return new java.sql.Date(n.longValue());
+            }
+            if (type == Date.class) {
+                return new Date(n.longValue());
+            }
+        }
+        if (type == BigDecimal.class) {
+            return new BigDecimal(value.toString());
+        }
+        return value;
+    }
+}
@@ -0,0 +1,38 @@
+package halo.query;
+
+import java.util.List;
+
+/**
+ * keyset方式分页查询的结果。nextToken 记录了本页最后一条数据的key，用于查询下一页
+ *
+ * @param <T> 对象泛型
+ * @author akwei
+ */
+public class KeysetPage<T> {
+
+    private final List<T> list;
+
+    private final String nextToken;
+
+    public KeysetPage(List<T> list, String nextToken) {
+        this.list = list;
+        this.nextToken = nextToken;
+    }
+
+    public List<T> getList() {
+        return list;
+    }
+
+    /**
+     * 查询下一页使用的token
+     *
+     * @return null表示没有下一页
+     */
+    public String getNextToken() {
+        return nextToken;
+    }
+
+    public boolean hasNext() {
+        return this.nextToken != null;
+    }
+}
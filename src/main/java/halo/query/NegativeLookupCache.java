@@ -0,0 +1,252 @@
+package halo.query;
+
+import halo.query.dal.DALConnection;
+import halo.query.dal.DALStatus;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * objById 查询不存在数据的缓存，在 ttlMillis 时间内相同id的查询直接返回null，不再访问数据库。只对 entityClasses 中的对象生效。<br>
+ * 每个真实表有一个版本号，通过 {@link JdbcSupport} 对表执行 insert、replace 时增加版本号，此表所有缓存的id失效；事务中的 insert 在提交后再增加一次版本号。
+ * 无法识别表名称的 insert 使所有缓存失效。<br>
+ * slave查询的结果可能有延迟，不进行缓存；事务中的查询可以看到事务自己未提交的写入，不读取也不记录缓存。缓存数量达到 maxSize 时删除最久没有访问的数据
+ *
+ * @author akwei
+ */
+public class NegativeLookupCache implements InitializingBean {
+
+    private static NegativeLookupCache instance;
+
+    private Set<Class<?>> entityClasses = new HashSet<>();
+
+    /**
+     * 不存在数据的缓存时间(毫秒)
+     */
+    private long ttlMillis = 5000;
+
+    private int maxSize = 100000;
+
+    private final ConcurrentHashMap<String, AtomicLong> tableVersions = new ConcurrentHashMap<>();
+
+    /**
+     * 所有表共同的版本号，无法识别表名称的 insert 时增加
+     */
+    private final AtomicLong globalVersion = new AtomicLong();
+
+    /**
+     * 按照访问顺序排列，value为 {过期时间, 表版本号}
+     */
+    private final LinkedHashMap<List<Object>, long[]> missMap = new LinkedHashMap<List<Object>, long[]>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, long[]> eldest) {
+            if (this.size() > maxSize) {
+                evictionCount.increment();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder putCount = new LongAdder();
+
+    private final LongAdder evictionCount = new LongAdder();
+
+    public static NegativeLookupCache getInstance() {
+        return instance;
+    }
+
+    public Set<Class<?>> getEntityClasses() {
+        return entityClasses;
+    }
+
+    /**
+     * 设置使用缓存的对象类型
+     *
+     * @param entityClasses 对象类型
+     */
+    public void setEntityClasses(Set<Class<?>> entityClasses) {
+        this.entityClasses = entityClasses;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 直接返回null，没有访问数据库的次数
+     *
+     * @return 数量
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getPutCount() {
+        return putCount.sum();
+    }
+
+    /**
+     * 缓存已满时删除最久没有访问的数据的次数
+     *
+     * @return 数量
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    public synchronized int size() {
+        return this.missMap.size();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        instance = this;
+    }
+
+    /**
+     * 停止使用缓存
+     */
+    public void destory() {
+        if (instance == this) {
+            instance = null;
+        }
+        synchronized (this) {
+            this.missMap.clear();
+        }
+    }
+
+    boolean isEnabled(Class<?> clazz) {
+        return this.entityClasses.contains(clazz);
+    }
+
+    /**
+     * 当前线程是否处于事务中，事务中不使用缓存
+     *
+     * @return true:处于事务中
+     */
+    boolean isInTransaction() {
+        DALConnection dalConnection = DALStatus.getCurrentDALConnection();
+        try {
+            return dalConnection != null && !dalConnection.getAutoCommit();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    /**
+     * 获得表当前的版本号，需要在执行查询之前获得。表与所有表共同的版本号只会增加，任意一个增加时返回值都会变化
+     *
+     * @param table 真实表名称
+     * @return 版本号
+     */
+    long version(String table) {
+        AtomicLong version = this.tableVersions.get(table);
+        return this.globalVersion.get() + (version == null ? 0 : version.get());
+    }
+
+    /**
+     * 是否是已知不存在的数据
+     *
+     * @param table 真实表名称
+     * @param key   数据的key
+     * @return true:数据不存在
+     */
+    synchronized boolean isMiss(String table, List<Object> key) {
+        long[] value = this.missMap.get(key);
+        if (value == null) {
+            return false;
+        }
+        if (value[0] < System.currentTimeMillis() || value[1] != this.version(table)) {
+            this.missMap.remove(key, value);
+            return false;
+        }
+        this.hitCount.increment();
+        return true;
+    }
+
+    /**
+     * 记录不存在的数据。查询执行后当前线程的分区信息可能已经释放，是否使用slave以key中查询前的记录为准
+     *
+     * @param table   真实表名称
+     * @param key     数据的key，第3个元素为查询时是否使用slave
+     * @param version 执行查询之前表的版本号
+     */
+    synchronized void putMiss(String table, List<Object> key, long version) {
+        if (Boolean.TRUE.equals(key.get(2)) || version != this.version(table)) {
+            return;
+        }
+        this.missMap.put(key, new long[]{System.currentTimeMillis() + this.ttlMillis, version});
+        this.putCount.increment();
+    }
+
+    /**
+     * 写操作执行后，如果是 insert、replace 使表的所有缓存失效，处于事务中时在事务提交后再失效一次
+     *
+     * @param sql 写操作sql
+     */
+    void afterWrite(String sql) {
+        if (!SqlBuilder.isInsertSQL(sql)) {
+            return;
+        }
+        final String table = SqlBuilder.parseWriteTable(sql);
+        this.invalidate(table);
+        DALConnection dalConnection = DALStatus.getCurrentDALConnection();
+        try {
+            if (dalConnection != null && !dalConnection.getAutoCommit()) {
+                dalConnection.addAfterCommitTask(() -> this.invalidate(table));
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void invalidate(String table) {
+        if (table == null) {
+            this.invalidateAll();
+        } else {
+            this.invalidateTable(table);
+        }
+    }
+
+    /**
+     * 使所有表的缓存失效
+     */
+    public void invalidateAll() {
+        this.globalVersion.incrementAndGet();
+    }
+
+    /**
+     * 使表的所有缓存失效
+     *
+     * @param table 真实表名称
+     */
+    public void invalidateTable(String table) {
+        AtomicLong version = this.tableVersions.get(table);
+        if (version == null) {
+            version = this.tableVersions.computeIfAbsent(table, k -> new AtomicLong());
+        }
+        version.incrementAndGet();
+    }
+}
@@ -1,6 +1,8 @@
 package halo.query;
 
 import halo.query.dal.*;
+import halo.query.dal.parser.ShardDALParser;
+import halo.query.mapping.EntityProjection;
 import halo.query.mapping.EntityTableInfo;
 import halo.query.mapping.EntityTableInfoFactory;
 import halo.query.mapping.SQLMapper;
@@ -10,16 +12,27 @@ import org.springframework.jdbc.core.RowMapper;
 
 import java.lang.reflect.Field;
 import java.math.BigInteger;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 @SuppressWarnings("unchecked")
 public class Query {
 
     private static Query instance;
 
+    /**
+     * batchUpsert 一条sql默认最多包含的行数
+     */
+    public static final int BATCH_UPSERT_ROWS = 1000;
+
     protected JdbcSupport jdbcSupport;
 
     public Query() {
@@ -43,7 +56,8 @@ public class Query {
      * @return sql统计数字
      */
     public int count(Class<?>[] clazzes, String afterFrom, Object[] values) {
-        return jdbcSupport.num(SqlBuilder.buildCountSQL(clazzes, afterFrom), values).intValue();
+        final String sql = SqlBuilder.buildCountSQL(clazzes, afterFrom);
+        return this.cachedRead(clazzes, sql, values, () -> jdbcSupport.num(sql, values)).intValue();
     }
 
     /**
@@ -68,7 +82,8 @@ public class Query {
      * @return 查询数量
      */
     public <T> int count(Class<T> clazz, String afterFrom, Object[] values) {
-        return jdbcSupport.num(SqlBuilder.buildCountSQL(clazz, afterFrom), values).intValue();
+        final String sql = SqlBuilder.buildCountSQL(clazz, afterFrom);
+        return this.cachedRead(new Class<?>[]{clazz}, sql, values, () -> jdbcSupport.num(sql, values)).intValue();
     }
 
     /**
@@ -85,6 +100,29 @@ public class Query {
         return this.count(clazz, afterFrom, buildArgs(values));
     }
 
+    /**
+     * 聚合查询，在当前分区执行
+     *
+     * @param clazz       查询对象类型
+     * @param aggregation 聚合定义
+     * @param afterFrom   from table 之后的sql,例如 where uid=?，不能包含 group by、order by、limit
+     * @param values      参数化查询值
+     * @param <T>         对象泛型
+     * @return 每个分组一个map，key为分组列名称以及聚合结果的别名
+     */
+    public <T> List<Map<String, Object>> aggregate(Class<T> clazz, Aggregation aggregation, String afterFrom, Object[] values) {
+        return aggregation.toResult(this.aggregatePartial(clazz, aggregation, afterFrom, values));
+    }
+
+    /**
+     * 聚合查询，返回当前分区部分聚合的结果，用于多个分区结果的合并
+     */
+    <T> Map<Object, Object[]> aggregatePartial(Class<T> clazz, Aggregation aggregation, String afterFrom, Object[] values) {
+        final Map<Object, Object[]> partial = aggregation.newPartial();
+        jdbcSupport.query(SqlBuilder.buildAggregateSQL(clazz, aggregation, afterFrom), values, rs -> aggregation.addRow(partial, rs));
+        return partial;
+    }
+
     /**
      * 对sql中有 in (?,?)的count封装，目前只支持 单个in
      *
@@ -174,7 +212,157 @@ public class Query {
      * @return 查询结果 T 类型的集合
      */
     public <T> List<T> list(Class<T> clazz, String afterFrom, Object[] values) {
-        return this.list(clazz, afterFrom, values, getRowMapper(clazz));
+        if (QueryResultCache.getInstance() == null) {
+            return this.list(clazz, afterFrom, values, getRowMapper(clazz));
+        }
+        final String sql = SqlBuilder.buildListSQL(clazz, afterFrom);
+        return this.cachedRead(new Class<?>[]{clazz}, sql, values, () -> jdbcSupport.list(sql, values, getRowMapper(clazz)));
+    }
+
+    /**
+     * 只查询部分列，返回的对象中只有这些列对应的字段有值，适合查询的列都在索引中的情况
+     *
+     * @param clazz     查询结果类型
+     * @param columns   需要查询的列，例如 new String[]{"uid","create_time"}
+     * @param afterFrom from之后的sql，例如 where col=? order by uid desc,
+     * @param values    参数化查询值
+     * @param <T>       泛型
+     * @return 查询结果 T 类型的集合
+     */
+    public <T> List<T> list(Class<T> clazz, String[] columns, String afterFrom, Object[] values) {
+        EntityTableInfo<T> info = getEntityTableInfo(clazz);
+        EntityProjection<T> projection = info.getProjection(columns);
+        return jdbcSupport.list(SqlBuilder.buildListSQL(clazz, columns, afterFrom), values, projection.getRowMapper());
+    }
+
+    /**
+     * 批量加载延迟加载的字段，使用 id in (?,?) 查询，每个分区查询一次。<br>
+     * 对象的解析器是 {@link ShardDALParser} 并且对象中有与分区参数同名的字段时，按照对象的字段值计算分区，否则使用当前线程的分区信息查询
+     *
+     * @param list      需要加载的对象，必须是同一个类型
+     * @param fieldName 延迟加载的字段名称
+     * @param <T>       对象泛型
+     */
+    public <T> void loadLazy(List<T> list, String fieldName) {
+        if (list == null || list.isEmpty()) {
+            return;
+        }
+        Class<T> clazz = (Class<T>) list.get(0).getClass();
+        EntityTableInfo<T> info = getEntityTableInfo(clazz);
+        String lazyColumn = info.getColumn(fieldName);
+        Field lazyField = lazyColumn == null ? null : info.getField(lazyColumn);
+        if (lazyField == null || !info.isLazyField(lazyField)) {
+            throw new IllegalArgumentException("field [ " + fieldName + " ] is not a lazy field of " + clazz.getName());
+        }
+        if (info.getIdColumnNames().size() != 1) {
+            throw new HaloIdException(clazz.getName() + " must has one id when loadLazy");
+        }
+        String idColumn = info.getIdColumnNames().get(0);
+        Field idField = info.getIdFields().get(0);
+        String[] columns = new String[]{idColumn, lazyColumn};
+        for (Map.Entry<ParsedInfo, List<T>> e : groupByShard(info, list).entrySet()) {
+            Map<Object, List<T>> idMap = new LinkedHashMap<Object, List<T>>();
+            for (T t : e.getValue()) {
+                Object idValue = info.getFieldValue(t, idField);
+                List<T> objs = idMap.get(idValue);
+                if (objs == null) {
+                    objs = new ArrayList<T>(1);
+                    idMap.put(idValue, objs);
+                }
+                objs.add(t);
+            }
+            DALContext dalContext = createShardContext(clazz, e.getKey());
+            String afterFrom = "where " + createInSql(idColumn, idMap.size());
+            List<T> loadedList = this.list(clazz, columns, afterFrom, idMap.keySet().toArray(), dalContext);
+            try {
+                for (T loaded : loadedList) {
+                    List<T> objs = idMap.get(info.getFieldValue(loaded, idField));
+                    if (objs == null) {
+                        continue;
+                    }
+                    Object value = lazyField.get(loaded);
+                    for (T obj : objs) {
+                        lazyField.set(obj, value);
+                    }
+                }
+            } catch (IllegalAccessException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /**
+     * 按照分区对对象分组，对象的解析器是 {@link ShardDALParser} 并且对象中有与分区参数同名的字段时，按照对象的字段值计算分区
+     *
+     * @param info 对象信息
+     * @param list 对象集合
+     * @param <T>  对象泛型
+     * @return key为分区，null表示使用当前线程的分区信息
+     */
+    private static <T> Map<ParsedInfo, List<T>> groupByShard(final EntityTableInfo<T> info, List<T> list) {
+        final Field shardField = getShardField(info);
+        return groupByShard(info, list, shardField == null ? null : t -> info.getFieldValue(t, shardField));
+    }
+
+    /**
+     * 按照分区对元素分组
+     *
+     * @param info       对象信息
+     * @param list       元素集合
+     * @param shardValue 获得元素的分区参数值，为null时所有元素使用当前线程的分区信息
+     * @param <E>        元素泛型
+     * @return key为分区，null表示使用当前线程的分区信息
+     */
+    static <E> Map<ParsedInfo, List<E>> groupByShard(EntityTableInfo<?> info, List<E> list, Function<E, Object> shardValue) {
+        Map<ParsedInfo, List<E>> groups = new LinkedHashMap<ParsedInfo, List<E>>();
+        for (E e : list) {
+            ParsedInfo parsedInfo = null;
+            if (shardValue != null) {
+                ShardDALParser parser = (ShardDALParser) info.getDalParser();
+                parsedInfo = parser.parse(Collections.singletonMap(parser.getParam(), shardValue.apply(e)));
+            }
+            List<E> group = groups.get(parsedInfo);
+            if (group == null) {
+                group = new ArrayList<E>();
+                groups.put(parsedInfo, group);
+            }
+            group.add(e);
+        }
+        return groups;
+    }
+
+    /**
+     * 创建手动指定分区的context
+     *
+     * @param clazz      对象类型
+     * @param parsedInfo 分区，为null时返回null
+     * @return 分区context
+     */
+    static DALContext createShardContext(Class<?> clazz, ParsedInfo parsedInfo) {
+        if (parsedInfo == null) {
+            return null;
+        }
+        DALInfo dalInfo = DALInfo.createForManual();
+        dalInfo.setDsKey(parsedInfo.getDsKey());
+        dalInfo.setRealTable(clazz, parsedInfo.getRealTableName());
+        DALContext dalContext = DALContext.create();
+        dalContext.setDalInfo(dalInfo);
+        return dalContext;
+    }
+
+    /**
+     * 获得与分区参数同名的字段，没有时返回null
+     */
+    static Field getShardField(EntityTableInfo<?> info) {
+        if (!(info.getDalParser() instanceof ShardDALParser)) {
+            return null;
+        }
+        String param = ((ShardDALParser) info.getDalParser()).getParam();
+        String column = info.getColumn(param);
+        if (column != null) {
+            return info.getField(column);
+        }
+        return info.getField(param);
     }
 
     /**
@@ -438,7 +626,19 @@ public class Query {
      */
     public <T> void insert(T t) {
         SQLMapper<T> mapper = getSqlMapper(t.getClass());
-        this.jdbcSupport.insert(SqlBuilder.buildInsertSQL(t.getClass(), true), mapper.getParamsForInsert(t, true), false);
+        this.bindInsert(SqlBuilder.buildInsertSQL(t.getClass(), true), mapper, t, true, false);
+    }
+
+    /**
+     * 由 {@link SQLMapper#bindInsert(java.sql.PreparedStatement, int, Object, boolean)} 按照字段类型设置参数并执行insert。
+     * 迁移中的表在调用时获得参数，新路由在后台或事务提交后执行时使用相同的参数，不读取之后可能已经修改的对象
+     */
+    private <T> Object bindInsert(String sql, final SQLMapper<T> mapper, final T t, final boolean hasIdFieldValue, boolean canGetGeneratedKeys) {
+        DALInfo dalInfo = DALStatus.getDalInfo();
+        if (dalInfo != null && dalInfo.isMigrating()) {
+            return this.jdbcSupport.insert(sql, mapper.getParamsForInsert(t, hasIdFieldValue), canGetGeneratedKeys);
+        }
+        return this.jdbcSupport.insert(sql, ps -> mapper.bindInsert(ps, 1, t, hasIdFieldValue), canGetGeneratedKeys);
     }
 
     /**
@@ -470,14 +670,25 @@ public class Query {
      * @return 返回自增id，如果没有自增id，返回0
      */
     public <T> Number insertForNumber(T t, InsertFlag insertFlag) {
+        return this.insertForNumber(t, insertFlag, (String) null);
+    }
+
+    /**
+     * @param t            数据对象
+     * @param insertFlag   操作标识
+     * @param updateSqlSeg insertFlag 为 {@link InsertFlag#INSERT_ON_DUPLICATE_KEY_UPDATE} 时 on duplicate key update 之后的sql
+     * @param <T>          泛型
+     * @return 返回自增id，如果没有自增id，返回0
+     */
+    private <T> Number insertForNumber(T t, InsertFlag insertFlag, String updateSqlSeg) {
         EntityTableInfo<T> info = getEntityTableInfo(t.getClass());
         SQLMapper<T> mapper = getSqlMapper(t.getClass());
         if (info.getIdFields().size() > 1) {
-            this.jdbcSupport.insert(SqlBuilder.buildInsertSQL(t.getClass(), true, insertFlag), mapper.getParamsForInsert(t, true), false);
+            this.bindInsert(SqlBuilder.buildInsertSQL(t.getClass(), true, insertFlag, updateSqlSeg, 1), mapper, t, true, false);
             return 0;
         }
         if (info.getIdFields().isEmpty()) {
-            this.jdbcSupport.insert(SqlBuilder.buildInsertSQL(t.getClass(), true, insertFlag), mapper.getParamsForInsert(t, true), false);
+            this.bindInsert(SqlBuilder.buildInsertSQL(t.getClass(), true, insertFlag, updateSqlSeg, 1), mapper, t, true, false);
             return 0;
         }
         Field idField = info.getIdFields().get(0);
@@ -496,21 +707,99 @@ public class Query {
             // id = 0,需要获得自增id
             if (num.longValue() <= 0) {
                 // 为自增id方式
-                Number n = (Number) (this.jdbcSupport.insert(SqlBuilder.buildInsertSQL(t.getClass(), false, insertFlag), mapper.getParamsForInsert(t, false), true));
+                Number n = (Number) this.bindInsert(SqlBuilder.buildInsertSQL(t.getClass(), false, insertFlag, updateSqlSeg, 1), mapper, t, false, true);
                 if (n != null && n.intValue() > 0) {
                     this.setIdValue(t, idField, n);
                 }
                 return n;
             }
             // id>0,不需要赋值，返回0
-            this.jdbcSupport.insert(SqlBuilder.buildInsertSQL(t.getClass(), true, insertFlag), mapper.getParamsForInsert(t, true), false);
+            this.bindInsert(SqlBuilder.buildInsertSQL(t.getClass(), true, insertFlag, updateSqlSeg, 1), mapper, t, true, false);
             return 0;
         }
         // 非数字id时,不需要赋值
-        this.jdbcSupport.insert(SqlBuilder.buildInsertSQL(t.getClass(), true, insertFlag), mapper.getParamsForInsert(t, true), false);
+        this.bindInsert(SqlBuilder.buildInsertSQL(t.getClass(), true, insertFlag, updateSqlSeg, 1), mapper, t, true, false);
         return 0;
     }
 
+    /**
+     * insert into ... on duplicate key update sql，数据已存在时把id之外的列更新为对象的值。
+     * 使用自增id时，更新数据也会返回已存在数据的id并设置到对象中
+     *
+     * @param t   数据对象
+     * @param <T> 泛型
+     * @return 返回自增id，如果没有自增id，返回0
+     */
+    public <T> Number upsert(T t) {
+        return this.insertForNumber(t, InsertFlag.INSERT_ON_DUPLICATE_KEY_UPDATE, (String) null);
+    }
+
+    /**
+     * insert into ... on duplicate key update sql
+     *
+     * @param t            数据对象
+     * @param updateSqlSeg on duplicate key update 之后的sql，例如 count=count+values(count),name=values(name)
+     * @param <T>          泛型
+     * @return 返回自增id，如果没有自增id，返回0。数据已存在时返回值由数据库决定，不一定是已存在数据的id
+     */
+    public <T> Number upsert(T t, String updateSqlSeg) {
+        return this.insertForNumber(t, InsertFlag.INSERT_ON_DUPLICATE_KEY_UPDATE, updateSqlSeg);
+    }
+
+    /**
+     * 多行 insert into ... on duplicate key update sql，每 {@value #BATCH_UPSERT_ROWS} 行使用一条sql。数据包含id的值，不返回自增id
+     *
+     * @param list         数据对象
+     * @param updateSqlSeg on duplicate key update 之后的sql，例如 count=count+values(count)。为null时把id之外的列更新为对象的值
+     * @param <T>          泛型
+     * @return mysql返回的影响数量，每条新数据为1，每条更新的数据为2，没有变化的数据为0
+     */
+    public <T> int batchUpsert(List<T> list, String updateSqlSeg) {
+        return this.batchUpsert(list, updateSqlSeg, BATCH_UPSERT_ROWS);
+    }
+
+    /**
+     * 多行 insert into ... on duplicate key update sql，每 maxRows 行使用一条sql，所有sql使用相同的分区。数据包含id的值，不返回自增id
+     *
+     * @param list         数据对象
+     * @param updateSqlSeg on duplicate key update 之后的sql，例如 count=count+values(count)。为null时把id之外的列更新为对象的值
+     * @param maxRows      一条sql最多包含的行数，必须大于0
+     * @param <T>          泛型
+     * @return mysql返回的影响数量之和，每条新数据为1，每条更新的数据为2，没有变化的数据为0
+     */
+    public <T> int batchUpsert(List<T> list, String updateSqlSeg, int maxRows) {
+        if (list == null || list.isEmpty()) {
+            DALStatus.processDALConClose();
+            throw new RuntimeException("batchUpsert list must be not empty");
+        }
+        if (maxRows <= 0) {
+            DALStatus.processDALConClose();
+            throw new IllegalArgumentException("maxRows must be greater than 0");
+        }
+        Class<T> clazz = (Class<T>) list.get(0).getClass();
+        SQLMapper<T> mapper = getSqlMapper(clazz);
+        DALContext dalContext = null;
+        int result = 0;
+        for (int from = 0; from < list.size(); from += maxRows) {
+            List<T> subList = list.subList(from, Math.min(from + maxRows, list.size()));
+            this.processDALContext(dalContext);
+            String sql = SqlBuilder.buildInsertSQL(clazz, true, InsertFlag.INSERT_ON_DUPLICATE_KEY_UPDATE, updateSqlSeg, subList.size());
+            if (dalContext == null && from + maxRows < list.size() && DALStatus.getDalInfo() != null) {
+                // 执行后当前线程的分区信息会被清除，之后的sql使用相同的分区
+                DALInfo dalInfo = DALStatus.getDalInfo().copy();
+                dalInfo.setSpecify(true);
+                dalContext = DALContext.create();
+                dalContext.setDalInfo(dalInfo);
+            }
+            List<Object> values = new ArrayList<Object>();
+            for (T t : subList) {
+                Collections.addAll(values, mapper.getParamsForInsert(t, true));
+            }
+            result += this.jdbcSupport.update(sql, values.toArray());
+        }
+        return result;
+    }
+
     /**
      * insert sql,返回自增数字id，联合主键的表，返回0. 如果表没有主键，直接insert,返回0
      *
@@ -523,12 +812,12 @@ public class Query {
     }
 
 
-    private boolean isNumberIdType(Field field) {
+    boolean isNumberIdType(Field field) {
         Class<?> cls = field.getType();
         return cls.equals(int.class) || cls.equals(Integer.class) || cls.equals(long.class) || cls.equals(Long.class) || cls.equals(BigInteger.class);
     }
 
-    private <T> void setIdValue(T t, Field idField, Number n) {
+    <T> void setIdValue(T t, Field idField, Number n) {
         try {
             if (idField.getType().equals(Integer.class) || idField.getType().equals(int.class)) {
                 idField.set(t, n.intValue());
@@ -600,7 +889,11 @@ public class Query {
      * @return 查询结果 T 类型的集合
      */
     public <T> List<T> mysqlList(Class<T> clazz, String afterFrom, int begin, int size, Object[] values) {
-        return this.mysqlList(clazz, afterFrom, begin, size, values, getRowMapper(clazz));
+        if (QueryResultCache.getInstance() == null) {
+            return this.mysqlList(clazz, afterFrom, begin, size, values, getRowMapper(clazz));
+        }
+        final String sql = SqlBuilder.buildMysqlListSQL(clazz, afterFrom, begin, size);
+        return this.cachedRead(new Class<?>[]{clazz}, sql, values, () -> jdbcSupport.list(sql, values, getRowMapper(clazz)));
     }
 
     /**
@@ -637,6 +930,62 @@ public class Query {
         return jdbcSupport.list(SqlBuilder.buildMysqlListSQL(clazz, afterFrom, begin, size), values, rowMapper);
     }
 
+    /**
+     * keyset方式的分页查询，使用上一页最后一条数据的key作为查询条件，例如
+     * where uid=? and (create_time,id)&gt;(?,?) order by create_time,id limit size。深度分页时不需要扫描前面的数据
+     *
+     * @param clazz      查询对象类型
+     * @param afterFrom  from table 之后的查询条件,例如 where uid=?，不能包含 order by、limit
+     * @param values     参数化查询值
+     * @param keyColumns 排序使用的列，组合起来必须唯一，例如 create_time,id
+     * @param desc       true:倒序
+     * @param token      上一页返回的 {@link KeysetPage#getNextToken()}，null表示查询第一页
+     * @param size       每页数量，必须大于0
+     * @param <T>        对象泛型
+     * @return 当前页数据与下一页的token
+     */
+    public <T> KeysetPage<T> keysetList(Class<T> clazz, String afterFrom, Object[] values, String[] keyColumns, boolean desc, String token, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be greater than 0");
+        }
+        EntityTableInfo<T> info = getEntityTableInfo(clazz);
+        Object[] cursor = null;
+        if (token != null) {
+            List<Object[]> cursors = KeysetCursor.decode(token, info, keyColumns);
+            if (cursors.size() != 1) {
+                throw new IllegalArgumentException("invalid token [ " + token + " ]");
+            }
+            cursor = cursors.get(0);
+            if (cursor == KeysetCursor.DONE) {
+                DALStatus.processDALConClose();
+                return new KeysetPage<>(new ArrayList<T>(0), null);
+            }
+        }
+        List<T> list = this.keysetFetch(clazz, afterFrom, values, keyColumns, desc, cursor, size + 1);
+        if (list.size() <= size) {
+            return new KeysetPage<>(list, null);
+        }
+        list = new ArrayList<>(list.subList(0, size));
+        Object[] nextCursor = KeysetCursor.readKey(info, list.get(size - 1), keyColumns);
+        return new KeysetPage<>(list, KeysetCursor.encode(Collections.singletonList(nextCursor)));
+    }
+
+    /**
+     * 查询游标之后的数据
+     */
+    <T> List<T> keysetFetch(Class<T> clazz, String afterFrom, Object[] values, String[] keyColumns, boolean desc, Object[] cursor, int size) {
+        Object[] args = values;
+        if (cursor != null) {
+            int length = values == null ? 0 : values.length;
+            args = new Object[length + cursor.length];
+            if (length > 0) {
+                System.arraycopy(values, 0, args, 0, length);
+            }
+            System.arraycopy(cursor, 0, args, length, cursor.length);
+        }
+        return jdbcSupport.list(SqlBuilder.buildKeysetListSQL(clazz, afterFrom, keyColumns, desc, cursor != null, size), args, getRowMapper(clazz));
+    }
+
     /**
      * mysql的分页查询。
      *
@@ -695,7 +1044,11 @@ public class Query {
      * @return 查询 T 类型对象，null表示没有搜索结果
      */
     public <T> T obj(Class<T> clazz, String afterFrom, Object[] values, RowMapper<T> rowMapper) {
-        List<T> list = jdbcSupport.list(SqlBuilder.buildObjSQL(clazz, afterFrom), values, rowMapper);
+        return this.obj(SqlBuilder.buildObjSQL(clazz, afterFrom), values, rowMapper);
+    }
+
+    private <T> T obj(String sql, Object[] values, RowMapper<T> rowMapper) {
+        List<T> list = jdbcSupport.list(sql, values, rowMapper);
         if (list.isEmpty()) {
             return null;
         }
@@ -743,7 +1096,7 @@ public class Query {
      * @return 查询 T 类型对象，null表示没有搜索结果
      */
     public <T> T objById(Class<T> clazz, Object idValue, boolean forUpdate) {
-        return this.objByIds(clazz, new Object[]{idValue}, forUpdate, getRowMapper(clazz));
+        return this.objByIds(clazz, new Object[]{idValue}, forUpdate);
     }
 
     /**
@@ -755,7 +1108,7 @@ public class Query {
      * @return 查询 T 类型对象，null表示没有搜索结果
      */
     public <T> T objByIdForUpdate(Class<T> clazz, Object idValue) {
-        return this.objByIds(clazz, new Object[]{idValue}, true, getRowMapper(clazz));
+        return this.objByIds(clazz, new Object[]{idValue}, true);
     }
 
     /**
@@ -767,7 +1120,7 @@ public class Query {
      * @return 查询 T 类型对象，null表示没有搜索结果
      */
     public <T> T objByIds(Class<T> clazz, Object[] idValues) {
-        return this.objByIds(clazz, idValues, false, getRowMapper(clazz));
+        return this.objByIds(clazz, idValues, false);
     }
 
     /**
@@ -779,7 +1132,7 @@ public class Query {
      * @return 查询 T 类型对象，null表示没有搜索结果
      */
     public <T> T objByIdsForUpdate(Class<T> clazz, Object[] idValues) {
-        return this.objByIds(clazz, idValues, true, getRowMapper(clazz));
+        return this.objByIds(clazz, idValues, true);
     }
 
     /**
@@ -792,7 +1145,58 @@ public class Query {
      * @return 查询 T 类型对象，null表示没有搜索结果
      */
     public <T> T objByIds(Class<T> clazz, Object[] idValues, boolean forUpdate) {
-        return this.objByIds(clazz, idValues, forUpdate, getRowMapper(clazz));
+        DALConnection dalConnection = HaloConfig.getInstance().isEnableIdentityMap() ? DALStatus.getCurrentDALConnection() : null;
+        NegativeLookupCache negativeLookupCache = NegativeLookupCache.getInstance();
+        if (forUpdate || negativeLookupCache == null || !negativeLookupCache.isEnabled(clazz) || negativeLookupCache.isInTransaction()) {
+            negativeLookupCache = null;
+        }
+        if (dalConnection == null && negativeLookupCache == null) {
+            return this.objByIds(clazz, idValues, forUpdate, getRowMapper(clazz));
+        }
+        // 连接存在期间相同id的查询使用同一个对象，for update 需要锁数据，总是查询数据库
+        String sql = SqlBuilder.buildObjSQL(clazz, SqlBuilder.buildObjByIdsSQLSeg(clazz, idValues, forUpdate));
+        DALInfo dalInfo = DALStatus.getDalInfo();
+        String table = getRealTableName(dalInfo, clazz);
+        List<Object> key = new ArrayList<Object>(idValues.length + 3);
+        key.add(table);
+        key.add(dalInfo == null ? null : dalInfo.getDsKey());
+        key.add(DALStatus.isEnableSlave());
+        Collections.addAll(key, idValues);
+        if (!forUpdate && dalConnection != null) {
+            Object obj = dalConnection.getIdentity(table, key);
+            if (obj != null) {
+                skipExecute();
+                return (T) obj;
+            }
+        }
+        long version = 0;
+        if (negativeLookupCache != null) {
+            if (negativeLookupCache.isMiss(table, key)) {
+                skipExecute();
+                return null;
+            }
+            version = negativeLookupCache.version(table);
+        }
+        T t = this.obj(sql, idValues, getRowMapper(clazz));
+        if (t == null) {
+            if (negativeLookupCache != null) {
+                negativeLookupCache.putMiss(table, key, version);
+            }
+        } else if (dalConnection != null) {
+            dalConnection.putIdentity(table, key, t);
+        }
+        return t;
+    }
+
+    /**
+     * 没有执行sql直接返回时，清除当前线程的分区信息
+     */
+    static void skipExecute() {
+        DALInfo dalInfo = DALStatus.getDalInfo();
+        if (dalInfo != null && dalInfo.isSpecify()) {
+            dalInfo.setSpecify(false);
+        }
+        DALStatus.processDALConClose();
     }
 
     /**
@@ -850,7 +1254,7 @@ public class Query {
     }
 
     /**
-     * update sql ,返回更新的记录数量
+     * update sql ,返回更新的记录数量。值为null的延迟加载字段视为没有加载，不会更新
      *
      * @param t   update的对象
      * @param <T> 对象泛型
@@ -895,6 +1299,107 @@ public class Query {
         return this._update(t, snapshot, true);
     }
 
+    /**
+     * 批量cas update，更新所有字段。每个分区使用一次批量update，分区的计算与 {@link #loadLazy(List, String)} 相同。
+     * mysql连接需要设置 rewriteBatchedStatements=true，每个分区才只有一次网络往返，否则驱动逐条发送。<br>
+     * 更新失败的对象cas值恢复为更新前的值，更新成功的对象cas值加1。
+     * 驱动返回 {@link Statement#SUCCESS_NO_INFO} 时无法确认cas是否匹配，与 {@link Statement#EXECUTE_FAILED} 一样按照失败处理，
+     * 重新加载后再更新是安全的
+     *
+     * @param list 更新的对象，必须是同一个类型
+     * @param <T>  对象泛型
+     * @return 更新失败(id不存在或者cas更新失效)的对象
+     */
+    public <T> List<T> batchCasUpdate(List<T> list) {
+        List<T> failedList = new ArrayList<T>();
+        if (list == null || list.isEmpty()) {
+            return failedList;
+        }
+        Class<T> clazz = (Class<T>) list.get(0).getClass();
+        EntityTableInfo<T> info = getEntityTableInfo(clazz);
+        if (info.getCasField() == null) {
+            throw new IllegalArgumentException(clazz.getName() + " must set one column cas=true");
+        }
+        for (Map.Entry<ParsedInfo, List<T>> e : groupByShard(info, list).entrySet()) {
+            // 没有加载的延迟字段不更新，sql可能不同
+            Map<String, List<T>> segMap = new LinkedHashMap<String, List<T>>();
+            Map<String, List<Object[]>> valuesMap = new HashMap<String, List<Object[]>>();
+            try {
+                for (T t : e.getValue()) {
+                    UpdateSnapshotInfo updateSnapshotInfo = SqlBuilder.buildUpdateSegSQLForSnapshot(t, null, true);
+                    List<T> objs = segMap.get(updateSnapshotInfo.getSqlSeg());
+                    if (objs == null) {
+                        objs = new ArrayList<T>();
+                        segMap.put(updateSnapshotInfo.getSqlSeg(), objs);
+                        valuesMap.put(updateSnapshotInfo.getSqlSeg(), new ArrayList<Object[]>());
+                    }
+                    objs.add(t);
+                    valuesMap.get(updateSnapshotInfo.getSqlSeg()).add(updateSnapshotInfo.getValues().toArray());
+                }
+            } catch (RuntimeException ex) {
+                for (List<T> objs : segMap.values()) {
+                    for (T t : objs) {
+                        info.setCasFieldValue(t, info.getCasField(), false);
+                    }
+                }
+                throw ex;
+            }
+            DALContext dalContext = createShardContext(clazz, e.getKey());
+            Iterator<Map.Entry<String, List<T>>> it = segMap.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, List<T>> segEntry = it.next();
+                List<T> objs = segEntry.getValue();
+                int[] results;
+                try {
+                    this.processDALContext(dalContext);
+                    String sql = SqlBuilder.buildUpdateSQL(clazz, segEntry.getKey());
+                    if (dalContext == null && it.hasNext() && DALStatus.getDalInfo() != null) {
+                        // 执行后当前线程的分区信息会被清除，之后的sql使用相同的分区
+                        DALInfo dalInfo = DALStatus.getDalInfo().copy();
+                        dalInfo.setSpecify(true);
+                        dalContext = DALContext.create();
+                        dalContext.setDalInfo(dalInfo);
+                    }
+                    results = this.jdbcSupport.batchUpdate(sql, valuesMap.get(segEntry.getKey()));
+                } catch (RuntimeException ex) {
+                    // 当前以及之后没有执行的对象恢复cas值
+                    for (T t : objs) {
+                        info.setCasFieldValue(t, info.getCasField(), false);
+                    }
+                    while (it.hasNext()) {
+                        for (T t : it.next().getValue()) {
+                            info.setCasFieldValue(t, info.getCasField(), false);
+                        }
+                    }
+                    throw ex;
+                }
+                for (int i = 0; i < objs.size(); i++) {
+                    if (!isCasUpdated(results[i])) {
+                        info.setCasFieldValue(objs.get(i), info.getCasField(), false);
+                        failedList.add(objs.get(i));
+                    }
+                }
+            }
+        }
+        return failedList;
+    }
+
+    /**
+     * @param result 批量执行中一条sql的结果
+     * @return true:确认更新了数据
+     */
+    private static boolean isCasUpdated(int result) {
+        switch (result) {
+            case Statement.SUCCESS_NO_INFO:
+                // 执行成功但是没有影响数量，无法确认cas是否匹配
+                return false;
+            case Statement.EXECUTE_FAILED:
+                return false;
+            default:
+                return result > 0;
+        }
+    }
+
     private <T> int _update(T t, T snapshot, boolean cas) {
         UpdateSnapshotInfo updateSnapshotInfo = SqlBuilder.buildUpdateSegSQLForSnapshot(t, snapshot, cas);
         if (updateSnapshotInfo == null) {
@@ -959,6 +1464,53 @@ public class Query {
     }
     // for distriute
 
+    /**
+     * 使用 {@link QueryResultCache} 缓存查询结果，没有创建缓存或者处于事务中时直接查询。需要在sql创建之后调用，此时当前线程的分区信息已经解析
+     *
+     * @param clazzes 查询使用的对象类型
+     * @param sql     查询sql
+     * @param values  参数化查询值
+     * @param loader  执行查询
+     * @param <R>     结果泛型
+     * @return 查询结果
+     */
+    private <R> R cachedRead(Class<?>[] clazzes, String sql, Object[] values, Supplier<R> loader) {
+        QueryResultCache resultCache = QueryResultCache.getInstance();
+        if (resultCache == null || resultCache.isInTransaction()) {
+            return loader.get();
+        }
+        DALInfo dalInfo = DALStatus.getDalInfo();
+        String[] tables = new String[clazzes.length];
+        for (int i = 0; i < clazzes.length; i++) {
+            tables[i] = getRealTableName(dalInfo, clazzes[i]);
+        }
+        QueryResultCache.Key key = resultCache.createKey(sql, values, dalInfo == null ? null : dalInfo.getDsKey(), DALStatus.isEnableSlave());
+        Object cached = resultCache.get(key);
+        if (cached != null) {
+            skipExecute();
+            return (R) QueryResultCache.copy(cached);
+        }
+        long[] versions = resultCache.versions(tables);
+        R result = loader.get();
+        resultCache.put(key, tables, versions, QueryResultCache.copy(result));
+        return result;
+    }
+
+    /**
+     * 获得当前分区信息中对象的真实表名称
+     *
+     * @param dalInfo 分区信息
+     * @param clazz   对象类型
+     * @return 没有分区时返回对象的表名称
+     */
+    private static String getRealTableName(DALInfo dalInfo, Class<?> clazz) {
+        String realTable = dalInfo == null ? null : dalInfo.getRealTable(clazz);
+        if (realTable == null) {
+            return getEntityTableInfo(clazz).getTableName();
+        }
+        return realTable;
+    }
+
     /**
      * 设置分区解析需要的各种参数
      *
@@ -1042,6 +1594,22 @@ public class Query {
         return this.count2(clazz, afterFrom, values);
     }
 
+    /**
+     * 聚合查询，在当前分区执行
+     *
+     * @param clazz       查询对象类型
+     * @param aggregation 聚合定义
+     * @param afterFrom   from table 之后的sql,例如 where uid=?，不能包含 group by、order by、limit
+     * @param values      参数化查询值
+     * @param dalContext  分区context
+     * @param <T>         对象泛型
+     * @return 每个分组一个map，key为分组列名称以及聚合结果的别名
+     */
+    public <T> List<Map<String, Object>> aggregate(Class<T> clazz, Aggregation aggregation, String afterFrom, Object[] values, DALContext dalContext) {
+        this.processDALContext(dalContext);
+        return this.aggregate(clazz, aggregation, afterFrom, values);
+    }
+
     /**
      * 对sql中有 in (?,?)的count封装，目前只支持 单个in
      *
@@ -1092,6 +1660,22 @@ public class Query {
         return this.list(clazz, afterFrom, values, rowMapper);
     }
 
+    /**
+     * 只查询部分列，返回的对象中只有这些列对应的字段有值，适合查询的列都在索引中的情况
+     *
+     * @param clazz      查询结果类型
+     * @param columns    需要查询的列，例如 new String[]{"uid","create_time"}
+     * @param afterFrom  from之后的sql，例如 where col=? order by uid desc,
+     * @param values     参数化查询值
+     * @param dalContext 分区context
+     * @param <T>        泛型
+     * @return 查询结果 T 类型的集合
+     */
+    public <T> List<T> list(Class<T> clazz, String[] columns, String afterFrom, Object[] values, DALContext dalContext) {
+        this.processDALContext(dalContext);
+        return this.list(clazz, columns, afterFrom, values);
+    }
+
     /**
      * sql select
      *
@@ -1362,6 +1946,47 @@ public class Query {
         return this.insertForNumber(t, insertFlag);
     }
 
+    /**
+     * insert into ... on duplicate key update sql，数据已存在时把id之外的列更新为对象的值
+     *
+     * @param t          数据对象
+     * @param dalContext 分区context
+     * @param <T>        泛型
+     * @return 返回自增id，如果没有自增id，返回0
+     */
+    public <T> Number upsert(T t, DALContext dalContext) {
+        this.processDALContext(dalContext);
+        return this.upsert(t);
+    }
+
+    /**
+     * insert into ... on duplicate key update sql
+     *
+     * @param t            数据对象
+     * @param updateSqlSeg on duplicate key update 之后的sql
+     * @param dalContext   分区context
+     * @param <T>          泛型
+     * @return 返回自增id，如果没有自增id，返回0
+     */
+    public <T> Number upsert(T t, String updateSqlSeg, DALContext dalContext) {
+        this.processDALContext(dalContext);
+        return this.upsert(t, updateSqlSeg);
+    }
+
+    /**
+     * 多行 insert into ... on duplicate key update sql
+     *
+     * @param list         数据对象
+     * @param updateSqlSeg on duplicate key update 之后的sql，为null时把id之外的列更新为对象的值
+     * @param dalContext   分区context
+     * @param <T>          泛型
+     * @return mysql返回的影响数量
+     */
+    public <T> int batchUpsert(List<T> list, String updateSqlSeg, DALContext dalContext) {
+        this.processDALContext(dalContext);
+        return this.batchUpsert(list, updateSqlSeg);
+    }
+
     /**
      * insert sql,返回自增数字id，联合主键的表，返回0. 如果表没有主键，直接insert,返回0
      *
@@ -1468,6 +2093,25 @@ public class Query {
         return this.mysqlList(clazz, afterFrom, begin, size, values, rowMapper);
     }
 
+    /**
+     * keyset方式的分页查询
+     *
+     * @param clazz      查询对象类型
+     * @param afterFrom  from table 之后的查询条件,例如 where uid=?，不能包含 order by、limit
+     * @param values     参数化查询值
+     * @param keyColumns 排序使用的列，组合起来必须唯一，例如 create_time,id
+     * @param desc       true:倒序
+     * @param token      上一页返回的 {@link KeysetPage#getNextToken()}，null表示查询第一页
+     * @param size       每页数量
+     * @param dalContext 分区context
+     * @param <T>        对象泛型
+     * @return 当前页数据与下一页的token
+     */
+    public <T> KeysetPage<T> keysetList(Class<T> clazz, String afterFrom, Object[] values, String[] keyColumns, boolean desc, String token, int size, DALContext dalContext) {
+        this.processDALContext(dalContext);
+        return this.keysetList(clazz, afterFrom, values, keyColumns, desc, token, size);
+    }
+
     /**
      * mysql的分页查询。
      *
@@ -0,0 +1,543 @@
+package halo.query;
+
+import halo.query.annotation.Table;
+import halo.query.dal.DALConnection;
+import halo.query.dal.DALStatus;
+import halo.query.mapping.EntityTableInfoFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 查询结果缓存，创建后 {@link Query} 中使用默认映射的 list、mysqlList、count 的结果会被缓存，key为sql、参数、数据源key与是否使用slave。<br>
+ * 每个真实表有一个版本号，缓存的结果记录查询时表的版本号。通过 {@link JdbcSupport} 执行的写操作会增加表的版本号，版本号变化后的结果不再使用，失效时不需要遍历缓存。
+ * 无法识别表名称的写操作使所有结果失效。<br>
+ * 事务中的查询不使用缓存，事务中的写操作在提交后再增加一次版本号。afterFrom 中引用的其他表以及其他进程的写操作无法感知，通过 expireMillis 限制结果的最长缓存时间。<br>
+ * 缓存数量超过 maxSize 时，新结果先进入窗口区，离开窗口区时与主区中最久没有访问的结果比较访问频率，频率高的保留(W-TinyLFU)。<br>
+ * 读取时只访问 ConcurrentHashMap，访问记录先写入无锁的读缓冲区，由获得锁的线程批量更新访问顺序与频率；缓冲区已满时丢弃访问记录，只影响淘汰的准确度
+ *
+ * @author akwei
+ */
+public class QueryResultCache implements InitializingBean {
+
+    private static QueryResultCache instance;
+
+    /**
+     * 读缓冲区最多保存的访问记录数量
+     */
+    private static final int READ_BUFFER_MAX_SIZE = 256;
+
+    /**
+     * 读缓冲区达到此数量时尝试获得锁并处理访问记录
+     */
+    private static final int READ_BUFFER_DRAIN_SIZE = 64;
+
+    /**
+     * 最多缓存的结果数量
+     */
+    private int maxSize = 10000;
+
+    /**
+     * 结果最长缓存时间(毫秒)
+     */
+    private long expireMillis = 60000;
+
+    private final ConcurrentHashMap<String, AtomicLong> tableVersions = new ConcurrentHashMap<>();
+
+    /**
+     * 所有表共同的版本号，无法识别表名称的写操作时增加
+     */
+    private final AtomicLong globalVersion = new AtomicLong();
+
+    /**
+     * 所有缓存的结果，读取时不需要获得锁
+     */
+    private final ConcurrentHashMap<Key, Entry> data = new ConcurrentHashMap<>();
+
+    /**
+     * 没有处理的访问记录
+     */
+    private final ConcurrentLinkedQueue<Key> readBuffer = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger readBufferSize = new AtomicInteger();
+
+    /**
+     * 修改窗口区、主区以及访问频率时需要获得的锁
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * 窗口区与主区按照访问顺序排列，只在获得锁时修改。读取时已经从 data 中删除的结果可能仍然存在，淘汰时跳过
+     */
+    private LinkedHashMap<Key, Entry> window;
+
+    private LinkedHashMap<Key, Entry> main;
+
+    private int windowMaxSize;
+
+    private int mainMaxSize;
+
+    private FrequencySketch sketch;
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    private final LongAdder evictionCount = new LongAdder();
+
+    private final LongAdder rejectCount = new LongAdder();
+
+    private final LongAdder invalidateCount = new LongAdder();
+
+    public static QueryResultCache getInstance() {
+        return instance;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public long getExpireMillis() {
+        return expireMillis;
+    }
+
+    public void setExpireMillis(long expireMillis) {
+        this.expireMillis = expireMillis;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * 被访问频率更高的结果替换的数量
+     *
+     * @return 数量
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * 离开窗口区时因访问频率低没有进入主区的数量
+     *
+     * @return 数量
+     */
+    public long getRejectCount() {
+        return rejectCount.sum();
+    }
+
+    /**
+     * 写操作增加版本号的次数
+     *
+     * @return 数量
+     */
+    public long getInvalidateCount() {
+        return invalidateCount.sum();
+    }
+
+    public int size() {
+        return this.data.size();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (this.maxSize < 2) {
+            throw new IllegalArgumentException("maxSize must be greater than 1");
+        }
+        this.windowMaxSize = Math.max(1, this.maxSize / 100);
+        this.mainMaxSize = this.maxSize - this.windowMaxSize;
+        this.window = new LinkedHashMap<>(16, 0.75f, true);
+        this.main = new LinkedHashMap<>(16, 0.75f, true);
+        this.sketch = new FrequencySketch(this.maxSize);
+        instance = this;
+    }
+
+    /**
+     * 停止使用缓存
+     */
+    public void destory() {
+        if (instance == this) {
+            instance = null;
+        }
+        if (this.window != null) {
+            this.clear();
+        }
+    }
+
+    public void clear() {
+        this.evictionLock.lock();
+        try {
+            this.window.clear();
+            this.main.clear();
+            this.data.clear();
+            this.readBuffer.clear();
+            this.readBufferSize.set(0);
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    Key createKey(String sql, Object[] values, String dsKey, boolean slave) {
+        return new Key(sql, values, dsKey, slave);
+    }
+
+    /**
+     * 当前线程是否处于事务中，事务中的查询不使用缓存
+     *
+     * @return true:处于事务中
+     */
+    boolean isInTransaction() {
+        DALConnection dalConnection = DALStatus.getCurrentDALConnection();
+        try {
+            return dalConnection != null && !dalConnection.getAutoCommit();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    /**
+     * 获得表当前的版本号，需要在执行查询之前获得
+     *
+     * @param tables 查询使用的真实表
+     * @return 第一个为所有表共同的版本号，之后与表的顺序相同
+     */
+    long[] versions(String[] tables) {
+        long[] versions = new long[tables.length + 1];
+        versions[0] = this.globalVersion.get();
+        for (int i = 0; i < tables.length; i++) {
+            AtomicLong version = this.tableVersions.get(tables[i]);
+            versions[i + 1] = version == null ? 0 : version.get();
+        }
+        return versions;
+    }
+
+    private boolean isCurrent(String[] tables, long[] versions) {
+        return Arrays.equals(versions, this.versions(tables));
+    }
+
+    /**
+     * 获得缓存的结果
+     *
+     * @param key key
+     * @return 没有缓存、过期或者表的版本号发生变化时返回null
+     */
+    Object get(Key key) {
+        this.recordRead(key);
+        Entry entry = this.data.get(key);
+        if (entry == null) {
+            this.missCount.increment();
+            return null;
+        }
+        if (entry.expireTime < System.currentTimeMillis() || !this.isCurrent(entry.tables, entry.versions)) {
+            // 窗口区与主区中的记录在处理访问记录时删除
+            this.data.remove(key, entry);
+            this.missCount.increment();
+            return null;
+        }
+        this.hitCount.increment();
+        return entry.value;
+    }
+
+    /**
+     * 记录一次访问，缓冲区已满时丢弃。缓冲区达到一定数量时，如果没有其他线程持有锁，由当前线程处理访问记录
+     */
+    private void recordRead(Key key) {
+        if (this.readBufferSize.incrementAndGet() > READ_BUFFER_MAX_SIZE) {
+            this.readBufferSize.decrementAndGet();
+        } else {
+            this.readBuffer.offer(key);
+        }
+        if (this.readBufferSize.get() >= READ_BUFFER_DRAIN_SIZE && this.evictionLock.tryLock()) {
+            try {
+                this.drainReadBuffer();
+            } finally {
+                this.evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 按照访问记录更新访问频率与访问顺序，需要持有锁
+     */
+    private void drainReadBuffer() {
+        Key key;
+        while ((key = this.readBuffer.poll()) != null) {
+            this.readBufferSize.decrementAndGet();
+            this.sketch.increment(key.hash);
+            if (!this.data.containsKey(key)) {
+                this.window.remove(key);
+                this.main.remove(key);
+            } else if (this.window.get(key) == null) {
+                this.main.get(key);
+            }
+        }
+    }
+
+    /**
+     * 结果是否仍然在 data 中，读取时删除的结果只在窗口区或主区中存在
+     */
+    private boolean isLive(Map.Entry<Key, Entry> e) {
+        return this.data.get(e.getKey()) == e.getValue();
+    }
+
+    /**
+     * 缓存查询结果
+     *
+     * @param key      key
+     * @param tables   查询使用的真实表
+     * @param versions 执行查询之前表的版本号
+     * @param value    查询结果
+     */
+    void put(Key key, String[] tables, long[] versions, Object value) {
+        if (value == null || !this.isCurrent(tables, versions)) {
+            // 查询期间表已经发生了变化
+            return;
+        }
+        Entry entry = new Entry(value, tables, versions, System.currentTimeMillis() + this.expireMillis);
+        this.evictionLock.lock();
+        try {
+            this.drainReadBuffer();
+            this.data.put(key, entry);
+            if (this.main.containsKey(key)) {
+                this.main.put(key, entry);
+                return;
+            }
+            this.window.put(key, entry);
+            if (this.window.size() <= this.windowMaxSize) {
+                return;
+            }
+            Iterator<Map.Entry<Key, Entry>> it = this.window.entrySet().iterator();
+            Map.Entry<Key, Entry> candidate = it.next();
+            it.remove();
+            if (!this.isLive(candidate)) {
+                return;
+            }
+            // 跳过读取时已经删除的结果
+            Iterator<Map.Entry<Key, Entry>> mainIt = this.main.entrySet().iterator();
+            while (mainIt.hasNext() && this.main.size() >= this.mainMaxSize) {
+                if (!this.isLive(mainIt.next())) {
+                    mainIt.remove();
+                } else {
+                    break;
+                }
+            }
+            if (this.main.size() < this.mainMaxSize) {
+                this.main.put(candidate.getKey(), candidate.getValue());
+                return;
+            }
+            Key victim = this.main.keySet().iterator().next();
+            if (this.sketch.frequency(candidate.getKey().hash) > this.sketch.frequency(victim.hash)) {
+                this.data.remove(victim, this.main.remove(victim));
+                this.main.put(candidate.getKey(), candidate.getValue());
+                this.evictionCount.increment();
+            } else {
+                this.data.remove(candidate.getKey(), candidate.getValue());
+                this.rejectCount.increment();
+            }
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    /**
+     * 使表的所有缓存结果失效
+     *
+     * @param table 真实表名称
+     */
+    public void invalidateTable(String table) {
+        AtomicLong version = this.tableVersions.get(table);
+        if (version == null) {
+            version = this.tableVersions.computeIfAbsent(table, k -> new AtomicLong());
+        }
+        version.incrementAndGet();
+        this.invalidateCount.increment();
+    }
+
+    /**
+     * 使所有缓存结果失效
+     */
+    public void invalidateAll() {
+        this.globalVersion.incrementAndGet();
+        this.invalidateCount.increment();
+    }
+
+    /**
+     * 写操作执行后使写入的表的缓存结果失效，处于事务中时在事务提交后再失效一次
+     *
+     * @param sql 写操作sql
+     */
+    void afterWrite(String sql) {
+        final String table = SqlBuilder.parseWriteTable(sql);
+        this.invalidate(table);
+        DALConnection dalConnection = DALStatus.getCurrentDALConnection();
+        if (this.isInTransaction()) {
+            dalConnection.addAfterCommitTask(() -> this.invalidate(table));
+        }
+    }
+
+    private void invalidate(String table) {
+        if (table == null) {
+            this.invalidateAll();
+        } else {
+            this.invalidateTable(table);
+        }
+    }
+
+    /**
+     * 复制查询结果，避免调用方修改缓存中的对象。集合中的实体对象会复制为新的对象
+     *
+     * @param value 查询结果
+     * @return 复制后的结果
+     */
+    static Object copy(Object value) {
+        if (!(value instanceof List)) {
+            return value;
+        }
+        List<?> list = (List<?>) value;
+        List<Object> copied = new ArrayList<>(list.size());
+        try {
+            for (Object obj : list) {
+                if (obj != null && obj.getClass().isAnnotationPresent(Table.class)) {
+                    Object to = EntityTableInfoFactory.getEntityTableInfo(obj.getClass()).getConstructor().newInstance();
+                    EntityUtil.copy(obj, to);
+                    copied.add(to);
+                } else {
+                    copied.add(obj);
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return copied;
+    }
+
+    static final class Key {
+
+        private final String sql;
+
+        private final Object[] values;
+
+        private final String dsKey;
+
+        private final boolean slave;
+
+        private final int hash;
+
+        private Key(String sql, Object[] values, String dsKey, boolean slave) {
+            this.sql = sql;
+            this.values = values == null ? null : values.clone();
+            this.dsKey = dsKey;
+            this.slave = slave;
+            int h = sql.hashCode();
+            h = 31 * h + Arrays.deepHashCode(this.values);
+            h = 31 * h + (dsKey == null ? 0 : dsKey.hashCode());
+            this.hash = 31 * h + (slave ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key o = (Key) obj;
+            return this.hash == o.hash && this.slave == o.slave && this.sql.equals(o.sql)
+                    && Objects.equals(this.dsKey, o.dsKey) && Arrays.deepEquals(this.values, o.values);
+        }
+    }
+
+    private static final class Entry {
+
+        private final Object value;
+
+        private final String[] tables;
+
+        private final long[] versions;
+
+        private final long expireTime;
+
+        private Entry(Object value, String[] tables, long[] versions, long expireTime) {
+            this.value = value;
+            this.tables = tables;
+            this.versions = versions;
+            this.expireTime = expireTime;
+        }
+    }
+
+    /**
+     * 访问频率统计(count-min sketch)，每个计数最大15，总访问次数达到阈值时所有计数减半，使旧的访问频率逐渐失效
+     */
+    private static final class FrequencySketch {
+
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+        private final int[] table;
+
+        private final int mask;
+
+        private final int resetSize;
+
+        private int size;
+
+        private FrequencySketch(int maxSize) {
+            int length = Integer.highestOneBit(Math.max(256, maxSize) - 1) << 3;
+            this.table = new int[length];
+            this.mask = length - 1;
+            this.resetSize = maxSize * 10;
+        }
+
+        private int index(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return (int) h & this.mask;
+        }
+
+        private void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int idx = this.index(hash, i);
+                if (this.table[idx] < 15) {
+                    this.table[idx]++;
+                    added = true;
+                }
+            }
+            if (added && ++this.size >= this.resetSize) {
+                for (int i = 0; i < this.table.length; i++) {
+                    this.table[i] >>>= 1;
+                }
+                this.size >>>= 1;
+            }
+        }
+
+        private int frequency(int hash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, this.table[this.index(hash, i)]);
+            }
+            return frequency;
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package halo.query;
+
+import halo.query.dal.DALContext;
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALParserUtil;
+import halo.query.dal.DALStatus;
+import halo.query.dal.ParsedInfo;
+import halo.query.dal.parser.ShardDALParser;
+import halo.query.mapping.EntityTableInfo;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * 跨分区查询，对所有分区执行相同的操作后在客户端合并结果。<br>
+ * 分区默认通过对象的 {@link ShardDALParser} 获得，也可以直接传入需要查询的分区。
+ * 调用线程开启slave模式时，所有分区使用slave查询。<br>
+ * 有线程池时各个分区并行执行，跨分区操作不参与调用线程中的事务。<br>
+ * 根据id的批量写入不能在事务中调用，每个分区独立提交，所有分区执行完成后才返回，部分分区失败时抛出 {@link ShardWriteException}
+ *
+ * @author akwei
+ */
+public class ShardQuery implements InitializingBean {
+
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    private Query query;
+
+    /**
+     * 自定义线程池，设置后以下线程池参数无效
+     */
+    private ExecutorService executorService;
+
+    private int poolSize = 16;
+
+    private int queueSize = 1000;
+
+    /**
+     * 根据id批量操作时，一条sql中 in 的最大数量
+     */
+    private int maxInSize = 1000;
+
+    /**
+     * true:线程池由 afterPropertiesSet 按照 poolSize 创建，destory 时关闭；通过 setExecutorService 传入的线程池由调用方关闭
+     */
+    private boolean createdExecutor;
+
+    public Query getQuery() {
+        return query;
+    }
+
+    public void setQuery(Query query) {
+        this.query = query;
+    }
+
+    public ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public void setMaxInSize(int maxInSize) {
+        this.maxInSize = maxInSize;
+    }
+
+    /**
+     * 跨分区聚合查询，每个分区返回部分聚合结果，在客户端按照分组合并
+     *
+     * @param clazz       查询对象类型
+     * @param aggregation 聚合定义
+     * @param afterFrom   from table 之后的sql,例如 where create_time&gt;?，不能包含 group by、order by、limit
+     * @param values      参数化查询值
+     * @param <T>         对象泛型
+     * @return 每个分组一个map，key为分组列名称以及聚合结果的别名
+     */
+    public <T> List<Map<String, Object>> aggregate(Class<T> clazz, Aggregation aggregation, String afterFrom, Object[] values) {
+        return this.aggregate(clazz, aggregation, afterFrom, values, DALParserUtil.getAllDALInfos(clazz));
+    }
+
+    /**
+     * 跨分区聚合查询，每个分区返回部分聚合结果，在客户端按照分组合并
+     *
+     * @param clazz       查询对象类型
+     * @param aggregation 聚合定义
+     * @param afterFrom   from table 之后的sql,例如 where create_time&gt;?，不能包含 group by、order by、limit
+     * @param values      参数化查询值
+     * @param dalInfos    需要查询的分区
+     * @param <T>         对象泛型
+     * @return 每个分组一个map，key为分组列名称以及聚合结果的别名
+     */
+    public <T> List<Map<String, Object>> aggregate(final Class<T> clazz, final Aggregation aggregation, final String afterFrom, final Object[] values, List<DALInfo> dalInfos) {
+        List<Map<Object, Object[]>> partials = this.execute(dalInfos, ctx -> query.aggregatePartial(clazz, aggregation, afterFrom, values));
+        Map<Object, Object[]> result = aggregation.newPartial();
+        for (Map<Object, Object[]> partial : partials) {
+            aggregation.merge(result, partial);
+        }
+        return aggregation.toResult(result);
+    }
+
+    /**
+     * 跨分区keyset分页查询。每个分区使用自己的游标查询一页数据，按照key合并后返回一页，token中记录每个分区的游标
+     *
+     * @param clazz      查询对象类型
+     * @param afterFrom  from table 之后的查询条件,例如 where status=?，不能包含 order by、limit
+     * @param values     参数化查询值
+     * @param keyColumns 排序使用的列，组合起来必须唯一，例如 create_time,id
+     * @param desc       true:倒序
+     * @param token      上一页返回的 {@link KeysetPage#getNextToken()}，null表示查询第一页
+     * @param size       每页数量
+     * @param <T>        对象泛型
+     * @return 当前页数据与下一页的token
+     */
+    public <T> KeysetPage<T> keysetList(Class<T> clazz, String afterFrom, Object[] values, String[] keyColumns, boolean desc, String token, int size) {
+        return this.keysetList(clazz, afterFrom, values, keyColumns, desc, token, size, DALParserUtil.getAllDALInfos(clazz));
+    }
+
+    /**
+     * 跨分区keyset分页查询。每个分区使用自己的游标查询一页数据，按照key合并后返回一页，token中记录每个分区的游标
+     *
+     * @param clazz      查询对象类型
+     * @param afterFrom  from table 之后的查询条件,例如 where status=?，不能包含 order by、limit
+     * @param values     参数化查询值
+     * @param keyColumns 排序使用的列，组合起来必须唯一，例如 create_time,id
+     * @param desc       true:倒序
+     * @param token      上一页返回的 {@link KeysetPage#getNextToken()}，null表示查询第一页
+     * @param size       每页数量，必须大于0
+     * @param dalInfos   需要查询的分区，每次查询的分区与顺序必须相同
+     * @param <T>        对象泛型
+     * @return 当前页数据与下一页的token
+     */
+    public <T> KeysetPage<T> keysetList(final Class<T> clazz, final String afterFrom, final Object[] values, final String[] keyColumns, final boolean desc, String token, final int size, List<DALInfo> dalInfos) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be greater than 0");
+        }
+        final EntityTableInfo<T> info = Query.getEntityTableInfo(clazz);
+        List<Object[]> cursors;
+        if (token == null) {
+            cursors = new ArrayList<>(Collections.nCopies(dalInfos.size(), (Object[]) null));
+        } else {
+            cursors = KeysetCursor.decode(token, info, keyColumns);
+            if (cursors.size() != dalInfos.size()) {
+                throw new IllegalArgumentException("invalid token [ " + token + " ]");
+            }
+        }
+        // 只查询还有数据的分区
+        List<Integer> indexes = new ArrayList<>();
+        List<DALInfo> activeDalInfos = new ArrayList<>();
+        for (int i = 0; i < dalInfos.size(); i++) {
+            if (cursors.get(i) != KeysetCursor.DONE) {
+                indexes.add(i);
+                activeDalInfos.add(dalInfos.get(i));
+            }
+        }
+        final List<Object[]> finalCursors = cursors;
+        final List<List<T>> pages = this.execute(activeDalInfos, (i, ctx) -> query.keysetFetch(clazz, afterFrom, values, keyColumns, desc, finalCursors.get(indexes.get(i)), size + 1));
+        // 按照key合并各个分区的数据
+        final List<Object[][]> pageKeys = new ArrayList<>(pages.size());
+        for (List<T> page : pages) {
+            Object[][] keys = new Object[page.size()][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = KeysetCursor.readKey(info, page.get(i), keyColumns);
+            }
+            pageKeys.add(keys);
+        }
+        final int direction = desc ? -1 : 1;
+        PriorityQueue<int[]> heads = new PriorityQueue<>((a, b) -> direction * KeysetCursor.compareKey(pageKeys.get(a[0])[a[1]], pageKeys.get(b[0])[b[1]]));
+        for (int i = 0; i < pages.size(); i++) {
+            if (!pages.get(i).isEmpty()) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+        int[] taken = new int[pages.size()];
+        List<T> list = new ArrayList<>(size);
+        while (list.size() < size && !heads.isEmpty()) {
+            int[] head = heads.poll();
+            List<T> page = pages.get(head[0]);
+            list.add(page.get(head[1]));
+            taken[head[0]]++;
+            if (head[1] + 1 < page.size()) {
+                heads.add(new int[]{head[0], head[1] + 1});
+            }
+        }
+        boolean hasNext = false;
+        for (int i = 0; i < pages.size(); i++) {
+            List<T> page = pages.get(i);
+            int cursorIdx = indexes.get(i);
+            if (page.size() <= size && taken[i] == page.size()) {
+                cursors.set(cursorIdx, KeysetCursor.DONE);
+                continue;
+            }
+            hasNext = true;
+            if (taken[i] > 0) {
+                cursors.set(cursorIdx, pageKeys.get(i)[taken[i] - 1]);
+            }
+        }
+        return new KeysetPage<>(list, hasNext ? KeysetCursor.encode(cursors) : null);
+    }
+
+    /**
+     * 根据id批量删除。每个id分别计算分区，同一个分区的id使用 where id in (?,?) 删除，各个分区并行执行。<br>
+     * 分区参数是id字段时按照id计算分区，否则所有id使用当前线程的分区信息。不能在事务中调用
+     *
+     * @param clazz        对象类型
+     * @param idValuesList 每个元素为一条数据的id值，联合主键时按照id的顺序
+     * @param <T>          对象泛型
+     * @return 删除的记录数
+     * @throws ShardWriteException 部分分区执行失败，包含每个分区的结果
+     */
+    public <T> int deleteByIds(final Class<T> clazz, List<Object[]> idValuesList) {
+        return this.executeByIds(clazz, idValuesList, (where, ids, ctx) -> query.delete(clazz, where, ids, ctx));
+    }
+
+    /**
+     * 根据id批量更新。每个id分别计算分区，同一个分区的id使用 where id in (?,?) 更新，各个分区并行执行。<br>
+     * 分区参数是id字段时按照id计算分区，否则所有id使用当前线程的分区信息。不能在事务中调用
+     *
+     * @param clazz        对象类型
+     * @param setSqlSeg    set部分的sql，例如 set status=?,update_time=?
+     * @param values       set部分的参数
+     * @param idValuesList 每个元素为一条数据的id值，联合主键时按照id的顺序
+     * @param <T>          对象泛型
+     * @return 更新的记录数
+     * @throws ShardWriteException 部分分区执行失败，包含每个分区的结果
+     */
+    public <T> int updateByIds(final Class<T> clazz, final String setSqlSeg, final Object[] values, List<Object[]> idValuesList) {
+        return this.executeByIds(clazz, idValuesList, (where, ids, ctx) -> {
+            Object[] params = ids;
+            if (values != null && values.length > 0) {
+                params = new Object[values.length + ids.length];
+                System.arraycopy(values, 0, params, 0, values.length);
+                System.arraycopy(ids, 0, params, values.length, ids.length);
+            }
+            return query.update(clazz, setSqlSeg + " " + where, params, ctx);
+        });
+    }
+
+    private interface IdsAction {
+
+        /**
+         * @param where  where id in (?,?)
+         * @param ids    in 的参数
+         * @param ctx    分区context
+         * @return 影响的记录数
+         */
+        int execute(String where, Object[] ids, DALContext ctx);
+    }
+
+    private <T> int executeByIds(Class<T> clazz, List<Object[]> idValuesList, final IdsAction action) {
+        if (idValuesList == null || idValuesList.isEmpty()) {
+            return 0;
+        }
+        if (DALStatus.getCurrentDALConnection() != null) {
+            // 各个分区在其他线程自动提交，不能与调用线程的事务一起提交或者回滚
+            throw new IllegalStateException("deleteByIds and updateByIds can not be used in transaction");
+        }
+        EntityTableInfo<T> info = Query.getEntityTableInfo(clazz);
+        final List<String> idColumns = info.getIdColumnNames();
+        if (idColumns.isEmpty()) {
+            throw new HaloIdException(clazz.getName() + " must has id");
+        }
+        for (Object[] idValues : idValuesList) {
+            if (idValues == null || idValues.length != idColumns.size()) {
+                throw new HaloIdException("idValues length must be " + idColumns.size());
+            }
+        }
+        // 按照分区分组
+        Field shardField = Query.getShardField(info);
+        int shardIdx = shardField == null ? -1 : info.getIdFields().indexOf(shardField);
+        final List<DALInfo> dalInfos = new ArrayList<>();
+        final List<List<Object[]>> groups = new ArrayList<>();
+        Map<ParsedInfo, List<Object[]>> map = Query.groupByShard(info, idValuesList, shardIdx < 0 ? null : idValues -> idValues[shardIdx]);
+        for (Map.Entry<ParsedInfo, List<Object[]>> e : map.entrySet()) {
+            DALInfo dalInfo;
+            if (e.getKey() == null) {
+                try {
+                    dalInfo = DALParserUtil.process(clazz);
+                    dalInfo = dalInfo == null ? DALInfo.createForManual() : dalInfo.copy();
+                } finally {
+                    Query.skipExecute();
+                }
+            } else {
+                dalInfo = Query.createShardContext(clazz, e.getKey()).getDalInfo();
+            }
+            dalInfos.add(dalInfo);
+            groups.add(e.getValue());
+        }
+        return this.executeWrite(clazz, dalInfos, (i, ctx) -> {
+            List<Object[]> group = groups.get(i);
+            int count = 0;
+            for (int begin = 0; begin < group.size(); begin += this.maxInSize) {
+                List<Object[]> chunk = group.subList(begin, Math.min(group.size(), begin + this.maxInSize));
+                Object[] ids = new Object[chunk.size() * idColumns.size()];
+                int k = 0;
+                for (Object[] idValues : chunk) {
+                    for (Object idValue : idValues) {
+                        ids[k++] = idValue;
+                    }
+                }
+                // 执行后分区信息会被重置，每条sql使用新的分区信息
+                DALInfo dalInfo = dalInfos.get(i).copy();
+                dalInfo.setSpecify(true);
+                DALContext dalContext = DALContext.create();
+                dalContext.setDalInfo(dalInfo);
+                count += action.execute("where " + buildIdInSql(idColumns, chunk.size()), ids, dalContext);
+            }
+            return count;
+        });
+    }
+
+    /**
+     * 对每个分区执行写操作，等待所有分区执行完成，一个分区失败不会中断其他分区
+     *
+     * @param clazz    对象类型
+     * @param dalInfos 需要执行的分区
+     * @param action   操作，参数为分区在dalInfos中的位置以及分区context，返回影响的记录数
+     * @return 所有分区影响的记录数
+     */
+    private int executeWrite(Class<?> clazz, List<DALInfo> dalInfos, final BiFunction<Integer, DALContext, Integer> action) {
+        List<DALContext> dalContexts = createDALContexts(dalInfos);
+        List<Future<Integer>> futures = new ArrayList<>(dalContexts.size());
+        Map<String, RuntimeException> failures = new LinkedHashMap<>();
+        for (int i = 0; i < dalContexts.size(); i++) {
+            final int index = i;
+            final DALContext dalContext = dalContexts.get(i);
+            FutureTask<Integer> task = new FutureTask<>(() -> call(index, dalContext, action));
+            if (this.executorService == null) {
+                // 已经确认不在事务中，可以在调用线程执行
+                task.run();
+            } else {
+                try {
+                    this.executorService.execute(task);
+                } catch (RejectedExecutionException e) {
+                    failures.put(shardName(clazz, dalInfos.get(i)), e);
+                    task = null;
+                }
+            }
+            futures.add(task);
+        }
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        int count = 0;
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            Future<Integer> future = futures.get(i);
+            if (future == null) {
+                continue;
+            }
+            String shard = shardName(clazz, dalInfos.get(i));
+            while (true) {
+                try {
+                    // 已经提交的分区必须等待执行结果，不能中断正在执行的sql
+                    int result = future.get();
+                    counts.put(shard, result);
+                    count += result;
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    failures.put(shard, cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause));
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (!failures.isEmpty()) {
+            throw new ShardWriteException(counts, failures);
+        }
+        return count;
+    }
+
+    /**
+     * @return dsKey.真实表名称
+     */
+    private static String shardName(Class<?> clazz, DALInfo dalInfo) {
+        String table = dalInfo.getRealTable(clazz);
+        if (table == null) {
+            table = Query.getEntityTableInfo(clazz).getTableName();
+        }
+        return dalInfo.getDsKey() == null ? table : dalInfo.getDsKey() + "." + table;
+    }
+
+    /**
+     * 单一主键为 id in(?,?)，联合主键为 (id0,id1) in((?,?),(?,?))
+     */
+    private static String buildIdInSql(List<String> idColumns, int size) {
+        if (idColumns.size() == 1) {
+            return Query.createInSql(idColumns.get(0), size);
+        }
+        StringBuilder row = new StringBuilder("(");
+        StringBuilder sb = new StringBuilder("(");
+        for (String idColumn : idColumns) {
+            sb.append(idColumn).append(',');
+            row.append("?,");
+        }
+        sb.setCharAt(sb.length() - 1, ')');
+        row.setCharAt(row.length() - 1, ')');
+        sb.append(" in(");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(row);
+        }
+        sb.append(')');
+        return sb.toString();
+    }
+
+    /**
+     * 对每个分区执行操作，执行时当前线程的分区信息为对应的分区
+     *
+     * @param dalInfos 需要执行的分区
+     * @param action   操作
+     * @param <R>      返回值泛型
+     * @return 与分区顺序相同的执行结果
+     */
+    public <R> List<R> execute(List<DALInfo> dalInfos, final Function<DALContext, R> action) {
+        return this.execute(dalInfos, (i, ctx) -> action.apply(ctx));
+    }
+
+    /**
+     * 对每个分区执行操作，执行时当前线程的分区信息为对应的分区
+     *
+     * @param dalInfos 需要执行的分区
+     * @param action   操作，参数为分区在dalInfos中的位置以及分区context
+     * @param <R>      返回值泛型
+     * @return 与分区顺序相同的执行结果
+     */
+    private <R> List<R> execute(List<DALInfo> dalInfos, final BiFunction<Integer, DALContext, R> action) {
+        List<DALContext> dalContexts = createDALContexts(dalInfos);
+        List<R> list = new ArrayList<>(dalContexts.size());
+        if (this.executorService == null || dalContexts.size() == 1) {
+            for (int i = 0; i < dalContexts.size(); i++) {
+                list.add(call(i, dalContexts.get(i), action));
+            }
+            return list;
+        }
+        List<Future<R>> futures = new ArrayList<>(dalContexts.size());
+        try {
+            for (int i = 0; i < dalContexts.size(); i++) {
+                final int index = i;
+                final DALContext dalContext = dalContexts.get(i);
+                futures.add(this.executorService.submit(() -> call(index, dalContext, action)));
+            }
+            for (Future<R> future : futures) {
+                list.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            for (Future<R> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 每个分区创建context，调用线程开启slave模式时所有分区使用slave
+     */
+    private static List<DALContext> createDALContexts(List<DALInfo> dalInfos) {
+        boolean enableSlave = DALStatus.isEnableSlave();
+        String slaveDsKey = DALStatus.getSlaveDsKey();
+        List<DALContext> dalContexts = new ArrayList<>(dalInfos.size());
+        for (DALInfo dalInfo : dalInfos) {
+            DALContext dalContext = DALContext.create();
+            dalContext.setDalInfo(dalInfo.copy());
+            if (enableSlave) {
+                dalContext.setEnableSlave(true);
+                dalContext.setSlaveDsKey(slaveDsKey);
+            }
+            dalContexts.add(dalContext);
+        }
+        return dalContexts;
+    }
+
+    private static <R> R call(final int index, final DALContext dalContext, final BiFunction<Integer, DALContext, R> action) {
+        try {
+            return DALStatus.call(dalContext, () -> action.apply(index, dalContext));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (this.query == null) {
+            this.query = Query.getInstance();
+        }
+        if (this.executorService != null) {
+            return;
+        }
+        this.createdExecutor = true;
+        // 队列满时由调用线程执行
+        this.executorService = new ThreadPoolExecutor(this.poolSize, this.poolSize, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(this.queueSize), r -> {
+            Thread t = new Thread(r, "ShardQuery-thread-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * 关闭由本对象创建的线程池
+     */
+    public void destory() {
+        if (this.createdExecutor && this.executorService != null) {
+            this.executorService.shutdown();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package halo.query;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * {@link ShardQuery} 根据id跨分区写入时，部分分区执行失败抛出的异常。
+ * 每个分区独立提交，成功的分区已经写入，包含每个分区的影响记录数与异常
+ *
+ * @author akwei
+ */
+public class ShardWriteException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, Integer> counts;
+
+    private final Map<String, RuntimeException> failures;
+
+    /**
+     * @param counts   执行成功的分区与影响的记录数
+     * @param failures 执行失败的分区与异常，不能为空
+     */
+    public ShardWriteException(Map<String, Integer> counts, Map<String, RuntimeException> failures) {
+        super(buildMessage(counts, failures), failures.values().iterator().next());
+        this.counts = Collections.unmodifiableMap(counts);
+        this.failures = Collections.unmodifiableMap(failures);
+        boolean first = true;
+        for (RuntimeException e : failures.values()) {
+            if (first) {
+                first = false;
+                continue;
+            }
+            this.addSuppressed(e);
+        }
+    }
+
+    /**
+     * 获得执行成功的分区与影响的记录数，key为 dsKey.真实表名称
+     *
+     * @return 分区与影响的记录数
+     */
+    public Map<String, Integer> getCounts() {
+        return counts;
+    }
+
+    /**
+     * 获得执行失败的分区与异常，key为 dsKey.真实表名称
+     *
+     * @return 分区与异常
+     */
+    public Map<String, RuntimeException> getFailures() {
+        return failures;
+    }
+
+    private static String buildMessage(Map<String, Integer> counts, Map<String, RuntimeException> failures) {
+        StringBuilder sb = new StringBuilder("write failed for shard");
+        for (Map.Entry<String, RuntimeException> e : failures.entrySet()) {
+            sb.append(" [").append(e.getKey()).append("]:").append(e.getValue().getMessage());
+        }
+        sb.append(", succeeded shard ").append(counts);
+        return sb.toString();
+    }
+}
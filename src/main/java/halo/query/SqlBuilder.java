@@ -8,6 +8,8 @@ import halo.query.mapping.EntityTableInfoFactory;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * 对sql的处理
@@ -16,6 +18,12 @@ import java.util.List;
 @SuppressWarnings("unchecked")
 public class SqlBuilder {
 
+    private static final Pattern WRITE_TABLE_PATTERN = Pattern.compile("^\\s*(?:update|delete\\s+from|insert\\s+(?:ignore\\s+)?into|replace\\s+into|load\\s+data\\s+(?:local\\s+)?infile\\s+'[^']*'\\s+(?:replace\\s+|ignore\\s+)?into\\s+table)\\s+`?([\\w.]+)`?", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern INSERT_PATTERN = Pattern.compile("^\\s*(?:insert|replace|load)\\s", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern WHERE_PATTERN = Pattern.compile("^where\\b", Pattern.CASE_INSENSITIVE);
+
     public static <T> String buildUpdateSQL(Class<T> clazz) {
         StringBuilder sb = new StringBuilder("update ");
         sb.append(getTableNameAndSetDsKey(clazz));
@@ -70,18 +78,32 @@ public class SqlBuilder {
     /**
      * @param clazz       实体类型
      * @param hasIdColumn 是否包含id字段
-     * @param insertFlag  0:insert into 1:replace into 2:insert ignore
+     * @param insertFlag  0:insert into 1:replace into 2:insert ignore 3:insert into ... on duplicate key update
      * @param <T>         泛型
      * @return insert sql
      */
     public static <T> String buildInsertSQL(Class<T> clazz, boolean hasIdColumn, InsertFlag insertFlag) {
+        return buildInsertSQL(clazz, hasIdColumn, insertFlag, null, 1);
+    }
+
+    /**
+     * @param clazz        实体类型
+     * @param hasIdColumn  是否包含id字段
+     * @param insertFlag   0:insert into 1:replace into 2:insert ignore 3:insert into ... on duplicate key update
+     * @param updateSqlSeg insertFlag 为 {@link InsertFlag#INSERT_ON_DUPLICATE_KEY_UPDATE} 时 on duplicate key update 之后的sql,
+     *                     例如 count=count+values(count),name=values(name)。为null时把id之外的列更新为insert的值
+     * @param rows         insert的行数，大于1时为多行insert，参数按照行的顺序排列
+     * @param <T>          泛型
+     * @return insert sql
+     */
+    public static <T> String buildInsertSQL(Class<T> clazz, boolean hasIdColumn, InsertFlag insertFlag, String updateSqlSeg, int rows) {
         boolean _hasIdColumn = hasIdColumn;
         EntityTableInfo<T> info = getEntityTableInfo(clazz);
         if (info.getIdFields().size() > 1) {
             _hasIdColumn = true;
         }
         StringBuilder sb = new StringBuilder();
-        if (insertFlag.equals(InsertFlag.INSERT_INTO)) {
+        if (insertFlag.equals(InsertFlag.INSERT_INTO) || insertFlag.equals(InsertFlag.INSERT_ON_DUPLICATE_KEY_UPDATE)) {
             sb.append("insert into ");
         } else if (insertFlag.equals(InsertFlag.REPLACE_INTO)) {
             sb.append("replace into ");
@@ -113,15 +135,78 @@ public class SqlBuilder {
         }
         sb.append(')');
         sb.append(" values");
-        sb.append('(');
         int len = cols.size();
         lastIdx = len - 1;
-        for (int i = 0; i < len; i++) {
-            sb.append('?');
-            if (i < lastIdx) {
+        for (int r = 0; r < rows; r++) {
+            if (r > 0) {
                 sb.append(',');
             }
+            sb.append('(');
+            for (int i = 0; i < len; i++) {
+                sb.append('?');
+                if (i < lastIdx) {
+                    sb.append(',');
+                }
+            }
+            sb.append(')');
+        }
+        if (insertFlag.equals(InsertFlag.INSERT_ON_DUPLICATE_KEY_UPDATE)) {
+            sb.append(" on duplicate key update ");
+            if (updateSqlSeg == null) {
+                appendDuplicateKeyUpdateSQL(sb, info, _hasIdColumn);
+            } else {
+                sb.append(updateSqlSeg);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 默认的 on duplicate key update 部分，id之外的列更新为insert的值。
+     * 使用自增id时通过 last_insert_id(id) 使更新时也能获得已存在数据的id。
+     * 延迟加载的列在对象中可能没有加载，不更新；cas列与 cas update 相同加1，不使用insert的值
+     */
+    private static <T> void appendDuplicateKeyUpdateSQL(StringBuilder sb, EntityTableInfo<T> info, boolean hasIdColumn) {
+        int begin = sb.length();
+        if (!hasIdColumn && info.getIdColumnNames().size() == 1) {
+            String idColumn = info.getIdColumnNames().get(0);
+            sb.append(idColumn).append("=last_insert_id(").append(idColumn).append("),");
         }
+        for (String col : info.getColumnNames()) {
+            if (info.isIdColumnName(col) || info.isLazyField(info.getField(col))) {
+                continue;
+            }
+            if (col.equals(info.getCasColName())) {
+                sb.append(col).append('=').append(col).append("+1,");
+                continue;
+            }
+            sb.append(col).append("=values(").append(col).append("),");
+        }
+        if (sb.length() == begin) {
+            // 只有id列时不需要更新
+            String idColumn = info.getIdColumnNames().get(0);
+            sb.append(idColumn).append('=').append(idColumn);
+        } else {
+            sb.deleteCharAt(sb.length() - 1);
+        }
+    }
+
+    /**
+     * 创建 load data local infile sql，数据格式为 mysql 默认格式: tab分隔列，换行分隔行，\N 表示null，使用utf8mb4编码
+     *
+     * @param clazz 对象类型
+     * @param <T>   泛型
+     * @return load data sql，包含所有列
+     */
+    public static <T> String buildLoadDataSQL(Class<T> clazz) {
+        EntityTableInfo<T> info = getEntityTableInfo(clazz);
+        StringBuilder sb = new StringBuilder("load data local infile 'stream' into table ");
+        sb.append(getTableNameAndSetDsKey(clazz));
+        sb.append(" character set utf8mb4 (");
+        for (String col : info.getColumnNames()) {
+            sb.append(col).append(',');
+        }
+        sb.deleteCharAt(sb.length() - 1);
         sb.append(')');
         return sb.toString();
     }
@@ -163,6 +248,33 @@ public class SqlBuilder {
         return sb.toString();
     }
 
+    /**
+     * 创建聚合查询sql，分组在afterFrom之后添加
+     *
+     * @param clazz       查询对象类型
+     * @param aggregation 聚合定义
+     * @param afterFrom   from table 之后的sql，不能包含 group by、order by、limit
+     * @param <T>         对象泛型
+     * @return sql
+     */
+    public static <T> String buildAggregateSQL(Class<T> clazz, Aggregation aggregation, String afterFrom) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("select ");
+        sb.append(aggregation.buildSelectSQL());
+        sb.append(" from ");
+        addTableNameAndSetDsKey(sb, clazz, true, false);
+        sb.append(' ');
+        if (afterFrom != null) {
+            sb.append(afterFrom);
+        }
+        String groupBy = aggregation.buildGroupBySQL();
+        if (groupBy != null) {
+            sb.append(' ');
+            sb.append(groupBy);
+        }
+        return sb.toString();
+    }
+
     public static <T> String buildListSQL(Class<T> clazz, String afterFrom) {
         EntityTableInfo<T> info = getEntityTableInfo(clazz);
         StringBuilder sb = new StringBuilder();
@@ -177,6 +289,29 @@ public class SqlBuilder {
         return sb.toString();
     }
 
+    /**
+     * 只查询部分列的sql，select部分按照列组合缓存
+     *
+     * @param clazz     查询对象类型
+     * @param columns   需要查询的列
+     * @param afterFrom from table 之后的sql
+     * @param <T>       对象泛型
+     * @return sql
+     */
+    public static <T> String buildListSQL(Class<T> clazz, String[] columns, String afterFrom) {
+        EntityTableInfo<T> info = getEntityTableInfo(clazz);
+        StringBuilder sb = new StringBuilder();
+        sb.append("select ");
+        sb.append(info.getProjection(columns).getSelectedFieldSQL());
+        sb.append(" from ");
+        addTableNameAndSetDsKey(sb, clazz, true, false);
+        sb.append(' ');
+        if (afterFrom != null) {
+            sb.append(afterFrom);
+        }
+        return sb.toString();
+    }
+
     public static <T> String buildMysqlListSQL(Class<?>[] clazzes, String afterFrom, int begin, int size) {
         StringBuilder sb = new StringBuilder("select ");
         EntityTableInfo<T> info;
@@ -222,6 +357,76 @@ public class SqlBuilder {
         return sb.toString();
     }
 
+    /**
+     * 创建keyset分页查询sql，例如 select ... where (col) and (k1,k2)&gt;(?,?) order by k1,k2 limit size
+     *
+     * @param clazz      查询对象类型
+     * @param afterFrom  from table 之后的查询条件，例如 where uid=?，不能包含 order by、limit
+     * @param keyColumns 排序使用的列，组合起来必须唯一
+     * @param desc       true:倒序
+     * @param hasCursor  是否有上一页最后一条数据的key
+     * @param size       查询数量
+     * @param <T>        对象泛型
+     * @return sql
+     */
+    public static <T> String buildKeysetListSQL(Class<T> clazz, String afterFrom, String[] keyColumns, boolean desc, boolean hasCursor, int size) {
+        EntityTableInfo<T> info = getEntityTableInfo(clazz);
+        StringBuilder sb = new StringBuilder();
+        sb.append("select ");
+        sb.append(info.getSelectedFieldSQL());
+        sb.append(" from ");
+        addTableNameAndSetDsKey(sb, clazz, true, false);
+        String where = afterFrom == null ? "" : afterFrom.trim();
+        if (hasCursor) {
+            Matcher matcher = WHERE_PATTERN.matcher(where);
+            if (matcher.find()) {
+                // 原有条件加括号，避免与 or 条件混合
+                sb.append(' ').append(where, 0, matcher.end()).append(" (").append(where.substring(matcher.end()).trim()).append(") and ");
+            } else {
+                if (!where.isEmpty()) {
+                    sb.append(' ').append(where);
+                }
+                sb.append(" where ");
+            }
+            if (keyColumns.length == 1) {
+                sb.append(keyColumns[0]);
+            } else {
+                sb.append('(');
+                appendColumns(sb, keyColumns, "");
+                sb.append(')');
+            }
+            sb.append(desc ? " < " : " > ");
+            if (keyColumns.length == 1) {
+                sb.append('?');
+            } else {
+                sb.append('(');
+                for (int i = 0; i < keyColumns.length; i++) {
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    sb.append('?');
+                }
+                sb.append(')');
+            }
+        } else if (!where.isEmpty()) {
+            sb.append(' ').append(where);
+        }
+        sb.append(" order by ");
+        appendColumns(sb, keyColumns, desc ? " desc" : "");
+        sb.append(" limit ");
+        sb.append(size);
+        return sb.toString();
+    }
+
+    private static void appendColumns(StringBuilder sb, String[] columns, String suffix) {
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(columns[i]).append(suffix);
+        }
+    }
+
     public static <T> String buildDeleteSQL(Class<T> clazz, String afterFrom) {
         StringBuilder sb = new StringBuilder();
         sb.append("delete from ");
@@ -320,6 +525,10 @@ public class SqlBuilder {
                     if (entityTableInfo.isIdField(field)) {
                         continue;
                     }
+                    // 没有加载的延迟字段不更新
+                    if (valueT == null && entityTableInfo.isLazyField(field)) {
+                        continue;
+                    }
                     values.add(valueT);
                     cols.add(entityTableInfo.getColumn(field.getName()));
                 }
@@ -391,6 +600,30 @@ public class SqlBuilder {
         }
     }
 
+    /**
+     * 获得写操作的表名称
+     *
+     * @param sql update、delete、insert、replace、load data sql
+     * @return 无法识别时返回null
+     */
+    static String parseWriteTable(String sql) {
+        Matcher matcher = WRITE_TABLE_PATTERN.matcher(sql);
+        if (matcher.find()) {
+            return matcher.group(1);
+        }
+        return null;
+    }
+
+    /**
+     * 是否是 insert、replace、load data 等产生新数据的 sql
+     *
+     * @param sql sql
+     * @return true/false
+     */
+    static boolean isInsertSQL(String sql) {
+        return INSERT_PATTERN.matcher(sql).find();
+    }
+
     private static <T> EntityTableInfo<T> getEntityTableInfo(Class<?> clazz) {
         return (EntityTableInfo<T>) EntityTableInfoFactory.getEntityTableInfo(clazz);
     }
@@ -0,0 +1,542 @@
+package halo.query;
+
+import halo.query.dal.DALContext;
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALParserUtil;
+import halo.query.dal.DALStatus;
+import halo.query.mapping.EntityTableInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 延迟合并写入，用于计数器、最后访问时间等高频更新相同数据的场景。<br>
+ * 更新先按照 (分区, 对象, id) 缓存在内存中，相同数据的多次更新合并为一次: 累加操作合并为总和，赋值操作保留最后一次的值。
+ * 每隔 flushIntervalMillis 或者缓存的数据达到 flushSize 时，按照分区与更新的列分组，通过 {@link Query#batchUpdate(Class, String, List)} 批量写入，
+ * 每次批量写入最多 batchSize 行。<br>
+ * 缓存的数据达到 maxPendingRows 时调用线程等待写入线程写入完成。destory 以及 jvm 关闭时写入所有缓存的数据。<br>
+ * 分区在调用时按照当前线程的分区参数解析，写入不参与调用线程中的事务，写入失败的数据不会重试，只记录日志。例如:
+ * <pre>
+ * writeBehind.increment(Counter.class, counterId, "view_count", 1);
+ * writeBehind.set(Counter.class, counterId, "last_view_time", new Date());
+ * </pre>
+ *
+ * @author akwei
+ */
+public class WriteBehind implements InitializingBean {
+
+    private static final Log log = LogFactory.getLog(WriteBehind.class);
+
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    private Query query;
+
+    /**
+     * 定时写入的间隔(毫秒)
+     */
+    private long flushIntervalMillis = 1000;
+
+    /**
+     * 缓存的数据达到此数量时异步写入
+     */
+    private int flushSize = 1000;
+
+    /**
+     * 缓存的数据达到此数量时调用线程等待写入完成
+     */
+    private int maxPendingRows = 100000;
+
+    /**
+     * 每次 batchUpdate 写入的最大行数
+     */
+    private int batchSize = 500;
+
+    /**
+     * 是否在jvm关闭时写入所有缓存的数据
+     */
+    private boolean flushOnShutdown = true;
+
+    private volatile ConcurrentHashMap<RowKey, PendingRow> buffer = new ConcurrentHashMap<>();
+
+    /**
+     * 写入缓存时使用读锁，写入数据库之前替换缓存时使用写锁
+     */
+    private final ReadWriteLock bufferLock = new ReentrantReadWriteLock();
+
+    /**
+     * 同一时间只有一个线程写入数据库，保证赋值操作的顺序
+     */
+    private final Object flushLock = new Object();
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private ScheduledExecutorService scheduledExecutorService;
+
+    private Thread shutdownHook;
+
+    private volatile boolean closed;
+
+    private final LongAdder bufferedCount = new LongAdder();
+
+    private final LongAdder coalescedCount = new LongAdder();
+
+    private final LongAdder flushedCount = new LongAdder();
+
+    private final LongAdder failedCount = new LongAdder();
+
+    public Query getQuery() {
+        return query;
+    }
+
+    public void setQuery(Query query) {
+        this.query = query;
+    }
+
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    public int getFlushSize() {
+        return flushSize;
+    }
+
+    public void setFlushSize(int flushSize) {
+        this.flushSize = flushSize;
+    }
+
+    public int getMaxPendingRows() {
+        return maxPendingRows;
+    }
+
+    public void setMaxPendingRows(int maxPendingRows) {
+        this.maxPendingRows = maxPendingRows;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public boolean isFlushOnShutdown() {
+        return flushOnShutdown;
+    }
+
+    public void setFlushOnShutdown(boolean flushOnShutdown) {
+        this.flushOnShutdown = flushOnShutdown;
+    }
+
+    /**
+     * 调用 increment、set 的次数
+     *
+     * @return 数量
+     */
+    public long getBufferedCount() {
+        return bufferedCount.sum();
+    }
+
+    /**
+     * 合并到已缓存数据中的次数
+     *
+     * @return 数量
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    /**
+     * 写入数据库的数据行数
+     *
+     * @return 数量
+     */
+    public long getFlushedCount() {
+        return flushedCount.sum();
+    }
+
+    /**
+     * 写入失败的数据行数
+     *
+     * @return 数量
+     */
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    /**
+     * 当前缓存的数据行数
+     *
+     * @return 数量
+     */
+    public int getPendingRows() {
+        return this.buffer.size();
+    }
+
+    /**
+     * 累加列的值，相当于 update table set column=column+? where id=?
+     *
+     * @param clazz   对象类型
+     * @param idValue id值
+     * @param column  列名称
+     * @param delta   增加的值，可以为负数
+     * @param <T>     对象泛型
+     */
+    public <T> void increment(Class<T> clazz, Object idValue, String column, long delta) {
+        this.add(clazz, idValue, column, true, delta);
+    }
+
+    /**
+     * 设置列的值，相当于 update table set column=? where id=?
+     *
+     * @param clazz   对象类型
+     * @param idValue id值
+     * @param column  列名称
+     * @param value   列的值
+     * @param <T>     对象泛型
+     */
+    public <T> void set(Class<T> clazz, Object idValue, String column, Object value) {
+        this.add(clazz, idValue, column, false, value);
+    }
+
+    private <T> void add(Class<T> clazz, Object idValue, String column, boolean increment, Object value) {
+        EntityTableInfo<T> info = Query.getEntityTableInfo(clazz);
+        if (info.getIdColumnNames().size() != 1) {
+            throw new HaloIdException(clazz.getName() + " must has only one id");
+        }
+        if (idValue == null) {
+            throw new HaloIdException("idValue must be not null");
+        }
+        if (info.getField(column) == null) {
+            throw new IllegalArgumentException("column [ " + column + " ] not found in " + clazz.getName());
+        }
+        if (info.isIdColumnName(column)) {
+            throw new IllegalArgumentException("id column [ " + column + " ] can not be updated");
+        }
+        DALInfo dalInfo;
+        try {
+            dalInfo = DALParserUtil.process(clazz);
+            dalInfo = dalInfo == null ? null : dalInfo.copy();
+        } finally {
+            // 只解析分区，不执行sql
+            Query.skipExecute();
+        }
+        RowKey rowKey = new RowKey(clazz, idValue, dalInfo);
+        boolean coalesced;
+        this.bufferLock.readLock().lock();
+        try {
+            final boolean[] exists = new boolean[1];
+            this.buffer.compute(rowKey, (k, row) -> {
+                if (row == null) {
+                    row = new PendingRow();
+                } else {
+                    exists[0] = true;
+                }
+                row.add(column, increment, value);
+                return row;
+            });
+            coalesced = exists[0];
+        } finally {
+            this.bufferLock.readLock().unlock();
+        }
+        this.bufferedCount.increment();
+        if (coalesced) {
+            this.coalescedCount.increment();
+        }
+        int size = this.buffer.size();
+        if (this.closed || size >= this.maxPendingRows) {
+            this.flushAndWait();
+        } else if (size >= this.flushSize && this.flushRequested.compareAndSet(false, true)) {
+            this.scheduledExecutorService.execute(this::flushQuietly);
+        }
+    }
+
+    /**
+     * 由写入线程写入所有缓存的数据，调用线程等待写入完成。写入不能使用调用线程，否则会加入调用线程中的事务
+     */
+    private void flushAndWait() {
+        Future<?> future;
+        try {
+            future = this.scheduledExecutorService.submit(this::flush);
+        } catch (RejectedExecutionException e) {
+            // destory 之后线程池已经关闭，使用新的线程写入
+            FutureTask<Void> task = new FutureTask<>(this::flush, null);
+            Thread t = new Thread(task, "WriteBehind-thread-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            t.start();
+            future = task;
+        }
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * 在当前线程写入所有缓存的数据
+     */
+    public void flush() {
+        synchronized (this.flushLock) {
+            this.flushRequested.set(false);
+            Map<RowKey, PendingRow> rows;
+            this.bufferLock.writeLock().lock();
+            try {
+                if (this.buffer.isEmpty()) {
+                    return;
+                }
+                rows = this.buffer;
+                this.buffer = new ConcurrentHashMap<>();
+            } finally {
+                this.bufferLock.writeLock().unlock();
+            }
+            // 分区、对象、更新的列相同的数据使用同一个sql批量写入
+            Map<FlushKey, List<Object[]>> groups = new LinkedHashMap<>();
+            for (Map.Entry<RowKey, PendingRow> e : rows.entrySet()) {
+                RowKey rowKey = e.getKey();
+                PendingRow row = e.getValue();
+                FlushKey flushKey = new FlushKey(rowKey, row.buildUpdateSqlSeg(Query.getEntityTableInfo(rowKey.clazz)));
+                groups.computeIfAbsent(flushKey, k -> new ArrayList<>()).add(row.buildValues(rowKey.idValue));
+            }
+            for (Map.Entry<FlushKey, List<Object[]>> e : groups.entrySet()) {
+                this.flushGroup(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private void flushGroup(FlushKey flushKey, List<Object[]> valuesList) {
+        final Class<?> clazz = flushKey.rowKey.clazz;
+        DALContext dalContext = DALContext.create();
+        if (flushKey.rowKey.dalInfo != null) {
+            DALInfo dalInfo = flushKey.rowKey.dalInfo.copy();
+            dalInfo.setSpecify(true);
+            dalContext.setDalInfo(dalInfo);
+        }
+        for (int i = 0; i < valuesList.size(); i += this.batchSize) {
+            final List<Object[]> subList = valuesList.subList(i, Math.min(i + this.batchSize, valuesList.size()));
+            try {
+                DALStatus.call(dalContext, () -> query.batchUpdate(clazz, flushKey.updateSqlSeg, subList));
+                this.flushedCount.add(subList.size());
+            } catch (Exception e) {
+                this.failedCount.add(subList.size());
+                log.error("WriteBehind flush " + subList.size() + " rows of [ " + clazz.getName() + " ] failed, sql seg [ " + flushKey.updateSqlSeg + " ]", e);
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            this.flush();
+        } catch (Throwable e) {
+            log.error("WriteBehind flush error", e);
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (this.query == null) {
+            this.query = Query.getInstance();
+        }
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "WriteBehind-thread-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::flushQuietly, this.flushIntervalMillis, this.flushIntervalMillis, TimeUnit.MILLISECONDS);
+        this.scheduledExecutorService = executor;
+        if (this.flushOnShutdown) {
+            this.shutdownHook = new Thread(this::flushQuietly, "WriteBehind-shutdown");
+            Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+        }
+    }
+
+    /**
+     * 停止定时写入并写入所有缓存的数据，之后的每次更新都直接写入
+     */
+    public void destory() {
+        this.closed = true;
+        if (this.scheduledExecutorService != null) {
+            this.flushAndWait();
+            this.scheduledExecutorService.shutdown();
+        }
+        if (this.shutdownHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+            } catch (IllegalStateException e) {
+                // jvm正在关闭
+            }
+            this.shutdownHook = null;
+        }
+        this.flush();
+    }
+
+    /**
+     * 一行数据等待写入的更新，key为列名称，按照列名称排序使相同的列生成相同的sql
+     */
+    private static final class PendingRow {
+
+        private final TreeMap<String, Op> ops = new TreeMap<>();
+
+        private void add(String column, boolean increment, Object value) {
+            Op old = this.ops.get(column);
+            if (old == null || !increment) {
+                // 赋值覆盖之前所有的操作
+                this.ops.put(column, new Op(increment, value));
+                return;
+            }
+            if (old.increment) {
+                old.value = (Long) old.value + (Long) value;
+                return;
+            }
+            // 赋值之后的累加，合并到赋值中
+            if (old.value != null) {
+                if (!(old.value instanceof Number)) {
+                    throw new IllegalArgumentException("column [ " + column + " ] value " + old.value.getClass().getName() + " can not be incremented");
+                }
+                old.value = add((Number) old.value, (Long) value);
+            }
+        }
+
+        private String buildUpdateSqlSeg(EntityTableInfo<?> info) {
+            StringBuilder sb = new StringBuilder("set ");
+            for (Map.Entry<String, Op> e : this.ops.entrySet()) {
+                String column = e.getKey();
+                sb.append(column).append('=');
+                if (e.getValue().increment) {
+                    sb.append(column).append('+');
+                }
+                sb.append("?,");
+            }
+            sb.deleteCharAt(sb.length() - 1);
+            sb.append(" where ").append(info.getIdColumnNames().get(0)).append("=?");
+            return sb.toString();
+        }
+
+        private Object[] buildValues(Object idValue) {
+            Object[] values = new Object[this.ops.size() + 1];
+            int i = 0;
+            for (Op op : this.ops.values()) {
+                values[i++] = op.value;
+            }
+            values[i] = idValue;
+            return values;
+        }
+
+        private static Number add(Number a, long b) {
+            if (a instanceof BigDecimal) {
+                return ((BigDecimal) a).add(BigDecimal.valueOf(b));
+            }
+            if (a instanceof BigInteger) {
+                return ((BigInteger) a).add(BigInteger.valueOf(b));
+            }
+            if (a instanceof Double || a instanceof Float) {
+                return a.doubleValue() + b;
+            }
+            return a.longValue() + b;
+        }
+    }
+
+    private static final class Op {
+
+        /**
+         * true:累加，value为增加的值. false:赋值
+         */
+        private final boolean increment;
+
+        private Object value;
+
+        private Op(boolean increment, Object value) {
+            this.increment = increment;
+            this.value = value;
+        }
+    }
+
+    private static final class RowKey {
+
+        private final Class<?> clazz;
+
+        private final Object idValue;
+
+        /**
+         * 调用时解析的分区，不参与比较
+         */
+        private final DALInfo dalInfo;
+
+        private final String dsKey;
+
+        private final String realTable;
+
+        private RowKey(Class<?> clazz, Object idValue, DALInfo dalInfo) {
+            this.clazz = clazz;
+            this.idValue = idValue;
+            this.dalInfo = dalInfo;
+            this.dsKey = dalInfo == null ? null : dalInfo.getDsKey();
+            this.realTable = dalInfo == null ? null : dalInfo.getRealTable(clazz);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(clazz, idValue, dsKey, realTable);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof RowKey)) {
+                return false;
+            }
+            RowKey o = (RowKey) obj;
+            return this.clazz.equals(o.clazz) && this.idValue.equals(o.idValue)
+                    && Objects.equals(this.dsKey, o.dsKey) && Objects.equals(this.realTable, o.realTable);
+        }
+    }
+
+    private static final class FlushKey {
+
+        private final RowKey rowKey;
+
+        private final String updateSqlSeg;
+
+        private FlushKey(RowKey rowKey, String updateSqlSeg) {
+            this.rowKey = rowKey;
+            this.updateSqlSeg = updateSqlSeg;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(rowKey.clazz, rowKey.dsKey, rowKey.realTable, updateSqlSeg);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof FlushKey)) {
+                return false;
+            }
+            FlushKey o = (FlushKey) obj;
+            return this.rowKey.clazz.equals(o.rowKey.clazz) && Objects.equals(this.rowKey.dsKey, o.rowKey.dsKey)
+                    && Objects.equals(this.rowKey.realTable, o.rowKey.realTable) && this.updateSqlSeg.equals(o.updateSqlSeg);
+        }
+    }
+}
@@ -36,4 +36,11 @@ public @interface Column {
      * @return true/false
      */
     boolean cas() default false;
+
+    /**
+     * 是否延迟加载。延迟加载的字段不在默认的select中，需要时通过 Query.loadLazy 批量加载，适合大字段，例如json数据。主键不能延迟加载
+     *
+     * @return true/false
+     */
+    boolean lazy() default false;
 }
\ No newline at end of file
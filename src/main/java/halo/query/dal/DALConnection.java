@@ -6,7 +6,10 @@ import org.apache.commons.logging.LogFactory;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * 支持分布式数据源访问的Connection，此类暂时不支持非PreparedStatement方式分布式读写。
@@ -15,17 +18,6 @@ import java.util.concurrent.Executor;
  */
 public class DALConnection implements Connection {
 
-    /**
-     * 存储调用的方法的参数
-     */
-    private List<Map<String, Object>> methodInvokedList = new ArrayList<>(4);
-
-    private static final int METHODINDEX_SETTRANSACTIONISOLATION = 2;
-
-    private static final int METHODINDEX_SETREADONLY = 4;
-
-    private static final int METHODINDEX_SETAUTOCOMMIT = 6;
-
     /**
      * 存储实际的连接，可以保存多个
      */
@@ -39,31 +31,42 @@ public class DALConnection implements Connection {
 
     private boolean readOnly = false;
 
+    /**
+     * 没有真实连接时是否调用过对应的方法，获得真实连接时需要设置
+     */
+    private boolean autoCommitInvoked;
+
+    private boolean readOnlyInvoked;
+
+    private boolean transactionIsolationInvoked;
+
     private HaloDALDataSource dalDataSource;
 
+    /**
+     * 事务提交成功后需要执行的任务
+     */
+    private List<Runnable> afterCommitTasks;
+
+    /**
+     * 连接存在期间根据id查询的对象，key为真实表名称
+     */
+    private Map<String, Map<Object, Object>> identityMap;
+
     DALConnection(HaloDALDataSource dalDataSource) throws SQLException {
         this.dalDataSource = dalDataSource;
         this.setAutoCommit(true);
     }
 
-    private void addInvoke(int methodIndex, Object[] args) {
-        Map<String, Object> map = new HashMap<>(2);
-        map.put("method_index", methodIndex);
-        map.put("args", args);
-        this.methodInvokedList.add(map);
-    }
-
     public void clearWarnings() throws SQLException {
         this.getCurrentConnection().clearWarnings();
     }
 
     public void close() throws SQLException {
-        List<Connection> cons = this.getAllConnections(true);
         try {
-            for (Connection con : cons) {
-                con.close();
-            }
+            this.invokeAll("close", Connection::close, false);
         } finally {
+            this.afterCommitTasks = null;
+            this.identityMap = null;
             DALStatus.removeCurrentDALConnection();
             DALStatus.remove();
             if (DALConnectionListenerFactory.hasListener()) {
@@ -74,21 +77,157 @@ public class DALConnection implements Connection {
         }
     }
 
-    private List<Connection> getAllConnections(boolean reverse) {
-        List<Connection> cons = new ArrayList<>(this.conMap.values());
+    private List<Map.Entry<String, Connection>> getAllConnections(boolean reverse) {
+        List<Map.Entry<String, Connection>> cons = new ArrayList<>(this.conMap.entrySet());
         if (reverse) {
             Collections.reverse(cons);
         }
         return cons;
     }
 
+    /**
+     * 对所有真实连接执行操作。数据源开启parallelTransaction并且有多个连接时并行执行，否则按打开连接的相反顺序执行
+     *
+     * @param action      操作名称
+     * @param sqlAction   操作
+     * @param stopOnError 顺序执行时，出现错误是否停止执行后续连接的操作
+     * @throws SQLException 有连接操作失败时抛出 {@link DALTransactionException}
+     */
+    private void invokeAll(String action, SQLAction sqlAction, boolean stopOnError) throws SQLException {
+        List<Map.Entry<String, Connection>> cons = this.getAllConnections(true);
+        if (cons.isEmpty()) {
+            return;
+        }
+        Map<String, SQLException> failures = new LinkedHashMap<>();
+        ExecutorService executorService = this.dalDataSource.getTransactionExecutorService();
+        if (executorService == null || cons.size() == 1) {
+            for (Map.Entry<String, Connection> e : cons) {
+                try {
+                    sqlAction.invoke(e.getValue());
+                } catch (SQLException ex) {
+                    failures.put(e.getKey(), ex);
+                    if (stopOnError) {
+                        break;
+                    }
+                }
+            }
+        } else {
+            Map<String, Future<Void>> futureMap = new LinkedHashMap<>();
+            for (Map.Entry<String, Connection> e : cons) {
+                final Connection con = e.getValue();
+                futureMap.put(e.getKey(), executorService.submit(() -> {
+                    sqlAction.invoke(con);
+                    return null;
+                }));
+            }
+            for (Map.Entry<String, Future<Void>> e : futureMap.entrySet()) {
+                try {
+                    e.getValue().get();
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof SQLException) {
+                        failures.put(e.getKey(), (SQLException) cause);
+                    } else {
+                        failures.put(e.getKey(), new SQLException(cause));
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    failures.put(e.getKey(), new SQLException(action + " interrupted", ex));
+                }
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new DALTransactionException(action, failures);
+        }
+    }
+
+    /**
+     * 获得连接存在期间已经查询的对象
+     *
+     * @param table 真实表名称
+     * @param key   对象的key
+     * @return 没有时返回null
+     */
+    public Object getIdentity(String table, Object key) {
+        if (this.identityMap == null) {
+            return null;
+        }
+        Map<Object, Object> map = this.identityMap.get(table);
+        if (map == null) {
+            return null;
+        }
+        return map.get(key);
+    }
+
+    /**
+     * 保存查询的对象，连接关闭、事务提交或者回滚时清除
+     *
+     * @param table 真实表名称
+     * @param key   对象的key
+     * @param obj   对象
+     */
+    public void putIdentity(String table, Object key, Object obj) {
+        if (this.identityMap == null) {
+            this.identityMap = new HashMap<>();
+        }
+        Map<Object, Object> map = this.identityMap.get(table);
+        if (map == null) {
+            map = new HashMap<>();
+            this.identityMap.put(table, map);
+        }
+        map.put(key, obj);
+    }
+
+    /**
+     * 清除表的所有对象
+     *
+     * @param table 真实表名称，null表示清除所有表
+     */
+    public void evictIdentity(String table) {
+        if (this.identityMap == null) {
+            return;
+        }
+        if (table == null) {
+            this.identityMap = null;
+        } else {
+            this.identityMap.remove(table);
+        }
+    }
+
+    /**
+     * 添加事务提交成功后执行的任务，事务回滚或者连接关闭时丢弃
+     *
+     * @param task 任务
+     */
+    public void addAfterCommitTask(Runnable task) {
+        if (this.afterCommitTasks == null) {
+            this.afterCommitTasks = new ArrayList<>();
+        }
+        this.afterCommitTasks.add(task);
+    }
+
+    private void runAfterCommitTasks() {
+        List<Runnable> tasks = this.afterCommitTasks;
+        if (tasks == null) {
+            return;
+        }
+        this.afterCommitTasks = null;
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("after commit task failed", e);
+            }
+        }
+    }
+
     public void commit() throws SQLException {
-        List<Connection> cons = this.getAllConnections(true);
         try {
-            for (Connection con : cons) {
-                con.commit();
-            }
+            this.invokeAll("commit", Connection::commit, true);
+            this.runAfterCommitTasks();
         } finally {
+            this.afterCommitTasks = null;
+            this.identityMap = null;
             DALStatus.remove();
             if (DALConnectionListenerFactory.hasListener()) {
                 for (DALConnectionListener listener : DALConnectionListenerFactory.getInstance().getDalConnectionListeners()) {
@@ -140,11 +279,23 @@ public class DALConnection implements Connection {
         String name = DALStatus.getDsKey();
         Connection con = this.conMap.get(name);
         if (con == null) {
+            if (this.autoCommit && this.dalDataSource.isAutoCommitEarlyRelease()) {
+                this.releaseConnections();
+            }
             HaloDataSourceProxy proxy = this.dalDataSource.getCurrentDataSourceProxy(this.autoCommit);
             try {
-                con = proxy.getConnection();
+                try {
+                    con = proxy.getConnection();
+                } catch (SQLException e) {
+                    if (!proxy.isRetired()) {
+                        throw e;
+                    }
+                    // 读取路由之后数据源被删除或者被重新加载的配置替换，使用当前的路由重新获取
+                    proxy = this.dalDataSource.getCurrentDataSourceProxy(this.autoCommit);
+                    con = proxy.getConnection();
+                }
                 this.conMap.put(name, con);
-                if (proxy.getDb() != null) {
+                if (proxy.getDb() != null && !proxy.getDb().equals(con.getCatalog())) {
                     con.setCatalog(proxy.getDb());
                     if (HaloQueryDebugInfo.getInstance().isEnableDebug()) {
                         logger.info("change schema to " + proxy.getDb());
@@ -166,6 +317,26 @@ public class DALConnection implements Connection {
         return con;
     }
 
+    /**
+     * autoCommit=true时，sql切换到其他dsKey前归还已经使用过的真实连接，不需要等到DALConnection关闭
+     */
+    private void releaseConnections() {
+        if (this.conMap.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Connection> e : this.getAllConnections(true)) {
+            try {
+                e.getValue().close();
+            } catch (SQLException ex) {
+                logger.warn("release connection for dsKey[" + e.getKey() + "] error", ex);
+            }
+        }
+        this.conMap.clear();
+        if (HaloQueryDebugInfo.getInstance().isEnableDebug()) {
+            logger.info("autoCommit connections were released before using dsKey[" + DALStatus.getDsKey() + "]");
+        }
+    }
+
     /**
      * 是否当前有可用的真实数据库链接
      *
@@ -176,31 +347,22 @@ public class DALConnection implements Connection {
         return !(name == null || name.length() == 0) && this.conMap.containsKey(name);
     }
 
+    /**
+     * 设置新获得的真实连接，与spring开启事务的顺序相同：readOnly、事务隔离级别，最后设置autoCommit。
+     * 真实连接已经是相同状态时，{@link HaloConnectionWrapper} 不会再次调用驱动
+     *
+     * @param con 真实连接
+     * @throws SQLException 设置失败
+     */
     private void initCurrentConnection(Connection con) throws SQLException {
-        for (Map<String, Object> map : this.methodInvokedList) {
-            int methodIndex = (Integer) map.get("method_index");
-            Object[] args = (Object[]) map.get("args");
-            this.invoke(con, methodIndex, args);
+        if (this.readOnlyInvoked) {
+            con.setReadOnly(this.readOnly);
         }
-    }
-
-    private void invoke(Connection con, int methodIndex, Object[] args) throws SQLException {
-        switch (methodIndex) {
-            case METHODINDEX_SETAUTOCOMMIT: {
-                boolean autoCommit = (Boolean) args[0];
-                con.setAutoCommit(autoCommit);
-                break;
-            }
-            case METHODINDEX_SETREADONLY: {
-                con.setReadOnly((Boolean) args[0]);
-                break;
-            }
-            case METHODINDEX_SETTRANSACTIONISOLATION: {
-                con.setTransactionIsolation((Integer) args[0]);
-                break;
-            }
-            default:
-                throw new RuntimeException("unsupported methodIndex:" + methodIndex);
+        if (this.transactionIsolationInvoked) {
+            con.setTransactionIsolation(this.transactionIsolation);
+        }
+        if (this.autoCommitInvoked) {
+            con.setAutoCommit(this.autoCommit);
         }
     }
 
@@ -229,7 +391,7 @@ public class DALConnection implements Connection {
         if (this.hasCurrentConnection()) {
             this.getCurrentConnection().setAutoCommit(autoCommit);
         } else {
-            this.addInvoke(METHODINDEX_SETAUTOCOMMIT, new Object[]{autoCommit});
+            this.autoCommitInvoked = true;
         }
         if (!this.autoCommit && DALConnectionListenerFactory.hasListener()) {
             for (DALConnectionListener listener : DALConnectionListenerFactory.getInstance().getDalConnectionListeners()) {
@@ -262,7 +424,7 @@ public class DALConnection implements Connection {
         if (this.hasCurrentConnection()) {
             this.getCurrentConnection().setTransactionIsolation(level);
         } else {
-            this.addInvoke(METHODINDEX_SETTRANSACTIONISOLATION, new Object[]{level});
+            this.transactionIsolationInvoked = true;
         }
     }
 
@@ -297,7 +459,7 @@ public class DALConnection implements Connection {
         if (this.hasCurrentConnection()) {
             this.getCurrentConnection().setReadOnly(readOnly);
         } else {
-            this.addInvoke(METHODINDEX_SETREADONLY, new Object[]{readOnly});
+            this.readOnlyInvoked = true;
         }
     }
 
@@ -359,12 +521,11 @@ public class DALConnection implements Connection {
     }
 
     public void rollback() throws SQLException {
-        List<Connection> cons = this.getAllConnections(true);
         try {
-            for (Connection con : cons) {
-                con.rollback();
-            }
+            this.invokeAll("rollback", Connection::rollback, false);
         } finally {
+            this.afterCommitTasks = null;
+            this.identityMap = null;
             DALStatus.remove();
             if (DALConnectionListenerFactory.hasListener()) {
                 for (DALConnectionListener listener : DALConnectionListenerFactory.getInstance().getDalConnectionListeners()) {
@@ -477,4 +638,9 @@ public class DALConnection implements Connection {
     public LinkedHashMap<String, Connection> getConMap() {
         return this.conMap;
     }
+
+    private interface SQLAction {
+
+        void invoke(Connection con) throws SQLException;
+    }
 }
\ No newline at end of file
@@ -110,4 +110,42 @@ public class DALContext {
         return this.paramMap.isEmpty();
     }
 
+    /**
+     * 复制当前context，用于在其他线程中执行时携带分区信息
+     *
+     * @return 新的context
+     */
+    public DALContext copy() {
+        DALContext dalContext = new DALContext();
+        dalContext.setEnableSlave(this.enableSlave);
+        dalContext.setSlaveDsKey(this.slaveDsKey);
+        if (this.dalInfo != null) {
+            dalContext.setDalInfo(this.dalInfo.copy());
+        }
+        dalContext.paramMap.putAll(this.paramMap);
+        return dalContext;
+    }
+
+    /**
+     * 根据当前线程中 {@link DALStatus} 的设置创建context，用于把当前线程的分区信息带入其他线程
+     *
+     * @return 新的context
+     */
+    public static DALContext createFromDALStatus() {
+        DALContext dalContext = new DALContext();
+        if (DALStatus.isEnableSlave()) {
+            dalContext.setEnableSlave(true);
+            dalContext.setSlaveDsKey(DALStatus.getSlaveDsKey());
+        }
+        DALInfo dalInfo = DALStatus.getDalInfo();
+        if (dalInfo != null) {
+            dalContext.setDalInfo(dalInfo.copy());
+        }
+        Map<String, Object> map = DALStatus.getParamMap();
+        if (map != null) {
+            dalContext.paramMap.putAll(map);
+        }
+        return dalContext;
+    }
+
 }
@@ -1,7 +1,9 @@
 package halo.query.dal;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeSet;
 
 /**
  * 用户自定义数据源与表信息
@@ -25,6 +27,16 @@ public class DALInfo {
      */
     private boolean specify;
 
+    /**
+     * 迁移模式下新路由的数据源key，null表示不在迁移模式
+     */
+    private String migrateDsKey;
+
+    /**
+     * 迁移模式下对象类型名称与新路由表名称的对应
+     */
+    private Map<String, String> migrateTableMap;
+
     /**
      * 创建一个对象，并设置为手动指定分区模式
      *
@@ -102,4 +114,187 @@ public class DALInfo {
     public String getRealTable(Class<?> cls) {
         return tableMap.get(cls.getName());
     }
+
+    /**
+     * 复制当前分区信息，跨线程使用时避免多个线程修改同一个对象
+     *
+     * @return 新的分区信息
+     */
+    public DALInfo copy() {
+        DALInfo dalInfo = new DALInfo();
+        dalInfo.tableMap.putAll(this.tableMap);
+        dalInfo.setDsKey(this.dsKey);
+        dalInfo.setSpecify(this.specify);
+        dalInfo.migrateDsKey = this.migrateDsKey;
+        if (this.migrateTableMap != null) {
+            dalInfo.migrateTableMap = new HashMap<>(this.migrateTableMap);
+        }
+        return dalInfo;
+    }
+
+    /**
+     * 是否处于迁移模式
+     *
+     * @return true:有新的路由
+     */
+    public boolean isMigrating() {
+        return this.migrateDsKey != null;
+    }
+
+    public String getMigrateDsKey() {
+        return migrateDsKey;
+    }
+
+    public void setMigrateDsKey(String migrateDsKey) {
+        this.migrateDsKey = migrateDsKey;
+    }
+
+    /**
+     * 设置迁移模式下逻辑表与新路由真实表的映射
+     *
+     * @param cls           对象类型
+     * @param realTableName 新路由的表名称
+     */
+    public void setMigrateRealTable(Class<?> cls, String realTableName) {
+        if (this.migrateTableMap == null) {
+            this.migrateTableMap = new HashMap<>();
+        }
+        this.migrateTableMap.put(cls.getName(), realTableName);
+    }
+
+    /**
+     * 获得迁移模式下新路由的真实表名
+     *
+     * @param cls 对象类型
+     * @return 新路由的表名称
+     */
+    public String getMigrateRealTable(Class<?> cls) {
+        if (this.migrateTableMap == null) {
+            return null;
+        }
+        return this.migrateTableMap.get(cls.getName());
+    }
+
+    /**
+     * 获得所有真实表名，按名称排序
+     *
+     * @return 真实表名集合
+     */
+    Collection<String> getRealTableNames() {
+        return new TreeSet<>(this.tableMap.values());
+    }
+
+    /**
+     * 创建新路由的分区信息，手动指定方式，不会再次进行解析
+     *
+     * @return 新路由的分区信息
+     */
+    public DALInfo createMigrateDALInfo() {
+        DALInfo dalInfo = createForManual();
+        dalInfo.setDsKey(this.migrateDsKey);
+        if (this.migrateTableMap != null) {
+            dalInfo.tableMap.putAll(this.migrateTableMap);
+        }
+        return dalInfo;
+    }
+
+    /**
+     * 把当前路由的sql转换为新路由的sql，替换sql中作为表名称出现的真实表名称。
+     * 字符串常量中的内容、"."之后的字段名称以及 as 之后的别名不替换
+     *
+     * @param sql 当前路由的sql
+     * @return 新路由的sql
+     */
+    public String toMigrateSql(String sql) {
+        if (this.migrateTableMap == null) {
+            return sql;
+        }
+        String migrateSql = sql;
+        for (Map.Entry<String, String> e : this.migrateTableMap.entrySet()) {
+            String realTableName = this.tableMap.get(e.getKey());
+            if (realTableName == null || e.getValue() == null || realTableName.equals(e.getValue())) {
+                continue;
+            }
+            migrateSql = replaceTableName(migrateSql, realTableName, e.getValue());
+        }
+        return migrateSql;
+    }
+
+    private static String replaceTableName(String sql, String tableName, String migrateTableName) {
+        int len = sql.length();
+        StringBuilder sb = new StringBuilder(len + 16);
+        // 前一个不是空白的字符，以及紧邻的前一个单词
+        char prevChar = 0;
+        String prevWord = null;
+        int i = 0;
+        while (i < len) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"') {
+                int end = skipQuoted(sql, i, c);
+                sb.append(sql, i, end);
+                prevChar = c;
+                prevWord = null;
+                i = end;
+                continue;
+            }
+            if (c == '`' || isIdentifierChar(c)) {
+                int end;
+                String word;
+                if (c == '`') {
+                    end = skipQuoted(sql, i, c);
+                    word = sql.substring(i + 1, Math.max(i + 1, end - 1));
+                } else {
+                    end = i + 1;
+                    while (end < len && isIdentifierChar(sql.charAt(end))) {
+                        end++;
+                    }
+                    word = sql.substring(i, end);
+                }
+                if (word.equals(tableName) && prevChar != '.' && !"as".equalsIgnoreCase(prevWord)) {
+                    sb.append(c == '`' ? "`" + migrateTableName + "`" : migrateTableName);
+                } else {
+                    sb.append(sql, i, end);
+                }
+                prevChar = sql.charAt(end - 1);
+                prevWord = word;
+                i = end;
+                continue;
+            }
+            sb.append(c);
+            if (!Character.isWhitespace(c)) {
+                prevChar = c;
+                prevWord = null;
+            }
+            i++;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return 引号结束之后的位置，没有结束的引号时为sql的长度
+     */
+    private static int skipQuoted(String sql, int begin, char quote) {
+        int i = begin + 1;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '\\' && quote != '`') {
+                i += 2;
+                continue;
+            }
+            if (c == quote) {
+                // 连续两个引号表示引号本身
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return sql.length();
+    }
+
+    private static boolean isIdentifierChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
 }
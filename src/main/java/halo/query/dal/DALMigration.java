@@ -0,0 +1,383 @@
+package halo.query.dal;
+
+import halo.query.annotation.Table;
+import halo.query.mapping.EntityTableInfo;
+import halo.query.mapping.EntityTableInfoFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 数据迁移(例如分表数量扩容)期间的双写与对比读取。{@link DALParser} 在 {@link ParsedInfo} 中同时返回旧路由与新路由时，
+ * 写操作在旧路由执行成功后，使用相同参数在新路由后台执行一次；读操作仍然使用旧路由，按照 shadowReadRate 的比例在新路由执行相同查询并对比结果。<br>
+ * 新路由的执行失败、结果不一致只记录日志与统计，不会影响旧路由的读写。<br>
+ * 同一个新路由数据源与表的写操作在同一个线程中按照提交顺序执行；在事务中的写操作在事务提交成功后再提交执行，事务回滚时丢弃
+ *
+ * @author akwei
+ */
+public class DALMigration implements InitializingBean {
+
+    private static final Log log = LogFactory.getLog(DALMigration.class);
+
+    private static DALMigration instance = new DALMigration();
+
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    /**
+     * 对比读取的比例，0-1之间，0表示不进行对比读取
+     */
+    private double shadowReadRate;
+
+    /**
+     * 执行新路由写操作的线程数量，每个线程有自己的队列，保证同一个表的写操作顺序
+     */
+    private int writeThreads = 4;
+
+    /**
+     * 对比读取的线程数量
+     */
+    private int readThreads = 2;
+
+    /**
+     * 每个线程的队列长度。写队列满时放弃本次写操作并记录为失败(blockOnFullQueue=true 时调用线程等待)，读队列满时放弃本次对比读取
+     */
+    private int queueSize = 10000;
+
+    /**
+     * 写队列满时调用线程是否等待队列空间。默认不等待，新路由的写入速度不会拖慢旧路由的写操作
+     */
+    private boolean blockOnFullQueue;
+
+    private volatile ExecutorService[] writeExecutorServices;
+
+    private volatile ExecutorService readExecutorService;
+
+    private final LongAdder dualWriteCount = new LongAdder();
+
+    private final LongAdder dualWriteFailCount = new LongAdder();
+
+    private final LongAdder dualWriteSkipCount = new LongAdder();
+
+    private final LongAdder shadowReadCount = new LongAdder();
+
+    private final LongAdder shadowReadFailCount = new LongAdder();
+
+    private final LongAdder shadowReadMismatchCount = new LongAdder();
+
+    private final LongAdder shadowReadSkipCount = new LongAdder();
+
+    public static DALMigration getInstance() {
+        return instance;
+    }
+
+    public double getShadowReadRate() {
+        return shadowReadRate;
+    }
+
+    public void setShadowReadRate(double shadowReadRate) {
+        this.shadowReadRate = shadowReadRate;
+    }
+
+    public int getWriteThreads() {
+        return writeThreads;
+    }
+
+    public void setWriteThreads(int writeThreads) {
+        this.writeThreads = writeThreads;
+    }
+
+    public int getReadThreads() {
+        return readThreads;
+    }
+
+    public void setReadThreads(int readThreads) {
+        this.readThreads = readThreads;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public boolean isBlockOnFullQueue() {
+        return blockOnFullQueue;
+    }
+
+    public void setBlockOnFullQueue(boolean blockOnFullQueue) {
+        this.blockOnFullQueue = blockOnFullQueue;
+    }
+
+    public long getDualWriteCount() {
+        return dualWriteCount.sum();
+    }
+
+    public long getDualWriteFailCount() {
+        return dualWriteFailCount.sum();
+    }
+
+    /**
+     * 不能在新路由重复执行的写操作数量，例如需要返回自增id的insert
+     *
+     * @return 数量
+     */
+    public long getDualWriteSkipCount() {
+        return dualWriteSkipCount.sum();
+    }
+
+    public long getShadowReadCount() {
+        return shadowReadCount.sum();
+    }
+
+    public long getShadowReadFailCount() {
+        return shadowReadFailCount.sum();
+    }
+
+    public long getShadowReadMismatchCount() {
+        return shadowReadMismatchCount.sum();
+    }
+
+    public long getShadowReadSkipCount() {
+        return shadowReadSkipCount.sum();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        instance = this;
+    }
+
+    public void destory() {
+        ExecutorService[] executorServices = this.writeExecutorServices;
+        if (executorServices != null) {
+            for (ExecutorService executorService : executorServices) {
+                executorService.shutdown();
+            }
+        }
+        if (this.readExecutorService != null) {
+            this.readExecutorService.shutdown();
+        }
+    }
+
+    private synchronized void initExecutorServices() {
+        if (this.writeExecutorServices != null) {
+            return;
+        }
+        ExecutorService[] executorServices = new ExecutorService[this.writeThreads];
+        for (int i = 0; i < executorServices.length; i++) {
+            // 队列满时默认丢弃写操作并记录为失败，不会在调用线程(可能仍然绑定着事务连接)中执行
+            executorServices[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>(this.queueSize), this::newThread, (r, executor) -> {
+                if (executor.isShutdown()) {
+                    this.dualWriteFailCount.increment();
+                    log.error("migrate write rejected, executor was shutdown");
+                    return;
+                }
+                if (!this.blockOnFullQueue) {
+                    this.dualWriteFailCount.increment();
+                    log.error("migrate write dropped, queue is full");
+                    return;
+                }
+                try {
+                    executor.getQueue().put(r);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    this.dualWriteFailCount.increment();
+                    log.error("migrate write interrupted", e);
+                }
+            });
+        }
+        this.readExecutorService = new ThreadPoolExecutor(this.readThreads, this.readThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(this.queueSize), this::newThread, (r, executor) -> this.shadowReadSkipCount.increment());
+        this.writeExecutorServices = executorServices;
+    }
+
+    private Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "DALMigration-thread-" + threadNumber.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    }
+
+    private ExecutorService getWriteExecutorService(DALInfo migrateDalInfo) {
+        if (this.writeExecutorServices == null) {
+            this.initExecutorServices();
+        }
+        ExecutorService[] executorServices = this.writeExecutorServices;
+        int hash = (migrateDalInfo.getDsKey() + migrateDalInfo.getRealTableNames()).hashCode();
+        return executorServices[(hash & Integer.MAX_VALUE) % executorServices.length];
+    }
+
+    private ExecutorService getReadExecutorService() {
+        if (this.writeExecutorServices == null) {
+            this.initExecutorServices();
+        }
+        return this.readExecutorService;
+    }
+
+    /**
+     * 记录不能在新路由执行的写操作
+     *
+     * @param sql 旧路由执行的sql
+     */
+    public void skipWrite(String sql) {
+        this.dualWriteSkipCount.increment();
+        if (log.isDebugEnabled()) {
+            log.debug("migrate write skipped [ " + sql + " ]");
+        }
+    }
+
+    /**
+     * 旧路由写操作成功后，在新路由执行写操作。当前处于事务中时，事务提交成功后再执行
+     *
+     * @param dalInfo    旧路由执行时的分区信息
+     * @param migrateSql 新路由执行的sql
+     * @param action     写操作，执行时当前线程的分区信息为新路由
+     */
+    public void write(DALInfo dalInfo, final String migrateSql, final Callable<?> action) {
+        final DALInfo migrateDalInfo = dalInfo.createMigrateDALInfo();
+        final Runnable task = () -> {
+            DALContext dalContext = DALContext.create();
+            dalContext.setDalInfo(migrateDalInfo);
+            try {
+                DALStatus.call(dalContext, action);
+                this.dualWriteCount.increment();
+            } catch (Exception e) {
+                this.dualWriteFailCount.increment();
+                log.error("migrate write failed dsKey [ " + migrateDalInfo.getDsKey() + " ] sql [ " + migrateSql + " ]", e);
+            }
+        };
+        final ExecutorService executorService = this.getWriteExecutorService(migrateDalInfo);
+        DALConnection dalConnection = DALStatus.getCurrentDALConnection();
+        try {
+            if (dalConnection != null && !dalConnection.getAutoCommit()) {
+                dalConnection.addAfterCommitTask(() -> executorService.execute(task));
+                return;
+            }
+        } catch (SQLException e) {
+            this.dualWriteFailCount.increment();
+            log.error("migrate write failed dsKey [ " + migrateDalInfo.getDsKey() + " ] sql [ " + migrateSql + " ]", e);
+            return;
+        }
+        executorService.execute(task);
+    }
+
+    /**
+     * 是否对本次读操作进行对比读取
+     *
+     * @return true:需要对比读取
+     */
+    public boolean sampleShadowRead() {
+        double rate = this.shadowReadRate;
+        return rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    /**
+     * 在新路由执行相同的查询，与旧路由的结果进行对比
+     *
+     * @param dalInfo    旧路由执行时的分区信息
+     * @param migrateSql 新路由执行的sql
+     * @param result     旧路由的查询结果
+     * @param action     读操作，执行时当前线程的分区信息为新路由
+     */
+    public void shadowRead(DALInfo dalInfo, final String migrateSql, final Object result, final Callable<?> action) {
+        final DALInfo migrateDalInfo = dalInfo.createMigrateDALInfo();
+        this.getReadExecutorService().execute(() -> {
+            DALContext dalContext = DALContext.create();
+            dalContext.setDalInfo(migrateDalInfo);
+            Object migrateResult;
+            try {
+                migrateResult = DALStatus.call(dalContext, action);
+            } catch (Exception e) {
+                this.shadowReadFailCount.increment();
+                log.error("migrate shadow read failed dsKey [ " + migrateDalInfo.getDsKey() + " ] sql [ " + migrateSql + " ]", e);
+                return;
+            }
+            boolean same;
+            try {
+                same = isSame(result, migrateResult);
+            } catch (RuntimeException e) {
+                // 无法对比的结果按照不一致处理
+                same = false;
+                log.error("migrate shadow read compare failed dsKey [ " + migrateDalInfo.getDsKey() + " ] sql [ " + migrateSql + " ]", e);
+            }
+            // 先记录不一致再记录完成数量，读取统计时不一致数量不会晚于完成数量
+            if (!same) {
+                this.shadowReadMismatchCount.increment();
+                log.warn("migrate shadow read mismatch dsKey [ " + migrateDalInfo.getDsKey() + " ] sql [ " + migrateSql + " ]");
+            }
+            this.shadowReadCount.increment();
+        });
+    }
+
+    /**
+     * 对比新旧路由的查询结果。集合按照顺序逐个对比，实体对象对比所有与数据库对应的field，数字按照数值对比，NaN与Infinity只与相同的值一致
+     *
+     * @param a 旧路由结果
+     * @param b 新路由结果
+     * @return true:结果相同
+     */
+    static boolean isSame(Object a, Object b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        if (a instanceof Number && b instanceof Number) {
+            return isSameNumber((Number) a, (Number) b);
+        }
+        if (a instanceof List && b instanceof List) {
+            List<?> la = (List<?>) a;
+            List<?> lb = (List<?>) b;
+            if (la.size() != lb.size()) {
+                return false;
+            }
+            for (int i = 0; i < la.size(); i++) {
+                if (!isSame(la.get(i), lb.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof byte[] && b instanceof byte[]) {
+            return Arrays.equals((byte[]) a, (byte[]) b);
+        }
+        if (a.getClass().equals(b.getClass()) && a.getClass().isAnnotationPresent(Table.class)) {
+            EntityTableInfo<?> entityTableInfo = EntityTableInfoFactory.getEntityTableInfo(a.getClass());
+            for (Field field : entityTableInfo.getTableFields()) {
+                if (!isSame(entityTableInfo.getFieldValue(a, field), entityTableInfo.getFieldValue(b, field))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return a.equals(b);
+    }
+
+    private static boolean isSameNumber(Number a, Number b) {
+        if (isFloating(a) || isFloating(b)) {
+            double da = a.doubleValue();
+            double db = b.doubleValue();
+            if (Double.compare(da, db) == 0) {
+                return true;
+            }
+            // NaN与Infinity无法转换为BigDecimal
+            if (Double.isNaN(da) || Double.isInfinite(da) || Double.isNaN(db) || Double.isInfinite(db)) {
+                return false;
+            }
+        }
+        return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString())) == 0;
+    }
+
+    private static boolean isFloating(Number n) {
+        return n instanceof Double || n instanceof Float;
+    }
+}
@@ -1,8 +1,11 @@
 package halo.query.dal;
 
+import halo.query.dal.parser.ShardDALParser;
 import halo.query.mapping.EntityTableInfo;
 import halo.query.mapping.EntityTableInfoFactory;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -30,11 +33,39 @@ public class DALParserUtil {
                 dalInfo = new DALInfo();
                 dalInfo.setRealTable(clazz, parsedInfo.getRealTableName());
                 dalInfo.setDsKey(parsedInfo.getDsKey());
+                ParsedInfo migrateParsedInfo = parsedInfo.getMigrateParsedInfo();
+                if (migrateParsedInfo != null) {
+                    dalInfo.setMigrateDsKey(migrateParsedInfo.getDsKey());
+                    dalInfo.setMigrateRealTable(clazz, migrateParsedInfo.getRealTableName());
+                }
                 DALStatus.setDalInfo(dalInfo);
             }
         }
     }
 
+    /**
+     * 获得对象所有分区的信息，对象的解析器必须是 {@link ShardDALParser}
+     *
+     * @param clazz 对象class
+     * @return 每个分区一个手动指定方式的分区信息
+     */
+    public static List<DALInfo> getAllDALInfos(Class<?> clazz) {
+        EntityTableInfo<?> entityTableInfo = EntityTableInfoFactory.getEntityTableInfo(clazz);
+        if (!(entityTableInfo.getDalParser() instanceof ShardDALParser)) {
+            throw new DALRunTimeException("dalParser of [ " + clazz.getName() + " ] must be " + ShardDALParser.class.getName());
+        }
+        ShardDALParser parser = (ShardDALParser) entityTableInfo.getDalParser();
+        List<DALInfo> list = new ArrayList<>(parser.getShardCount());
+        for (int i = 0; i < parser.getShardCount(); i++) {
+            ParsedInfo parsedInfo = parser.getShard(i);
+            DALInfo dalInfo = DALInfo.createForManual();
+            dalInfo.setDsKey(parsedInfo.getDsKey());
+            dalInfo.setRealTable(clazz, parsedInfo.getRealTableName());
+            list.add(dalInfo);
+        }
+        return list;
+    }
+
     /**
      * 手动设置数据在分区中的位置
      *
@@ -0,0 +1,125 @@
+package halo.query.dal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 一个线程中的分区状态，包括分区解析参数、slave设置、分区信息以及当前的DALConnection。<br>
+ * 所有状态保存在同一个对象中，线程中只需要保存一个对象，状态为空时从线程中移除，
+ * 大量使用线程(例如virtual thread)时不会为每个线程保留多份状态
+ */
+public class DALState {
+
+    private Map<String, Object> paramMap;
+
+    private boolean slaveMode;
+
+    private String slaveDsKey;
+
+    private DALInfo dalInfo;
+
+    private DALConnection dalConnection;
+
+    /**
+     * 全局使用slave模式,需要调用主动清除
+     */
+    private boolean globalSlave;
+
+    DALState() {
+    }
+
+    /**
+     * 根据context创建状态
+     *
+     * @param dalContext 分区context，可以为null
+     * @return 状态
+     */
+    static DALState create(DALContext dalContext) {
+        DALState state = new DALState();
+        if (dalContext == null) {
+            return state;
+        }
+        if (dalContext.isEnableSlave()) {
+            state.slaveMode = true;
+            state.slaveDsKey = dalContext.getSlaveDsKey();
+        }
+        if (!dalContext.isParamMapEmpty()) {
+            state.paramMap = new HashMap<>(dalContext.getParamMap());
+        }
+        if (dalContext.getDalInfo() != null) {
+            state.dalInfo = dalContext.getDalInfo().copy();
+        }
+        return state;
+    }
+
+    Map<String, Object> getParamMap() {
+        return paramMap;
+    }
+
+    Map<String, Object> getOrCreateParamMap() {
+        if (this.paramMap == null) {
+            this.paramMap = new HashMap<>();
+        }
+        return this.paramMap;
+    }
+
+    boolean isSlaveMode() {
+        return slaveMode;
+    }
+
+    void setSlaveMode(boolean slaveMode) {
+        this.slaveMode = slaveMode;
+    }
+
+    String getSlaveDsKey() {
+        return slaveDsKey;
+    }
+
+    void setSlaveDsKey(String slaveDsKey) {
+        this.slaveDsKey = slaveDsKey;
+    }
+
+    DALInfo getDalInfo() {
+        return dalInfo;
+    }
+
+    void setDalInfo(DALInfo dalInfo) {
+        this.dalInfo = dalInfo;
+    }
+
+    DALConnection getDalConnection() {
+        return dalConnection;
+    }
+
+    void setDalConnection(DALConnection dalConnection) {
+        this.dalConnection = dalConnection;
+    }
+
+    boolean isGlobalSlave() {
+        return globalSlave;
+    }
+
+    void setGlobalSlave(boolean globalSlave) {
+        this.globalSlave = globalSlave;
+    }
+
+    /**
+     * 清除分区路由相关的状态，不包括DALConnection与全局slave设置
+     */
+    void clearRouting() {
+        this.paramMap = null;
+        this.slaveMode = false;
+        this.slaveDsKey = null;
+        this.dalInfo = null;
+    }
+
+    /**
+     * 是否没有任何状态
+     *
+     * @return true:没有状态，可以从线程中移除
+     */
+    boolean isEmpty() {
+        return this.paramMap == null && !this.slaveMode && this.slaveDsKey == null && this.dalInfo == null
+                && this.dalConnection == null && !this.globalSlave;
+    }
+}
@@ -1,7 +1,7 @@
 package halo.query.dal;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * 此类操作当前状态，包括数据源key，用户自定义信息
@@ -10,22 +10,64 @@ import java.util.Map;
  */
 public class DALStatus {
 
-    private static final ThreadLocal<Map<String, Object>> dalParserParametersTL = new ThreadLocal<>();
-
-    private static final ThreadLocal<Boolean> mslbStatusThreadLocal = new ThreadLocal<>();
+    /**
+     * 线程中所有的分区状态保存在同一个对象中，没有状态时从线程中移除
+     */
+    private static final ThreadLocal<DALState> stateTL = new ThreadLocal<>();
 
-    private static final ThreadLocal<DALInfo> dalInfoTL = new ThreadLocal<>();
+    private DALStatus() {
+    }
 
-    private static final ThreadLocal<String> msDsKeyTL = new ThreadLocal<>();
+    private static DALState getState() {
+        return stateTL.get();
+    }
 
-    private static final ThreadLocal<DALConnection> currentDALConTL = new ThreadLocal<>();
+    private static DALState getOrCreateState() {
+        DALState state = stateTL.get();
+        if (state == null) {
+            state = new DALState();
+            stateTL.set(state);
+        }
+        return state;
+    }
 
     /**
-     * 全局使用slave模式,需要调用主动清除
+     * 状态为空时，从线程中移除，避免在大量线程中残留
+     *
+     * @param state 当前状态
      */
-    private static final ThreadLocal<Boolean> globalSlaveTL = new ThreadLocal<>();
+    private static void removeIfEmpty(DALState state) {
+        if (state != null && state.isEmpty()) {
+            stateTL.remove();
+        }
+    }
 
-    private DALStatus() {
+    /**
+     * 使用dalContext作为当前线程的分区状态执行操作，执行结束后恢复线程原有的状态。
+     * 状态只在执行期间存在，不会残留在线程中，适合在大量线程(例如virtual thread)中使用
+     *
+     * @param dalContext 分区context，可以为null
+     * @param callable   需要执行的操作
+     * @param <R>        返回值泛型
+     * @return 操作的返回值
+     * @throws Exception 操作抛出的异常
+     */
+    public static <R> R call(DALContext dalContext, Callable<R> callable) throws Exception {
+        DALState prev = stateTL.get();
+        DALState state = DALState.create(dalContext);
+        if (prev != null) {
+            state.setGlobalSlave(prev.isGlobalSlave());
+        }
+        stateTL.set(state);
+        try {
+            return callable.call();
+        } finally {
+            if (prev == null) {
+                stateTL.remove();
+            } else {
+                stateTL.set(prev);
+            }
+        }
     }
 
     /**
@@ -34,7 +76,8 @@ public class DALStatus {
      * @return true:存在
      */
     public static boolean hasDALParam() {
-        return dalParserParametersTL.get() != null;
+        DALState state = getState();
+        return state != null && state.getParamMap() != null;
     }
 
     /**
@@ -43,7 +86,8 @@ public class DALStatus {
      * @return true:存在
      */
     public static boolean hasDALInfo() {
-        return dalInfoTL.get() != null;
+        DALState state = getState();
+        return state != null && state.getDalInfo() != null;
     }
 
     /**
@@ -52,7 +96,8 @@ public class DALStatus {
      * @return true:存在
      */
     public static boolean hasMsDsKey() {
-        return msDsKeyTL.get() != null;
+        DALState state = getState();
+        return state != null && state.getSlaveDsKey() != null;
     }
 
     /**
@@ -61,7 +106,8 @@ public class DALStatus {
      * @return true:存在
      */
     public static boolean hasCurrentDALCon() {
-        return currentDALConTL.get() != null;
+        DALState state = getState();
+        return state != null && state.getDalConnection() != null;
     }
 
     /**
@@ -70,7 +116,8 @@ public class DALStatus {
      * @return true:存在
      */
     public static boolean hasGlobalSlave() {
-        return globalSlaveTL.get() != null;
+        DALState state = getState();
+        return state != null && state.isGlobalSlave();
     }
 
     /**
@@ -79,7 +126,8 @@ public class DALStatus {
      * @return true:存在
      */
     public static boolean hasMslbStatus() {
-        return mslbStatusThreadLocal.get() != null;
+        DALState state = getState();
+        return state != null && state.isSlaveMode();
     }
 
     public static String getDsKey() {
@@ -106,7 +154,7 @@ public class DALStatus {
      * 设置全局启用slave模式,此设置不会跟随Connection关闭而释放,需要手动释放
      */
     public static void setGlobalSlaveMode() {
-        globalSlaveTL.set(true);
+        getOrCreateState().setGlobalSlave(true);
     }
 
     /**
@@ -115,60 +163,67 @@ public class DALStatus {
      * @return true:开启了全局slave,所有查询可以走slave数据源
      */
     public static boolean isEnableGlobalSlaveMode() {
-        Boolean bool = globalSlaveTL.get();
-        if (bool == null) {
-            return false;
-        }
-        return bool;
+        DALState state = getState();
+        return state != null && state.isGlobalSlave();
     }
 
     public static void clearGlobalSlaveMode() {
-        globalSlaveTL.remove();
+        DALState state = getState();
+        if (state != null) {
+            state.setGlobalSlave(false);
+            removeIfEmpty(state);
+        }
     }
 
     public static void setSlaveDsKey(String dsKey) {
-        msDsKeyTL.set(dsKey);
+        if (dsKey == null) {
+            DALState state = getState();
+            if (state != null) {
+                state.setSlaveDsKey(null);
+                removeIfEmpty(state);
+            }
+            return;
+        }
+        getOrCreateState().setSlaveDsKey(dsKey);
     }
 
     public static String getSlaveDsKey() {
-        return msDsKeyTL.get();
-    }
-
-    private static void setParamMap(Map<String, Object> map) {
-        dalParserParametersTL.set(map);
+        DALState state = getState();
+        if (state == null) {
+            return null;
+        }
+        return state.getSlaveDsKey();
     }
 
     public static void addParam(String key, Object value) {
-        Map<String, Object> map = dalParserParametersTL.get();
-        if (map == null) {
-            map = new HashMap<>();
-            dalParserParametersTL.set(map);
-        }
-        map.put(key, value);
+        getOrCreateState().getOrCreateParamMap().put(key, value);
     }
 
     public static void addParamMap(Map<String, Object> paramMap) {
-        Map<String, Object> map = dalParserParametersTL.get();
-        if (map == null) {
-            map = new HashMap<>();
-            dalParserParametersTL.set(map);
-        }
-        map.putAll(paramMap);
+        getOrCreateState().getOrCreateParamMap().putAll(paramMap);
     }
 
     public static Map<String, Object> getParamMap() {
-        return dalParserParametersTL.get();
+        DALState state = getState();
+        if (state == null) {
+            return null;
+        }
+        return state.getParamMap();
     }
 
     /**
      * 设置开启slave模式
      */
     public static void setSlaveMode() {
-        mslbStatusThreadLocal.set(true);
+        getOrCreateState().setSlaveMode(true);
     }
 
     public static void clearSlaveMode() {
-        mslbStatusThreadLocal.remove();
+        DALState state = getState();
+        if (state != null) {
+            state.setSlaveMode(false);
+            removeIfEmpty(state);
+        }
     }
 
     /**
@@ -189,42 +244,64 @@ public class DALStatus {
      * @return true:支持slave
      */
     public static boolean isEnableSlave() {
-        Boolean bool = isEnableGlobalSlaveMode();
-        if (bool) {
-            return true;
-        }
-        bool = mslbStatusThreadLocal.get();
-        if (bool == null) {
-            return false;
-        }
-        return bool;
+        DALState state = getState();
+        return state != null && (state.isGlobalSlave() || state.isSlaveMode());
     }
 
     public static void setDalInfo(DALInfo dalInfo) {
-        dalInfoTL.set(dalInfo);
+        if (dalInfo == null) {
+            DALState state = getState();
+            if (state != null) {
+                state.setDalInfo(null);
+                removeIfEmpty(state);
+            }
+            return;
+        }
+        getOrCreateState().setDalInfo(dalInfo);
     }
 
     public static DALInfo getDalInfo() {
-        return dalInfoTL.get();
+        DALState state = getState();
+        if (state == null) {
+            return null;
+        }
+        return state.getDalInfo();
     }
 
     public static DALConnection getCurrentDALConnection() {
-        return currentDALConTL.get();
+        DALState state = getState();
+        if (state == null) {
+            return null;
+        }
+        return state.getDalConnection();
     }
 
     static void setCurrentDALConnection(DALConnection dalConnection) {
-        currentDALConTL.set(dalConnection);
+        getOrCreateState().setDalConnection(dalConnection);
     }
 
     public static void removeCurrentDALConnection() {
-        currentDALConTL.remove();
+        DALState state = getState();
+        if (state != null) {
+            state.setDalConnection(null);
+            removeIfEmpty(state);
+        }
     }
 
     public static void remove() {
-        dalParserParametersTL.remove();
-        mslbStatusThreadLocal.remove();
-        msDsKeyTL.remove();
-        dalInfoTL.remove();
+        DALState state = getState();
+        if (state != null) {
+            state.clearRouting();
+            removeIfEmpty(state);
+        }
+    }
+
+    /**
+     * 清除当前线程中所有的状态，包括DALConnection与全局slave设置。
+     * 线程池中的线程在任务结束时可以调用，避免状态残留到下一个任务
+     */
+    public static void clear() {
+        stateTL.remove();
     }
 
     /**
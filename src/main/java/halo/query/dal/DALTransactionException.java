@@ -0,0 +1,53 @@
+package halo.query.dal;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * DALConnection commit、rollback、close时，真实连接操作失败抛出的异常，包含每个dsKey对应的异常
+ */
+public class DALTransactionException extends SQLException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, SQLException> failures;
+
+    /**
+     * @param action   执行的操作 commit、rollback、close
+     * @param failures dsKey与异常的对应，不能为空
+     */
+    public DALTransactionException(String action, Map<String, SQLException> failures) {
+        super(buildMessage(action, failures), firstOf(failures).getSQLState(), firstOf(failures).getErrorCode(), firstOf(failures));
+        this.failures = Collections.unmodifiableMap(failures);
+        boolean first = true;
+        for (SQLException e : failures.values()) {
+            if (first) {
+                first = false;
+                continue;
+            }
+            this.addSuppressed(e);
+        }
+    }
+
+    /**
+     * 获得失败的dsKey与异常
+     *
+     * @return dsKey与异常的对应
+     */
+    public Map<String, SQLException> getFailures() {
+        return failures;
+    }
+
+    private static SQLException firstOf(Map<String, SQLException> failures) {
+        return failures.values().iterator().next();
+    }
+
+    private static String buildMessage(String action, Map<String, SQLException> failures) {
+        StringBuilder sb = new StringBuilder(action).append(" failed for dsKey");
+        for (Map.Entry<String, SQLException> e : failures.entrySet()) {
+            sb.append(" [").append(e.getKey()).append("]:").append(e.getValue().getMessage());
+        }
+        return sb.toString();
+    }
+}
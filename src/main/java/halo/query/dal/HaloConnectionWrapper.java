@@ -15,6 +15,17 @@ public class HaloConnectionWrapper implements Connection {
 
     private HaloDataSourceWrapper dataSourceWrapper;
 
+    /**
+     * 真实连接当前的状态，null表示未知。状态相同时不再调用真实连接，避免没有必要的网络交互
+     */
+    private Boolean autoCommit;
+
+    private Boolean readOnly;
+
+    private Integer transactionIsolation;
+
+    private boolean closed;
+
     public HaloConnectionWrapper(Connection con, HaloDataSourceWrapper dataSourceWrapper) {
         this.con = con;
         this.dataSourceWrapper = dataSourceWrapper;
@@ -42,12 +53,19 @@ public class HaloConnectionWrapper implements Connection {
 
     @Override
     public void setAutoCommit(boolean autoCommit) throws SQLException {
+        if (this.getAutoCommit() == autoCommit) {
+            return;
+        }
         this.con.setAutoCommit(autoCommit);
+        this.autoCommit = autoCommit;
     }
 
     @Override
     public boolean getAutoCommit() throws SQLException {
-        return this.con.getAutoCommit();
+        if (this.autoCommit == null) {
+            this.autoCommit = this.con.getAutoCommit();
+        }
+        return this.autoCommit;
     }
 
     @Override
@@ -62,8 +80,15 @@ public class HaloConnectionWrapper implements Connection {
 
     @Override
     public void close() throws SQLException {
-        this.con.close();
-//        this.dataSourceWrapper.decrCounter();
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.con.close();
+        } finally {
+            this.dataSourceWrapper.decrCounter();
+        }
     }
 
     @Override
@@ -78,12 +103,19 @@ public class HaloConnectionWrapper implements Connection {
 
     @Override
     public void setReadOnly(boolean readOnly) throws SQLException {
+        if (this.isReadOnly() == readOnly) {
+            return;
+        }
         this.con.setReadOnly(readOnly);
+        this.readOnly = readOnly;
     }
 
     @Override
     public boolean isReadOnly() throws SQLException {
-        return this.con.isReadOnly();
+        if (this.readOnly == null) {
+            this.readOnly = this.con.isReadOnly();
+        }
+        return this.readOnly;
     }
 
     @Override
@@ -98,12 +130,20 @@ public class HaloConnectionWrapper implements Connection {
 
     @Override
     public void setTransactionIsolation(int level) throws SQLException {
+        // 部分驱动获取事务隔离级别需要查询数据库，只记录设置过的值
+        if (this.transactionIsolation != null && this.transactionIsolation == level) {
+            return;
+        }
         this.con.setTransactionIsolation(level);
+        this.transactionIsolation = level;
     }
 
     @Override
     public int getTransactionIsolation() throws SQLException {
-        return this.con.getTransactionIsolation();
+        if (this.transactionIsolation == null) {
+            this.transactionIsolation = this.con.getTransactionIsolation();
+        }
+        return this.transactionIsolation;
     }
 
     @Override
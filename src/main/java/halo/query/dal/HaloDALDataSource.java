@@ -12,8 +12,8 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -29,22 +29,46 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
 
     private static HaloDALDataSource instance;
 
-//    private final AtomicInteger threadNumber = new AtomicInteger(1);
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
 
     /**
-     * 存储dsKey和数据源的对应
+     * 存储dsKey和数据源的对应以及master与slave的对应。修改时复制后整体替换，已经读取的路由不会变化。
+     * 所有修改路由的方法与重新加载配置使用当前对象作为锁
      */
-    private final Map<String, HaloDataSourceWrapper> dataSourceMap = new ConcurrentHashMap<>();
+    private volatile RoutingTable routingTable = new RoutingTable(new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
 
-    private final Map<String, List<String>> masterSlaveDsKeyMap = new ConcurrentHashMap<>();
+    private volatile String defaultDsKey;
 
-    private String defaultDsKey;
+    /**
+     * 删除数据源时，等待借出的连接归还的最长时间(秒)，超时后关闭连接池
+     */
+    private int drainTimeoutSeconds = 60;
+
+    private final Set<HaloDataSourceWrapper> drainingDataSources = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService drainExecutorService;
 
     private PrintWriter logWriter;
 
     private int loginTimeout = 0;
 
-//    private ExecutorService executorService;
+    /**
+     * 是否并行执行多个真实连接的commit、rollback、close，默认按顺序执行
+     */
+    private boolean parallelTransaction;
+
+    /**
+     * 并行执行commit、rollback、close的线程数量
+     */
+    private int transactionThreads = 10;
+
+    private ExecutorService transactionExecutorService;
+
+    /**
+     * autoCommit=true时，下一个sql使用其他dsKey时，是否立即归还已经使用过的真实连接。
+     * 开启后不能在使用其他dsKey时继续读取之前的ResultSet
+     */
+    private boolean autoCommitEarlyRelease;
 
     public static HaloDALDataSource getInstance() {
         return instance;
@@ -60,25 +84,97 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
         this.slaveSelectStrategy = slaveSelectStrategy;
     }
 
-    void addSlave2Master(String masterDsKey, String slaveDsKey) {
-        List<String> list = this.masterSlaveDsKeyMap.get(masterDsKey);
+    public boolean isParallelTransaction() {
+        return parallelTransaction;
+    }
+
+    public void setParallelTransaction(boolean parallelTransaction) {
+        this.parallelTransaction = parallelTransaction;
+    }
+
+    public int getTransactionThreads() {
+        return transactionThreads;
+    }
+
+    public void setTransactionThreads(int transactionThreads) {
+        this.transactionThreads = transactionThreads;
+    }
+
+    public boolean isAutoCommitEarlyRelease() {
+        return autoCommitEarlyRelease;
+    }
+
+    public void setAutoCommitEarlyRelease(boolean autoCommitEarlyRelease) {
+        this.autoCommitEarlyRelease = autoCommitEarlyRelease;
+    }
+
+    /**
+     * 获得并行执行commit、rollback、close的线程池
+     *
+     * @return null:没有开启并行
+     */
+    ExecutorService getTransactionExecutorService() {
+        return transactionExecutorService;
+    }
+
+    public int getDrainTimeoutSeconds() {
+        return drainTimeoutSeconds;
+    }
+
+    public void setDrainTimeoutSeconds(int drainTimeoutSeconds) {
+        this.drainTimeoutSeconds = drainTimeoutSeconds;
+    }
+
+    synchronized void addSlave2Master(String masterDsKey, String slaveDsKey) {
+        RoutingTable table = this.routingTable.copy();
+        List<String> list = table.masterSlaveDsKeyMap.get(masterDsKey);
         if (list == null) {
             list = new CopyOnWriteArrayList<>();
-            list.add(slaveDsKey);
-            this.masterSlaveDsKeyMap.put(masterDsKey, list);
-        } else {
-            list.add(slaveDsKey);
+            table.masterSlaveDsKeyMap.put(masterDsKey, list);
         }
+        list.add(slaveDsKey);
+        this.routingTable = table;
     }
 
-    boolean setSlaves2Master(String masterDsKey, List<String> slaveDsKeys) {
+    synchronized boolean setSlaves2Master(String masterDsKey, List<String> slaveDsKeys) {
         if (slaveDsKeys != null && slaveDsKeys.size() > 0) {
-            this.masterSlaveDsKeyMap.put(masterDsKey, new CopyOnWriteArrayList<>(slaveDsKeys));
+            RoutingTable table = this.routingTable.copy();
+            table.masterSlaveDsKeyMap.put(masterDsKey, new CopyOnWriteArrayList<>(slaveDsKeys));
+            this.routingTable = table;
             return true;
         }
         return false;
     }
 
+    /**
+     * 使用新的数据源与master slave对应替换当前的路由，替换后新获取的连接使用新的路由
+     *
+     * @param dataSourceMap       dsKey与数据源的对应
+     * @param masterSlaveDsKeyMap master与slave的对应
+     * @param defaultDsKey        默认数据源key
+     */
+    synchronized void replaceRouting(Map<String, HaloDataSourceWrapper> dataSourceMap, Map<String, List<String>> masterSlaveDsKeyMap, String defaultDsKey) {
+        Map<String, List<String>> msMap = new ConcurrentHashMap<>();
+        for (Map.Entry<String, List<String>> e : masterSlaveDsKeyMap.entrySet()) {
+            msMap.put(e.getKey(), new CopyOnWriteArrayList<>(e.getValue()));
+        }
+        String dsKey = defaultDsKey == null ? this.defaultDsKey : defaultDsKey;
+        if (dsKey != null && !dataSourceMap.containsKey(dsKey)) {
+            throw new IllegalArgumentException("default ds [" + dsKey + "] must be not empty");
+        }
+        this.routingTable = new RoutingTable(new ConcurrentHashMap<>(dataSourceMap), msMap);
+        this.defaultDsKey = dsKey;
+    }
+
+    /**
+     * 获得当前dsKey与数据源的对应
+     *
+     * @return 数据源对应的复制
+     */
+    Map<String, HaloDataSourceWrapper> getDataSourceMap() {
+        return new HashMap<>(this.routingTable.dataSourceMap);
+    }
+
     String getDefaultDsKey() {
         return defaultDsKey;
     }
@@ -89,13 +185,14 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
      * @return 数据源包装类
      */
     HaloDataSourceProxy getCurrentDataSourceProxy(boolean autoCommit) {
+        RoutingTable table = this.routingTable;
         String master = DALStatus.getDsKey();
         String slave = null;
         if (DALStatus.isEnableSlave()) {
             if (autoCommit) {
                 slave = DALStatus.getSlaveDsKey();
                 if (slave == null) {
-                    slave = this.getSlaveKey(master);
+                    slave = this.getSlaveKey(table, master);
                     if (slave != null) {
                         DALStatus.setSlaveDsKey(slave);
                     }
@@ -110,29 +207,30 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
         } else {
             name = slave;
         }
-        return this.getHaloDataSourceProxy(master, slave, name);
+        return this.getHaloDataSourceProxy(table, master, slave, name);
     }
 
     /**
      * 获取数据源。根据name获得的数据源，先检查是否是slave模式，如果是slave模式，就获取slave对应的数据源。再检查是否是引用数据源，如果是，就获取引用的数据源
      */
-    private HaloDataSourceProxy getHaloDataSourceProxy(String master, String slave, String name) {
-        HaloDataSourceWrapper haloDataSourceWrapper = this.dataSourceMap.get(name);
+    private HaloDataSourceProxy getHaloDataSourceProxy(RoutingTable table, String master, String slave, String name) {
+        HaloDataSourceWrapper haloDataSourceWrapper = table.dataSourceMap.get(name);
         if (haloDataSourceWrapper == null) {
             throw new DALRunTimeException("no datasource forKey [" + name + "]");
         }
         if (haloDataSourceWrapper.isSlaveMode()) {
-            String key = getSlaveKey(master);
-            return getHaloDataSourceProxy(master, slave, key);
+            String key = getSlaveKey(table, master);
+            return getHaloDataSourceProxy(table, master, slave, key);
         }
         if (!haloDataSourceWrapper.isRef()) {
             HaloDataSourceProxy proxy = new HaloDataSourceProxy();
             proxy.setDataSourceWrapper(haloDataSourceWrapper);
             proxy.setMaster(master);
             proxy.setSlave(slave);
+            proxy.setDb(haloDataSourceWrapper.getDb());
             return proxy;
         }
-        HaloDataSourceWrapper refhaloDataSourceWrapper = this.dataSourceMap.get(haloDataSourceWrapper.getRefDsKey());
+        HaloDataSourceWrapper refhaloDataSourceWrapper = table.dataSourceMap.get(haloDataSourceWrapper.getRefDsKey());
         if (refhaloDataSourceWrapper == null) {
             throw new DALRunTimeException("no datasource forKey [" + name + "]");
         }
@@ -147,8 +245,8 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
         return proxy;
     }
 
-    private String getSlaveKey(String master) {
-        List<String> slaveDsKeys = this.masterSlaveDsKeyMap.get(master);
+    private String getSlaveKey(RoutingTable table, String master) {
+        List<String> slaveDsKeys = table.masterSlaveDsKeyMap.get(master);
         List<String> copyList = null;
         if (slaveDsKeys != null) {
             copyList = new ArrayList<>(slaveDsKeys);
@@ -165,8 +263,10 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
         this.defaultDsKey = defaultDsKey;
     }
 
-    void addDataSource(HaloDataSourceWrapper haloDataSourceWrapper) {
-        this.dataSourceMap.put(haloDataSourceWrapper.getDsKey(), haloDataSourceWrapper);
+    synchronized void addDataSource(HaloDataSourceWrapper haloDataSourceWrapper) {
+        RoutingTable table = this.routingTable.copy();
+        table.dataSourceMap.put(haloDataSourceWrapper.getDsKey(), haloDataSourceWrapper);
+        this.routingTable = table;
     }
 
     public Connection getConnection() throws SQLException {
@@ -214,7 +314,17 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
     }
 
     public void destory() {
-        Set<Map.Entry<String, HaloDataSourceWrapper>> set = this.dataSourceMap.entrySet();
+        if (this.transactionExecutorService != null) {
+            this.transactionExecutorService.shutdown();
+        }
+        if (this.drainExecutorService != null) {
+            this.drainExecutorService.shutdownNow();
+        }
+        for (HaloDataSourceWrapper dataSourceWrapper : this.drainingDataSources) {
+            HaloDataSourceUtil.destory(dataSourceWrapper);
+        }
+        this.drainingDataSources.clear();
+        Set<Map.Entry<String, HaloDataSourceWrapper>> set = this.routingTable.dataSourceMap.entrySet();
         for (Map.Entry<String, HaloDataSourceWrapper> e : set) {
             HaloDataSourceUtil.destory(e.getValue());
         }
@@ -223,23 +333,27 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
     public void afterPropertiesSet() throws Exception {
         instance = this;
         if (this.defaultDsKey != null) {
-            DataSource ds = this.dataSourceMap.get(this.defaultDsKey);
+            DataSource ds = this.routingTable.dataSourceMap.get(this.defaultDsKey);
             if (ds == null) {
                 throw new RuntimeException("default ds must be not empty");
             }
         }
-//        this.executorService = new ThreadPoolExecutor(5, 10, 60, TimeUnit.SECONDS, new LinkedBlockingDeque<>(1000), r -> {
-//            Thread t = new Thread(r, "HaloDALDataSource-thread-" + threadNumber.getAndIncrement());
-//            t.setDaemon(false);
-//            return t;
-//        });
+        if (this.parallelTransaction && this.transactionExecutorService == null) {
+            // 队列满时由调用线程执行，不会丢弃commit、rollback、close
+            this.transactionExecutorService = new ThreadPoolExecutor(this.transactionThreads, this.transactionThreads, 60, TimeUnit.SECONDS, new LinkedBlockingDeque<>(1000), r -> {
+                Thread t = new Thread(r, "HaloDALDataSource-thread-" + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
     }
 
     List<HaloDataSourceWrapper> getDataSources() {
-        if (this.dataSourceMap.isEmpty()) {
+        Map<String, HaloDataSourceWrapper> dataSourceMap = this.routingTable.dataSourceMap;
+        if (dataSourceMap.isEmpty()) {
             return new ArrayList<>(0);
         }
-        return new ArrayList<>(this.dataSourceMap.values());
+        return new ArrayList<>(dataSourceMap.values());
     }
 
     /**
@@ -251,26 +365,106 @@ public abstract class HaloDALDataSource implements DataSource, InitializingBean
     public abstract void loadDataSource(Map<String, Object> ctxMap, String masterDsKey);
 
     /**
-     * 删除数据源
+     * 删除数据源，借出的连接归还后关闭连接池。其他数据源仍然引用此数据源的连接池时不能删除，需要先删除引用的数据源
      *
      * @param dsKey 数据源key
      */
-    public void removeDataSource(String dsKey) {
-        Collection<List<String>> values = this.masterSlaveDsKeyMap.values();
-        for (List<String> keys : values) {
-            for (String key : keys) {
-                if (key.equals(dsKey)) {
-                    keys.remove(key);
-                }
+    public synchronized void removeDataSource(String dsKey) {
+        List<String> refDsKeys = new ArrayList<>();
+        for (HaloDataSourceWrapper wrapper : this.routingTable.dataSourceMap.values()) {
+            if (dsKey.equals(wrapper.getRefDsKey())) {
+                refDsKeys.add(wrapper.getDsKey());
             }
         }
-        HaloDataSourceWrapper dataSourceWrapper = this.dataSourceMap.remove(dsKey);
+        if (!refDsKeys.isEmpty()) {
+            Collections.sort(refDsKeys);
+            throw new IllegalStateException("dataSource[" + dsKey + "] pool is still used by " + refDsKeys);
+        }
+        RoutingTable table = this.routingTable.copy();
+        for (List<String> keys : table.masterSlaveDsKeyMap.values()) {
+            keys.remove(dsKey);
+        }
+        HaloDataSourceWrapper dataSourceWrapper = table.dataSourceMap.remove(dsKey);
+        this.routingTable = table;
         if (dataSourceWrapper != null) {
+            this.drainDataSource(dataSourceWrapper);
+        }
+    }
+
+    /**
+     * 已经从路由中删除的数据源，等待借出的连接全部归还或者超时后关闭连接池。
+     * 必须在新的路由替换之后调用，数据源停止借出连接后，借出数量为0时才关闭连接池
+     *
+     * @param dataSourceWrapper 数据源
+     */
+    void drainDataSource(final HaloDataSourceWrapper dataSourceWrapper) {
+        if (dataSourceWrapper.getDataSource() == null) {
+            return;
+        }
+        // 使用旧的路由获取连接的线程，在此之后获取连接失败并使用新的路由重新获取
+        dataSourceWrapper.retire();
+        if (dataSourceWrapper.getActiveCount() <= 0) {
             HaloDataSourceUtil.destory(dataSourceWrapper);
+            return;
+        }
+        this.drainingDataSources.add(dataSourceWrapper);
+        final long deadline = System.currentTimeMillis() + this.drainTimeoutSeconds * 1000L;
+        final ScheduledExecutorService executorService = this.getDrainExecutorService();
+        executorService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (dataSourceWrapper.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+                    executorService.schedule(this, 500, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                if (dataSourceWrapper.getActiveCount() > 0) {
+                    log.warn("dataSource[" + dataSourceWrapper.getDsKey() + "] still has " + dataSourceWrapper.getActiveCount() + " active connections after " + drainTimeoutSeconds + "s");
+                }
+                if (drainingDataSources.remove(dataSourceWrapper)) {
+                    HaloDataSourceUtil.destory(dataSourceWrapper);
+                }
+            }
+        }, 500, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledExecutorService getDrainExecutorService() {
+        if (this.drainExecutorService == null) {
+            this.drainExecutorService = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "HaloDALDataSource-drain-" + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
         }
+        return this.drainExecutorService;
     }
 
     public List<String> getSlaveDsKeys(String masterDsKey) {
-        return this.masterSlaveDsKeyMap.get(masterDsKey);
+        return this.routingTable.masterSlaveDsKeyMap.get(masterDsKey);
+    }
+
+    /**
+     * 当前使用的路由，重新加载配置时整体替换，不会出现只替换一部分的情况
+     */
+    private static final class RoutingTable {
+
+        private final Map<String, HaloDataSourceWrapper> dataSourceMap;
+
+        private final Map<String, List<String>> masterSlaveDsKeyMap;
+
+        private RoutingTable(Map<String, HaloDataSourceWrapper> dataSourceMap, Map<String, List<String>> masterSlaveDsKeyMap) {
+            this.dataSourceMap = dataSourceMap;
+            this.masterSlaveDsKeyMap = masterSlaveDsKeyMap;
+        }
+
+        /**
+         * @return 可以修改的复制，不影响当前路由
+         */
+        private RoutingTable copy() {
+            Map<String, List<String>> msMap = new ConcurrentHashMap<>();
+            for (Map.Entry<String, List<String>> e : this.masterSlaveDsKeyMap.entrySet()) {
+                msMap.put(e.getKey(), new CopyOnWriteArrayList<>(e.getValue()));
+            }
+            return new RoutingTable(new ConcurrentHashMap<>(this.dataSourceMap), msMap);
+        }
     }
 }
\ No newline at end of file
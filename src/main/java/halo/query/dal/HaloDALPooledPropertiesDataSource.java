@@ -0,0 +1,15 @@
+package halo.query.dal;
+
+import halo.query.dal.pool.HaloPooledDataSource;
+
+/**
+ * 通过properties文件创建内置连接池 dal使用的数据源，配置属性与c3p0相同
+ */
+public class HaloDALPooledPropertiesDataSource extends HaloPropertiesDataSource {
+
+    public static final String NAME = HaloPooledDataSource.class.getName();
+
+    public HaloDALPooledPropertiesDataSource() {
+        this.setDataSourceClassName(NAME);
+    }
+}
@@ -49,6 +49,13 @@ class HaloDataSourceProxy {
         this.slave = slave;
     }
 
+    /**
+     * @return true:数据源已经从路由中删除
+     */
+    boolean isRetired() {
+        return this.dataSourceWrapper.isRetired();
+    }
+
     void setDataSourceWrapper(HaloDataSourceWrapper dataSourceWrapper) {
         this.dataSourceWrapper = dataSourceWrapper;
     }
@@ -1,7 +1,7 @@
 package halo.query.dal;
 
-import com.mchange.v2.c3p0.ComboPooledDataSource;
 import com.mchange.v2.c3p0.DataSources;
+import halo.query.dal.pool.HaloPooledDataSource;
 import org.apache.log4j.Logger;
 
 import javax.sql.DataSource;
@@ -27,7 +27,12 @@ public class HaloDataSourceUtil {
     static void destory(HaloDataSourceWrapper dataSourceWrapper) {
         try {
             logger.info("begin destory dataSource[" + dataSourceWrapper.getDsKey() + "] ... ... ...");
-            DataSources.destroy(dataSourceWrapper.getDataSource());
+            DataSource dataSource = dataSourceWrapper.getDataSource();
+            if (dataSource instanceof HaloPooledDataSource) {
+                ((HaloPooledDataSource) dataSource).close();
+                return;
+            }
+            DataSources.destroy(dataSource);
         } catch (SQLException e) {
             logger.warn("can not destory datasource[" + dataSourceWrapper.getDsKey() + "]", e);
         }
@@ -62,7 +67,7 @@ public class HaloDataSourceUtil {
     }
 
     static void methodInvoke(Object obj, String methodName, Object value) {
-        Method method = getMethod(ComboPooledDataSource.class, methodName);
+        Method method = getMethod(obj.getClass(), methodName);
         Class<?>[] paramTypes = method.getParameterTypes();
         Class<?> paramType = paramTypes[0];
         try {
@@ -5,6 +5,7 @@ import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 数据源包装类
@@ -19,7 +20,15 @@ public class HaloDataSourceWrapper implements DataSource {
 //     */
 //    private boolean discarded = false;
 
-//    private AtomicInteger counter = new AtomicInteger(0);
+    /**
+     * 当前借出未归还的连接数量，删除数据源时等待连接归还后再关闭连接池
+     */
+    private final AtomicInteger counter = new AtomicInteger(0);
+
+    /**
+     * 是否已经从路由中删除，删除后不再借出连接
+     */
+    private volatile boolean retired;
 
     private String dsKey;
 
@@ -80,10 +89,27 @@ public class HaloDataSourceWrapper implements DataSource {
 //        this.discarded = discarded;
 //    }
 
+    /**
+     * 先增加借出数量再检查是否已经删除，与 {@link #retire()} 之后检查借出数量的顺序相反，
+     * 删除数据源时看到借出数量为0之后，不会再有连接从连接池借出
+     *
+     * @return 连接
+     * @throws SQLException 数据源已经从路由中删除或者获取连接失败
+     */
     @Override
     public Connection getConnection() throws SQLException {
-        Connection con = this.dataSource.getConnection();
-//        this.incrCounter();
+        this.incrCounter();
+        if (this.retired) {
+            this.decrCounter();
+            throw new SQLException("dataSource[" + this.dsKey + "] was removed");
+        }
+        Connection con;
+        try {
+            con = this.dataSource.getConnection();
+        } catch (SQLException | RuntimeException e) {
+            this.decrCounter();
+            throw e;
+        }
         return new HaloConnectionWrapper(con, this);
     }
 
@@ -127,11 +153,31 @@ public class HaloDataSourceWrapper implements DataSource {
         return this.dataSource.getParentLogger();
     }
 
-//    public void incrCounter() {
-//        this.counter.incrementAndGet();
-//    }
+    void incrCounter() {
+        this.counter.incrementAndGet();
+    }
 
-//    public void decrCounter() {
-//        this.counter.decrementAndGet();
-//    }
+    void decrCounter() {
+        this.counter.decrementAndGet();
+    }
+
+    /**
+     * 从路由中删除后调用，之后获取连接失败
+     */
+    void retire() {
+        this.retired = true;
+    }
+
+    boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * 获得借出未归还的连接数量
+     *
+     * @return 连接数量
+     */
+    public int getActiveCount() {
+        return this.counter.get();
+    }
 }
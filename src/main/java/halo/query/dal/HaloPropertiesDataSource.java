@@ -1,10 +1,18 @@
 package halo.query.dal;
 
 import halo.query.JsonUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import javax.sql.DataSource;
 import java.text.MessageFormat;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * 属性配置文件的数据源
@@ -13,6 +21,8 @@ import java.util.*;
 @SuppressWarnings("unchecked")
 public class HaloPropertiesDataSource extends HaloDALDataSource {
 
+    private static final Log log = LogFactory.getLog(HaloPropertiesDataSource.class);
+
     /**
      * 设置数据源的className
      */
@@ -34,6 +44,39 @@ public class HaloPropertiesDataSource extends HaloDALDataSource {
 
     private final Map<String, String> GLOBAL_CONFIG_MAP = new HashMap<>();
 
+    /**
+     * jdbcUrl schema部分，例如 jdbc:mysql://127.0.0.1:3306/db0?useUnicode=true 中的 db0
+     */
+    private static final Pattern SCHEMA_URL_PATTERN = Pattern.compile("^(jdbc:[a-z]+://[^/?]+/)([^/?]+)(\\?.*)?$");
+
+    /**
+     * 是否自动共用连接池。jdbcUrl只有schema不同并且其他配置相同的数据源共用一个连接池，使用时切换schema。
+     * 共用连接池的配置使用第一个数据源(按照dsKey排序)的配置
+     */
+    private boolean shareSchemaPool;
+
+    /**
+     * 共用连接池的配置与连接池所属的dsKey对应
+     */
+    private volatile Map<String, String> sharedPoolDsKeyMap = new HashMap<>();
+
+    /**
+     * 检查配置文件变化的间隔(秒)，0表示不检查
+     */
+    private int reloadSeconds;
+
+    private ScheduledExecutorService reloadExecutorService;
+
+    /**
+     * 当前使用的配置文件内容
+     */
+    private Map<String, String> loadedProperties;
+
+    /**
+     * 当前使用的dsKey与配置
+     */
+    private Map<String, Map<String, Object>> loadedCfgMap = new TreeMap<>();
+
     private String name;
 
     public void setName(String name) {
@@ -42,11 +85,11 @@ public class HaloPropertiesDataSource extends HaloDALDataSource {
 
     @Override
     public void afterPropertiesSet() throws Exception {
-        ResourceBundle resourceBundle = ResourceBundle.getBundle(this.name);
-        Set<String> keySet = resourceBundle.keySet();
+        Map<String, String> properties = this.readProperties();
         Map<String, String> map = new HashMap<>();
-        for (String key : keySet) {
-            String value = resourceBundle.getString(key);
+        for (Map.Entry<String, String> e : properties.entrySet()) {
+            String key = e.getKey();
+            String value = e.getValue();
             if (key.startsWith(GLOBAL_KEY)) {
                 GLOBAL_CONFIG_MAP.put(key.substring(GLOBAL_KEY.length()), value);
                 continue;
@@ -58,22 +101,210 @@ public class HaloPropertiesDataSource extends HaloDALDataSource {
             }
         }
 
-        for (Map.Entry<String, String> e : map.entrySet()) {
+        // 按dsKey排序，共用连接池时每次启动使用相同的dsKey创建连接池
+        for (Map.Entry<String, String> e : new TreeMap<>(map).entrySet()) {
             String dsKey = e.getKey();
             Map<String, Object> cfgMap = (Map<String, Object>) JsonUtil.parse(e.getValue(), Map.class);
             this.addDataSource(this.createDataSource(dsKey, cfgMap));
+            this.setSlaves2Master(dsKey, (List<String>) cfgMap.get(DS_SLAVE_KEY));
+            this.loadedCfgMap.put(dsKey, cfgMap);
         }
+        this.loadedProperties = properties;
         super.afterPropertiesSet();
+        if (this.reloadSeconds > 0) {
+            this.reloadExecutorService = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "HaloPropertiesDataSource-reload");
+                t.setDaemon(true);
+                return t;
+            });
+            this.reloadExecutorService.scheduleWithFixedDelay(() -> {
+                try {
+                    this.reload();
+                } catch (Exception e) {
+                    log.error("reload [" + this.name + "] error, keep current datasources", e);
+                }
+            }, this.reloadSeconds, this.reloadSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private Map<String, String> readProperties() {
+        ResourceBundle.clearCache();
+        ResourceBundle resourceBundle = ResourceBundle.getBundle(this.name);
+        Map<String, String> properties = new TreeMap<>();
+        for (String key : resourceBundle.keySet()) {
+            properties.put(key, resourceBundle.getString(key));
+        }
+        return properties;
+    }
+
+    /**
+     * 重新读取配置文件，与当前使用的配置比较后:<br>
+     * 1 创建新增与修改的数据源，并获取一次连接完成连接池的初始化<br>
+     * 2 整体替换路由，替换后新的连接使用新的数据源<br>
+     * 3 删除与修改前的数据源等待借出的连接归还后关闭<br>
+     * 任意新的数据源初始化失败时，不替换路由，继续使用当前配置
+     *
+     * @return true:配置有变化并且已经替换
+     * @throws SQLException 新的数据源初始化失败
+     */
+    public synchronized boolean reload() throws SQLException {
+        Map<String, String> properties = this.readProperties();
+        if (properties.equals(this.loadedProperties)) {
+            return false;
+        }
+        Map<String, String> globalConfigMap = new HashMap<>();
+        String defaultDsKey = null;
+        Map<String, Map<String, Object>> cfgMaps = new TreeMap<>();
+        for (Map.Entry<String, String> e : properties.entrySet()) {
+            String key = e.getKey();
+            if (key.startsWith(GLOBAL_KEY)) {
+                globalConfigMap.put(key.substring(GLOBAL_KEY.length()), e.getValue());
+            } else if (key.equals(DEFAULT_KEY)) {
+                defaultDsKey = e.getValue();
+            } else {
+                cfgMaps.put(key, (Map<String, Object>) JsonUtil.parse(e.getValue(), Map.class));
+            }
+        }
+        String effectiveDefaultDsKey = defaultDsKey == null ? this.getDefaultDsKey() : defaultDsKey;
+        if (effectiveDefaultDsKey != null && !cfgMaps.containsKey(effectiveDefaultDsKey)) {
+            throw new IllegalArgumentException("default ds [" + effectiveDefaultDsKey + "] must be not empty");
+        }
+        boolean globalChanged = !globalConfigMap.equals(GLOBAL_CONFIG_MAP);
+        Map<String, HaloDataSourceWrapper> currentMap = this.getDataSourceMap();
+
+        // 删除的数据源以及连接池配置有变化的数据源，只修改slave时不需要重新创建
+        Set<String> removedDsKeys = new HashSet<>();
+        Set<String> changedDsKeys = new TreeSet<>();
+        for (String dsKey : this.loadedCfgMap.keySet()) {
+            if (!cfgMaps.containsKey(dsKey)) {
+                removedDsKeys.add(dsKey);
+            }
+        }
+        for (Map.Entry<String, Map<String, Object>> e : cfgMaps.entrySet()) {
+            Map<String, Object> oldCfgMap = this.loadedCfgMap.get(e.getKey());
+            // 通过 removeDataSource 删除的数据源也需要重新创建
+            if (oldCfgMap == null || globalChanged || !currentMap.containsKey(e.getKey())
+                    || !withoutSlaves(oldCfgMap).equals(withoutSlaves(e.getValue()))) {
+                changedDsKeys.add(e.getKey());
+            }
+        }
+        Map<String, String> sharedPoolDsKeyMap = new HashMap<>(this.sharedPoolDsKeyMap);
+        if (globalChanged) {
+            sharedPoolDsKeyMap.clear();
+        } else {
+            // 共用连接池所属的数据源被删除时，引用此连接池的数据源需要重新创建
+            Iterator<Map.Entry<String, String>> it = sharedPoolDsKeyMap.entrySet().iterator();
+            while (it.hasNext()) {
+                String poolDsKey = it.next().getValue();
+                if (removedDsKeys.contains(poolDsKey) || changedDsKeys.contains(poolDsKey)) {
+                    it.remove();
+                    for (HaloDataSourceWrapper wrapper : currentMap.values()) {
+                        if (poolDsKey.equals(wrapper.getRefDsKey()) && cfgMaps.containsKey(wrapper.getDsKey())
+                                && !this.isManualRef(wrapper.getDsKey())) {
+                            changedDsKeys.add(wrapper.getDsKey());
+                        }
+                    }
+                }
+            }
+        }
+
+        Map<String, String> oldGlobalConfigMap = new HashMap<>(GLOBAL_CONFIG_MAP);
+        Map<String, String> oldSharedPoolDsKeyMap = this.sharedPoolDsKeyMap;
+        GLOBAL_CONFIG_MAP.clear();
+        GLOBAL_CONFIG_MAP.putAll(globalConfigMap);
+        this.sharedPoolDsKeyMap = sharedPoolDsKeyMap;
+        List<HaloDataSourceWrapper> createdList = new ArrayList<>();
+        try {
+            for (String dsKey : changedDsKeys) {
+                HaloDataSourceWrapper wrapper = this.createDataSource(dsKey, cfgMaps.get(dsKey));
+                createdList.add(wrapper);
+                if (wrapper.getDataSource() != null) {
+                    // 预先获取连接，连接池初始化完成后再加入路由
+                    wrapper.getConnection().close();
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            for (HaloDataSourceWrapper wrapper : createdList) {
+                HaloDataSourceUtil.destory(wrapper);
+            }
+            GLOBAL_CONFIG_MAP.clear();
+            GLOBAL_CONFIG_MAP.putAll(oldGlobalConfigMap);
+            this.sharedPoolDsKeyMap = oldSharedPoolDsKeyMap;
+            throw e;
+        }
+
+        Map<String, HaloDataSourceWrapper> dataSourceMap = new HashMap<>(currentMap);
+        for (String dsKey : removedDsKeys) {
+            dataSourceMap.remove(dsKey);
+        }
+        for (HaloDataSourceWrapper wrapper : createdList) {
+            dataSourceMap.put(wrapper.getDsKey(), wrapper);
+        }
+        Map<String, List<String>> masterSlaveDsKeyMap = new HashMap<>();
+        for (Map.Entry<String, Map<String, Object>> e : cfgMaps.entrySet()) {
+            List<String> slaveDsKeys = (List<String>) e.getValue().get(DS_SLAVE_KEY);
+            if (slaveDsKeys != null && slaveDsKeys.size() > 0) {
+                masterSlaveDsKeyMap.put(e.getKey(), slaveDsKeys);
+            }
+        }
+        this.replaceRouting(dataSourceMap, masterSlaveDsKeyMap, defaultDsKey);
+        this.loadedCfgMap = cfgMaps;
+        this.loadedProperties = properties;
+
+        for (String dsKey : removedDsKeys) {
+            this.drainDataSource(currentMap.get(dsKey));
+        }
+        for (HaloDataSourceWrapper wrapper : createdList) {
+            HaloDataSourceWrapper old = currentMap.get(wrapper.getDsKey());
+            if (old != null) {
+                this.drainDataSource(old);
+            }
+        }
+        log.info("reload [" + this.name + "] added or changed " + changedDsKeys + " removed " + removedDsKeys);
+        return true;
+    }
+
+    private boolean isManualRef(String dsKey) {
+        Map<String, Object> cfgMap = this.loadedCfgMap.get(dsKey);
+        return cfgMap != null && cfgMap.containsKey(REF_DSKEY_KEY);
+    }
+
+    private static Map<String, Object> withoutSlaves(Map<String, Object> cfgMap) {
+        Map<String, Object> map = new HashMap<>(cfgMap);
+        map.remove(DS_SLAVE_KEY);
+        return map;
     }
 
     @Override
-    public void loadDataSource(Map<String, Object> ctxMap, String masterDsKey) {
+    public void destory() {
+        if (this.reloadExecutorService != null) {
+            this.reloadExecutorService.shutdownNow();
+        }
+        super.destory();
+    }
+
+    @Override
+    public synchronized void loadDataSource(Map<String, Object> ctxMap, String masterDsKey) {
         String dsKey = (String) ctxMap.get("dsKey");
         Map<String, Object> cfgMap = (Map<String, Object>) ctxMap.get("cfgMap");
         this.addDataSource(this.createDataSource(dsKey, cfgMap));
+        this.setSlaves2Master(dsKey, (List<String>) cfgMap.get(DS_SLAVE_KEY));
         this.addSlave2Master(masterDsKey, dsKey);
     }
 
+    /**
+     * 删除数据源，如果数据源是共用连接池的创建者，同时删除共用记录，之后相同实例的数据源重新创建连接池
+     *
+     * @param dsKey 数据源key
+     */
+    @Override
+    public synchronized void removeDataSource(String dsKey) {
+        super.removeDataSource(dsKey);
+        synchronized (this.sharedPoolDsKeyMap) {
+            this.sharedPoolDsKeyMap.values().remove(dsKey);
+        }
+    }
+
     private HaloDataSourceWrapper createDataSource(String dsKey, Map<String, Object> cfgMap) {
         if (cfgMap == null) {
             throw new IllegalArgumentException("dsKey[" + dsKey + "] config must be not empty");
@@ -89,10 +320,6 @@ public class HaloPropertiesDataSource extends HaloDALDataSource {
 
     private HaloDataSourceWrapper createRefDataSource(String dsKey, Map<String, Object> cfgMap) {
         Map<String, Object> _cfgMap = new HashMap<>(cfgMap);
-        List<String> slaveDsKeys = (List<String>) _cfgMap.get(DS_SLAVE_KEY);
-        if (slaveDsKeys != null && slaveDsKeys.size() > 0) {
-            this.setSlaves2Master(dsKey, slaveDsKeys);
-        }
         String refDsKey = (String) cfgMap.get(REF_DSKEY_KEY);
         String db = (String) cfgMap.get(DB_KEY);
         return new HaloDataSourceWrapper(dsKey, null, refDsKey, db, false);
@@ -100,19 +327,11 @@ public class HaloPropertiesDataSource extends HaloDALDataSource {
 
     private HaloDataSourceWrapper createSlaveModeDataSource(String dsKey, Map<String, Object> cfgMap) {
         Map<String, Object> _cfgMap = new HashMap<>(cfgMap);
-        List<String> slaveDsKeys = (List<String>) _cfgMap.get(DS_SLAVE_KEY);
-        if (slaveDsKeys != null && slaveDsKeys.size() > 0) {
-            this.setSlaves2Master(dsKey, slaveDsKeys);
-        }
         return new HaloDataSourceWrapper(dsKey, null, null, null, true);
     }
 
     private HaloDataSourceWrapper createNormalDataSource(String dsKey, Map<String, Object> cfgMap) {
         Map<String, Object> _cfgMap = new HashMap<>(cfgMap);
-        List<String> slaveDsKeys = (List<String>) _cfgMap.get(DS_SLAVE_KEY);
-        if (slaveDsKeys != null && slaveDsKeys.size() > 0) {
-            this.setSlaves2Master(dsKey, slaveDsKeys);
-        }
         _cfgMap.remove(DS_SLAVE_KEY);
         for (Map.Entry<String, String> entry : GLOBAL_CONFIG_MAP.entrySet()) {
             String propertyKey = entry.getKey();
@@ -142,10 +361,44 @@ public class HaloPropertiesDataSource extends HaloDALDataSource {
             _cfgMap.put(JDBCURL_KEY, jdbcUrl);
         }
         _cfgMap.remove(URL_KEY);
+        if (this.shareSchemaPool) {
+            HaloDataSourceWrapper sharedWrapper = this.createSharedSchemaDataSource(dsKey, _cfgMap);
+            if (sharedWrapper != null) {
+                return sharedWrapper;
+            }
+        }
         DataSource dataSource = HaloDataSourceUtil.createDataSource(this.dataSourceClassName, _cfgMap);
         return new HaloDataSourceWrapper(dsKey, dataSource, null, null, false);
     }
 
+    /**
+     * 创建共用连接池的数据源。已经有相同配置的连接池时，引用此连接池并指定schema，否则创建连接池
+     *
+     * @param dsKey  数据源key
+     * @param cfgMap 数据源配置
+     * @return null:jdbcUrl无法识别schema，不共用连接池
+     */
+    private HaloDataSourceWrapper createSharedSchemaDataSource(String dsKey, Map<String, Object> cfgMap) {
+        Matcher matcher = SCHEMA_URL_PATTERN.matcher((String) cfgMap.get(JDBCURL_KEY));
+        if (!matcher.matches()) {
+            return null;
+        }
+        String db = matcher.group(2);
+        Map<String, Object> poolCfgMap = new TreeMap<>(cfgMap);
+        String query = matcher.group(3);
+        poolCfgMap.put(JDBCURL_KEY, matcher.group(1) + (query == null ? "" : query));
+        String poolKey = poolCfgMap.toString();
+        synchronized (this.sharedPoolDsKeyMap) {
+            String poolDsKey = this.sharedPoolDsKeyMap.get(poolKey);
+            if (poolDsKey != null) {
+                return new HaloDataSourceWrapper(dsKey, null, poolDsKey, db, false);
+            }
+            DataSource dataSource = HaloDataSourceUtil.createDataSource(this.dataSourceClassName, cfgMap);
+            this.sharedPoolDsKeyMap.put(poolKey, dsKey);
+            return new HaloDataSourceWrapper(dsKey, dataSource, null, db, false);
+        }
+    }
+
     private String buildJdbcUrl(String url, String globalJdbcUrlTpl) {
         if (HaloDataSourceUtil.isEmpty(url)) {
             throw new IllegalArgumentException("url must be not null");
@@ -163,4 +416,20 @@ public class HaloPropertiesDataSource extends HaloDALDataSource {
     public void setDataSourceClassName(String dataSourceClassName) {
         this.dataSourceClassName = dataSourceClassName;
     }
+
+    public int getReloadSeconds() {
+        return reloadSeconds;
+    }
+
+    public void setReloadSeconds(int reloadSeconds) {
+        this.reloadSeconds = reloadSeconds;
+    }
+
+    public boolean isShareSchemaPool() {
+        return shareSchemaPool;
+    }
+
+    public void setShareSchemaPool(boolean shareSchemaPool) {
+        this.shareSchemaPool = shareSchemaPool;
+    }
 }
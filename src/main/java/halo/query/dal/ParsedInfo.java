@@ -6,6 +6,11 @@ public class ParsedInfo {
 
 	private String realTableName;
 
+	/**
+	 * 迁移模式下数据的新路由，不为null时写操作同时写入新路由，读操作按照比例在新路由进行对比读取
+	 */
+	private ParsedInfo migrateParsedInfo;
+
 	public ParsedInfo() {
 	}
 
@@ -29,4 +34,17 @@ public class ParsedInfo {
 	public void setRealTableName(String realTableName) {
 		this.realTableName = realTableName;
 	}
-}
\ No newline at end of file
+
+	public ParsedInfo getMigrateParsedInfo() {
+		return migrateParsedInfo;
+	}
+
+	/**
+	 * 设置迁移模式下的新路由，当前路由仍然是读写的主路由
+	 *
+	 * @param migrateParsedInfo 新路由
+	 */
+	public void setMigrateParsedInfo(ParsedInfo migrateParsedInfo) {
+		this.migrateParsedInfo = migrateParsedInfo;
+	}
+}
@@ -0,0 +1,43 @@
+package halo.query.dal.parser;
+
+import java.util.Map;
+
+/**
+ * 使用jump consistent hash计算分区。分区数量从n增加到m时，只有 (m-n)/m 的数据需要迁移，并且只会迁移到新增的分区。<br>
+ * 配置参考 {@link ShardDALParser}
+ *
+ * @author akwei
+ */
+public class JumpHashDALParser extends ShardDALParser {
+
+    public JumpHashDALParser(String bundleName, String prefix) {
+        super(bundleName, prefix);
+    }
+
+    public JumpHashDALParser(Map<String, String> cfg, String prefix) {
+        super(cfg, prefix);
+    }
+
+    @Override
+    protected int shard(long key) {
+        return jumpHash(mix(key), this.getShardCount());
+    }
+
+    /**
+     * jump consistent hash (Lamping and Veach)
+     *
+     * @param key     key
+     * @param buckets 分区数量
+     * @return 分区序号
+     */
+    static int jumpHash(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+}
@@ -0,0 +1,79 @@
+package halo.query.dal.parser;
+
+import halo.query.dal.DALRunTimeException;
+import halo.query.dal.ParsedInfo;
+
+import java.util.Map;
+
+/**
+ * 按照数值范围计算分区，使用二分查找。参数必须是数字。<br>
+ * 配置:<br>
+ * prefix.param=userId<br>
+ * prefix.ranges=0:db0:tb_user_0,1000000:db0:tb_user_1,2000000:db1:tb_user_2<br>
+ * 每一项为 起始值(包含):dsKey:真实表名称，起始值需要从小到大排列，最后一个范围没有上限。小于第一个起始值的参数会抛出异常
+ *
+ * @author akwei
+ */
+public class RangeDALParser extends ShardDALParser {
+
+    /**
+     * 每个分区的起始值
+     */
+    private long[] lowerBounds;
+
+    public RangeDALParser(String bundleName, String prefix) {
+        super(bundleName, prefix);
+    }
+
+    public RangeDALParser(Map<String, String> cfg, String prefix) {
+        super(cfg, prefix);
+    }
+
+    @Override
+    protected ParsedInfo[] buildShards(Map<String, String> cfg, String prefix) {
+        String[] ranges = getRequired(cfg, prefix, "ranges").split(",");
+        ParsedInfo[] shards = new ParsedInfo[ranges.length];
+        long[] lowerBounds = new long[ranges.length];
+        for (int i = 0; i < ranges.length; i++) {
+            String[] range = ranges[i].trim().split(":");
+            if (range.length != 3) {
+                throw new DALRunTimeException("[ " + prefix + ".ranges ] item must be lowerBound:dsKey:table [ " + ranges[i] + " ]");
+            }
+            lowerBounds[i] = Long.parseLong(range[0].trim());
+            if (i > 0 && lowerBounds[i] <= lowerBounds[i - 1]) {
+                throw new DALRunTimeException("[ " + prefix + ".ranges ] must be in ascending order");
+            }
+            shards[i] = new ParsedInfo(range[1].trim(), range[2].trim());
+        }
+        this.lowerBounds = lowerBounds;
+        return shards;
+    }
+
+    @Override
+    public ParsedInfo parse(Map<String, Object> paramMap) {
+        Object value = paramMap == null ? null : paramMap.get(this.getParam());
+        if (!(value instanceof Number)) {
+            throw new DALRunTimeException("param [ " + this.getParam() + " ] must be a number");
+        }
+        return this.getShard(this.shard(((Number) value).longValue()));
+    }
+
+    @Override
+    protected int shard(long key) {
+        long[] lowerBounds = this.lowerBounds;
+        int low = 0;
+        int high = lowerBounds.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (lowerBounds[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (high < 0) {
+            throw new DALRunTimeException("[ " + key + " ] is less than the first range");
+        }
+        return high;
+    }
+}
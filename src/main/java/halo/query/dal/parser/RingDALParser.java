@@ -0,0 +1,82 @@
+package halo.query.dal.parser;
+
+import halo.query.dal.DALRunTimeException;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * 使用虚拟节点的一致性hash环计算分区，每个分区在环上有 prefix.vnodes 个节点(默认160)。
+ * 查找时在有序数组中二分查找第一个不小于key hash的节点。<br>
+ * 与 {@link JumpHashDALParser} 相比，可以删除中间的分区，但是内存与查找成本更高。配置参考 {@link ShardDALParser}
+ *
+ * @author akwei
+ */
+public class RingDALParser extends ShardDALParser {
+
+    private static final int DEFAULT_VNODES = 160;
+
+    /**
+     * 环上节点的hash，从小到大排列
+     */
+    private long[] points;
+
+    /**
+     * 与points对应的分区序号
+     */
+    private int[] pointShards;
+
+    public RingDALParser(String bundleName, String prefix) {
+        super(bundleName, prefix);
+    }
+
+    public RingDALParser(Map<String, String> cfg, String prefix) {
+        super(cfg, prefix);
+    }
+
+    @Override
+    protected void init(Map<String, String> cfg, String prefix) {
+        String value = cfg.get(prefix + ".vnodes");
+        int vnodes = value == null ? DEFAULT_VNODES : Integer.parseInt(value.trim());
+        if (vnodes <= 0) {
+            throw new DALRunTimeException("[ " + prefix + ".vnodes ] must be greater than 0");
+        }
+        int size = this.getShardCount() * vnodes;
+        long[][] nodes = new long[size][];
+        int k = 0;
+        for (int i = 0; i < this.getShardCount(); i++) {
+            // 节点位置只与真实表名称和序号有关，增加分区时已有分区的节点位置不变
+            long base = toKey(this.getShard(i).getRealTableName());
+            for (int v = 0; v < vnodes; v++) {
+                nodes[k++] = new long[]{mix(base + v * 0x9e3779b97f4a7c15L), i};
+            }
+        }
+        Arrays.sort(nodes, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[size];
+        this.pointShards = new int[size];
+        for (int i = 0; i < size; i++) {
+            this.points[i] = nodes[i][0];
+            this.pointShards[i] = (int) nodes[i][1];
+        }
+    }
+
+    @Override
+    protected int shard(long key) {
+        long h = mix(key);
+        long[] points = this.points;
+        int low = 0;
+        int high = points.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (points[mid] < h) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (low == points.length) {
+            low = 0;
+        }
+        return this.pointShards[low];
+    }
+}
@@ -0,0 +1,172 @@
+package halo.query.dal.parser;
+
+import halo.query.dal.DALParser;
+import halo.query.dal.DALRunTimeException;
+import halo.query.dal.ParsedInfo;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+/**
+ * 通过配置文件创建的分区解析器，根据指定参数计算数据所在的分区。<br>
+ * 配置使用 prefix 作为前缀:<br>
+ * prefix.param=userId 分区使用的参数名称<br>
+ * prefix.table=tb_user 逻辑表名称，真实表名称为 tb_user_0 ... tb_user_(tables-1)<br>
+ * prefix.tables=64 真实表数量<br>
+ * prefix.dsKeys=db0,db1 数据源，tb_user_i 使用第 i % dsKeys数量 个数据源，增加真实表数量时已有的表不会更换数据源<br>
+ * 所有分区的 {@link ParsedInfo} 在创建时生成，解析时直接返回，调用方不能修改返回的对象。<br>
+ * 使用时继承具体的解析器，在无参构造方法中指定配置，例如:<br>
+ * <pre>
+ * public class TbUserParser extends JumpHashDALParser {
+ *     public TbUserParser() {
+ *         super("dal-parser", "tb_user");
+ *     }
+ * }
+ * </pre>
+ *
+ * @author akwei
+ */
+public abstract class ShardDALParser implements DALParser {
+
+    private final String param;
+
+    private final ParsedInfo[] shards;
+
+    /**
+     * 从配置文件中读取配置
+     *
+     * @param bundleName 配置文件名称，与 {@link ResourceBundle#getBundle(String)} 相同
+     * @param prefix     配置前缀
+     */
+    protected ShardDALParser(String bundleName, String prefix) {
+        this(readBundle(bundleName), prefix);
+    }
+
+    /**
+     * @param cfg    配置
+     * @param prefix 配置前缀
+     */
+    protected ShardDALParser(Map<String, String> cfg, String prefix) {
+        this.param = getRequired(cfg, prefix, "param");
+        this.shards = this.buildShards(cfg, prefix);
+        if (this.shards.length == 0) {
+            throw new DALRunTimeException("no shard for [ " + prefix + " ]");
+        }
+        this.init(cfg, prefix);
+    }
+
+    private static Map<String, String> readBundle(String bundleName) {
+        ResourceBundle resourceBundle = ResourceBundle.getBundle(bundleName);
+        Map<String, String> cfg = new HashMap<>();
+        for (String key : resourceBundle.keySet()) {
+            cfg.put(key, resourceBundle.getString(key).trim());
+        }
+        return cfg;
+    }
+
+    static String getRequired(Map<String, String> cfg, String prefix, String name) {
+        String value = cfg.get(prefix + "." + name);
+        if (value == null || value.trim().isEmpty()) {
+            throw new DALRunTimeException("[ " + prefix + "." + name + " ] must be set");
+        }
+        return value.trim();
+    }
+
+    /**
+     * 根据配置创建所有分区，默认使用 table、tables、dsKeys 配置
+     *
+     * @param cfg    配置
+     * @param prefix 配置前缀
+     * @return 按分区序号排列的路由信息
+     */
+    protected ParsedInfo[] buildShards(Map<String, String> cfg, String prefix) {
+        String table = getRequired(cfg, prefix, "table");
+        int tables = Integer.parseInt(getRequired(cfg, prefix, "tables"));
+        String[] dsKeys = getRequired(cfg, prefix, "dsKeys").split(",");
+        if (tables < dsKeys.length) {
+            throw new DALRunTimeException("[ " + prefix + ".tables ] must not be less than dsKeys count");
+        }
+        ParsedInfo[] shards = new ParsedInfo[tables];
+        for (int i = 0; i < tables; i++) {
+            String dsKey = dsKeys[i % dsKeys.length].trim();
+            shards[i] = new ParsedInfo(dsKey, table + "_" + i);
+        }
+        return shards;
+    }
+
+    /**
+     * 分区创建完成后的初始化
+     *
+     * @param cfg    配置
+     * @param prefix 配置前缀
+     */
+    protected void init(Map<String, String> cfg, String prefix) {
+    }
+
+    /**
+     * 计算分区序号
+     *
+     * @param key 参数转换后的key
+     * @return 0 到 {@link #getShardCount()}-1 之间的分区序号
+     */
+    protected abstract int shard(long key);
+
+    public String getParam() {
+        return param;
+    }
+
+    public int getShardCount() {
+        return this.shards.length;
+    }
+
+    public ParsedInfo getShard(int index) {
+        return this.shards[index];
+    }
+
+    @Override
+    public ParsedInfo parse(Map<String, Object> paramMap) {
+        Object value = paramMap == null ? null : paramMap.get(this.param);
+        if (value == null) {
+            throw new DALRunTimeException("param [ " + this.param + " ] must be set");
+        }
+        return this.shards[this.shard(toKey(value))];
+    }
+
+    /**
+     * 参数转换为long，数字使用数值，字符串使用64位FNV-1a hash，其他对象使用hashCode
+     *
+     * @param value 参数
+     * @return key
+     */
+    static long toKey(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof CharSequence) {
+            CharSequence cs = (CharSequence) value;
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < cs.length(); i++) {
+                h ^= cs.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            return h;
+        }
+        return value.hashCode();
+    }
+
+    /**
+     * 64位整数混淆(murmur3 fmix64)，使相邻的key分布均匀
+     *
+     * @param key key
+     * @return 混淆后的值
+     */
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,149 @@
+package halo.query.dal.pool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 存放真实连接的容器。借出时从任意位置开始扫描，通过CAS占用空闲连接，不需要加锁。
+ * 没有空闲连接时等待，归还的连接直接交给等待的线程
+ */
+final class ConnectionBag {
+
+    private final CopyOnWriteArrayList<PoolEntry> sharedList = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private final SynchronousQueue<PoolEntry> handoffQueue = new SynchronousQueue<>(true);
+
+    /**
+     * 不等待，获得一个空闲连接
+     *
+     * @return null:没有空闲连接
+     */
+    PoolEntry tryBorrow() {
+        Object[] entries = this.sharedList.toArray();
+        int size = entries.length;
+        if (size == 0) {
+            return null;
+        }
+        int offset = ThreadLocalRandom.current().nextInt(size);
+        for (int i = 0; i < size; i++) {
+            PoolEntry entry = (PoolEntry) entries[(offset + i) % size];
+            if (entry.compareAndSet(PoolEntry.STATE_NOT_IN_USE, PoolEntry.STATE_IN_USE)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 等待获得一个空闲连接
+     *
+     * @param timeout 等待时间
+     * @param unit    时间单位
+     * @return null:超时
+     * @throws InterruptedException 等待时线程中断
+     */
+    PoolEntry borrow(long timeout, TimeUnit unit) throws InterruptedException {
+        this.waiters.incrementAndGet();
+        try {
+            long remaining = unit.toNanos(timeout);
+            long deadline = System.nanoTime() + remaining;
+            do {
+                PoolEntry entry = this.tryBorrow();
+                if (entry != null) {
+                    return entry;
+                }
+                entry = this.handoffQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (entry != null && entry.compareAndSet(PoolEntry.STATE_NOT_IN_USE, PoolEntry.STATE_IN_USE)) {
+                    return entry;
+                }
+                remaining = deadline - System.nanoTime();
+            } while (remaining > 0);
+            return null;
+        } finally {
+            this.waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * 归还连接，有等待的线程时直接交给等待的线程
+     *
+     * @param entry 连接
+     */
+    void requite(PoolEntry entry) {
+        entry.setState(PoolEntry.STATE_NOT_IN_USE);
+        this.handoff(entry);
+    }
+
+    /**
+     * 增加一个连接
+     *
+     * @param entry 连接
+     */
+    void add(PoolEntry entry) {
+        this.sharedList.add(entry);
+        this.handoff(entry);
+    }
+
+    private void handoff(PoolEntry entry) {
+        for (int i = 0; this.waiters.get() > 0; i++) {
+            if (entry.getState() != PoolEntry.STATE_NOT_IN_USE || this.handoffQueue.offer(entry)) {
+                return;
+            }
+            if ((i & 0xff) == 0xff) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10));
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * 删除连接，连接必须已经被占用
+     *
+     * @param entry 连接
+     * @return true:删除成功
+     */
+    boolean remove(PoolEntry entry) {
+        if (!entry.compareAndSet(PoolEntry.STATE_IN_USE, PoolEntry.STATE_REMOVED)
+                && !entry.compareAndSet(PoolEntry.STATE_RESERVED, PoolEntry.STATE_REMOVED)) {
+            return false;
+        }
+        return this.sharedList.remove(entry);
+    }
+
+    /**
+     * 获得指定状态的连接
+     *
+     * @param state 状态
+     * @return 连接集合
+     */
+    List<PoolEntry> values(int state) {
+        List<PoolEntry> list = new ArrayList<>();
+        for (PoolEntry entry : this.sharedList) {
+            if (entry.getState() == state) {
+                list.add(entry);
+            }
+        }
+        return list;
+    }
+
+    List<PoolEntry> values() {
+        return new ArrayList<>(this.sharedList);
+    }
+
+    int size() {
+        return this.sharedList.size();
+    }
+
+    int getWaitingThreads() {
+        return this.waiters.get();
+    }
+}
@@ -0,0 +1,126 @@
+package halo.query.dal.pool;
+
+/**
+ * 连接池的运行数据快照
+ */
+public class HaloPoolMetrics {
+
+    private final String jdbcUrl;
+
+    private final int totalConnections;
+
+    private final int idleConnections;
+
+    private final int activeConnections;
+
+    private final int waitingThreads;
+
+    private final long borrowCount;
+
+    private final long timeoutCount;
+
+    private final long createdCount;
+
+    private final long closedCount;
+
+    private final long avgAcquireMicros;
+
+    private final long maxAcquireMicros;
+
+    HaloPoolMetrics(String jdbcUrl, int totalConnections, int idleConnections, int activeConnections, int waitingThreads,
+                    long borrowCount, long timeoutCount, long createdCount, long closedCount,
+                    long avgAcquireMicros, long maxAcquireMicros) {
+        this.jdbcUrl = jdbcUrl;
+        this.totalConnections = totalConnections;
+        this.idleConnections = idleConnections;
+        this.activeConnections = activeConnections;
+        this.waitingThreads = waitingThreads;
+        this.borrowCount = borrowCount;
+        this.timeoutCount = timeoutCount;
+        this.createdCount = createdCount;
+        this.closedCount = closedCount;
+        this.avgAcquireMicros = avgAcquireMicros;
+        this.maxAcquireMicros = maxAcquireMicros;
+    }
+
+    public String getJdbcUrl() {
+        return jdbcUrl;
+    }
+
+    public int getTotalConnections() {
+        return totalConnections;
+    }
+
+    public int getIdleConnections() {
+        return idleConnections;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections;
+    }
+
+    /**
+     * 获得等待连接的线程数量
+     *
+     * @return 线程数量
+     */
+    public int getWaitingThreads() {
+        return waitingThreads;
+    }
+
+    public long getBorrowCount() {
+        return borrowCount;
+    }
+
+    /**
+     * 获得获取连接超时的次数
+     *
+     * @return 超时次数
+     */
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    public long getCreatedCount() {
+        return createdCount;
+    }
+
+    public long getClosedCount() {
+        return closedCount;
+    }
+
+    /**
+     * 获得平均获取连接的时间(微秒)
+     *
+     * @return 微秒
+     */
+    public long getAvgAcquireMicros() {
+        return avgAcquireMicros;
+    }
+
+    /**
+     * 获得最长获取连接的时间(微秒)
+     *
+     * @return 微秒
+     */
+    public long getMaxAcquireMicros() {
+        return maxAcquireMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "HaloPoolMetrics{" +
+                "jdbcUrl='" + jdbcUrl + '\'' +
+                ", totalConnections=" + totalConnections +
+                ", idleConnections=" + idleConnections +
+                ", activeConnections=" + activeConnections +
+                ", waitingThreads=" + waitingThreads +
+                ", borrowCount=" + borrowCount +
+                ", timeoutCount=" + timeoutCount +
+                ", createdCount=" + createdCount +
+                ", closedCount=" + closedCount +
+                ", avgAcquireMicros=" + avgAcquireMicros +
+                ", maxAcquireMicros=" + maxAcquireMicros +
+                '}';
+    }
+}
@@ -0,0 +1,391 @@
+package halo.query.dal.pool;
+
+import java.sql.*;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * 连接池借出的连接，关闭时归还真实连接。关闭后不能继续使用
+ */
+class HaloPooledConnection implements Connection {
+
+    private final HaloPooledDataSource pool;
+
+    private final PoolEntry entry;
+
+    private boolean closed;
+
+    private boolean autoCommitChanged;
+
+    private boolean readOnlyChanged;
+
+    /**
+     * 借出时的事务隔离级别，-1表示没有修改
+     */
+    private int transactionIsolation = -1;
+
+    /**
+     * 是否已经确认了连接使用的catalog
+     */
+    private boolean catalogChecked;
+
+    HaloPooledConnection(HaloPooledDataSource pool, PoolEntry entry) {
+        this.pool = pool;
+        this.entry = entry;
+    }
+
+    private void checkOpen() throws SQLException {
+        if (this.closed) {
+            throw new SQLException("connection was closed");
+        }
+    }
+
+    /**
+     * 获得真实连接。真实连接的catalog被之前的使用者切换过并且当前使用者没有指定catalog时，先恢复为创建连接时的catalog
+     *
+     * @return 真实连接
+     * @throws SQLException 连接已经关闭或者恢复catalog失败
+     */
+    private Connection getDelegate() throws SQLException {
+        this.checkOpen();
+        Connection con = this.entry.getConnection();
+        if (!this.catalogChecked) {
+            this.catalogChecked = true;
+            String homeCatalog = this.entry.getHomeCatalog();
+            if (homeCatalog != null && !homeCatalog.equals(this.entry.getCatalog())) {
+                con.setCatalog(homeCatalog);
+                this.entry.setCatalog(homeCatalog);
+            }
+        }
+        return con;
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        return this.getDelegate().createStatement();
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return this.getDelegate().prepareStatement(sql);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        return this.getDelegate().prepareCall(sql);
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        return this.getDelegate().nativeSQL(sql);
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        this.getDelegate().setAutoCommit(autoCommit);
+        this.autoCommitChanged = true;
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return this.getDelegate().getAutoCommit();
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        this.getDelegate().commit();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        this.getDelegate().rollback();
+    }
+
+    /**
+     * 恢复连接状态后归还连接池，不能恢复时从连接池删除。catalog在下次使用时按需恢复
+     *
+     * @throws SQLException 不会抛出
+     */
+    @Override
+    public void close() throws SQLException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        Connection con = this.entry.getConnection();
+        try {
+            if (this.autoCommitChanged && !con.getAutoCommit()) {
+                con.rollback();
+                con.setAutoCommit(true);
+            }
+            if (this.readOnlyChanged) {
+                con.setReadOnly(false);
+            }
+            if (this.transactionIsolation != -1) {
+                con.setTransactionIsolation(this.transactionIsolation);
+            }
+            con.clearWarnings();
+        } catch (SQLException e) {
+            this.pool.evict(this.entry);
+            return;
+        }
+        this.pool.requite(this.entry);
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return this.closed || this.entry.getConnection().isClosed();
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return this.getDelegate().getMetaData();
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        this.getDelegate().setReadOnly(readOnly);
+        this.readOnlyChanged = true;
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return this.getDelegate().isReadOnly();
+    }
+
+    /**
+     * 连接已经使用相同的catalog时，不再切换
+     */
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        this.checkOpen();
+        this.catalogChecked = true;
+        if (catalog != null && catalog.equals(this.entry.getCatalog())) {
+            return;
+        }
+        this.entry.getConnection().setCatalog(catalog);
+        this.entry.setCatalog(catalog);
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        this.checkOpen();
+        if (!this.catalogChecked) {
+            return this.entry.getHomeCatalog();
+        }
+        return this.entry.getCatalog();
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        Connection con = this.getDelegate();
+        if (this.transactionIsolation == -1) {
+            this.transactionIsolation = con.getTransactionIsolation();
+        }
+        con.setTransactionIsolation(level);
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return this.getDelegate().getTransactionIsolation();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return this.getDelegate().getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        this.getDelegate().clearWarnings();
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        return this.getDelegate().createStatement(resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return this.getDelegate().prepareStatement(sql, resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return this.getDelegate().prepareCall(sql, resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return this.getDelegate().getTypeMap();
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        this.getDelegate().setTypeMap(map);
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+        this.getDelegate().setHoldability(holdability);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return this.getDelegate().getHoldability();
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return this.getDelegate().setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return this.getDelegate().setSavepoint(name);
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        this.getDelegate().rollback(savepoint);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        this.getDelegate().releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return this.getDelegate().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return this.getDelegate().prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return this.getDelegate().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        return this.getDelegate().prepareStatement(sql, autoGeneratedKeys);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        return this.getDelegate().prepareStatement(sql, columnIndexes);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        return this.getDelegate().prepareStatement(sql, columnNames);
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return this.getDelegate().createClob();
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return this.getDelegate().createBlob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return this.getDelegate().createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return this.getDelegate().createSQLXML();
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        return this.getDelegate().isValid(timeout);
+    }
+
+    @Override
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        if (this.closed) {
+            throw new SQLClientInfoException();
+        }
+        this.entry.getConnection().setClientInfo(name, value);
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        if (this.closed) {
+            throw new SQLClientInfoException();
+        }
+        this.entry.getConnection().setClientInfo(properties);
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        return this.getDelegate().getClientInfo(name);
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return this.getDelegate().getClientInfo();
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        return this.getDelegate().createArrayOf(typeName, elements);
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        return this.getDelegate().createStruct(typeName, attributes);
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+        this.getDelegate().setSchema(schema);
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        return this.getDelegate().getSchema();
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.pool.evict(this.entry);
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        this.getDelegate().setNetworkTimeout(executor, milliseconds);
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return this.getDelegate().getNetworkTimeout();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return this.getDelegate().unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || this.getDelegate().isWrapperFor(iface);
+    }
+}
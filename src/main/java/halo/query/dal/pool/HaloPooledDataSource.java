@@ -0,0 +1,605 @@
+package halo.query.dal.pool;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * 轻量连接池，属性名称与c3p0相同，可以通过dataSourceClassName替换c3p0。<br>
+ * 借出与归还连接不加锁。所有连接池共用一个定时线程，每个连接池回收空闲连接、检测连接与补充最小连接数的任务在各自的线程中并行执行，
+ * 一个数据库缓慢或者无法连接时不影响其他连接池。<br>
+ * testConnectionOnCheckout=true 时，借出空闲超过 checkoutTestIdleMillis 的连接之前先检测连接，失效的连接关闭后重新获取
+ */
+public class HaloPooledDataSource implements DataSource, Closeable {
+
+    private static final Log log = LogFactory.getLog(HaloPooledDataSource.class);
+
+    private static final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    /**
+     * 所有连接池共用的定时线程，只负责把任务交给 houseKeepWorker
+     */
+    private static volatile ScheduledExecutorService houseKeeper;
+
+    /**
+     * 执行各个连接池的回收、检测与补充连接，每个连接池同一时间最多一个任务
+     */
+    private static volatile ExecutorService houseKeepWorker;
+
+    /**
+     * 等待连接时，每次等待的最长时间。连接被删除后，等待的线程可以及时创建新的连接
+     */
+    private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private String jdbcUrl;
+
+    private String user;
+
+    private String password;
+
+    private String driverClass;
+
+    private int minPoolSize = 3;
+
+    private int maxPoolSize = 15;
+
+    private int initialPoolSize = 3;
+
+    /**
+     * 空闲连接最长保留时间(秒)，0表示不回收
+     */
+    private int maxIdleTime = 0;
+
+    /**
+     * 连接最长使用时间(秒)，0表示不限制
+     */
+    private int maxConnectionAge = 0;
+
+    /**
+     * 获取连接的超时时间(毫秒)，0表示使用默认30秒
+     */
+    private int checkoutTimeout = 0;
+
+    /**
+     * 检测空闲连接的间隔(秒)，0表示不检测
+     */
+    private int idleConnectionTestPeriod = 0;
+
+    /**
+     * 检测连接使用的sql，为空时使用Connection.isValid
+     */
+    private String preferredTestQuery;
+
+    /**
+     * 借出连接之前是否检测连接
+     */
+    private boolean testConnectionOnCheckout;
+
+    /**
+     * testConnectionOnCheckout=true 时，只检测空闲时间超过此值(毫秒)的连接
+     */
+    private long checkoutTestIdleMillis = 500;
+
+    private final ConnectionBag bag = new ConnectionBag();
+
+    private final AtomicInteger totalConnections = new AtomicInteger();
+
+    private final LongAdder borrowCount = new LongAdder();
+
+    private final LongAdder timeoutCount = new LongAdder();
+
+    private final LongAdder createdCount = new LongAdder();
+
+    private final LongAdder closedCount = new LongAdder();
+
+    private final LongAdder acquireNanos = new LongAdder();
+
+    private final AtomicLong maxAcquireNanos = new AtomicLong();
+
+    private volatile boolean initialized;
+
+    private volatile boolean closed;
+
+    private ScheduledFuture<?> houseKeepingFuture;
+
+    private final AtomicBoolean houseKeeping = new AtomicBoolean();
+
+    private PrintWriter logWriter;
+
+    private int loginTimeout;
+
+    private static ScheduledExecutorService getHouseKeeper() {
+        if (houseKeeper == null) {
+            synchronized (HaloPooledDataSource.class) {
+                if (houseKeeper == null) {
+                    houseKeepWorker = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), r -> {
+                        Thread t = new Thread(r, "HaloPooledDataSource-housekeeper-" + threadNumber.getAndIncrement());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                        Thread t = new Thread(r, "HaloPooledDataSource-scheduler");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    executor.setRemoveOnCancelPolicy(true);
+                    houseKeeper = executor;
+                }
+            }
+        }
+        return houseKeeper;
+    }
+
+    /**
+     * 定时线程调用，上一次任务没有完成时跳过
+     */
+    private void dispatchHouseKeep() {
+        if (!this.houseKeeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            houseKeepWorker.execute(() -> {
+                try {
+                    this.houseKeep();
+                } finally {
+                    this.houseKeeping.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.houseKeeping.set(false);
+        }
+    }
+
+    private void init() throws SQLException {
+        if (this.initialized) {
+            return;
+        }
+        synchronized (this) {
+            if (this.initialized) {
+                return;
+            }
+            if (this.jdbcUrl == null) {
+                throw new SQLException("jdbcUrl must be not empty");
+            }
+            if (this.driverClass != null) {
+                try {
+                    Class.forName(this.driverClass);
+                } catch (ClassNotFoundException e) {
+                    throw new SQLException("driverClass[" + this.driverClass + "] not found", e);
+                }
+            }
+            int size = Math.min(Math.max(this.initialPoolSize, this.minPoolSize), this.maxPoolSize);
+            for (int i = 0; i < size; i++) {
+                PoolEntry entry = this.createEntry(PoolEntry.STATE_NOT_IN_USE);
+                if (entry == null) {
+                    break;
+                }
+            }
+            long period = this.getHouseKeepingPeriodSeconds();
+            this.houseKeepingFuture = getHouseKeeper().scheduleWithFixedDelay(this::dispatchHouseKeep, period, period, TimeUnit.SECONDS);
+            this.initialized = true;
+        }
+    }
+
+    private long getHouseKeepingPeriodSeconds() {
+        if (this.idleConnectionTestPeriod > 0) {
+            return this.idleConnectionTestPeriod;
+        }
+        return 30;
+    }
+
+    /**
+     * 创建真实连接并放入连接池，连接数量达到maxPoolSize时不创建
+     *
+     * @param state 连接的初始状态
+     * @return null:连接数量已经达到maxPoolSize
+     * @throws SQLException 创建连接失败
+     */
+    private PoolEntry createEntry(int state) throws SQLException {
+        while (true) {
+            int total = this.totalConnections.get();
+            if (total >= this.maxPoolSize) {
+                return null;
+            }
+            if (this.totalConnections.compareAndSet(total, total + 1)) {
+                break;
+            }
+        }
+        try {
+            Properties properties = new Properties();
+            if (this.user != null) {
+                properties.setProperty("user", this.user);
+            }
+            if (this.password != null) {
+                properties.setProperty("password", this.password);
+            }
+            Connection con = DriverManager.getConnection(this.jdbcUrl, properties);
+            String catalog;
+            try {
+                catalog = con.getCatalog();
+            } catch (SQLException e) {
+                con.close();
+                throw e;
+            }
+            PoolEntry entry = new PoolEntry(con, state, catalog);
+            this.createdCount.increment();
+            this.bag.add(entry);
+            return entry;
+        } catch (SQLException | RuntimeException e) {
+            this.totalConnections.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void closeEntry(PoolEntry entry) {
+        if (!this.bag.remove(entry)) {
+            return;
+        }
+        this.totalConnections.decrementAndGet();
+        this.closedCount.increment();
+        try {
+            entry.getConnection().close();
+        } catch (SQLException e) {
+            log.warn("close connection error jdbcUrl[" + this.jdbcUrl + "]", e);
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (this.closed) {
+            throw new SQLException("pool was closed jdbcUrl[" + this.jdbcUrl + "]");
+        }
+        this.init();
+        long begin = System.nanoTime();
+        long timeout = TimeUnit.MILLISECONDS.toNanos(this.checkoutTimeout > 0 ? this.checkoutTimeout : 30000);
+        long deadline = begin + timeout;
+        PoolEntry entry = this.bag.tryBorrow();
+        try {
+            while (true) {
+                if (entry != null) {
+                    if (this.isAlive(entry)) {
+                        break;
+                    }
+                    this.closeEntry(entry);
+                }
+                // 新创建的连接不需要检测
+                entry = this.createEntry(PoolEntry.STATE_IN_USE);
+                if (entry != null) {
+                    break;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    this.timeoutCount.increment();
+                    throw new SQLException("get connection timeout " + this.checkoutTimeout + "ms jdbcUrl[" + this.jdbcUrl + "]");
+                }
+                entry = this.bag.borrow(Math.min(remaining, WAIT_SLICE_NANOS), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting connection jdbcUrl[" + this.jdbcUrl + "]", e);
+        }
+        long used = System.nanoTime() - begin;
+        this.borrowCount.increment();
+        this.acquireNanos.add(used);
+        long max = this.maxAcquireNanos.get();
+        while (used > max && !this.maxAcquireNanos.compareAndSet(max, used)) {
+            max = this.maxAcquireNanos.get();
+        }
+        return new HaloPooledConnection(this, entry);
+    }
+
+    /**
+     * 连接使用完成后归还连接池，连接超过最长使用时间时关闭
+     *
+     * @param entry 连接
+     */
+    void requite(PoolEntry entry) {
+        long now = System.currentTimeMillis();
+        if (this.closed || (this.maxConnectionAge > 0 && now - entry.getCreateTime() > this.maxConnectionAge * 1000L)) {
+            this.closeEntry(entry);
+            return;
+        }
+        entry.setLastAccessed(now);
+        this.bag.requite(entry);
+    }
+
+    /**
+     * 连接状态无法恢复时，从连接池删除
+     *
+     * @param entry 连接
+     */
+    void evict(PoolEntry entry) {
+        this.closeEntry(entry);
+    }
+
+    /**
+     * 回收空闲与超时连接，检测空闲连接，补充最小连接数
+     */
+    private void houseKeep() {
+        try {
+            long now = System.currentTimeMillis();
+            List<PoolEntry> idleEntries = this.bag.values(PoolEntry.STATE_NOT_IN_USE);
+            for (PoolEntry entry : idleEntries) {
+                if (!entry.compareAndSet(PoolEntry.STATE_NOT_IN_USE, PoolEntry.STATE_RESERVED)) {
+                    continue;
+                }
+                boolean retire = false;
+                if (this.maxConnectionAge > 0 && now - entry.getCreateTime() > this.maxConnectionAge * 1000L) {
+                    retire = true;
+                } else if (this.maxIdleTime > 0 && now - entry.getLastAccessed() > this.maxIdleTime * 1000L
+                        && this.totalConnections.get() > this.minPoolSize) {
+                    retire = true;
+                } else if (this.idleConnectionTestPeriod > 0
+                        && now - entry.getLastAccessed() > this.idleConnectionTestPeriod * 1000L) {
+                    retire = !this.isValid(entry.getConnection());
+                }
+                if (retire) {
+                    this.closeEntry(entry);
+                } else {
+                    this.bag.requite(entry);
+                }
+            }
+            while (!this.closed && this.totalConnections.get() < this.minPoolSize) {
+                if (this.createEntry(PoolEntry.STATE_NOT_IN_USE) == null) {
+                    break;
+                }
+            }
+        } catch (Throwable e) {
+            log.warn("housekeeping error jdbcUrl[" + this.jdbcUrl + "]", e);
+        }
+    }
+
+    /**
+     * 借出之前检测空闲时间较长的连接
+     *
+     * @param entry 已经借出的连接
+     * @return false:连接已经失效
+     */
+    private boolean isAlive(PoolEntry entry) {
+        if (!this.testConnectionOnCheckout || System.currentTimeMillis() - entry.getLastAccessed() <= this.checkoutTestIdleMillis) {
+            return true;
+        }
+        if (this.isValid(entry.getConnection())) {
+            return true;
+        }
+        log.warn("connection is not valid on checkout jdbcUrl[" + this.jdbcUrl + "]");
+        return false;
+    }
+
+    private boolean isValid(Connection con) {
+        try {
+            if (this.preferredTestQuery == null) {
+                return con.isValid(5);
+            }
+            try (Statement stmt = con.createStatement()) {
+                stmt.execute(this.preferredTestQuery);
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 获得连接池运行数据
+     *
+     * @return 运行数据快照
+     */
+    public HaloPoolMetrics getMetrics() {
+        int idle = 0;
+        int active = 0;
+        for (PoolEntry entry : this.bag.values()) {
+            int state = entry.getState();
+            if (state == PoolEntry.STATE_NOT_IN_USE) {
+                idle++;
+            } else if (state == PoolEntry.STATE_IN_USE) {
+                active++;
+            }
+        }
+        long borrow = this.borrowCount.sum();
+        long avg = borrow == 0 ? 0 : this.acquireNanos.sum() / borrow / 1000;
+        return new HaloPoolMetrics(this.jdbcUrl, this.totalConnections.get(), idle, active, this.bag.getWaitingThreads(),
+                borrow, this.timeoutCount.sum(), this.createdCount.sum(), this.closedCount.sum(),
+                avg, this.maxAcquireNanos.get() / 1000);
+    }
+
+    /**
+     * 关闭连接池，空闲连接立即关闭，使用中的连接归还时关闭
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            this.closed = true;
+            if (this.houseKeepingFuture != null) {
+                this.houseKeepingFuture.cancel(false);
+            }
+        }
+        for (PoolEntry entry : this.bag.values(PoolEntry.STATE_NOT_IN_USE)) {
+            if (entry.compareAndSet(PoolEntry.STATE_NOT_IN_USE, PoolEntry.STATE_RESERVED)) {
+                this.closeEntry(entry);
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLException("only support getConnection()");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return this.logWriter;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        this.logWriter = out;
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        this.loginTimeout = seconds;
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return this.loginTimeout;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("unsupported unwrap " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    public String getJdbcUrl() {
+        return jdbcUrl;
+    }
+
+    public void setJdbcUrl(String jdbcUrl) {
+        this.jdbcUrl = jdbcUrl;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    public String getDriverClass() {
+        return driverClass;
+    }
+
+    public void setDriverClass(String driverClass) {
+        this.driverClass = driverClass;
+    }
+
+    public int getMinPoolSize() {
+        return minPoolSize;
+    }
+
+    public void setMinPoolSize(int minPoolSize) {
+        this.minPoolSize = minPoolSize;
+    }
+
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    public void setMaxPoolSize(int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    public int getInitialPoolSize() {
+        return initialPoolSize;
+    }
+
+    public void setInitialPoolSize(int initialPoolSize) {
+        this.initialPoolSize = initialPoolSize;
+    }
+
+    public int getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    public void setMaxIdleTime(int maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    public int getMaxConnectionAge() {
+        return maxConnectionAge;
+    }
+
+    public void setMaxConnectionAge(int maxConnectionAge) {
+        this.maxConnectionAge = maxConnectionAge;
+    }
+
+    public int getCheckoutTimeout() {
+        return checkoutTimeout;
+    }
+
+    public void setCheckoutTimeout(int checkoutTimeout) {
+        this.checkoutTimeout = checkoutTimeout;
+    }
+
+    public int getIdleConnectionTestPeriod() {
+        return idleConnectionTestPeriod;
+    }
+
+    public void setIdleConnectionTestPeriod(int idleConnectionTestPeriod) {
+        this.idleConnectionTestPeriod = idleConnectionTestPeriod;
+    }
+
+    public String getPreferredTestQuery() {
+        return preferredTestQuery;
+    }
+
+    public void setPreferredTestQuery(String preferredTestQuery) {
+        this.preferredTestQuery = preferredTestQuery;
+    }
+
+    public boolean isTestConnectionOnCheckout() {
+        return testConnectionOnCheckout;
+    }
+
+    public void setTestConnectionOnCheckout(boolean testConnectionOnCheckout) {
+        this.testConnectionOnCheckout = testConnectionOnCheckout;
+    }
+
+    public long getCheckoutTestIdleMillis() {
+        return checkoutTestIdleMillis;
+    }
+
+    public void setCheckoutTestIdleMillis(long checkoutTestIdleMillis) {
+        this.checkoutTestIdleMillis = checkoutTestIdleMillis;
+    }
+}
@@ -0,0 +1,91 @@
+package halo.query.dal.pool;
+
+import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 连接池中的一个真实连接，通过CAS修改状态完成借出与归还
+ */
+final class PoolEntry {
+
+    static final int STATE_NOT_IN_USE = 0;
+
+    static final int STATE_IN_USE = 1;
+
+    /**
+     * 已经从连接池删除
+     */
+    static final int STATE_REMOVED = -1;
+
+    /**
+     * 被后台任务占用，例如检测连接是否可用
+     */
+    static final int STATE_RESERVED = -2;
+
+    private final AtomicInteger state = new AtomicInteger(STATE_NOT_IN_USE);
+
+    private final Connection connection;
+
+    private final long createTime;
+
+    private volatile long lastAccessed;
+
+    /**
+     * 创建连接时的catalog
+     */
+    private final String homeCatalog;
+
+    /**
+     * 连接当前使用的catalog，归还时不恢复，下次使用时按需切换
+     */
+    private volatile String catalog;
+
+    PoolEntry(Connection connection, int state, String homeCatalog) {
+        this.connection = connection;
+        this.homeCatalog = homeCatalog;
+        this.catalog = homeCatalog;
+        this.state.set(state);
+        this.createTime = System.currentTimeMillis();
+        this.lastAccessed = this.createTime;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    long getCreateTime() {
+        return createTime;
+    }
+
+    long getLastAccessed() {
+        return lastAccessed;
+    }
+
+    void setLastAccessed(long lastAccessed) {
+        this.lastAccessed = lastAccessed;
+    }
+
+    String getHomeCatalog() {
+        return homeCatalog;
+    }
+
+    String getCatalog() {
+        return catalog;
+    }
+
+    void setCatalog(String catalog) {
+        this.catalog = catalog;
+    }
+
+    int getState() {
+        return this.state.get();
+    }
+
+    void setState(int state) {
+        this.state.set(state);
+    }
+
+    boolean compareAndSet(int expect, int update) {
+        return this.state.compareAndSet(expect, update);
+    }
+}
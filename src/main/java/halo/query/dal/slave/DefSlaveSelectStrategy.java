@@ -4,7 +4,7 @@ import halo.query.HaloQueryMSLDBDebugInfo;
 import org.apache.log4j.Logger;
 
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * 默认的slave选取策略
@@ -26,8 +26,7 @@ public class DefSlaveSelectStrategy implements SlaveSelectStrategy {
             }
             return dsKey;
         }
-        Random random = new Random();
-        int index = random.nextInt(slaveDsKeys.size());
+        int index = ThreadLocalRandom.current().nextInt(slaveDsKeys.size());
         String dsKey = slaveDsKeys.get(index);
         if (HaloQueryMSLDBDebugInfo.getInstance().isEnableDebug()) {
             logger.info("will return slave datasource [" + dsKey + "]");
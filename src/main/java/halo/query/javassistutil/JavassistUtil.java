@@ -2,6 +2,8 @@ package halo.query.javassistutil;
 
 import javassist.ClassClassPath;
 import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
 
 public class JavassistUtil {
 
@@ -16,4 +18,45 @@ public class JavassistUtil {
 	public static ClassPool getClassPool() {
 		return pool;
 	}
+
+	/**
+	 * 创建一个临时使用的ClassPool，用完后不再引用即可被回收，避免扫描的CtClass常驻内存
+	 *
+	 * @param classLoader 查找类时使用的classLoader
+	 * @return 临时ClassPool
+	 */
+	public static ClassPool createTempClassPool(ClassLoader classLoader) {
+		ClassPool tempPool = new ClassPool(true);
+		tempPool.insertClassPath(new ClassClassPath(JavassistUtil.class));
+		if (classLoader != null) {
+			tempPool.insertClassPath(new LoaderClassPath(classLoader));
+		}
+		return tempPool;
+	}
+
+	/**
+	 * 类已经加载到classLoader之后，从ClassPool中移除对应的CtClass，释放内存
+	 *
+	 * @param ctClass 已经调用过toClass的CtClass
+	 */
+	public static void detach(CtClass ctClass) {
+		if (ctClass != null) {
+			ctClass.detach();
+		}
+	}
+
+	/**
+	 * 在classLoader中查找已经生成的类
+	 *
+	 * @param classLoader classLoader
+	 * @param className   类名称
+	 * @return 已经加载的类，没有找到返回null
+	 */
+	public static Class<?> findLoadedClass(ClassLoader classLoader, String className) {
+		try {
+			return classLoader.loadClass(className);
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
 }
@@ -0,0 +1,67 @@
+package halo.query.mapping;
+
+import org.springframework.jdbc.core.RowMapper;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 只查询部分列的映射信息，包含select的字段sql片段与只对这些列赋值的 {@link RowMapper}，按照列的组合缓存在 {@link EntityTableInfo} 中
+ *
+ * @param <T> 对象泛型
+ * @author akwei
+ */
+public class EntityProjection<T> {
+
+    private final List<String> columnNames;
+
+    private final String selectedFieldSQL;
+
+    private final RowMapper<T> rowMapper;
+
+    EntityProjection(EntityTableInfo<T> entityTableInfo, List<String> columnNames) {
+        this.columnNames = columnNames;
+        List<Field> fields = new ArrayList<>(columnNames.size());
+        StringBuilder sb = new StringBuilder();
+        StringBuilder name = new StringBuilder("P");
+        for (String col : columnNames) {
+            Field field = entityTableInfo.getField(col);
+            if (field == null) {
+                throw new IllegalArgumentException("column [ " + col + " ] not found in " + entityTableInfo.getClazz().getName());
+            }
+            fields.add(field);
+            sb.append(entityTableInfo.getTableAlias());
+            sb.append(".");
+            sb.append(col);
+            sb.append(" as ");
+            sb.append(entityTableInfo.getColumnAlias(col));
+            sb.append(",");
+            // 使用field的序号，不同的列组合生成的类名称不会相同
+            name.append('_').append(entityTableInfo.getTableFields().indexOf(field));
+        }
+        if (!columnNames.isEmpty()) {
+            sb.deleteCharAt(sb.length() - 1);
+        }
+        this.selectedFieldSQL = sb.toString();
+        JavassitRowMapperClassCreater<T> creater = new JavassitRowMapperClassCreater<>(entityTableInfo, fields, name.toString());
+        Class<RowMapper<T>> mapperClass = creater.getMapperClass();
+        try {
+            this.rowMapper = mapperClass.getConstructor().newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    public String getSelectedFieldSQL() {
+        return selectedFieldSQL;
+    }
+
+    public RowMapper<T> getRowMapper() {
+        return rowMapper;
+    }
+}
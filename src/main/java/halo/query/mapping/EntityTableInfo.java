@@ -9,6 +9,7 @@ import org.springframework.jdbc.core.RowMapper;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 表与实体类的映射信息类,此对象的所有操作请在同一个线程完成，本类的所有操作非线程安全
@@ -56,10 +57,25 @@ public class EntityTableInfo<T> {
      */
     private final List<Field> tableFields = new ArrayList<Field>();
 
+    /**
+     * 默认select的field集合，不包括延迟加载的field
+     */
+    private final List<Field> selectedFields = new ArrayList<Field>();
+
+    /**
+     * 延迟加载的field集合
+     */
+    private final List<Field> lazyFields = new ArrayList<Field>();
+
     private RowMapper<T> rowMapper;
 
     private SQLMapper<T> sqlMapper;
 
+    /**
+     * 部分列查询的映射信息，key为列名称组合
+     */
+    private final Map<String, EntityProjection<T>> projectionMap = new ConcurrentHashMap<String, EntityProjection<T>>();
+
     public DALParser getDalParser() {
         return dalParser;
     }
@@ -149,6 +165,25 @@ public class EntityTableInfo<T> {
         return tableFields;
     }
 
+    /**
+     * 获得默认select的field，不包括延迟加载的field
+     *
+     * @return field list
+     */
+    public List<Field> getSelectedFields() {
+        return selectedFields;
+    }
+
+    /**
+     * 是否是延迟加载的field
+     *
+     * @param field 字段
+     * @return true/false
+     */
+    public boolean isLazyField(Field field) {
+        return this.lazyFields.contains(field);
+    }
+
     /**
      * 获得spring RowMapper对象
      *
@@ -167,6 +202,24 @@ public class EntityTableInfo<T> {
         return sqlMapper;
     }
 
+    /**
+     * 获得只查询部分列的映射信息，相同列组合的映射信息只创建一次
+     *
+     * @param columns 需要查询的列名称
+     * @return 部分列的映射信息
+     */
+    public EntityProjection<T> getProjection(String[] columns) {
+        if (columns == null || columns.length == 0) {
+            throw new IllegalArgumentException("columns must be not empty");
+        }
+        String key = String.join(",", columns);
+        EntityProjection<T> projection = this.projectionMap.get(key);
+        if (projection != null) {
+            return projection;
+        }
+        return this.projectionMap.computeIfAbsent(key, k -> new EntityProjection<T>(this, Arrays.asList(columns.clone())));
+    }
+
     /**
      * 是否是id的field
      *
@@ -209,11 +262,12 @@ public class EntityTableInfo<T> {
     }
 
     /**
-     * 创建select的字段sql片段
+     * 创建select的字段sql片段，不包括延迟加载的字段
      */
     private void buildSelectedFieldSQL() {
         StringBuilder sb = new StringBuilder();
-        for (String col : columnNames) {
+        for (Field field : selectedFields) {
+            String col = this.fieldColumnMap.get(field.getName());
             sb.append(this.tableAlias);
             sb.append(".");
             sb.append(col);
@@ -221,7 +275,7 @@ public class EntityTableInfo<T> {
             sb.append(this.getColumnAlias(col));
             sb.append(",");
         }
-        if (!columnNames.isEmpty()) {
+        if (!selectedFields.isEmpty()) {
             sb.deleteCharAt(sb.length() - 1);
         }
         this.selectedFieldSQL = sb.toString();
@@ -283,6 +337,11 @@ public class EntityTableInfo<T> {
                 fieldColumnMap.put(f.getName(), colName);
                 columnFieldMap.put(colName, f);
                 columnNames.add(colName);
+                if (column.lazy()) {
+                    lazyFields.add(f);
+                } else {
+                    selectedFields.add(f);
+                }
                 if (column.cas()) {
                     if (this.casField != null) {
                         throw new IllegalStateException(clazz.getName() +
@@ -311,6 +370,9 @@ public class EntityTableInfo<T> {
             if (id == null) {
                 continue;
             }
+            if (this.lazyFields.contains(f)) {
+                throw new IllegalStateException(clazz.getName() + " id field can not be lazy: " + f.getName());
+            }
             f.setAccessible(true);
             list.add(new IdFieldObject(f, id.value(), this.getColumnValue(f)));
         }
@@ -6,6 +6,7 @@ import javassist.*;
 import org.springframework.jdbc.core.RowMapper;
 
 import java.lang.reflect.Field;
+import java.util.List;
 
 /**
  * 使用Javassist动态创建 {@link RowMapper}字节码数据，并加载到当前Classloader中
@@ -19,38 +20,54 @@ public class JavassitRowMapperClassCreater<T> {
     /**
      * {@link RowMapper}类对象
      */
-    private Class<T> mapperClass;
+    private Class<RowMapper<T>> mapperClass;
 
     public JavassitRowMapperClassCreater(EntityTableInfo<T> entityTableInfo) {
+        this(entityTableInfo, entityTableInfo.getSelectedFields(), null);
+    }
+
+    /**
+     * 创建只对部分字段赋值的 {@link RowMapper}
+     *
+     * @param entityTableInfo 对象信息
+     * @param fields          需要赋值的字段
+     * @param name            用于区分不同字段组合的名称，null表示对默认select的字段赋值
+     */
+    public JavassitRowMapperClassCreater(EntityTableInfo<T> entityTableInfo, List<Field> fields, String name) {
         super();
         String mapperClassName = this.createMapperClassName(entityTableInfo.getClazz());
+        if (name != null) {
+            mapperClassName = mapperClassName + "$" + name;
+        }
+        // 如果已经有同名类就赋值
+        Class<?> loadedClass = JavassistUtil.findLoadedClass(classLoader, mapperClassName);
+        if (loadedClass != null) {
+            this.mapperClass = (Class<RowMapper<T>>) loadedClass;
+            return;
+        }
+        CtClass cc = null;
         try {
             ClassPool pool = JavassistUtil.getClassPool();
             CtClass rowMapperClass = pool.get(RowMapper.class.getName());
-            try {
-                pool.getCtClass(mapperClassName);
-                // 如果已经有同名类就赋值
-                this.mapperClass = (Class<T>) classLoader.loadClass(mapperClassName);
-            } catch (NotFoundException e) {
-                // 没有找到，就创建新的class
-                CtClass cc = pool.makeClass(mapperClassName);
-                cc.setInterfaces(new CtClass[]{rowMapperClass});
-                String src = this.createMethodSrc(entityTableInfo);
-                CtMethod mapRowMethod;
-                mapRowMethod = CtNewMethod.make(src, cc);
-                cc.addMethod(mapRowMethod);
-                this.mapperClass = cc.toClass(classLoader, classLoader.getClass().getProtectionDomain());
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException(e);
-            }
+            // 没有找到，就创建新的class
+            cc = pool.makeClass(mapperClassName);
+            cc.setInterfaces(new CtClass[]{rowMapperClass});
+            String src = this.createMethodSrc(entityTableInfo, fields);
+            CtMethod mapRowMethod;
+            mapRowMethod = CtNewMethod.make(src, cc);
+            cc.addMethod(mapRowMethod);
+            this.mapperClass = cc.toClass(classLoader, classLoader.getClass().getProtectionDomain());
         } catch (CannotCompileException e) {
             throw new RuntimeException(e);
         } catch (NotFoundException e) {
             throw new RuntimeException(e);
+        } finally {
+            // class已经加载，不再需要保留CtClass
+            JavassistUtil.detach(cc);
         }
     }
 
-    public Class<T> getMapperClass() {
+    public Class<RowMapper<T>> getMapperClass() {
         return mapperClass;
     }
 
@@ -71,16 +88,17 @@ public class JavassitRowMapperClassCreater<T> {
      * 按照 {@link RowMapper}的接口定义，生成子类所需要的方法信息
      *
      * @param entityTableInfo
+     * @param fields
      * @return
      */
-    private String createMethodSrc(EntityTableInfo<T> entityTableInfo) {
+    private String createMethodSrc(EntityTableInfo<T> entityTableInfo, List<Field> fields) {
         StringBuilder sb = new StringBuilder(
                 "public Object mapRow(java.sql.ResultSet rs, int rowNum) throws java.sql.SQLException{");
         // obj init
         sb.append(entityTableInfo.getClazz().getName() + " obj = new "
                 + entityTableInfo.getClazz().getName() + "();");
         // 进行 obj.setter(rs.getString....)等赋值操作
-        for (Field field : entityTableInfo.getTableFields()) {
+        for (Field field : fields) {
             sb.append(this.createGetterSrc(entityTableInfo, field));
         }
         // return
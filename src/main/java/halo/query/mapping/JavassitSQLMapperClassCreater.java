@@ -14,27 +14,28 @@ public class JavassitSQLMapperClassCreater<T> {
     public JavassitSQLMapperClassCreater(EntityTableInfo<T> entityTableInfo) {
         super();
         String mapperClassName = this.createMapperClassName(entityTableInfo.getClazz());
+        Class<?> loadedClass = JavassistUtil.findLoadedClass(classLoader, mapperClassName);
+        if (loadedClass != null) {
+            this.mapperClass = (Class<T>) loadedClass;
+            return;
+        }
+        CtClass cc = null;
         try {
             ClassPool pool = JavassistUtil.getClassPool();
             CtClass sqlMapperClass = pool.get(SQLMapper.class.getName());
-            CtClass cc;
-            try {
-                pool.getCtClass(mapperClassName);
-                this.mapperClass = (Class<T>) classLoader.loadClass(mapperClassName);
-            } catch (NotFoundException e) {
-                cc = pool.makeClass(mapperClassName);
-                cc.setInterfaces(new CtClass[]{sqlMapperClass});
-                this.createGetIdParamMethod(entityTableInfo, cc);
-                this.createGetParamsForInsertMethod(entityTableInfo, cc);
-                this.createGetParamsForUpdateMethod(entityTableInfo, cc);
-                this.mapperClass = cc.toClass(classLoader, classLoader.getClass().getProtectionDomain());
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException(e);
-            }
+            cc = pool.makeClass(mapperClassName);
+            cc.setInterfaces(new CtClass[]{sqlMapperClass});
+            this.createGetIdParamMethod(entityTableInfo, cc);
+            this.createGetParamsForInsertMethod(entityTableInfo, cc);
+            this.createBindInsertMethod(entityTableInfo, cc);
+            this.createGetParamsForUpdateMethod(entityTableInfo, cc);
+            this.mapperClass = cc.toClass(classLoader, classLoader.getClass().getProtectionDomain());
         } catch (CannotCompileException e) {
             throw new RuntimeException(e);
         } catch (NotFoundException e) {
             throw new RuntimeException(e);
+        } finally {
+            JavassistUtil.detach(cc);
         }
     }
 
@@ -125,6 +126,33 @@ public class JavassitSQLMapperClassCreater<T> {
         }
     }
 
+    private void createBindInsertMethod(EntityTableInfo<T> entityTableInfo, CtClass cc) {
+        StringBuilder sb = new StringBuilder("public int bindInsert(java.sql.PreparedStatement ps,int index,Object t,boolean hasIdFieldValue){");
+        try {
+            String className = entityTableInfo.getClazz().getName();
+            sb.append(className + " o =(" + className + ")t;");
+            String psBindUtilClassName = PsBindUtil.class.getName();
+            for (Field field : entityTableInfo.getTableFields()) {
+                String bind = psBindUtilClassName + ".bind(ps,index++,o." + MethodNameUtil.createGetMethodString(field) + "());";
+                // 联合主键总是包含id的值
+                if (entityTableInfo.getIdFields().size() == 1 && entityTableInfo.isIdField(field)) {
+                    sb.append("\n\tif(hasIdFieldValue){").append(bind).append("}");
+                } else {
+                    sb.append("\n\t").append(bind);
+                }
+            }
+            sb.append("\n return index;}");
+            String src = sb.toString();
+            CtMethod bindMethod = CtNewMethod.make(src, cc);
+            bindMethod.setExceptionTypes(new CtClass[]{JavassistUtil.getClassPool().get("java.sql.SQLException")});
+            cc.addMethod(bindMethod);
+        } catch (CannotCompileException e) {
+            throw new RuntimeException(sb.toString(), e);
+        } catch (NotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private void createGetParamsForUpdateMethod(
             EntityTableInfo<T> entityTableInfo,
             CtClass cc) throws CannotCompileException {
@@ -0,0 +1,157 @@
+package halo.query.mapping;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Date;
+
+/**
+ * 生成的 {@link SQLMapper} 按照字段类型设置 {@link PreparedStatement} 参数，null 使用字段对应的sql类型
+ *
+ * @author akwei
+ */
+public class PsBindUtil {
+
+    public static void bind(PreparedStatement ps, int index, int value) throws SQLException {
+        ps.setInt(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, Integer value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.INTEGER);
+            return;
+        }
+        ps.setInt(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, long value) throws SQLException {
+        ps.setLong(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, Long value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.BIGINT);
+            return;
+        }
+        ps.setLong(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, short value) throws SQLException {
+        ps.setShort(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, Short value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.SMALLINT);
+            return;
+        }
+        ps.setShort(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, byte value) throws SQLException {
+        ps.setByte(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, Byte value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.TINYINT);
+            return;
+        }
+        ps.setByte(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, boolean value) throws SQLException {
+        ps.setBoolean(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, float value) throws SQLException {
+        ps.setFloat(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, Float value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.FLOAT);
+            return;
+        }
+        ps.setFloat(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, double value) throws SQLException {
+        ps.setDouble(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, Double value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.DOUBLE);
+            return;
+        }
+        ps.setDouble(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, String value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.VARCHAR);
+            return;
+        }
+        ps.setString(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, BigDecimal value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.DECIMAL);
+            return;
+        }
+        ps.setBigDecimal(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, BigInteger value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.BIGINT);
+            return;
+        }
+        ps.setBigDecimal(index, new BigDecimal(value));
+    }
+
+    public static void bind(PreparedStatement ps, int index, Timestamp value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.TIMESTAMP);
+            return;
+        }
+        ps.setTimestamp(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, java.sql.Date value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.DATE);
+            return;
+        }
+        ps.setDate(index, value);
+    }
+
+    public static void bind(PreparedStatement ps, int index, Date value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.TIMESTAMP);
+            return;
+        }
+        if (value instanceof Timestamp) {
+            ps.setTimestamp(index, (Timestamp) value);
+            return;
+        }
+        if (value instanceof java.sql.Date) {
+            ps.setDate(index, (java.sql.Date) value);
+            return;
+        }
+        ps.setTimestamp(index, new Timestamp(value.getTime()));
+    }
+
+    public static void bind(PreparedStatement ps, int index, HaloQueryEnum value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.INTEGER);
+            return;
+        }
+        ps.setInt(index, value.getValue());
+    }
+}
@@ -1,5 +1,8 @@
 package halo.query.mapping;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
 /**
  * 此接口的存在是为了利用字节码进行类生成，提高性能，避免使用反射操作
  *
@@ -17,6 +20,18 @@ public interface SQLMapper<T> {
      */
     Object[] getParamsForInsert(T t, boolean hasIdFieldValue);
 
+    /**
+     * 按照字段类型直接设置insert需要的参数，参数顺序与 {@link #getParamsForInsert(Object, boolean)} 相同
+     *
+     * @param ps              PreparedStatement
+     * @param index           第一个参数的位置，从1开始
+     * @param t               需要insert的对象
+     * @param hasIdFieldValue 是否包含id的值，对于联合主键，此参数无效
+     * @return 下一个参数的位置，多行insert时作为下一行的index
+     * @throws SQLException 设置参数失败
+     */
+    int bindInsert(PreparedStatement ps, int index, T t, boolean hasIdFieldValue) throws SQLException;
+
     /**
      * 返回update需要的参数以及id所对应的参数组成的数组
      *
@@ -6,11 +6,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 import javassist.CannotCompileException;
+import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.CtMethod;
 import javassist.NotFoundException;
@@ -29,7 +30,10 @@ public class ModelLoader {
 
     private static boolean loaded = false;
 
-    private final Map<String, CtClass> map = new HashMap<String, CtClass>();
+    /**
+     * 已经植入代码的类名称，只保存名称，不保留CtClass
+     */
+    private final Set<String> createdClassNames = new HashSet<String>();
 
     private final PathMatchingResourcePatternResolver resolver = new PathMatchingResourcePatternResolver();
 
@@ -76,12 +80,18 @@ public class ModelLoader {
         }
         log.info("halo-query locationPattern:" + this.locationPattern);
         Resource[] resources = this.resolver.getResources(locationPattern);
+        // 扫描使用临时ClassPool，扫描结束后整体丢弃，被扫描的CtClass不会常驻内存
+        ClassPool scanPool = JavassistUtil.createTempClassPool(classLoader);
         for (Resource resource : resources) {
-            InputStream is = null;
-            CtClass ctClass = null;
-            is = resource.getInputStream();
-            ctClass = JavassistUtil.getClassPool().makeClass(is);
+            InputStream is = resource.getInputStream();
+            CtClass ctClass;
+            try {
+                ctClass = scanPool.makeClass(is);
+            } finally {
+                is.close();
+            }
             if (ctClass.getName().equals(BaseModel.class.getName())) {
+                ctClass.detach();
                 continue;
             }
             this.createClasses(ctClass);
@@ -98,17 +108,17 @@ public class ModelLoader {
         try {
             log.info("javassist override class [" + ctClass.getName() + "]");
             String className = ctClass.getName();
-            if (map.containsKey(className)) {
+            if (createdClassNames.contains(className)) {
                 return false;
             }
             List<CtMethod> list = ModelMethod.addNewMethod(
-                    JavassistUtil.getClassPool(), className, ctClass);
+                    ctClass.getClassPool(), className, ctClass);
             for (CtMethod ctMethod : list) {
                 ctClass.addMethod(ctMethod);
             }
             ctClass.toClass(classLoader, classLoader.getClass()
                     .getProtectionDomain());
-            map.put(className, ctClass);
+            createdClassNames.add(className);
         } catch (Exception e) {
             throw new RuntimeException(e);
         } finally {
@@ -0,0 +1,158 @@
+package test;
+
+import halo.query.AsyncQuery;
+import halo.query.dal.DALContext;
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.Minfo;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * 异步查询的分区信息传递、调用线程分区信息的释放、线程池满时的拒绝与virtual thread
+ */
+public class AsyncQueryTest {
+
+    private MockDb db;
+
+    private AsyncQuery asyncQuery;
+
+    @Before
+    public void before() {
+        db = MockDb.create();
+        MockDriver.setHandler(call -> call.sql.startsWith("select count") ? Collections.singletonList(MockDriver.row("count", 0)) : null);
+    }
+
+    @After
+    public void after() {
+        if (asyncQuery != null) {
+            asyncQuery.destory();
+        }
+        db.destory();
+    }
+
+    private AsyncQuery createAsyncQuery(int poolSize, int queueSize) throws Exception {
+        AsyncQuery asyncQuery = new AsyncQuery();
+        asyncQuery.setQuery(db.getQuery());
+        asyncQuery.setCorePoolSize(poolSize);
+        asyncQuery.setMaxPoolSize(poolSize);
+        asyncQuery.setQueueSize(queueSize);
+        asyncQuery.afterPropertiesSet();
+        return asyncQuery;
+    }
+
+    private static DALInfo dalInfo(int i) {
+        DALInfo dalInfo = DALInfo.createForManual();
+        dalInfo.setDsKey("db" + i);
+        dalInfo.setRealTable(Minfo.class, "minfo_" + i);
+        return dalInfo;
+    }
+
+    @Test
+    public void propagateContext() throws Exception {
+        asyncQuery = createAsyncQuery(1, 10);
+        // 使用调用线程中的分区信息
+        DALStatus.setDalInfo(dalInfo(2));
+        asyncQuery.list(Minfo.class, "where tid=?", new Object[]{1}).get(5, TimeUnit.SECONDS);
+        // 使用传入的分区信息
+        DALContext dalContext = DALContext.create();
+        dalContext.setDalInfo(dalInfo(3));
+        asyncQuery.count(Minfo.class, "where tid=?", new Object[]{1}, dalContext).get(5, TimeUnit.SECONDS);
+        List<MockDriver.Call> calls = MockDriver.calls();
+        Assert.assertEquals(2, calls.size());
+        Assert.assertEquals("db2", calls.get(0).catalog);
+        Assert.assertTrue(calls.get(0).sql, calls.get(0).sql.contains(" from minfo_2 "));
+        Assert.assertEquals("db3", calls.get(1).catalog);
+        Assert.assertTrue(calls.get(1).sql, calls.get(1).sql.contains(" from minfo_3 "));
+        // 执行线程结束后清除分区信息，下一个任务不受影响
+        Assert.assertNull(asyncQuery.submit(DALContext.create(), ctx -> DALStatus.getDalInfo()).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void releaseCallerStatus() throws Exception {
+        asyncQuery = createAsyncQuery(1, 10);
+        DALStatus.setDalInfo(dalInfo(1));
+        CompletableFuture<String> future = asyncQuery.submit(null, ctx -> ctx.getDalInfo().getDsKey());
+        // 与同步调用一样，提交后调用线程的分区信息被释放
+        Assert.assertNull(DALStatus.getDalInfo());
+        Assert.assertEquals("db1", future.get(5, TimeUnit.SECONDS));
+        // 事务中的连接仍然需要分区信息，不释放
+        db.inTransaction(status -> {
+            DALStatus.setDalInfo(dalInfo(1));
+            db.getQuery().count(Minfo.class, null, null);
+            DALStatus.setDalInfo(dalInfo(1));
+            try {
+                Assert.assertEquals("db1", asyncQuery.submit(null, ctx -> ctx.getDalInfo().getDsKey()).get(5, TimeUnit.SECONDS));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            Assert.assertNotNull(DALStatus.getDalInfo());
+            return null;
+        });
+    }
+
+    @Test
+    public void rejectWhenQueueFull() throws Exception {
+        asyncQuery = createAsyncQuery(1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        MockDriver.setHook((catalog, method) -> {
+            if (method.equals("executeQuery")) {
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        futures.add(asyncQuery.count(Minfo.class, null, null));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        futures.add(asyncQuery.count(Minfo.class, null, null));
+        try {
+            asyncQuery.count(Minfo.class, null, null);
+            Assert.fail();
+        } catch (RejectedExecutionException e) {
+            // 线程与队列已满
+        }
+        release.countDown();
+        for (CompletableFuture<Integer> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(2, MockDriver.calls().size());
+    }
+
+    @Test
+    public void virtualThreads() throws Exception {
+        asyncQuery = new AsyncQuery();
+        asyncQuery.setQuery(db.getQuery());
+        asyncQuery.setUseVirtualThreads(true);
+        asyncQuery.afterPropertiesSet();
+        String version = System.getProperty("java.specification.version");
+        // jdk21开始正式支持virtual thread
+        boolean supported = !version.startsWith("1.") && Integer.parseInt(version) >= 21;
+        Thread thread = asyncQuery.submit(DALContext.create(), ctx -> {
+            db.getQuery().count(Minfo.class, null, null);
+            return Thread.currentThread();
+        }).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, MockDriver.calls().size());
+        if (!supported) {
+            // 不支持virtual thread时使用线程池
+            Assert.assertTrue(asyncQuery.getExecutorService() instanceof ThreadPoolExecutor);
+            Assert.assertTrue(thread.getName().startsWith("AsyncQuery-thread-"));
+        } else {
+            Assert.assertFalse(asyncQuery.getExecutorService() instanceof ThreadPoolExecutor);
+            Method isVirtual = Thread.class.getMethod("isVirtual");
+            Assert.assertEquals(true, isVirtual.invoke(thread));
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package test;
+
+import halo.query.Query;
+import halo.query.dal.ParsedInfo;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import test.bean.ShardItem;
+import test.bean.ShardItemParser;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+
+/**
+ * 批量cas update按照分区执行，只有更新失败的对象恢复cas值
+ */
+public class BatchCasUpdateTest {
+
+    private MockDb db;
+
+    private Query query;
+
+    /**
+     * 数据库中每个itemid的ver
+     */
+    private final Map<Long, Long> versions = new HashMap<>();
+
+    @Before
+    public void before() {
+        db = MockDb.create();
+        MockDriver.setHandler(call -> {
+            if (!call.type.equals("executeBatch")) {
+                return null;
+            }
+            int[] results = new int[call.batch.size()];
+            for (int i = 0; i < results.length; i++) {
+                List<Object> values = call.batch.get(i);
+                long itemid = (Long) values.get(values.size() - 2);
+                long ver = (Long) values.get(values.size() - 1);
+                if (versions.get(itemid) == ver) {
+                    versions.put(itemid, ver + 1);
+                    results[i] = 1;
+                }
+            }
+            return results;
+        });
+        query = db.getQuery();
+    }
+
+    @After
+    public void after() {
+        db.destory();
+    }
+
+    /**
+     * @return 每次批量执行的 catalog、sql 与参数
+     */
+    private List<MockDriver.Call> batches() {
+        return MockDriver.calls();
+    }
+
+    @Test
+    public void batchCasUpdate() {
+        List<ShardItem> list = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            ShardItem item = new ShardItem();
+            item.setItemid(i);
+            item.setUid(i);
+            item.setName("n" + i);
+            item.setVer(3);
+            // 奇数的数据已经被其他请求修改
+            versions.put((long) i, i % 2 == 0 ? 3L : 4L);
+            list.add(item);
+        }
+        List<ShardItem> failedList = query.batchCasUpdate(list);
+        Assert.assertEquals(10, failedList.size());
+        for (ShardItem item : list) {
+            if (item.getItemid() % 2 == 0) {
+                Assert.assertEquals(4, item.getVer());
+                Assert.assertFalse(failedList.contains(item));
+            } else {
+                Assert.assertEquals(3, item.getVer());
+                Assert.assertTrue(failedList.contains(item));
+            }
+        }
+        // 每个分区一次批量update
+        ShardItemParser parser = new ShardItemParser();
+        Set<String> tables = new HashSet<>();
+        for (MockDriver.Call batch : batches()) {
+            String sql = batch.sql;
+            String table = sql.substring("update ".length(), sql.indexOf(" set"));
+            Assert.assertTrue(tables.add(table));
+            Assert.assertTrue(sql, sql.endsWith(" set uid=?,name=?,ver=? where itemid=? and ver=?"));
+            for (List<Object> values : batch.batch) {
+                ParsedInfo parsedInfo = parser.parse(Collections.singletonMap("uid", values.get(0)));
+                Assert.assertEquals(parsedInfo.getDsKey(), batch.catalog);
+                Assert.assertEquals(parsedInfo.getRealTableName(), table);
+            }
+        }
+        Assert.assertEquals(4, batches().size());
+    }
+
+    @Test
+    public void rollbackOnError() {
+        MockDriver.setHook((catalog, method) -> {
+            if (method.equals("executeBatch")) {
+                throw new SQLException("error");
+            }
+        });
+        ShardItem item = new ShardItem();
+        item.setItemid(1);
+        item.setVer(3);
+        try {
+            query.batchCasUpdate(Collections.singletonList(item));
+            Assert.fail();
+        } catch (DataAccessException e) {
+            Assert.assertEquals("error", e.getRootCause().getMessage());
+        }
+        Assert.assertEquals(3, item.getVer());
+    }
+
+    @Test
+    public void unknownResult() {
+        MockDriver.setHandler(call -> call.type.equals("executeBatch") ? new int[]{1, Statement.SUCCESS_NO_INFO, Statement.EXECUTE_FAILED} : null);
+        List<ShardItem> list = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ShardItem item = new ShardItem();
+            item.setItemid(i);
+            // 相同的uid在同一个分区
+            item.setUid(1);
+            item.setVer(3);
+            list.add(item);
+        }
+        // 没有影响数量时无法确认cas是否匹配，按照失败返回
+        Assert.assertEquals(Arrays.asList(list.get(1), list.get(2)), query.batchCasUpdate(list));
+        Assert.assertEquals(4, list.get(0).getVer());
+        Assert.assertEquals(3, list.get(1).getVer());
+        Assert.assertEquals(3, list.get(2).getVer());
+        Assert.assertEquals(1, batches().size());
+    }
+}
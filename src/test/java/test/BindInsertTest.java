@@ -0,0 +1,63 @@
+package test;
+
+import halo.query.Query;
+import halo.query.mapping.SQLMapper;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import test.bean.TestUser2;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 生成的SQLMapper按照字段类型设置insert参数
+ */
+public class BindInsertTest {
+
+    /**
+     * 记录 setter 调用的 PreparedStatement 方法，每个参数为 方法名:参数位置:值
+     */
+    static Object[] bind(PreparedStatementSetter setter) throws SQLException {
+        List<String> calls = record(setter);
+        Object[] values = new Object[calls.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = calls.get(i);
+        }
+        return values;
+    }
+
+    private static List<String> record(PreparedStatementSetter setter) throws SQLException {
+        final List<String> calls = new ArrayList<>();
+        PreparedStatement ps = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class[]{PreparedStatement.class}, (proxy, method, args) -> {
+            calls.add(method.getName() + ":" + args[0] + ":" + args[1]);
+            return null;
+        });
+        setter.setValues(ps);
+        return calls;
+    }
+
+    @Test
+    public void bindInsert() throws SQLException {
+        final SQLMapper<TestUser2> mapper = Query.getSqlMapper(TestUser2.class);
+        final TestUser2 user = new TestUser2();
+        user.setUserid(5);
+        user.setNick("a");
+        user.setGender((byte) 1);
+        user.setMoney(1.5);
+        user.setPurchase(2.5f);
+        List<String> calls = record(ps -> Assert.assertEquals(7, mapper.bindInsert(ps, 1, user, true)));
+        Assert.assertEquals("[setLong:1:5, setString:2:a, setNull:3:" + java.sql.Types.TIMESTAMP + ", setByte:4:1, setDouble:5:1.5, setFloat:6:2.5]", calls.toString());
+        // 不包含id时从id之后的字段开始
+        Date date = new Date(1000);
+        user.setNick(null);
+        user.setCreatetime(date);
+        calls = record(ps -> Assert.assertEquals(7, mapper.bindInsert(ps, 2, user, false)));
+        Assert.assertEquals("[setNull:2:" + java.sql.Types.VARCHAR + ", setTimestamp:3:" + new Timestamp(1000) + ", setByte:4:1, setDouble:5:1.5, setFloat:6:2.5]", calls.toString());
+    }
+}
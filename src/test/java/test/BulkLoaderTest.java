@@ -0,0 +1,153 @@
+package test;
+
+import halo.query.BulkLoader;
+import halo.query.dal.ParsedInfo;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.Minfo;
+import test.bean.ShardItem;
+import test.bean.ShardItemParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * load data 数据格式、分批与按分区导入
+ */
+public class BulkLoaderTest {
+
+    /**
+     * 每次执行的 catalog、sql 与数据
+     */
+    private final List<String[]> loads = Collections.synchronizedList(new ArrayList<>());
+
+    private MockDb db;
+
+    private BulkLoader bulkLoader;
+
+    @Before
+    public void before() {
+        db = MockDb.create();
+        MockDriver.setHandler(call -> {
+            String data;
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[7];
+                int n;
+                while ((n = call.in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                }
+                data = new String(out.toByteArray(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            loads.add(new String[]{call.catalog, call.sql, data});
+            return data.split("\n").length;
+        });
+        bulkLoader = new BulkLoader();
+        bulkLoader.setQuery(db.getQuery());
+    }
+
+    @After
+    public void after() {
+        db.destory();
+    }
+
+    private Minfo createMinfo(int tid, String name, String mkey) {
+        Minfo minfo = new Minfo();
+        minfo.setTid(tid);
+        minfo.setName(name);
+        minfo.setMkey(mkey);
+        return minfo;
+    }
+
+    @Test
+    public void escape() {
+        List<Minfo> list = Arrays.asList(createMinfo(1, "a\tb\\c", null), createMinfo(2, "中文\nd", "k"));
+        Assert.assertEquals(2, bulkLoader.load(Minfo.class, list.stream()));
+        Assert.assertEquals(1, loads.size());
+        Assert.assertEquals("load data local infile 'stream' into table minfo character set utf8mb4 (tid,name,mkey)", loads.get(0)[1]);
+        Assert.assertEquals("1\ta\\tb\\\\c\t\\N\n2\t中文\\nd\tk\n", loads.get(0)[2]);
+    }
+
+    @Test
+    public void chunk() {
+        bulkLoader.setChunkRows(2);
+        List<Minfo> list = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            list.add(createMinfo(i, "n" + i, "k"));
+        }
+        Assert.assertEquals(5, bulkLoader.load(Minfo.class, list.iterator()));
+        Assert.assertEquals(3, loads.size());
+        Assert.assertEquals("4\tn4\tk\n", loads.get(2)[2]);
+    }
+
+    @Test
+    public void shard() {
+        ShardItemParser parser = new ShardItemParser();
+        List<ShardItem> list = IntStream.range(0, 100).mapToObj(i -> {
+            ShardItem item = new ShardItem();
+            item.setItemid(i + 1);
+            item.setUid(i);
+            item.setName("n" + i);
+            return item;
+        }).collect(Collectors.toList());
+        Assert.assertEquals(100, bulkLoader.load(ShardItem.class, list.stream()));
+        Assert.assertEquals(4, loads.size());
+        Set<String> tables = new HashSet<>();
+        for (String[] load : loads) {
+            String table = load[1].substring("load data local infile 'stream' into table ".length(), load[1].indexOf(" character"));
+            tables.add(table);
+            for (String line : load[2].split("\n")) {
+                ParsedInfo parsedInfo = parser.parse(Collections.singletonMap("uid", Long.parseLong(line.split("\t")[1])));
+                Assert.assertEquals(parsedInfo.getDsKey(), load[0]);
+                Assert.assertEquals(parsedInfo.getRealTableName(), table);
+            }
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList("shard_item_0", "shard_item_1", "shard_item_2", "shard_item_3")), tables);
+    }
+
+    private int loadedRows() {
+        int rows = 0;
+        for (String[] load : loads) {
+            rows += load[2].split("\n").length;
+        }
+        return rows;
+    }
+
+    @Test
+    public void shardBufferBound() {
+        bulkLoader.setChunkRows(10);
+        final int[] read = new int[1];
+        Iterator<ShardItem> it = new Iterator<ShardItem>() {
+
+            @Override
+            public boolean hasNext() {
+                return read[0] < 100;
+            }
+
+            @Override
+            public ShardItem next() {
+                // 所有分区缓存的数据不超过 chunkRows
+                Assert.assertTrue(read[0] - loadedRows() < 10);
+                ShardItem item = new ShardItem();
+                item.setItemid(read[0] + 1);
+                item.setUid(read[0]);
+                item.setName("n" + read[0]);
+                read[0]++;
+                return item;
+            }
+        };
+        Assert.assertEquals(100, bulkLoader.load(ShardItem.class, it));
+        for (String[] load : loads) {
+            Assert.assertTrue(load[2].split("\n").length <= 10);
+        }
+        Assert.assertEquals(100, loadedRows());
+    }
+}
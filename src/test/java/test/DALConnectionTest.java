@@ -0,0 +1,265 @@
+package test;
+
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALStatus;
+import halo.query.dal.pool.HaloPooledDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DALConnection 获取、归还真实连接，真实连接的状态设置
+ */
+public class DALConnectionTest {
+
+    private MockDb db;
+
+    @After
+    public void after() {
+        if (db != null) {
+            db.destory();
+        }
+    }
+
+    private static void execute(Connection con, String dsKey) throws SQLException {
+        DALInfo dalInfo = DALInfo.createForManual();
+        dalInfo.setDsKey(dsKey);
+        DALStatus.setDalInfo(dalInfo);
+        con.prepareStatement("update minfo set name=?").executeUpdate();
+    }
+
+    @Test
+    public void earlyReleaseOnDsKeySwitch() throws Exception {
+        db = MockDb.create(MockDb.defaultProperties(), null, dataSource -> dataSource.setAutoCommitEarlyRelease(true));
+        Connection con = db.getDataSource().getConnection();
+        execute(con, "db0");
+        Assert.assertEquals(1, db.getActiveConnections("db0"));
+        execute(con, "db0");
+        Assert.assertEquals(1, db.getActiveConnections("db0"));
+        // autoCommit时切换dsKey前归还db0的连接
+        execute(con, "db1");
+        Assert.assertEquals(0, db.getActiveConnections("db0"));
+        Assert.assertEquals(1, db.getActiveConnections("db1"));
+        execute(con, "db0");
+        Assert.assertEquals(1, db.getActiveConnections("db0"));
+        Assert.assertEquals(0, db.getActiveConnections("db1"));
+        con.close();
+        Assert.assertEquals(0, db.getActiveConnections("db0"));
+        Assert.assertEquals(0, MockDriver.countEvents("db0:commit") + MockDriver.countEvents("db1:commit"));
+    }
+
+    @Test
+    public void earlyReleaseKeepTransaction() throws Exception {
+        db = MockDb.create(MockDb.defaultProperties(), null, dataSource -> dataSource.setAutoCommitEarlyRelease(true));
+        Connection con = db.getDataSource().getConnection();
+        con.setAutoCommit(false);
+        execute(con, "db0");
+        execute(con, "db1");
+        // 事务中的连接需要一起提交，不能提前归还
+        Assert.assertEquals(1, db.getActiveConnections("db0"));
+        Assert.assertEquals(1, db.getActiveConnections("db1"));
+        con.commit();
+        Assert.assertEquals(1, MockDriver.countEvents("db0:commit"));
+        Assert.assertEquals(1, MockDriver.countEvents("db1:commit"));
+        Assert.assertEquals(1, db.getActiveConnections("db0"));
+        con.close();
+        Assert.assertEquals(0, db.getActiveConnections("db0"));
+        Assert.assertEquals(0, db.getActiveConnections("db1"));
+    }
+
+    @Test
+    public void keepWithoutEarlyRelease() throws Exception {
+        db = MockDb.create();
+        Connection con = db.getDataSource().getConnection();
+        execute(con, "db0");
+        execute(con, "db1");
+        // 默认在DALConnection关闭时归还所有连接
+        Assert.assertEquals(1, db.getActiveConnections("db0"));
+        Assert.assertEquals(1, db.getActiveConnections("db1"));
+        con.close();
+        Assert.assertEquals(0, db.getActiveConnections("db0"));
+        Assert.assertEquals(0, db.getActiveConnections("db1"));
+    }
+
+    /**
+     * 使用新的 DALConnection 在dsKey执行一次sql
+     *
+     * @return 执行sql的连接的catalog
+     */
+    private String executeOnce(String dsKey) throws SQLException {
+        Connection con = db.getDataSource().getConnection();
+        try {
+            execute(con, dsKey);
+        } finally {
+            con.close();
+        }
+        List<MockDriver.Call> calls = MockDriver.calls();
+        return calls.get(calls.size() - 1).catalog;
+    }
+
+    @Test
+    public void shareSchemaPool() throws Exception {
+        db = MockDb.create(MockDb.defaultProperties(), null, dataSource -> dataSource.setShareSchemaPool(true));
+        // db0至db3只有schema不同，共用db0创建的连接池
+        Assert.assertNotNull(db.getPool("db0"));
+        Assert.assertNull(db.getPool("db1"));
+        Assert.assertEquals("db0", executeOnce("db0"));
+        Assert.assertEquals(0, MockDriver.setCatalogCounter.get());
+        Assert.assertEquals("db1", executeOnce("db1"));
+        Assert.assertEquals(1, MockDriver.setCatalogCounter.get());
+        // 连接已经是db1，不再切换
+        Assert.assertEquals("db1", executeOnce("db1"));
+        Assert.assertEquals(1, MockDriver.setCatalogCounter.get());
+        Assert.assertEquals("db2", executeOnce("db2"));
+        Assert.assertEquals(2, MockDriver.setCatalogCounter.get());
+        Assert.assertEquals("db0", executeOnce("db0"));
+        Assert.assertEquals(3, MockDriver.setCatalogCounter.get());
+        // 始终使用同一个真实连接
+        Assert.assertEquals(1, MockDriver.openedCounter.get());
+    }
+
+    @Test
+    public void sharedPoolTransaction() throws Exception {
+        db = MockDb.create(MockDb.defaultProperties(), null, dataSource -> dataSource.setShareSchemaPool(true));
+        Connection con = db.getDataSource().getConnection();
+        con.setAutoCommit(false);
+        execute(con, "db0");
+        execute(con, "db1");
+        // 同一个连接池的两个连接分别使用各自的schema
+        Assert.assertEquals(2, db.getActiveConnections("db0"));
+        List<MockDriver.Call> calls = MockDriver.calls();
+        Assert.assertEquals("db0", calls.get(0).catalog);
+        Assert.assertEquals("db1", calls.get(1).catalog);
+        con.commit();
+        con.close();
+        Assert.assertEquals(1, MockDriver.countEvents("db0:commit"));
+        Assert.assertEquals(1, MockDriver.countEvents("db1:commit"));
+        Assert.assertEquals(0, db.getActiveConnections("db0"));
+    }
+
+    @Test
+    public void removeSharedPoolOwner() throws Exception {
+        Map<String, String> properties = MockDb.defaultProperties();
+        db = MockDb.create(properties, null, dataSource -> dataSource.setShareSchemaPool(true));
+        HaloPooledDataSource pool = db.getPool("db0");
+        try {
+            db.getDataSource().removeDataSource("db0");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("dataSource[db0] pool is still used by [db1, db2, db3]", e.getMessage());
+        }
+        // 删除失败，连接池仍然可用
+        Assert.assertFalse(pool.isClosed());
+        Assert.assertEquals("db0", executeOnce("db0"));
+        Assert.assertEquals("db1", executeOnce("db1"));
+        db.getDataSource().removeDataSource("db1");
+        db.getDataSource().removeDataSource("db2");
+        db.getDataSource().removeDataSource("db3");
+        Assert.assertFalse(pool.isClosed());
+        db.getDataSource().removeDataSource("db0");
+        Assert.assertTrue(pool.isClosed());
+        // 共用记录已经删除，重新加载时创建新的连接池
+        properties.put("db0", "{\"url\":\"db0\",\"ds_slave\":[\"db1\"]}");
+        MockDalBundle.setProperties(properties);
+        Assert.assertTrue(db.getDataSource().reload());
+        Assert.assertEquals("db2", executeOnce("db2"));
+        Assert.assertNotSame(pool, db.getPool("db0"));
+        Assert.assertFalse(db.getPool("db0").isClosed());
+    }
+
+    @Test
+    public void poolPerSchema() throws Exception {
+        db = MockDb.create();
+        Assert.assertNotNull(db.getPool("db1"));
+        Assert.assertEquals("db0", executeOnce("db0"));
+        Assert.assertEquals("db1", executeOnce("db1"));
+        Assert.assertEquals(2, MockDriver.openedCounter.get());
+        Assert.assertEquals(0, MockDriver.setCatalogCounter.get());
+    }
+
+    /**
+     * @return db0真实连接上设置状态的调用
+     */
+    private static List<String> stateEvents() {
+        List<String> list = new ArrayList<>();
+        for (String event : MockDriver.events()) {
+            if (event.startsWith("db0:set")) {
+                list.add(event);
+            }
+        }
+        return list;
+    }
+
+    @Test
+    public void replayInSpringOrder() throws Exception {
+        db = MockDb.create();
+        TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(db.getDataSource()));
+        transactionTemplate.setReadOnly(true);
+        transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_SERIALIZABLE);
+        List<String> events = transactionTemplate.execute(status -> {
+            DALInfo dalInfo = DALInfo.createForManual();
+            dalInfo.setDsKey("db0");
+            DALStatus.setDalInfo(dalInfo);
+            db.getJdbcSupport().getJdbcTemplate().update("update minfo set name=?", "a");
+            return stateEvents();
+        });
+        // 真实连接打开前spring设置的状态，按照spring的顺序设置到真实连接，默认的autoCommit=true不调用驱动
+        Assert.assertEquals(Arrays.asList(
+                "db0:setReadOnly:true",
+                "db0:setTransactionIsolation:" + Connection.TRANSACTION_SERIALIZABLE,
+                "db0:setAutoCommit:false"), events);
+        Assert.assertEquals(1, MockDriver.countEvents("db0:commit"));
+    }
+
+    @Test
+    public void replayOnlyInvoked() throws Exception {
+        db = MockDb.create();
+        Connection con = db.getDataSource().getConnection();
+        execute(con, "db0");
+        con.close();
+        // 只有构造时的autoCommit=true，与真实连接相同
+        Assert.assertEquals(Collections.emptyList(), stateEvents());
+        con = db.getDataSource().getConnection();
+        con.setReadOnly(true);
+        execute(con, "db0");
+        Assert.assertEquals(Arrays.asList("db0:setReadOnly:true"), stateEvents());
+        con.close();
+    }
+
+    @Test
+    public void skipUnchangedState() throws Exception {
+        db = MockDb.create();
+        Connection con = db.getDataSource().getConnection();
+        execute(con, "db0");
+        con.setAutoCommit(true);
+        con.setReadOnly(false);
+        Assert.assertEquals(Collections.emptyList(), stateEvents());
+        con.setAutoCommit(false);
+        con.setAutoCommit(false);
+        con.setReadOnly(true);
+        con.setReadOnly(true);
+        // 事务隔离级别设置之后才缓存
+        con.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        con.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        Assert.assertEquals(Arrays.asList(
+                "db0:setAutoCommit:false",
+                "db0:setReadOnly:true",
+                "db0:setTransactionIsolation:" + Connection.TRANSACTION_READ_COMMITTED), stateEvents());
+        Assert.assertFalse(con.getAutoCommit());
+        Assert.assertTrue(con.isReadOnly());
+        Assert.assertEquals(Connection.TRANSACTION_READ_COMMITTED, con.getTransactionIsolation());
+        con.rollback();
+        con.close();
+    }
+}
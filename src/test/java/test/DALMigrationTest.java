@@ -0,0 +1,285 @@
+package test;
+
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALMigration;
+import halo.query.dal.DALParserUtil;
+import halo.query.dal.DALStatus;
+import halo.query.dal.ParsedInfo;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import test.bean.Minfo;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 迁移模式下新路由的解析、sql转换、双写与对比读取
+ */
+public class DALMigrationTest {
+
+    private DALMigration migration;
+
+    private MockDb db;
+
+    @After
+    public void after() throws Exception {
+        if (migration != null) {
+            migration.destory();
+            new DALMigration().afterPropertiesSet();
+        }
+        if (db != null) {
+            db.destory();
+        }
+        DALStatus.clear();
+    }
+
+    private void createMigration() throws Exception {
+        migration = new DALMigration();
+        migration.setWriteThreads(2);
+        migration.setShadowReadRate(1);
+        migration.afterPropertiesSet();
+    }
+
+    private static DALInfo migratingDalInfo() {
+        DALInfo dalInfo = DALInfo.createForManual();
+        dalInfo.setDsKey("db0");
+        dalInfo.setRealTable(Minfo.class, "minfo_3");
+        dalInfo.setMigrateDsKey("db1");
+        dalInfo.setMigrateRealTable(Minfo.class, "minfo_35");
+        return dalInfo;
+    }
+
+    private static void waitFor(LongSupplier counter, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (counter.getAsLong() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(expected, counter.getAsLong());
+    }
+
+    private static List<MockDriver.Call> callsOn(String catalog) {
+        List<MockDriver.Call> list = new ArrayList<>();
+        for (MockDriver.Call call : MockDriver.calls()) {
+            if (call.catalog.equals(catalog)) {
+                list.add(call);
+            }
+        }
+        return list;
+    }
+
+    @Test
+    public void parseMigrateRoute() {
+        DALParserUtil.process(DALMigrationTest.class, paramMap -> {
+            ParsedInfo parsedInfo = new ParsedInfo("db0", "tb_user_3");
+            parsedInfo.setMigrateParsedInfo(new ParsedInfo("db1", "tb_user_35"));
+            return parsedInfo;
+        }, null);
+        DALInfo dalInfo = DALStatus.getDalInfo();
+        Assert.assertTrue(dalInfo.isMigrating());
+        Assert.assertEquals("db0", dalInfo.getDsKey());
+        Assert.assertEquals("tb_user_35", dalInfo.getMigrateRealTable(DALMigrationTest.class));
+
+        DALInfo migrateDalInfo = dalInfo.createMigrateDALInfo();
+        Assert.assertTrue(migrateDalInfo.isSpecify());
+        Assert.assertFalse(migrateDalInfo.isMigrating());
+        Assert.assertEquals("db1", migrateDalInfo.getDsKey());
+        Assert.assertEquals("tb_user_35", migrateDalInfo.getRealTable(DALMigrationTest.class));
+
+        Assert.assertTrue(dalInfo.copy().isMigrating());
+    }
+
+    @Test
+    public void toMigrateSql() {
+        DALInfo dalInfo = new DALInfo();
+        dalInfo.setRealTable(DALMigrationTest.class, "tb_user_3");
+        dalInfo.setMigrateDsKey("db1");
+        dalInfo.setMigrateRealTable(DALMigrationTest.class, "tb_user_35");
+        Assert.assertEquals("update tb_user_35 set nick=? where tb_user_35.userid=? and tb_user_30_flag=0",
+                dalInfo.toMigrateSql("update tb_user_3 set nick=? where tb_user_3.userid=? and tb_user_30_flag=0"));
+        // 字符串常量、字段名称与别名不是表名称
+        Assert.assertEquals("update tb_user_35 set nick='tb_user_3',memo=\"it''s tb_user_3\" where a.tb_user_3=?",
+                dalInfo.toMigrateSql("update tb_user_3 set nick='tb_user_3',memo=\"it''s tb_user_3\" where a.tb_user_3=?"));
+        Assert.assertEquals("select count(*) as tb_user_3 from `tb_user_35` where nick='a\\'tb_user_3'",
+                dalInfo.toMigrateSql("select count(*) as tb_user_3 from `tb_user_3` where nick='a\\'tb_user_3'"));
+        Assert.assertEquals("select tb_user_35.userid from tb_user_35,tb_user_30 where tb_user_35.userid=tb_user_30.userid",
+                dalInfo.toMigrateSql("select tb_user_3.userid from tb_user_3,tb_user_30 where tb_user_3.userid=tb_user_30.userid"));
+    }
+
+    @Test
+    public void writeInOrder() throws Exception {
+        createMigration();
+        final List<String> list = Collections.synchronizedList(new ArrayList<>());
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final int n = i;
+            migration.write(migratingDalInfo(), "update minfo_35 set name=?", () -> list.add(n + ":" + DALStatus.getDalInfo().getDsKey()));
+            expected.add(i + ":db1");
+        }
+        waitFor(migration::getDualWriteCount, 100);
+        // 同一个新路由的表按照提交顺序执行，执行时使用新路由
+        Assert.assertEquals(expected, list);
+        Assert.assertNull(DALStatus.getDalInfo());
+    }
+
+    @Test
+    public void dropWriteOnFullQueue() throws Exception {
+        migration = new DALMigration();
+        migration.setWriteThreads(1);
+        migration.setQueueSize(1);
+        migration.afterPropertiesSet();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        migration.write(migratingDalInfo(), "update minfo_35 set name=?", () -> {
+            started.countDown();
+            return latch.await(5, TimeUnit.SECONDS);
+        });
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        migration.write(migratingDalInfo(), "update minfo_35 set name=?", () -> null);
+        // 队列已满，放弃写操作，调用线程不等待
+        migration.write(migratingDalInfo(), "update minfo_35 set name=?", () -> null);
+        Assert.assertEquals(1, migration.getDualWriteFailCount());
+        latch.countDown();
+        waitFor(migration::getDualWriteCount, 2);
+        Assert.assertEquals(1, migration.getDualWriteFailCount());
+    }
+
+    @Test
+    public void writeAfterCommit() throws Exception {
+        createMigration();
+        db = MockDb.create();
+        db.inTransaction(status -> {
+            DALStatus.setDalInfo(migratingDalInfo());
+            db.getJdbcSupport().update("update minfo_3 set name=? where memo='minfo_3'", new Object[]{"a"});
+            // 事务提交前不执行新路由的写操作
+            Assert.assertEquals(0, callsOn("db1").size());
+            Assert.assertEquals(0, migration.getDualWriteCount());
+            return null;
+        });
+        waitFor(migration::getDualWriteCount, 1);
+        List<MockDriver.Call> calls = callsOn("db1");
+        Assert.assertEquals(1, calls.size());
+        Assert.assertEquals("update minfo_35 set name=? where memo='minfo_3'", calls.get(0).sql);
+        Assert.assertEquals(Arrays.<Object>asList("a"), calls.get(0).params());
+    }
+
+    @Test
+    public void insertUsesValuesAtCallTime() throws Exception {
+        createMigration();
+        db = MockDb.create();
+        final Minfo minfo = minfo(1, "a");
+        db.inTransaction(status -> {
+            DALStatus.setDalInfo(migratingDalInfo());
+            db.getQuery().insert(minfo);
+            // 新路由在事务提交后执行，使用insert时的参数
+            minfo.setName("b");
+            return null;
+        });
+        waitFor(migration::getDualWriteCount, 1);
+        List<MockDriver.Call> calls = callsOn("db1");
+        Assert.assertEquals(1, calls.size());
+        Assert.assertTrue(calls.get(0).sql, calls.get(0).sql.startsWith("insert into minfo_35"));
+        Assert.assertEquals(callsOn("db0").get(0).params(), calls.get(0).params());
+        Assert.assertTrue(calls.get(0).params().contains("a"));
+    }
+
+    @Test
+    public void discardOnRollback() throws Exception {
+        createMigration();
+        db = MockDb.create();
+        db.inTransaction(status -> {
+            DALStatus.setDalInfo(migratingDalInfo());
+            db.getJdbcSupport().update("update minfo_3 set name=?", new Object[]{"a"});
+            status.setRollbackOnly();
+            return null;
+        });
+        Assert.assertEquals(1, MockDriver.countEvents("db0:rollback"));
+        // 之后的写操作在同一个线程中执行，执行完成时回滚的写操作如果提交过也已经执行
+        DALStatus.setDalInfo(migratingDalInfo());
+        db.getJdbcSupport().update("update minfo_3 set name=?", new Object[]{"b"});
+        waitFor(migration::getDualWriteCount, 1);
+        List<MockDriver.Call> calls = callsOn("db1");
+        Assert.assertEquals(1, calls.size());
+        Assert.assertEquals(Arrays.<Object>asList("b"), calls.get(0).params());
+    }
+
+    /**
+     * 通过对比读取判断新旧路由的结果是否相同
+     */
+    private boolean shadowSame(Object result, final Object migrateResult) throws Exception {
+        long count = migration.getShadowReadCount();
+        long mismatchCount = migration.getShadowReadMismatchCount();
+        migration.shadowRead(migratingDalInfo(), "select * from minfo_35", result, () -> {
+            Assert.assertEquals("db1", DALStatus.getDalInfo().getDsKey());
+            return migrateResult;
+        });
+        waitFor(migration::getShadowReadCount, count + 1);
+        return migration.getShadowReadMismatchCount() == mismatchCount;
+    }
+
+    private static Minfo minfo(int tid, String name) {
+        Minfo minfo = new Minfo();
+        minfo.setTid(tid);
+        minfo.setName(name);
+        return minfo;
+    }
+
+    @Test
+    public void shadowRead() throws Exception {
+        createMigration();
+        // 数字按照数值对比
+        Assert.assertTrue(shadowSame(1, 1L));
+        Assert.assertTrue(shadowSame(new BigDecimal("1.0"), 1));
+        Assert.assertFalse(shadowSame(1, 2L));
+        // 集合按照顺序对比
+        Assert.assertTrue(shadowSame(Arrays.asList(1, 2), Arrays.asList(1L, 2L)));
+        Assert.assertFalse(shadowSame(Arrays.asList(1, 2), Arrays.asList(2, 1)));
+        Assert.assertFalse(shadowSame(Arrays.asList(1, 2), Collections.singletonList(1)));
+        // 实体对象对比所有字段
+        Assert.assertTrue(shadowSame(Arrays.asList(minfo(1, "a"), minfo(2, "b")), Arrays.asList(minfo(1, "a"), minfo(2, "b"))));
+        Assert.assertFalse(shadowSame(minfo(1, "a"), minfo(1, "b")));
+        Assert.assertTrue(shadowSame(new byte[]{1, 2}, new byte[]{1, 2}));
+        Assert.assertFalse(shadowSame(null, 1));
+        Assert.assertFalse(shadowSame("a", "b"));
+        // NaN与Infinity不能转换为BigDecimal
+        Assert.assertTrue(shadowSame(Double.NaN, Double.NaN));
+        Assert.assertTrue(shadowSame(Double.POSITIVE_INFINITY, Float.POSITIVE_INFINITY));
+        Assert.assertFalse(shadowSame(Double.NaN, 1));
+        Assert.assertFalse(shadowSame(new BigDecimal("1"), Double.NEGATIVE_INFINITY));
+        Assert.assertTrue(shadowSame(0.5f, new BigDecimal("0.50")));
+        // 对比出现异常时按照不一致处理
+        Assert.assertFalse(shadowSame(new Object() {
+            @Override
+            public boolean equals(Object obj) {
+                throw new IllegalStateException("compare error");
+            }
+        }, "a"));
+        Assert.assertEquals(17, migration.getShadowReadCount());
+        Assert.assertEquals(9, migration.getShadowReadMismatchCount());
+
+        migration.shadowRead(migratingDalInfo(), "select * from minfo_35", 1, (Callable<Object>) () -> {
+            throw new IllegalStateException("shadow read error");
+        });
+        waitFor(migration::getShadowReadFailCount, 1);
+        Assert.assertEquals(17, migration.getShadowReadCount());
+    }
+
+    @Test
+    public void shadowReadThroughJdbcSupport() throws Exception {
+        createMigration();
+        db = MockDb.create();
+        MockDriver.setHandler(call -> call.sql.startsWith("select count") ? Collections.singletonList(MockDriver.row("count", call.catalog.equals("db0") ? 3 : 2)) : null);
+        DALStatus.setDalInfo(migratingDalInfo());
+        Assert.assertEquals(3, db.getJdbcSupport().num("select count(*) from minfo_3", null).intValue());
+        waitFor(migration::getShadowReadCount, 1);
+        Assert.assertEquals(1, migration.getShadowReadMismatchCount());
+        Assert.assertEquals("select count(*) from minfo_35", callsOn("db1").get(0).sql);
+    }
+}
@@ -0,0 +1,73 @@
+package test;
+
+import halo.query.dal.DALContext;
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALStatus;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 大量线程下 {@link DALStatus#call(DALContext, Callable)} 的吞吐，jdk支持时使用virtual thread运行，否则使用固定数量的线程池。<br>
+ * 不是单元测试，通过 main 运行，参数依次为任务数量(默认100000)与轮数(默认5，第一轮为预热)
+ */
+public class DALStatusBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        boolean virtual = true;
+        ExecutorService executorService;
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            executorService = (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            virtual = false;
+            executorService = Executors.newFixedThreadPool(200);
+        }
+        System.out.println("threads: " + (virtual ? "virtual" : "platform pool(200)") + ", tasks: " + tasks);
+        try {
+            for (int round = 0; round < rounds; round++) {
+                List<Callable<Boolean>> list = createTasks(tasks);
+                long begin = System.nanoTime();
+                List<Future<Boolean>> futures = executorService.invokeAll(list);
+                for (Future<Boolean> future : futures) {
+                    if (!future.get()) {
+                        throw new IllegalStateException("DALStatus not isolated");
+                    }
+                }
+                long nanos = System.nanoTime() - begin;
+                System.out.println((round == 0 ? "warmup " : "round " + round + " ") + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms, "
+                        + (nanos / tasks) + " ns/task");
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private static List<Callable<Boolean>> createTasks(int tasks) {
+        List<Callable<Boolean>> list = new ArrayList<>(tasks);
+        for (int i = 0; i < tasks; i++) {
+            final String dsKey = "db" + (i % 16);
+            list.add(() -> {
+                DALInfo dalInfo = DALInfo.createForManual();
+                dalInfo.setDsKey(dsKey);
+                DALContext dalContext = DALContext.create();
+                dalContext.setDalInfo(dalInfo);
+                dalContext.addParam("userid", dsKey);
+                boolean ok = DALStatus.call(dalContext, () -> {
+                    Thread.yield();
+                    return dsKey.equals(DALStatus.getDalInfo().getDsKey()) && dsKey.equals(DALStatus.getParamMap().get("userid"));
+                });
+                return ok && !DALStatus.hasDALInfo() && !DALStatus.hasDALParam();
+            });
+        }
+        return list;
+    }
+}
@@ -0,0 +1,132 @@
+package test;
+
+import halo.query.dal.DALContext;
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * 分区状态在多个线程中的隔离，call 结束或者出错后恢复线程原有的状态，没有状态时不残留在线程中
+ */
+public class DALStatusConcurrentTest {
+
+    private ExecutorService executorService;
+
+    @Before
+    public void before() {
+        executorService = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void after() {
+        executorService.shutdownNow();
+        DALStatus.clear();
+    }
+
+    private static DALContext context(String dsKey) {
+        DALInfo dalInfo = DALInfo.createForManual();
+        dalInfo.setDsKey(dsKey);
+        DALContext dalContext = DALContext.create();
+        dalContext.setDalInfo(dalInfo);
+        dalContext.addParam("userid", dsKey);
+        return dalContext;
+    }
+
+    private static Object threadState() throws Exception {
+        Field field = DALStatus.class.getDeclaredField("stateTL");
+        field.setAccessible(true);
+        return ((ThreadLocal<?>) field.get(null)).get();
+    }
+
+    @Test
+    public void isolateAndRestore() throws Exception {
+        // 两个线程同时处于 call 中，并且每个线程在 call 之前都有自己的状态
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        List<Future<List<String>>> futures = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            final String outer = "outer" + i;
+            final String inner = "inner" + i;
+            futures.add(executorService.submit(() -> {
+                List<String> seen = new ArrayList<>();
+                DALStatus.setDalInfo(context(outer).getDalInfo());
+                DALStatus.addParam("userid", outer);
+                DALStatus.call(context(inner), () -> {
+                    barrier.await(5, TimeUnit.SECONDS);
+                    seen.add(DALStatus.getDsKey() + ":" + DALStatus.getParamMap().get("userid"));
+                    // 另一个线程已经进入 call 并修改了自己的状态
+                    barrier.await(5, TimeUnit.SECONDS);
+                    seen.add(DALStatus.getDsKey() + ":" + DALStatus.getParamMap().get("userid"));
+                    return null;
+                });
+                seen.add(DALStatus.getDsKey() + ":" + DALStatus.getParamMap().get("userid"));
+                DALStatus.remove();
+                seen.add(String.valueOf(threadState()));
+                return seen;
+            }));
+        }
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals(Arrays.asList("inner" + i + ":inner" + i, "inner" + i + ":inner" + i, "outer" + i + ":outer" + i, "null"),
+                    futures.get(i).get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void restoreNestedAndOnError() throws Exception {
+        DALStatus.call(context("db0"), () -> {
+            try {
+                DALStatus.call(context("db1"), () -> {
+                    Assert.assertEquals("db1", DALStatus.getDsKey());
+                    throw new IllegalStateException("error");
+                });
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("error", e.getMessage());
+            }
+            Assert.assertEquals("db0", DALStatus.getDsKey());
+            Assert.assertEquals("db0", DALStatus.getParamMap().get("userid"));
+            return null;
+        });
+        // 调用前没有状态，结束后不残留
+        Assert.assertNull(threadState());
+    }
+
+    @Test
+    public void notLeakToPooledThread() throws Exception {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            Assert.assertEquals("db3", single.submit(() -> DALStatus.call(context("db3"), () -> DALStatus.getDalInfo().getDsKey())).get(5, TimeUnit.SECONDS));
+            // 同一个线程执行下一个任务时没有上一个任务的状态
+            Assert.assertNull(single.submit(DALStatusConcurrentTest::threadState).get(5, TimeUnit.SECONDS));
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void callRestorePrevious() throws Exception {
+        DALStatus.setGlobalSlaveMode();
+        DALStatus.addParam("userid", 1);
+        DALContext dalContext = DALContext.create();
+        dalContext.addParam("userid", 2);
+        Object value = DALStatus.call(dalContext, () -> {
+            Assert.assertTrue(DALStatus.isEnableGlobalSlaveMode());
+            return DALStatus.getParamMap().get("userid");
+        });
+        Assert.assertEquals(2, value);
+        Assert.assertEquals(1, DALStatus.getParamMap().get("userid"));
+        DALStatus.remove();
+        Assert.assertFalse(DALStatus.hasDALParam());
+        Assert.assertTrue(DALStatus.isEnableGlobalSlaveMode());
+        DALStatus.clearGlobalSlaveMode();
+        Assert.assertFalse(DALStatus.hasGlobalSlave());
+    }
+}
@@ -0,0 +1,156 @@
+package test;
+
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALStatus;
+import halo.query.dal.DALTransactionException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DALConnection 多个真实连接的 commit、rollback，顺序执行与并行执行时的失败处理
+ */
+public class DALTransactionTest {
+
+    private MockDb db;
+
+    @After
+    public void after() {
+        if (db != null) {
+            db.destory();
+        }
+    }
+
+    private void createDb(boolean parallel) {
+        db = MockDb.create(MockDb.defaultProperties(), null, dataSource -> {
+            dataSource.setParallelTransaction(parallel);
+            dataSource.setTransactionThreads(3);
+        });
+    }
+
+    /**
+     * 在事务中依次使用 db0 db1 db2
+     */
+    private Connection openTransaction() throws SQLException {
+        Connection con = db.getDataSource().getConnection();
+        con.setAutoCommit(false);
+        for (int i = 0; i < 3; i++) {
+            DALInfo dalInfo = DALInfo.createForManual();
+            dalInfo.setDsKey("db" + i);
+            DALStatus.setDalInfo(dalInfo);
+            con.prepareStatement("update minfo set name=?").executeUpdate();
+        }
+        return con;
+    }
+
+    private static void failOn(final String action, final String... catalogs) {
+        final List<String> list = Arrays.asList(catalogs);
+        MockDriver.setHook((catalog, method) -> {
+            if (method.equals(action) && list.contains(catalog)) {
+                throw new SQLException(action + " error " + catalog);
+            }
+        });
+    }
+
+    private static List<String> events(String action) {
+        List<String> list = new ArrayList<>();
+        for (String event : MockDriver.events()) {
+            if (event.endsWith(":" + action)) {
+                list.add(event);
+            }
+        }
+        return list;
+    }
+
+    @Test
+    public void commitStopOnError() throws Exception {
+        createDb(false);
+        Connection con = openTransaction();
+        failOn("commit", "db1");
+        try {
+            con.commit();
+            Assert.fail();
+        } catch (DALTransactionException e) {
+            Assert.assertEquals(Arrays.asList("db1"), new ArrayList<>(e.getFailures().keySet()));
+            Assert.assertEquals("commit error db1", e.getCause().getMessage());
+        }
+        // 按打开连接的相反顺序提交，db1失败后不再提交db0
+        Assert.assertEquals(Arrays.asList("db2:commit"), events("commit"));
+        con.rollback();
+        Assert.assertEquals(Arrays.asList("db2:rollback", "db1:rollback", "db0:rollback"), events("rollback"));
+        con.close();
+    }
+
+    @Test
+    public void rollbackContinueOnError() throws Exception {
+        createDb(false);
+        Connection con = openTransaction();
+        failOn("rollback", "db2", "db0");
+        try {
+            con.rollback();
+            Assert.fail();
+        } catch (DALTransactionException e) {
+            // 所有连接都执行回滚，失败的dsKey按照执行顺序记录
+            Assert.assertEquals(Arrays.asList("db2", "db0"), new ArrayList<>(e.getFailures().keySet()));
+            Assert.assertEquals("rollback error db2", e.getCause().getMessage());
+            Assert.assertEquals(1, e.getSuppressed().length);
+            Assert.assertEquals("rollback error db0", e.getSuppressed()[0].getMessage());
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("rollback failed for dsKey [db2]"));
+        }
+        Assert.assertEquals(Arrays.asList("db1:rollback"), events("rollback"));
+        con.close();
+    }
+
+    @Test
+    public void parallelCommit() throws Exception {
+        createDb(true);
+        Connection con = openTransaction();
+        // 3个连接同时提交才能通过
+        final CyclicBarrier barrier = new CyclicBarrier(3);
+        MockDriver.setHook((catalog, method) -> {
+            if (method.equals("commit")) {
+                try {
+                    barrier.await(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new SQLException("commit not parallel", e);
+                }
+            }
+        });
+        con.commit();
+        Assert.assertEquals(3, events("commit").size());
+        con.close();
+    }
+
+    @Test
+    public void parallelFailures() throws Exception {
+        createDb(true);
+        Connection con = openTransaction();
+        failOn("commit", "db0", "db2");
+        try {
+            con.commit();
+            Assert.fail();
+        } catch (DALTransactionException e) {
+            // 并行提交时其他连接不受影响
+            Assert.assertEquals(Arrays.asList("db2", "db0"), new ArrayList<>(e.getFailures().keySet()));
+        }
+        Assert.assertEquals(Arrays.asList("db1:commit"), events("commit"));
+        failOn("rollback", "db1");
+        try {
+            con.rollback();
+            Assert.fail();
+        } catch (DALTransactionException e) {
+            Assert.assertEquals(Arrays.asList("db1"), new ArrayList<>(e.getFailures().keySet()));
+        }
+        Assert.assertEquals(2, events("rollback").size());
+        MockDriver.setHook(null);
+        con.close();
+    }
+}
@@ -0,0 +1,170 @@
+package test;
+
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALRunTimeException;
+import halo.query.dal.DALStatus;
+import halo.query.dal.pool.HaloPooledDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 重新加载配置、删除数据源时，路由的替换与旧连接池的关闭
+ */
+public class DataSourceReloadTest {
+
+    private MockDb db;
+
+    private final AtomicReference<Runnable> onSlaveSelect = new AtomicReference<>();
+
+    @After
+    public void after() {
+        if (db != null) {
+            db.destory();
+        }
+    }
+
+    private void createDb(Map<String, String> properties, int drainTimeoutSeconds) {
+        db = MockDb.create(properties, null, dataSource -> {
+            dataSource.setDrainTimeoutSeconds(drainTimeoutSeconds);
+            // 选择slave时已经读取了路由，还没有获取连接
+            dataSource.setSlaveSelectStrategy((masterDsKey, slaveDsKeys) -> {
+                Runnable task = onSlaveSelect.getAndSet(null);
+                if (task != null) {
+                    task.run();
+                }
+                return slaveDsKeys == null ? null : slaveDsKeys.get(0);
+            });
+        });
+    }
+
+    private void reload(Map<String, String> properties) {
+        MockDalBundle.setProperties(properties);
+        try {
+            Assert.assertTrue(db.getDataSource().reload());
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void execute(Connection con, String dsKey) throws SQLException {
+        DALInfo dalInfo = DALInfo.createForManual();
+        dalInfo.setDsKey(dsKey);
+        DALStatus.setDalInfo(dalInfo);
+        con.prepareStatement("update minfo set name=?").executeUpdate();
+    }
+
+    private static String lastCatalog() {
+        List<MockDriver.Call> calls = MockDriver.calls();
+        return calls.get(calls.size() - 1).catalog;
+    }
+
+    private static void waitClosed(HaloPooledDataSource pool) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!pool.isClosed() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(pool.isClosed());
+    }
+
+    @Test
+    public void reloadChangedAndRemoved() throws Exception {
+        Map<String, String> properties = MockDb.defaultProperties();
+        createDb(properties, 60);
+        Connection con = db.getDataSource().getConnection();
+        con.setAutoCommit(false);
+        execute(con, "db1");
+        HaloPooledDataSource db1 = db.getPool("db1");
+        HaloPooledDataSource db3 = db.getPool("db3");
+        properties.put("db1", "{\"url\":\"db1b\"}");
+        properties.remove("db3");
+        reload(properties);
+        Assert.assertFalse(db.getDataSource().reload());
+        // 没有借出连接的连接池立即关闭，借出的连接在归还前可以继续使用
+        Assert.assertTrue(db3.isClosed());
+        Assert.assertFalse(db1.isClosed());
+        execute(con, "db1");
+        Assert.assertEquals("db1", lastCatalog());
+        con.commit();
+        con.close();
+        waitClosed(db1);
+
+        con = db.getDataSource().getConnection();
+        execute(con, "db1");
+        Assert.assertEquals("db1b", lastCatalog());
+        try {
+            execute(con, "db3");
+            Assert.fail();
+        } catch (DALRunTimeException e) {
+            // db3已经删除
+        }
+        con.close();
+    }
+
+    @Test
+    public void drainTimeout() throws Exception {
+        Map<String, String> properties = MockDb.defaultProperties();
+        createDb(properties, 1);
+        Connection con = db.getDataSource().getConnection();
+        execute(con, "db2");
+        HaloPooledDataSource db2 = db.getPool("db2");
+        db.getDataSource().removeDataSource("db2");
+        Assert.assertFalse(db2.isClosed());
+        // 连接没有归还，超时后关闭连接池
+        waitClosed(db2);
+        con.close();
+    }
+
+    @Test
+    public void retryAfterRoutingReplaced() throws Exception {
+        Map<String, String> properties = MockDb.defaultProperties();
+        properties.put("db1", "{\"url\":\"db1\",\"ds_slave\":[\"db2\"]}");
+        createDb(properties, 60);
+        Connection con = db.getDataSource().getConnection();
+        execute(con, "db2");
+        con.close();
+        final HaloPooledDataSource db2 = db.getPool("db2");
+        final Map<String, String> changed = MockDb.defaultProperties();
+        changed.put("db1", "{\"url\":\"db1\",\"ds_slave\":[\"db2\"]}");
+        changed.put("db2", "{\"url\":\"db2b\"}");
+        // 读取路由之后、获取连接之前替换配置，旧的db2没有借出的连接，立即关闭
+        onSlaveSelect.set(() -> {
+            reload(changed);
+            Assert.assertTrue(db2.isClosed());
+        });
+        con = db.getDataSource().getConnection();
+        DALInfo dalInfo = DALInfo.createForManual();
+        dalInfo.setDsKey("db1");
+        DALStatus.setDalInfo(dalInfo);
+        DALStatus.setSlaveMode();
+        con.prepareStatement("select * from minfo").executeQuery();
+        Assert.assertNull(onSlaveSelect.get());
+        // 使用新的路由获取连接
+        Assert.assertEquals("db2b", lastCatalog());
+        con.close();
+    }
+
+    @Test
+    public void reloadAfterRemove() throws Exception {
+        Map<String, String> properties = MockDb.defaultProperties();
+        createDb(properties, 60);
+        HaloPooledDataSource db3 = db.getPool("db3");
+        db.getDataSource().removeDataSource("db3");
+        Assert.assertTrue(db3.isClosed());
+        // 配置中仍然有db3，重新加载时创建
+        properties.put("db0", "{\"url\":\"db0\",\"ds_slave\":[\"db1\"]}");
+        reload(properties);
+        Assert.assertEquals("[db1]", String.valueOf(db.getDataSource().getSlaveDsKeys("db0")));
+        Connection con = db.getDataSource().getConnection();
+        execute(con, "db3");
+        Assert.assertEquals("db3", lastCatalog());
+        con.close();
+        Assert.assertNotSame(db3, db.getPool("db3"));
+    }
+}
@@ -0,0 +1,195 @@
+package test;
+
+import halo.query.dal.pool.HaloPoolMetrics;
+import halo.query.dal.pool.HaloPooledDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 内置连接池测试，使用不需要数据库的 MockDriver
+ */
+public class HaloPooledDataSourceTest {
+
+    private HaloPooledDataSource dataSource;
+
+    @BeforeClass
+    public static void beforeClass() {
+        MockDriver.register();
+    }
+
+    @Before
+    public void before() {
+        MockDriver.reset();
+        dataSource = new HaloPooledDataSource();
+        dataSource.setJdbcUrl("jdbc:halomock:test");
+        dataSource.setMinPoolSize(2);
+        dataSource.setInitialPoolSize(2);
+        dataSource.setMaxPoolSize(5);
+        dataSource.setCheckoutTimeout(200);
+    }
+
+    @After
+    public void after() {
+        dataSource.close();
+    }
+
+    @Test
+    public void borrowAndReturn() throws Exception {
+        Connection con = dataSource.getConnection();
+        con.setAutoCommit(false);
+        Assert.assertEquals(2, MockDriver.openedCounter.get());
+        Assert.assertEquals(1, dataSource.getMetrics().getActiveConnections());
+        con.close();
+        Assert.assertTrue(con.isClosed());
+        Connection con2 = dataSource.getConnection();
+        Assert.assertTrue(con2.getAutoCommit());
+        con2.close();
+        HaloPoolMetrics metrics = dataSource.getMetrics();
+        Assert.assertEquals(2, metrics.getTotalConnections());
+        Assert.assertEquals(2, metrics.getIdleConnections());
+        Assert.assertEquals(2, metrics.getBorrowCount());
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        List<Connection> cons = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            cons.add(dataSource.getConnection());
+        }
+        try {
+            dataSource.getConnection();
+            Assert.fail();
+        } catch (SQLException e) {
+            Assert.assertEquals(1, dataSource.getMetrics().getTimeoutCount());
+        }
+        for (Connection con : cons) {
+            con.close();
+        }
+        Assert.assertEquals(5, MockDriver.openedCounter.get());
+    }
+
+    @Test
+    public void multiThread() throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(50);
+        List<Callable<Boolean>> list = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            list.add(() -> {
+                try (Connection con = dataSource.getConnection()) {
+                    con.setAutoCommit(false);
+                    con.commit();
+                }
+                return true;
+            });
+        }
+        for (Future<Boolean> future : executorService.invokeAll(list)) {
+            Assert.assertTrue(future.get());
+        }
+        executorService.shutdown();
+        HaloPoolMetrics metrics = dataSource.getMetrics();
+        Assert.assertEquals(0, metrics.getActiveConnections());
+        Assert.assertEquals(metrics.getTotalConnections(), metrics.getIdleConnections());
+        Assert.assertTrue(metrics.getTotalConnections() <= 5);
+        Assert.assertEquals(metrics.getTotalConnections(), metrics.getCreatedCount() - metrics.getClosedCount());
+        Assert.assertEquals(5000, metrics.getBorrowCount());
+        Assert.assertEquals(0, metrics.getTimeoutCount());
+        Assert.assertEquals(0, metrics.getWaitingThreads());
+        Assert.assertTrue(metrics.getMaxAcquireMicros() >= metrics.getAvgAcquireMicros());
+    }
+
+    @Test
+    public void catalogSwitch() throws Exception {
+        dataSource.setMinPoolSize(1);
+        dataSource.setInitialPoolSize(1);
+        Connection con = dataSource.getConnection();
+        Assert.assertEquals("test", con.getCatalog());
+        con.setCatalog("db1");
+        con.close();
+        con = dataSource.getConnection();
+        con.setCatalog("db1");
+        Assert.assertEquals("db1", con.getCatalog());
+        con.close();
+        Assert.assertEquals(1, MockDriver.setCatalogCounter.get());
+        con = dataSource.getConnection();
+        Assert.assertEquals("test", con.getCatalog());
+        con.prepareStatement("select 1");
+        con.close();
+        Assert.assertEquals(2, MockDriver.setCatalogCounter.get());
+    }
+
+    @Test
+    public void testOnCheckout() throws Exception {
+        dataSource.setMinPoolSize(1);
+        dataSource.setInitialPoolSize(1);
+        dataSource.setTestConnectionOnCheckout(true);
+        dataSource.setCheckoutTestIdleMillis(1);
+        dataSource.getConnection().close();
+        Thread.sleep(5);
+        MockDriver.setHook((catalog, method) -> {
+            if (method.equals("isValid")) {
+                throw new SQLException("connection lost");
+            }
+        });
+        // 空闲的连接已经失效，关闭后创建新的连接
+        Connection con = dataSource.getConnection();
+        Assert.assertEquals(2, dataSource.getMetrics().getCreatedCount());
+        Assert.assertEquals(1, dataSource.getMetrics().getClosedCount());
+        con.close();
+        // 刚刚归还的连接不检测
+        dataSource.getConnection().close();
+        Assert.assertEquals(2, dataSource.getMetrics().getCreatedCount());
+    }
+
+    @Test
+    public void slowHostNotBlockOthers() throws Exception {
+        HaloPooledDataSource slow = new HaloPooledDataSource();
+        slow.setJdbcUrl("jdbc:halomock:slow");
+        slow.setMinPoolSize(1);
+        slow.setInitialPoolSize(1);
+        slow.setIdleConnectionTestPeriod(1);
+        dataSource.setMinPoolSize(1);
+        dataSource.setInitialPoolSize(1);
+        dataSource.setIdleConnectionTestPeriod(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            slow.getConnection().close();
+            dataSource.getConnection().close();
+            MockDriver.setHook((catalog, method) -> {
+                if (!method.equals("isValid")) {
+                    return;
+                }
+                if (catalog.equals("slow")) {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else {
+                    throw new SQLException("connection lost");
+                }
+            });
+            // slow的检测一直没有完成，test仍然按时检测并补充连接
+            long deadline = System.currentTimeMillis() + 5000;
+            while (dataSource.getMetrics().getCreatedCount() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertTrue(dataSource.getMetrics().getCreatedCount() >= 3);
+        } finally {
+            release.countDown();
+            slow.close();
+        }
+    }
+}
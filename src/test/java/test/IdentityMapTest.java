@@ -0,0 +1,102 @@
+package test;
+
+import halo.query.HaloConfig;
+import halo.query.Query;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.Minfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 连接存在期间根据id查询的对象只查询一次，写操作与事务结束时清除
+ */
+public class IdentityMapTest {
+
+    private MockDb db;
+
+    private Query query;
+
+    @Before
+    public void before() throws Exception {
+        db = MockDb.create();
+        MockDriver.setHandler(call -> {
+            if (!call.type.equals("executeQuery")) {
+                return null;
+            }
+            List<Map<String, Object>> rows = new ArrayList<>();
+            if ((Integer) call.param(0) > 0) {
+                rows.add(MockDriver.row("tid", call.param(0), "name", null, "mkey", null));
+            }
+            return rows;
+        });
+        query = db.getQuery();
+        HaloConfig haloConfig = new HaloConfig();
+        haloConfig.setEnableIdentityMap(true);
+        haloConfig.afterPropertiesSet();
+    }
+
+    @After
+    public void after() throws Exception {
+        new HaloConfig().afterPropertiesSet();
+        db.destory();
+    }
+
+    private int sqlCount() {
+        return db.sqls().size();
+    }
+
+    @Test
+    public void sameObjectInConnection() throws Exception {
+        db.inTransaction(status -> {
+            Minfo minfo = query.objById(Minfo.class, 1);
+            Assert.assertSame(minfo, query.objById(Minfo.class, 1));
+            Assert.assertEquals(1, sqlCount());
+            query.objById(Minfo.class, 2);
+            Assert.assertEquals(2, sqlCount());
+            // 不存在的数据不缓存
+            Assert.assertNull(query.objById(Minfo.class, 0));
+            Assert.assertNull(query.objById(Minfo.class, 0));
+            Assert.assertEquals(4, sqlCount());
+            // for update 总是查询数据库
+            query.objByIdForUpdate(Minfo.class, 1);
+            Assert.assertEquals(5, sqlCount());
+            return null;
+        });
+        Assert.assertEquals(1, MockDriver.countEvents("db0:commit"));
+        db.inTransaction(status -> {
+            query.objById(Minfo.class, 1);
+            Assert.assertEquals(6, sqlCount());
+            return null;
+        });
+    }
+
+    @Test
+    public void evictOnWrite() throws Exception {
+        db.inTransaction(status -> {
+            query.objById(Minfo.class, 1);
+            query.update(Minfo.class, "set name=? where tid=?", new Object[]{"a", 1});
+            query.objById(Minfo.class, 1);
+            Assert.assertEquals(3, sqlCount());
+            status.setRollbackOnly();
+            return null;
+        });
+        Assert.assertEquals(1, MockDriver.countEvents("db0:rollback"));
+        db.inTransaction(status -> {
+            query.objById(Minfo.class, 1);
+            Assert.assertEquals(4, sqlCount());
+            return null;
+        });
+    }
+
+    @Test
+    public void disabledWithoutConnection() throws Exception {
+        // 没有事务时每次查询使用新的连接
+        Assert.assertNotSame(query.objById(Minfo.class, 1), query.objById(Minfo.class, 1));
+        Assert.assertEquals(2, sqlCount());
+    }
+}
@@ -0,0 +1,195 @@
+package test;
+
+import halo.query.HaloIdException;
+import halo.query.InsertBatcher;
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.TestUser2;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 并发insert合并为多行insert，每个线程获得自己的自增id
+ */
+public class InsertBatcherTest {
+
+    private MockDb db;
+
+    private InsertBatcher insertBatcher;
+
+    private ExecutorService executorService;
+
+    @Before
+    public void before() {
+        db = MockDb.create();
+        MockDriver.setHandler(call -> {
+            if (call.sql.startsWith("insert")) {
+                List<Number> ids = new ArrayList<>();
+                int rows = call.sql.split("\\),\\(").length;
+                for (int i = 0; i < rows; i++) {
+                    ids.add(100L + i);
+                }
+                call.generatedKeys = ids;
+            }
+            return null;
+        });
+        insertBatcher = new InsertBatcher();
+        insertBatcher.setQuery(db.getQuery());
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void after() {
+        executorService.shutdownNow();
+        db.destory();
+    }
+
+    /**
+     * @return 每次执行的 catalog、sql 与参数
+     */
+    private List<MockDriver.Call> inserts() {
+        return MockDriver.calls();
+    }
+
+    private TestUser2 createUser(long userid, String nick) {
+        TestUser2 user = new TestUser2();
+        user.setUserid(userid);
+        user.setNick(nick);
+        return user;
+    }
+
+    private List<Future<Number>> insertConcurrently(List<TestUser2> users, final String dsKey) {
+        final CyclicBarrier barrier = new CyclicBarrier(users.size());
+        List<Future<Number>> futures = new ArrayList<>();
+        for (final TestUser2 user : users) {
+            futures.add(executorService.submit(() -> {
+                if (dsKey != null) {
+                    DALInfo dalInfo = DALInfo.createForManual();
+                    dalInfo.setDsKey(dsKey);
+                    dalInfo.setRealTable(TestUser2.class, "testuser_" + dsKey);
+                    DALStatus.setDalInfo(dalInfo);
+                }
+                barrier.await();
+                return insertBatcher.insertForNumber(user);
+            }));
+        }
+        return futures;
+    }
+
+    @Test
+    public void mergeConcurrentInserts() throws Exception {
+        insertBatcher.setMaxBatchRows(5);
+        insertBatcher.setMaxDelayMicros(TimeUnit.SECONDS.toMicros(10));
+        List<TestUser2> users = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            users.add(createUser(0, "nick" + i));
+        }
+        List<Future<Number>> futures = insertConcurrently(users, null);
+        Set<Number> ids = new HashSet<>();
+        for (Future<Number> future : futures) {
+            ids.add(future.get(5, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(new HashSet<Number>(Arrays.asList(100L, 101L, 102L, 103L, 104L)), ids);
+        Assert.assertEquals(1, inserts().size());
+        Assert.assertEquals(1, insertBatcher.getBatchCount());
+        Assert.assertEquals(5, insertBatcher.getRowCount());
+        String sql = inserts().get(0).sql;
+        Assert.assertTrue(sql, sql.startsWith("insert into testuser00(nick,createtime,gender,money,purchase) values(?,?,?,?,?),(?,?,?,?,?)"));
+        // 每个对象的id与参数中的位置对应
+        List<Object> params = inserts().get(0).params();
+        Assert.assertEquals(25, params.size());
+        for (TestUser2 user : users) {
+            int row = (int) (user.getUserid() - 100);
+            Assert.assertEquals(user.getNick(), params.get(row * 5));
+        }
+    }
+
+    @Test
+    public void groupByShard() throws Exception {
+        insertBatcher.setMaxBatchRows(2);
+        insertBatcher.setMaxDelayMicros(TimeUnit.SECONDS.toMicros(10));
+        List<Future<Number>> futures = new ArrayList<>();
+        futures.addAll(insertConcurrently(Arrays.asList(createUser(0, "a"), createUser(0, "b")), "db0"));
+        futures.addAll(insertConcurrently(Arrays.asList(createUser(0, "c"), createUser(0, "d")), "db1"));
+        for (Future<Number> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(2, inserts().size());
+        Set<String> dsKeys = new HashSet<>();
+        for (MockDriver.Call insert : inserts()) {
+            dsKeys.add(insert.catalog + ":" + insert.sql.substring(0, 24));
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList("db0:insert into testuser_db0", "db1:insert into testuser_db1")), dsKeys);
+    }
+
+    @Test
+    public void singleInsertAfterDelay() {
+        insertBatcher.setMaxDelayMicros(1000);
+        TestUser2 user = createUser(0, "a");
+        Assert.assertEquals(100L, insertBatcher.insertForNumber(user));
+        Assert.assertEquals(100L, user.getUserid());
+        // id已经设置时不需要自增id
+        TestUser2 user2 = createUser(5, "b");
+        Assert.assertEquals(0, insertBatcher.insertForNumber(user2));
+        Assert.assertEquals(5L, user2.getUserid());
+        Assert.assertEquals(2, inserts().size());
+        Assert.assertTrue(inserts().get(1).sql.startsWith("insert into testuser00(userid,"));
+    }
+
+    private static boolean failed(Future<Number> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        }
+    }
+
+    @Test
+    public void retryEachRowOnFailure() throws Exception {
+        MockDriver.setHandler(call -> {
+            if (call.params().contains("bad")) {
+                throw new SQLException("bad row");
+            }
+            call.generatedKeys = Collections.singletonList(200L + call.params().get(0).toString().charAt(0));
+            return null;
+        });
+        insertBatcher.setMaxBatchRows(3);
+        insertBatcher.setMaxDelayMicros(TimeUnit.SECONDS.toMicros(10));
+        List<TestUser2> users = Arrays.asList(createUser(0, "a"), createUser(0, "bad"), createUser(0, "c"));
+        List<Future<Number>> futures = insertConcurrently(users, null);
+        // 多行insert失败后每行单独执行，只有错误的行失败
+        Assert.assertEquals(200L + 'a', futures.get(0).get(5, TimeUnit.SECONDS));
+        Assert.assertTrue(failed(futures.get(1)));
+        Assert.assertEquals(200L + 'c', futures.get(2).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, insertBatcher.getBatchCount());
+        Assert.assertEquals(2, insertBatcher.getRowCount());
+    }
+
+    @Test
+    public void generatedKeysMismatch() throws Exception {
+        MockDriver.setHandler(call -> {
+            call.generatedKeys = Collections.singletonList(100L);
+            return null;
+        });
+        insertBatcher.setMaxBatchRows(2);
+        insertBatcher.setMaxDelayMicros(TimeUnit.SECONDS.toMicros(10));
+        List<Future<Number>> futures = insertConcurrently(Arrays.asList(createUser(0, "a"), createUser(0, "b")), null);
+        // 自增id无法与行对应，不能返回0或者错误的id
+        for (Future<Number> future : futures) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof HaloIdException);
+            }
+        }
+        Assert.assertEquals(1, inserts().size());
+    }
+}
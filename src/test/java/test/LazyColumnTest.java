@@ -0,0 +1,86 @@
+package test;
+
+import halo.query.Query;
+import halo.query.mapping.EntityTableInfo;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.LazyInfo;
+
+import java.util.*;
+
+/**
+ * 延迟加载字段不在默认select中，通过loadLazy批量加载
+ */
+public class LazyColumnTest {
+
+    private MockDb db;
+
+    private Query query;
+
+    @Before
+    public void before() {
+        db = MockDb.create();
+        MockDriver.setHandler(call -> {
+            if (!call.type.equals("executeQuery")) {
+                return null;
+            }
+            List<Map<String, Object>> rows = new ArrayList<>();
+            for (Object value : call.params()) {
+                rows.add(MockDriver.row("lazy_info_oid", value, "lazy_info_json_data", "{\"oid\":" + value + "}"));
+            }
+            return rows;
+        });
+        query = db.getQuery();
+    }
+
+    @After
+    public void after() {
+        db.destory();
+    }
+
+    private List<String> sqls() {
+        return db.sqls();
+    }
+
+    @Test
+    public void selectedFieldSQL() {
+        EntityTableInfo<LazyInfo> info = Query.getEntityTableInfo(LazyInfo.class);
+        Assert.assertEquals("lazy_info_.oid as lazy_info_oid,lazy_info_.name as lazy_info_name", info.getSelectedFieldSQL());
+        Assert.assertEquals(3, info.getColumnNames().size());
+    }
+
+    @Test
+    public void loadLazy() {
+        List<LazyInfo> list = new ArrayList<>();
+        for (long i = 1; i <= 3; i++) {
+            LazyInfo o = new LazyInfo();
+            o.setOid(i);
+            list.add(o);
+        }
+        list.add(list.get(0));
+        query.loadLazy(list, "jsonData");
+        Assert.assertEquals(1, sqls().size());
+        Assert.assertEquals("select lazy_info_.oid as lazy_info_oid,lazy_info_.json_data as lazy_info_json_data from lazy_info as lazy_info_ where oid in(?,?,?)", sqls().get(0));
+        Assert.assertEquals("{\"oid\":2}", list.get(1).getJsonData());
+        Assert.assertEquals("{\"oid\":1}", list.get(3).getJsonData());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void loadNotLazy() {
+        query.loadLazy(Collections.singletonList(new LazyInfo()), "name");
+    }
+
+    @Test
+    public void updateSkipNotLoaded() {
+        LazyInfo o = new LazyInfo();
+        o.setOid(1);
+        o.setName("a");
+        query.update(o);
+        Assert.assertEquals("update lazy_info set name=? where oid=?", sqls().get(0));
+        o.setJsonData("{}");
+        query.update(o);
+        Assert.assertEquals("update lazy_info set name=?,json_data=? where oid=?", sqls().get(1));
+    }
+}
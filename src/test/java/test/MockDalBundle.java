@@ -0,0 +1,28 @@
+package test;
+
+import java.util.ListResourceBundle;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * HaloPropertiesDataSource 使用的配置，name设置为 test.MockDalBundle，可以在测试中修改后重新加载
+ */
+public class MockDalBundle extends ListResourceBundle {
+
+    private static volatile Map<String, String> properties = new TreeMap<>();
+
+    public static void setProperties(Map<String, String> properties) {
+        MockDalBundle.properties = new TreeMap<>(properties);
+    }
+
+    @Override
+    protected Object[][] getContents() {
+        Map<String, String> map = properties;
+        Object[][] contents = new Object[map.size()][];
+        int i = 0;
+        for (Map.Entry<String, String> e : map.entrySet()) {
+            contents[i++] = new Object[]{e.getKey(), e.getValue()};
+        }
+        return contents;
+    }
+}
@@ -0,0 +1,164 @@
+package test;
+
+import halo.query.JdbcSupport;
+import halo.query.Query;
+import halo.query.dal.HaloDALPooledPropertiesDataSource;
+import halo.query.dal.DALStatus;
+import halo.query.dal.HaloDataSourceUtil;
+import halo.query.dal.pool.HaloPooledDataSource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.support.SQLStateSQLExceptionTranslator;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 测试使用的数据库环境：MockDriver + HaloDALPooledPropertiesDataSource + JdbcTemplate + Query。
+ * 数据源为db0 db1 db2 db3，默认数据源为db0，sql经过 DALConnection 获取连接、提交与关闭，不需要真实数据库
+ */
+public class MockDb {
+
+    public static final String BUNDLE_NAME = "test.MockDalBundle";
+
+    private final HaloDALPooledPropertiesDataSource dataSource;
+
+    private final JdbcSupport jdbcSupport;
+
+    private final Query query;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private MockDb(HaloDALPooledPropertiesDataSource dataSource, JdbcSupport jdbcSupport) {
+        this.dataSource = dataSource;
+        this.jdbcSupport = jdbcSupport;
+        this.query = new Query();
+        this.query.setJdbcSupport(jdbcSupport);
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    }
+
+    /**
+     * 默认配置：db0至db3，每个数据源一个连接池
+     */
+    public static Map<String, String> defaultProperties() {
+        Map<String, String> map = new LinkedHashMap<>();
+        map.put("global.jdbcUrl", MockDriver.URL_PREFIX + "//127.0.0.1/{0}");
+        map.put("global.minPoolSize", "1");
+        map.put("global.initialPoolSize", "1");
+        map.put("global.maxPoolSize", "10");
+        map.put("global.checkoutTimeout", "1000");
+        map.put("default", "db0");
+        for (int i = 0; i < 4; i++) {
+            map.put("db" + i, "{\"url\":\"db" + i + "\"}");
+        }
+        return map;
+    }
+
+    public static MockDb create() {
+        return create(defaultProperties(), null);
+    }
+
+    /**
+     * @param properties 数据源配置
+     * @param jdbcSupport 为空时使用 JdbcSupport，测试需要替换部分操作时可以传入子类
+     * @return 初始化完成的环境
+     */
+    public static MockDb create(Map<String, String> properties, JdbcSupport jdbcSupport) {
+        return create(properties, jdbcSupport, null);
+    }
+
+    /**
+     * @param configurer 在 afterPropertiesSet 之前修改数据源设置
+     */
+    public static MockDb create(Map<String, String> properties, JdbcSupport jdbcSupport, Configurer configurer) {
+        MockDriver.register();
+        MockDriver.reset();
+        DALStatus.clear();
+        MockDalBundle.setProperties(properties);
+        HaloDALPooledPropertiesDataSource dataSource = new HaloDALPooledPropertiesDataSource();
+        dataSource.setName(BUNDLE_NAME);
+        try {
+            if (configurer != null) {
+                configurer.configure(dataSource);
+            }
+            dataSource.afterPropertiesSet();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        // 不通过连接读取数据库类型
+        jdbcTemplate.setExceptionTranslator(new SQLStateSQLExceptionTranslator());
+        if (jdbcSupport == null) {
+            jdbcSupport = new JdbcSupport();
+        }
+        jdbcSupport.setJdbcTemplate(jdbcTemplate);
+        return new MockDb(dataSource, jdbcSupport);
+    }
+
+    public HaloDALPooledPropertiesDataSource getDataSource() {
+        return dataSource;
+    }
+
+    public JdbcSupport getJdbcSupport() {
+        return jdbcSupport;
+    }
+
+    public Query getQuery() {
+        return query;
+    }
+
+    /**
+     * @param db 连接池jdbcUrl中的schema
+     * @return 最后创建的未关闭的对应连接池，没有时返回null
+     */
+    public HaloPooledDataSource getPool(String db) {
+        List<DataSource> list = HaloDataSourceUtil.getAllOriginDataSources();
+        for (int i = list.size() - 1; i >= 0; i--) {
+            DataSource dataSource = list.get(i);
+            if (dataSource instanceof HaloPooledDataSource) {
+                HaloPooledDataSource pool = (HaloPooledDataSource) dataSource;
+                if (!pool.isClosed() && pool.getJdbcUrl().endsWith("/" + db)) {
+                    return pool;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param db 连接池jdbcUrl中的schema
+     * @return 借出未归还的连接数量
+     */
+    public int getActiveConnections(String db) {
+        return this.getPool(db).getMetrics().getActiveConnections();
+    }
+
+    /**
+     * 在spring事务中执行，所有操作使用同一个 DALConnection
+     */
+    public <T> T inTransaction(TransactionCallback<T> action) {
+        return this.transactionTemplate.execute(action);
+    }
+
+    /**
+     * @return 执行过的sql
+     */
+    public List<String> sqls() {
+        return MockDriver.sqls();
+    }
+
+    public void destory() {
+        this.dataSource.destory();
+        MockDriver.reset();
+        DALStatus.clear();
+    }
+
+    public interface Configurer {
+
+        void configure(HaloDALPooledPropertiesDataSource dataSource) throws Exception;
+    }
+}
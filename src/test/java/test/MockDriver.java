@@ -0,0 +1,644 @@
+package test;
+
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * 不需要数据库的mock driver，url为 jdbc:halomock:db 或者 jdbc:halomock://host/db，db为连接的catalog。<br>
+ * 执行的sql记录在calls中，连接上的操作记录在events中(格式为 catalog:method)，查询与更新的结果由handler返回，
+ * hook可以在执行前抛出异常或者阻塞
+ */
+public class MockDriver implements Driver {
+
+    public static final String URL_PREFIX = "jdbc:halomock:";
+
+    public static final AtomicInteger openedCounter = new AtomicInteger();
+
+    public static final AtomicInteger setCatalogCounter = new AtomicInteger();
+
+    private static final AtomicLong idGenerator = new AtomicLong();
+
+    private static final List<Call> calls = Collections.synchronizedList(new ArrayList<>());
+
+    private static final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+    private static final Handler DEFAULT_HANDLER = call -> null;
+
+    private static final Hook DEFAULT_HOOK = (catalog, method) -> {
+    };
+
+    private static volatile Handler handler = DEFAULT_HANDLER;
+
+    private static volatile Hook hook = DEFAULT_HOOK;
+
+    private static boolean registered;
+
+    public static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        try {
+            DriverManager.registerDriver(new MockDriver());
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        registered = true;
+    }
+
+    /**
+     * 清除记录，恢复默认的handler与hook
+     */
+    public static void reset() {
+        calls.clear();
+        events.clear();
+        openedCounter.set(0);
+        setCatalogCounter.set(0);
+        handler = DEFAULT_HANDLER;
+        hook = DEFAULT_HOOK;
+    }
+
+    public static void setHandler(Handler handler) {
+        MockDriver.handler = handler == null ? DEFAULT_HANDLER : handler;
+    }
+
+    public static void setHook(Hook hook) {
+        MockDriver.hook = hook == null ? DEFAULT_HOOK : hook;
+    }
+
+    public static List<Call> calls() {
+        synchronized (calls) {
+            return new ArrayList<>(calls);
+        }
+    }
+
+    /**
+     * @return 执行过的sql，包括连接池检测连接的sql
+     */
+    public static List<String> sqls() {
+        List<String> list = new ArrayList<>();
+        for (Call call : calls()) {
+            list.add(call.sql);
+        }
+        return list;
+    }
+
+    public static List<String> events() {
+        synchronized (events) {
+            return new ArrayList<>(events);
+        }
+    }
+
+    public static int countEvents(String event) {
+        int count = 0;
+        for (String e : events()) {
+            if (e.equals(event)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 创建一行查询结果
+     *
+     * @param kv 列名与值，列名可以是 Query 生成的别名(table_column)，也可以只是列名
+     * @return 一行数据
+     */
+    public static Map<String, Object> row(Object... kv) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < kv.length; i += 2) {
+            map.put((String) kv[i], kv[i + 1]);
+        }
+        return map;
+    }
+
+    /**
+     * 一次sql执行
+     */
+    public static class Call {
+
+        public final String catalog;
+
+        public final String sql;
+
+        /**
+         * executeQuery executeUpdate executeBatch loadData
+         */
+        public final String type;
+
+        /**
+         * 批量执行时每一组参数，非批量执行时只有一组
+         */
+        public final List<List<Object>> batch;
+
+        public final InputStream in;
+
+        /**
+         * handler设置的自增id，为空时使用自动生成的id
+         */
+        public List<Number> generatedKeys;
+
+        Call(String catalog, String sql, String type, List<List<Object>> batch, InputStream in) {
+            this.catalog = catalog;
+            this.sql = sql;
+            this.type = type;
+            this.batch = batch;
+            this.in = in;
+        }
+
+        public List<Object> params() {
+            return this.batch.get(0);
+        }
+
+        public Object param(int index) {
+            return this.params().get(index);
+        }
+
+        @Override
+        public String toString() {
+            return catalog + ":" + sql + " " + batch;
+        }
+    }
+
+    public interface Handler {
+
+        /**
+         * @param call 执行的sql
+         * @return executeQuery 返回 List&lt;Map&lt;String, Object&gt;&gt;，executeUpdate 与 loadData 返回 Integer，
+         * executeBatch 返回 int[]。返回null时使用默认值：没有数据，每条更新1行
+         * @throws SQLException 模拟sql执行错误
+         */
+        Object handle(Call call) throws SQLException;
+    }
+
+    public interface Hook {
+
+        /**
+         * 在连接与sql操作前调用，method为 Connection 的方法名或者 executeQuery executeUpdate executeBatch loadData
+         */
+        void before(String catalog, String method) throws SQLException;
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!this.acceptsURL(url)) {
+            return null;
+        }
+        hook.before(parseCatalog(url), "connect");
+        openedCounter.incrementAndGet();
+        return new MockConnection(parseCatalog(url)).proxy;
+    }
+
+    static String parseCatalog(String url) {
+        String s = url.substring(URL_PREFIX.length());
+        int idx = s.indexOf('?');
+        if (idx >= 0) {
+            s = s.substring(0, idx);
+        }
+        idx = s.lastIndexOf('/');
+        if (idx >= 0) {
+            s = s.substring(idx + 1);
+        }
+        return s;
+    }
+
+    @Override
+    public boolean acceptsURL(String url) throws SQLException {
+        return url.startsWith(URL_PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    private static Object proxy(Class<?>[] interfaces, java.lang.reflect.InvocationHandler h) {
+        return Proxy.newProxyInstance(MockDriver.class.getClassLoader(), interfaces, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    if (method.getParameterCount() == 0) {
+                        return System.identityHashCode(proxy);
+                    }
+                    break;
+                case "equals":
+                    if (method.getParameterCount() == 1 && method.getParameterTypes()[0] == Object.class) {
+                        return proxy == args[0];
+                    }
+                    break;
+                case "toString":
+                    if (method.getParameterCount() == 0) {
+                        return "MockDriver" + Arrays.toString(interfaces) + "@" + System.identityHashCode(proxy);
+                    }
+                    break;
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(proxy)) {
+                        return proxy;
+                    }
+                    throw new SQLException("unsupported unwrap " + args[0]);
+                case "isWrapperFor":
+                    return ((Class<?>) args[0]).isInstance(proxy);
+                default:
+            }
+            return h.invoke(proxy, method, args);
+        });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class || type == long.class || type == short.class || type == byte.class
+                || type == float.class || type == double.class) {
+            return convert(0, type);
+        }
+        return null;
+    }
+
+    private static Object convert(Object value, Class<?> type) {
+        if (value == null) {
+            return defaultValue(type);
+        }
+        if (type == Object.class || type.isInstance(value)) {
+            return value;
+        }
+        if (type == String.class) {
+            return value.toString();
+        }
+        if (value instanceof Boolean) {
+            value = (Boolean) value ? 1 : 0;
+        }
+        if (type == boolean.class || type == Boolean.class) {
+            return value instanceof Number ? ((Number) value).intValue() != 0 : Boolean.parseBoolean(value.toString());
+        }
+        if (value instanceof java.util.Date && (type == Timestamp.class || type == java.sql.Date.class)) {
+            long time = ((java.util.Date) value).getTime();
+            return type == Timestamp.class ? new Timestamp(time) : new java.sql.Date(time);
+        }
+        BigDecimal n = new BigDecimal(value.toString());
+        if (type == int.class || type == Integer.class) {
+            return n.intValue();
+        }
+        if (type == long.class || type == Long.class) {
+            return n.longValue();
+        }
+        if (type == short.class || type == Short.class) {
+            return n.shortValue();
+        }
+        if (type == byte.class || type == Byte.class) {
+            return n.byteValue();
+        }
+        if (type == float.class || type == Float.class) {
+            return n.floatValue();
+        }
+        if (type == double.class || type == Double.class) {
+            return n.doubleValue();
+        }
+        if (type == BigDecimal.class) {
+            return n;
+        }
+        throw new IllegalArgumentException("can not convert " + value + " to " + type);
+    }
+
+    /**
+     * 连接，记录setAutoCommit setReadOnly setTransactionIsolation setCatalog commit rollback close
+     */
+    private static class MockConnection {
+
+        private final Connection proxy;
+
+        private String catalog;
+
+        private boolean autoCommit = true;
+
+        private boolean readOnly;
+
+        private int transactionIsolation = Connection.TRANSACTION_REPEATABLE_READ;
+
+        private boolean closed;
+
+        MockConnection(String catalog) {
+            this.catalog = catalog;
+            this.proxy = (Connection) MockDriver.proxy(new Class[]{Connection.class}, (p, method, args) -> {
+                String name = method.getName();
+                switch (name) {
+                    case "setAutoCommit":
+                    case "setReadOnly":
+                    case "setTransactionIsolation":
+                        hook.before(this.catalog, name);
+                        events.add(this.catalog + ":" + name + ":" + args[0]);
+                        if (name.equals("setAutoCommit")) {
+                            this.autoCommit = (Boolean) args[0];
+                        } else if (name.equals("setReadOnly")) {
+                            this.readOnly = (Boolean) args[0];
+                        } else {
+                            this.transactionIsolation = (Integer) args[0];
+                        }
+                        return null;
+                    case "getAutoCommit":
+                        return this.autoCommit;
+                    case "isReadOnly":
+                        return this.readOnly;
+                    case "getTransactionIsolation":
+                        return this.transactionIsolation;
+                    case "commit":
+                    case "rollback":
+                        if (args != null) {
+                            return null;
+                        }
+                        hook.before(this.catalog, name);
+                        events.add(this.catalog + ":" + name);
+                        return null;
+                    case "close":
+                        if (!this.closed) {
+                            events.add(this.catalog + ":close");
+                        }
+                        this.closed = true;
+                        return null;
+                    case "isClosed":
+                        return this.closed;
+                    case "isValid":
+                        try {
+                            hook.before(this.catalog, name);
+                        } catch (SQLException e) {
+                            return false;
+                        }
+                        return !this.closed;
+                    case "getCatalog":
+                        return this.catalog;
+                    case "setCatalog":
+                        setCatalogCounter.incrementAndGet();
+                        this.catalog = (String) args[0];
+                        events.add(this.catalog + ":setCatalog");
+                        return null;
+                    case "prepareStatement":
+                        return new MockStatement(this, (String) args[0]).proxy;
+                    case "createStatement":
+                        return new MockStatement(this, null).proxy;
+                    case "getMetaData":
+                        return MockDriver.proxy(new Class[]{DatabaseMetaData.class}, (p1, m, a) -> {
+                            switch (m.getName()) {
+                                case "getDatabaseProductName":
+                                    return "MySQL";
+                                case "getDriverName":
+                                    return "halomock";
+                                case "getURL":
+                                    return URL_PREFIX + this.catalog;
+                                case "supportsBatchUpdates":
+                                case "supportsGetGeneratedKeys":
+                                    return true;
+                                default:
+                                    return defaultValue(m.getReturnType());
+                            }
+                        });
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            });
+        }
+    }
+
+    /**
+     * Statement 与 PreparedStatement，同时实现 mysql Statement 用于 load data
+     */
+    private static class MockStatement {
+
+        private final Object proxy;
+
+        private final MockConnection con;
+
+        private final String sql;
+
+        private final List<List<Object>> batch = new ArrayList<>();
+
+        private List<Object> params = new ArrayList<>();
+
+        private InputStream in;
+
+        private List<Number> generatedKeys = new ArrayList<>();
+
+        private int updateCount = -1;
+
+        MockStatement(MockConnection con, String sql) {
+            this.con = con;
+            this.sql = sql;
+            this.proxy = MockDriver.proxy(new Class[]{PreparedStatement.class, com.mysql.jdbc.Statement.class}, (p, method, args) -> {
+                String name = method.getName();
+                if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer
+                        && method.getParameterTypes()[0] == int.class) {
+                    int index = (Integer) args[0];
+                    while (this.params.size() < index) {
+                        this.params.add(null);
+                    }
+                    this.params.set(index - 1, name.equals("setNull") ? null : args[1]);
+                    return null;
+                }
+                switch (name) {
+                    case "setLocalInfileInputStream":
+                        this.in = (InputStream) args[0];
+                        return null;
+                    case "addBatch":
+                        this.batch.add(this.params);
+                        this.params = new ArrayList<>();
+                        return null;
+                    case "clearParameters":
+                        this.params = new ArrayList<>();
+                        return null;
+                    case "executeQuery":
+                        return this.executeQuery(args == null ? this.sql : (String) args[0]);
+                    case "executeUpdate":
+                        return this.executeUpdate(args == null ? this.sql : (String) args[0]);
+                    case "execute":
+                        if (args == null && this.sql.trim().toLowerCase().startsWith("select")) {
+                            return true;
+                        }
+                        this.executeUpdate(args == null ? this.sql : (String) args[0]);
+                        return false;
+                    case "executeBatch":
+                        return this.executeBatch();
+                    case "getUpdateCount":
+                        return this.updateCount;
+                    case "getGeneratedKeys":
+                        List<Map<String, Object>> rows = new ArrayList<>();
+                        for (Number key : this.generatedKeys) {
+                            rows.add(row("GENERATED_KEY", key));
+                        }
+                        return resultSet(rows);
+                    case "getConnection":
+                        return this.con.proxy;
+                    case "isClosed":
+                        return false;
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            });
+        }
+
+        private Object handle(String type, String sql, List<List<Object>> batch) throws SQLException {
+            hook.before(this.con.catalog, type);
+            Call call = new Call(this.con.catalog, sql, type, batch, this.in);
+            calls.add(call);
+            Object result = handler.handle(call);
+            this.generatedKeys = new ArrayList<>();
+            if (!type.equals("executeQuery")) {
+                int n = type.equals("executeBatch") ? batch.size() : 1;
+                if (call.generatedKeys != null) {
+                    this.generatedKeys.addAll(call.generatedKeys);
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        this.generatedKeys.add(idGenerator.incrementAndGet());
+                    }
+                }
+            }
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        private ResultSet executeQuery(String sql) throws SQLException {
+            List<List<Object>> list = new ArrayList<>();
+            list.add(this.params);
+            Object result = this.handle("executeQuery", sql, list);
+            return resultSet(result == null ? new ArrayList<>() : (List<Map<String, Object>>) result);
+        }
+
+        private int executeUpdate(String sql) throws SQLException {
+            List<List<Object>> list = new ArrayList<>();
+            list.add(this.params);
+            String type = this.in != null ? "loadData" : "executeUpdate";
+            Object result = this.handle(type, sql, list);
+            this.updateCount = result == null ? 1 : (Integer) result;
+            return this.updateCount;
+        }
+
+        private int[] executeBatch() throws SQLException {
+            List<List<Object>> list = new ArrayList<>(this.batch);
+            this.batch.clear();
+            Object result = this.handle("executeBatch", this.sql, list);
+            if (result != null) {
+                return (int[]) result;
+            }
+            int[] counts = new int[list.size()];
+            Arrays.fill(counts, 1);
+            return counts;
+        }
+    }
+
+    /**
+     * 查询结果，列名查找顺序为：完全相同，忽略大小写，以 _列名 结尾(Query 生成的别名)
+     */
+    static ResultSet resultSet(final List<Map<String, Object>> rows) {
+        final int[] cursor = new int[]{-1};
+        final boolean[] wasNull = new boolean[1];
+        return (ResultSet) proxy(new Class[]{ResultSet.class}, (p, method, args) -> {
+            String name = method.getName();
+            switch (name) {
+                case "next":
+                    cursor[0]++;
+                    return cursor[0] < rows.size();
+                case "wasNull":
+                    return wasNull[0];
+                case "close":
+                    return null;
+                case "isClosed":
+                    return false;
+                case "getRow":
+                    return cursor[0] + 1;
+                case "findColumn":
+                    return findIndex(rows, (String) args[0]);
+                case "getMetaData":
+                    final List<String> labels = rows.isEmpty() ? new ArrayList<>() : new ArrayList<>(rows.get(0).keySet());
+                    return proxy(new Class[]{ResultSetMetaData.class}, (p1, m, a) -> {
+                        switch (m.getName()) {
+                            case "getColumnCount":
+                                return labels.size();
+                            case "getColumnLabel":
+                            case "getColumnName":
+                                return labels.get((Integer) a[0] - 1);
+                            case "getColumnType":
+                                return Types.OTHER;
+                            default:
+                                return defaultValue(m.getReturnType());
+                        }
+                    });
+                default:
+            }
+            if (name.startsWith("get") && args != null && args.length >= 1) {
+                Map<String, Object> row = rows.get(cursor[0]);
+                Object value;
+                if (args[0] instanceof Integer) {
+                    value = new ArrayList<>(row.values()).get((Integer) args[0] - 1);
+                } else {
+                    String key = findKey(row.keySet(), (String) args[0]);
+                    if (key == null) {
+                        throw new SQLException("Column '" + args[0] + "' not found");
+                    }
+                    value = row.get(key);
+                }
+                wasNull[0] = value == null;
+                Class<?> type = method.getReturnType();
+                if (name.equals("getObject") && args.length == 2 && args[1] instanceof Class) {
+                    type = (Class<?>) args[1];
+                }
+                return convert(value, type);
+            }
+            return defaultValue(method.getReturnType());
+        });
+    }
+
+    private static int findIndex(List<Map<String, Object>> rows, String label) throws SQLException {
+        if (!rows.isEmpty()) {
+            List<String> keys = new ArrayList<>(rows.get(0).keySet());
+            String key = findKey(keys, label);
+            if (key != null) {
+                return keys.indexOf(key) + 1;
+            }
+        }
+        throw new SQLException("Column '" + label + "' not found");
+    }
+
+    private static String findKey(Collection<String> keys, String label) {
+        String found = null;
+        for (String key : keys) {
+            if (key.equals(label)) {
+                return key;
+            }
+            if (key.equalsIgnoreCase(label)) {
+                found = key;
+            }
+        }
+        if (found != null) {
+            return found;
+        }
+        for (String key : keys) {
+            if (label.endsWith("_" + key) && (found == null || key.length() > found.length())) {
+                found = key;
+            }
+        }
+        return found;
+    }
+}
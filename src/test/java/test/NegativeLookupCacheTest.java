@@ -0,0 +1,146 @@
+package test;
+
+import halo.query.NegativeLookupCache;
+import halo.query.Query;
+import halo.query.dal.DALStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.Minfo;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * objById 不存在数据的缓存，insert 时失效
+ */
+public class NegativeLookupCacheTest {
+
+    private MockDb db;
+
+    private Query query;
+
+    private NegativeLookupCache negativeLookupCache;
+
+    @Before
+    public void before() throws Exception {
+        db = MockDb.create();
+        query = db.getQuery();
+        negativeLookupCache = new NegativeLookupCache();
+        negativeLookupCache.setEntityClasses(new HashSet<>(Collections.singletonList(Minfo.class)));
+        negativeLookupCache.afterPropertiesSet();
+    }
+
+    @After
+    public void after() {
+        negativeLookupCache.destory();
+        db.destory();
+    }
+
+    private int sqlCount() {
+        return db.sqls().size();
+    }
+
+    @Test
+    public void missCachedUntilInsert() {
+        Assert.assertNull(query.objById(Minfo.class, 1));
+        Assert.assertNull(query.objById(Minfo.class, 1));
+        Assert.assertEquals(1, sqlCount());
+        Assert.assertEquals(1, negativeLookupCache.getHitCount());
+        // update 不会产生新数据
+        query.update(Minfo.class, "set name=? where tid=?", new Object[]{"a", 1});
+        Assert.assertNull(query.objById(Minfo.class, 1));
+        Assert.assertEquals(2, sqlCount());
+        Minfo minfo = new Minfo();
+        minfo.setTid(1);
+        query.insert(minfo);
+        Assert.assertNull(query.objById(Minfo.class, 1));
+        Assert.assertEquals(4, sqlCount());
+        // for update 总是查询数据库
+        query.objByIdForUpdate(Minfo.class, 1);
+        Assert.assertEquals(5, sqlCount());
+    }
+
+    @Test
+    public void expire() throws Exception {
+        negativeLookupCache.setTtlMillis(1);
+        query.objById(Minfo.class, 1);
+        Thread.sleep(5);
+        query.objById(Minfo.class, 1);
+        Assert.assertEquals(2, sqlCount());
+    }
+
+    @Test
+    public void maxSize() {
+        negativeLookupCache.setMaxSize(2);
+        query.objById(Minfo.class, 0);
+        query.objById(Minfo.class, 1);
+        query.objById(Minfo.class, 0);
+        Assert.assertEquals(2, sqlCount());
+        // 缓存已满时删除最久没有访问的 1
+        query.objById(Minfo.class, 2);
+        Assert.assertEquals(2, negativeLookupCache.size());
+        Assert.assertEquals(1, negativeLookupCache.getEvictionCount());
+        query.objById(Minfo.class, 0);
+        Assert.assertEquals(3, sqlCount());
+        query.objById(Minfo.class, 1);
+        Assert.assertEquals(4, sqlCount());
+    }
+
+    @Test
+    public void slaveNotCached() {
+        for (int i = 0; i < 2; i++) {
+            DALStatus.setSlaveMode();
+            query.objById(Minfo.class, 1);
+        }
+        Assert.assertEquals(2, sqlCount());
+        Assert.assertEquals(0, negativeLookupCache.getPutCount());
+    }
+
+    @Test
+    public void unparseableInsert() {
+        query.objById(Minfo.class, 1);
+        // 无法识别表名称，所有缓存失效
+        db.getJdbcSupport().update("insert low_priority into minfo(tid) values(?)", new Object[]{1});
+        query.objById(Minfo.class, 1);
+        Assert.assertEquals(3, sqlCount());
+    }
+
+    @Test
+    public void notUsedInTransaction() {
+        query.objById(Minfo.class, 1);
+        db.inTransaction(status -> {
+            // 事务中可能已经写入了数据，不读取缓存，也不记录缓存
+            Assert.assertNull(query.objById(Minfo.class, 1));
+            Assert.assertNull(query.objById(Minfo.class, 2));
+            Assert.assertEquals(3, sqlCount());
+            return null;
+        });
+        Assert.assertEquals(0, negativeLookupCache.getHitCount());
+        Assert.assertEquals(1, negativeLookupCache.getPutCount());
+        query.objById(Minfo.class, 2);
+        Assert.assertEquals(4, sqlCount());
+        query.objById(Minfo.class, 1);
+        Assert.assertEquals(4, sqlCount());
+    }
+
+    @Test
+    public void insertInTransaction() {
+        query.objById(Minfo.class, 1);
+        db.inTransaction(status -> {
+            Minfo minfo = new Minfo();
+            minfo.setTid(1);
+            query.insert(minfo);
+            // 提交前其他线程查询不到数据，重新缓存
+            CompletableFuture.runAsync(() -> query.objById(Minfo.class, 1)).join();
+            CompletableFuture.runAsync(() -> query.objById(Minfo.class, 1)).join();
+            Assert.assertEquals(3, sqlCount());
+            return null;
+        });
+        // 提交后再次失效
+        query.objById(Minfo.class, 1);
+        Assert.assertEquals(4, sqlCount());
+    }
+}
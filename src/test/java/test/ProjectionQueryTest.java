@@ -0,0 +1,82 @@
+package test;
+
+import halo.query.Query;
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALStatus;
+import halo.query.mapping.EntityProjection;
+import halo.query.mapping.EntityTableInfo;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.Minfo;
+import test.bean.UserProfile;
+
+import java.util.*;
+
+/**
+ * 部分列查询，只有查询的列对应的字段有值
+ */
+public class ProjectionQueryTest {
+
+    private MockDb db;
+
+    private Query query;
+
+    @Before
+    public void before() {
+        db = MockDb.create();
+        MockDriver.setHandler(call -> {
+            if (!call.type.equals("executeQuery")) {
+                return null;
+            }
+            // 只有查询的列，读取其他列时出错
+            return Collections.singletonList(MockDriver.row("minfo_tid", 7, "minfo_name", "akwei"));
+        });
+        query = db.getQuery();
+    }
+
+    @After
+    public void after() {
+        db.destory();
+    }
+
+    @Test
+    public void list() {
+        DALInfo dalInfo = DALInfo.createForManual();
+        dalInfo.setDsKey("db0");
+        dalInfo.setRealTable(Minfo.class, "minfo_0");
+        DALStatus.setDalInfo(dalInfo);
+        List<Minfo> list = query.list(Minfo.class, new String[]{"tid", "name"}, "where mkey=?", new Object[]{"k"});
+        Assert.assertEquals("select minfo_.tid as minfo_tid,minfo_.name as minfo_name from minfo_0 as minfo_ where mkey=?", db.sqls().get(0));
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(7, list.get(0).getTid());
+        Assert.assertEquals("akwei", list.get(0).getName());
+        Assert.assertNull(list.get(0).getMkey());
+    }
+
+    @Test
+    public void projectionCached() {
+        EntityTableInfo<Minfo> info = Query.getEntityTableInfo(Minfo.class);
+        EntityProjection<Minfo> projection = info.getProjection(new String[]{"tid", "name"});
+        Assert.assertSame(projection, info.getProjection(new String[]{"tid", "name"}));
+        Assert.assertNotSame(projection, info.getProjection(new String[]{"name", "tid"}));
+        Assert.assertNotSame(projection.getRowMapper().getClass(), info.getRowMapper().getClass());
+    }
+
+    @Test
+    public void projectionClassNameNotCollide() {
+        EntityTableInfo<UserProfile> info = Query.getEntityTableInfo(UserProfile.class);
+        // 按照列名称拼接类名称时两个组合都是 P_user_id
+        EntityProjection<UserProfile> p1 = info.getProjection(new String[]{"user_id"});
+        EntityProjection<UserProfile> p2 = info.getProjection(new String[]{"user", "id"});
+        Assert.assertNotSame(p1.getRowMapper().getClass(), p2.getRowMapper().getClass());
+        Assert.assertEquals(1, p1.getColumnNames().size());
+        Assert.assertEquals(2, p2.getColumnNames().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownColumn() {
+        Query.getEntityTableInfo(Minfo.class).getProjection(new String[]{"tid", "none"});
+    }
+}
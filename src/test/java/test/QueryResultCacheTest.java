@@ -0,0 +1,165 @@
+package test;
+
+import halo.query.Query;
+import halo.query.QueryResultCache;
+import halo.query.dal.DALContext;
+import halo.query.dal.DALInfo;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.Minfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 查询结果缓存的命中与按照真实表失效
+ */
+public class QueryResultCacheTest {
+
+    private MockDb db;
+
+    private Query query;
+
+    private QueryResultCache resultCache;
+
+    @Before
+    public void before() throws Exception {
+        db = MockDb.create();
+        MockDriver.setHandler(call -> {
+            if (!call.type.equals("executeQuery")) {
+                return null;
+            }
+            List<Map<String, Object>> rows = new ArrayList<>();
+            rows.add(MockDriver.row("tid", call.param(0), "name", "n" + MockDriver.calls().size(), "mkey", null));
+            return rows;
+        });
+        query = db.getQuery();
+        resultCache = new QueryResultCache();
+        resultCache.setMaxSize(10);
+        resultCache.afterPropertiesSet();
+    }
+
+    @After
+    public void after() {
+        resultCache.destory();
+        db.destory();
+    }
+
+    private static DALContext ctx(String table) {
+        DALInfo dalInfo = DALInfo.createForManual();
+        dalInfo.setDsKey("db0");
+        dalInfo.setRealTable(Minfo.class, table);
+        DALContext dalContext = DALContext.create();
+        dalContext.setDalInfo(dalInfo);
+        return dalContext;
+    }
+
+    private List<String> sqls() {
+        return db.sqls();
+    }
+
+    @Test
+    public void hitAndCopy() {
+        List<Minfo> list0 = query.list(Minfo.class, "where tid=?", new Object[]{1}, ctx("minfo_0"));
+        List<Minfo> list1 = query.list(Minfo.class, "where tid=?", new Object[]{1}, ctx("minfo_0"));
+        Assert.assertEquals(1, sqls().size());
+        Assert.assertEquals(1, resultCache.getHitCount());
+        Assert.assertNotSame(list0.get(0), list1.get(0));
+        Assert.assertEquals(list0.get(0).getName(), list1.get(0).getName());
+        // 修改返回的对象不影响缓存
+        list1.get(0).setName("changed");
+        Assert.assertEquals("n1", query.list(Minfo.class, "where tid=?", new Object[]{1}, ctx("minfo_0")).get(0).getName());
+        // 参数不同
+        query.list(Minfo.class, "where tid=?", new Object[]{2}, ctx("minfo_0"));
+        Assert.assertEquals(2, sqls().size());
+    }
+
+    @Test
+    public void invalidateByRealTable() {
+        query.list(Minfo.class, "where tid=?", new Object[]{1}, ctx("minfo_0"));
+        query.list(Minfo.class, "where tid=?", new Object[]{1}, ctx("minfo_1"));
+        Assert.assertEquals(2, sqls().size());
+        query.update(Minfo.class, "set name=? where tid=?", new Object[]{"a", 1}, ctx("minfo_1"));
+        Assert.assertEquals("update minfo_1 set name=? where tid=?", sqls().get(2));
+        query.list(Minfo.class, "where tid=?", new Object[]{1}, ctx("minfo_0"));
+        Assert.assertEquals(3, sqls().size());
+        query.list(Minfo.class, "where tid=?", new Object[]{1}, ctx("minfo_1"));
+        Assert.assertEquals(4, sqls().size());
+        query.list(Minfo.class, "where tid=?", new Object[]{1}, ctx("minfo_1"));
+        Assert.assertEquals(4, sqls().size());
+    }
+
+    @Test
+    public void concurrentReads() throws Exception {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int seed = t;
+            futures.add(CompletableFuture.runAsync(() -> {
+                for (int n = 0; n < 2000; n++) {
+                    // 9个常用的查询与不断变化的查询
+                    int tid = n % 2 == 0 ? n % 9 : 100 + seed * 2000 + n;
+                    List<Minfo> list = query.list(Minfo.class, "where tid=?", new Object[]{tid}, ctx("minfo_0"));
+                    Assert.assertEquals(tid, list.get(0).getTid());
+                }
+            }));
+        }
+        for (CompletableFuture<Void> future : futures) {
+            future.join();
+        }
+        Assert.assertEquals(16000, resultCache.getHitCount() + resultCache.getMissCount());
+        Assert.assertTrue(resultCache.size() <= 10);
+        // 常用的查询大部分命中
+        Assert.assertTrue(String.valueOf(resultCache.getHitCount()), resultCache.getHitCount() > 4000);
+        // 处理访问记录后，失效的结果不再使用
+        query.update(Minfo.class, "set name=? where tid=?", new Object[]{"a", 1}, ctx("minfo_0"));
+        int size = sqls().size();
+        query.list(Minfo.class, "where tid=?", new Object[]{1}, ctx("minfo_0"));
+        Assert.assertEquals(size + 1, sqls().size());
+    }
+
+    @Test
+    public void admission() {
+        // maxSize=10，窗口区1个，主区9个
+        for (int n = 0; n < 3; n++) {
+            for (int i = 0; i < 9; i++) {
+                query.list(Minfo.class, "where tid=?", new Object[]{i}, ctx("minfo_0"));
+            }
+        }
+        Assert.assertEquals(9, sqls().size());
+        for (int i = 100; i < 150; i++) {
+            query.list(Minfo.class, "where tid=?", new Object[]{i}, ctx("minfo_0"));
+        }
+        Assert.assertEquals(59, sqls().size());
+        Assert.assertTrue(resultCache.getRejectCount() > 0);
+        for (int i = 0; i < 9; i++) {
+            query.list(Minfo.class, "where tid=?", new Object[]{i}, ctx("minfo_0"));
+        }
+        Assert.assertEquals(59, sqls().size());
+        Assert.assertTrue(resultCache.size() <= 10);
+    }
+
+    @Test
+    public void transaction() throws Exception {
+        query.list(Minfo.class, "where tid=?", new Object[]{1}, ctx("minfo_0"));
+        db.inTransaction(status -> {
+            // 事务中不使用缓存
+            query.list(Minfo.class, "where tid=?", new Object[]{1}, ctx("minfo_0"));
+            Assert.assertEquals(2, sqls().size());
+            query.update(Minfo.class, "set name=? where tid=?", new Object[]{"a", 1}, ctx("minfo_0"));
+            // 提交前其他线程读取到旧的数据并放入缓存
+            CompletableFuture.runAsync(() -> query.list(Minfo.class, "where tid=?", new Object[]{1}, ctx("minfo_0"))).join();
+            Assert.assertEquals(4, sqls().size());
+            CompletableFuture.runAsync(() -> query.list(Minfo.class, "where tid=?", new Object[]{1}, ctx("minfo_0"))).join();
+            Assert.assertEquals(4, sqls().size());
+            return null;
+        });
+        Assert.assertEquals(1, MockDriver.countEvents("db0:commit"));
+        // 提交后再次失效
+        query.list(Minfo.class, "where tid=?", new Object[]{1}, ctx("minfo_0"));
+        Assert.assertEquals(5, sqls().size());
+    }
+}
@@ -0,0 +1,47 @@
+package test;
+
+import halo.query.dal.parser.JumpHashDALParser;
+import halo.query.dal.parser.RangeDALParser;
+import halo.query.dal.parser.RingDALParser;
+import halo.query.dal.parser.ShardDALParser;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 配置方式的分区解析器每次 parse 的耗时，配置来自 dal-parser.properties。<br>
+ * 不是单元测试，通过 main 运行，参数依次为每轮解析次数(默认1048576)与轮数(默认5，前两轮为预热)
+ */
+public class ShardDALParserBenchmark {
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        run("jumpHash", new JumpHashDALParser("dal-parser", "tb_user"), "userId", size, rounds);
+        run("ring", new RingDALParser("dal-parser", "tb_user"), "userId", size, rounds);
+        run("range", new RangeDALParser("dal-parser", "tb_order"), "orderId", size, rounds);
+    }
+
+    private static void run(String name, ShardDALParser parser, String param, int size, int rounds) {
+        Long[] keys = new Long[size];
+        for (int i = 0; i < size; i++) {
+            // 覆盖range配置的所有范围
+            keys[i] = (long) i * 7919 % 3000000;
+        }
+        Map<String, Object> paramMap = new HashMap<>();
+        long sum = 0;
+        for (int round = 0; round < rounds; round++) {
+            long begin = System.nanoTime();
+            for (Long key : keys) {
+                paramMap.put(param, key);
+                sum += parser.parse(paramMap).getRealTableName().length();
+            }
+            long nanos = System.nanoTime() - begin;
+            System.out.println(name + (round < 2 ? " warmup " : " round " + (round - 1) + " ") + String.format("%.1f", nanos / (double) size) + " ns/parse");
+        }
+        // 使用解析结果，避免循环被优化掉
+        if (sum == 0) {
+            throw new IllegalStateException("no table parsed");
+        }
+    }
+}
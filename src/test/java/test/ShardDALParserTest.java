@@ -0,0 +1,102 @@
+package test;
+
+import halo.query.dal.DALRunTimeException;
+import halo.query.dal.ParsedInfo;
+import halo.query.dal.parser.JumpHashDALParser;
+import halo.query.dal.parser.RangeDALParser;
+import halo.query.dal.parser.RingDALParser;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 配置方式的分区解析器
+ */
+public class ShardDALParserTest {
+
+    private static Map<String, String> cfg(int tables) {
+        Map<String, String> cfg = new HashMap<>();
+        cfg.put("tb_user.param", "userId");
+        cfg.put("tb_user.table", "tb_user");
+        cfg.put("tb_user.tables", String.valueOf(tables));
+        cfg.put("tb_user.dsKeys", "db0,db1,db2,db3");
+        return cfg;
+    }
+
+    @Test
+    public void jumpHashMovesOnlyToNewShards() {
+        JumpHashDALParser p16 = new JumpHashDALParser(cfg(16), "tb_user");
+        JumpHashDALParser p64 = new JumpHashDALParser(cfg(64), "tb_user");
+        int moved = 0;
+        int[] counts = new int[64];
+        Map<String, Object> paramMap = new HashMap<>();
+        for (long userId = 0; userId < 100000; userId++) {
+            paramMap.put("userId", userId);
+            String t16 = p16.parse(paramMap).getRealTableName();
+            ParsedInfo info = p64.parse(paramMap);
+            counts[Integer.parseInt(info.getRealTableName().substring("tb_user_".length()))]++;
+            if (!t16.equals(info.getRealTableName())) {
+                moved++;
+                Assert.assertTrue(Integer.parseInt(info.getRealTableName().substring("tb_user_".length())) >= 16);
+            }
+        }
+        // 理论迁移比例 48/64
+        Assert.assertEquals(0.75, moved / 100000.0, 0.02);
+        for (int count : counts) {
+            Assert.assertEquals(100000 / 64.0, count, 100000 / 64.0 * 0.2);
+        }
+        Assert.assertEquals("db0", p64.getShard(0).getDsKey());
+        Assert.assertEquals("db1", p64.getShard(1).getDsKey());
+        Assert.assertEquals("db3", p64.getShard(63).getDsKey());
+        // 增加真实表数量后，已有的表仍然使用原来的数据源
+        for (int i = 0; i < 16; i++) {
+            Assert.assertEquals(p16.getShard(i).getDsKey(), p64.getShard(i).getDsKey());
+        }
+    }
+
+    @Test
+    public void ringKeepsExistingShards() {
+        Map<String, String> cfg = cfg(16);
+        cfg.put("tb_user.vnodes", "160");
+        RingDALParser p16 = new RingDALParser(cfg, "tb_user");
+        cfg.put("tb_user.tables", "17");
+        RingDALParser p17 = new RingDALParser(cfg, "tb_user");
+        Map<String, Object> paramMap = new HashMap<>();
+        int moved = 0;
+        for (long userId = 0; userId < 100000; userId++) {
+            paramMap.put("userId", userId);
+            String t16 = p16.parse(paramMap).getRealTableName();
+            String t17 = p17.parse(paramMap).getRealTableName();
+            if (!t16.equals(t17)) {
+                moved++;
+                Assert.assertEquals("tb_user_16", t17);
+            }
+        }
+        Assert.assertEquals(1 / 17.0, moved / 100000.0, 0.02);
+    }
+
+    @Test
+    public void rangeFromProperties() {
+        RangeDALParser parser = new RangeDALParser("dal-parser", "tb_order");
+        Map<String, Object> paramMap = new HashMap<>();
+        paramMap.put("orderId", 0);
+        Assert.assertEquals("tb_order_0", parser.parse(paramMap).getRealTableName());
+        paramMap.put("orderId", 999999L);
+        Assert.assertEquals("tb_order_0", parser.parse(paramMap).getRealTableName());
+        paramMap.put("orderId", 1000000L);
+        Assert.assertEquals("tb_order_1", parser.parse(paramMap).getRealTableName());
+        paramMap.put("orderId", Long.MAX_VALUE);
+        ParsedInfo info = parser.parse(paramMap);
+        Assert.assertEquals("db1", info.getDsKey());
+        Assert.assertEquals("tb_order_2", info.getRealTableName());
+        paramMap.put("orderId", -1);
+        try {
+            parser.parse(paramMap);
+            Assert.fail();
+        } catch (DALRunTimeException e) {
+            // 小于第一个范围
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package test;
+
+import halo.query.Aggregation;
+import halo.query.KeysetPage;
+import halo.query.Query;
+import halo.query.ShardQuery;
+import halo.query.dal.DALInfo;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.Minfo;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.Executors;
+
+/**
+ * 跨分区查询结果的合并，每个数据源返回固定的数据
+ */
+public class ShardQueryTest {
+
+    private final Map<String, List<Object[]>> shardRows = new HashMap<>();
+
+    private MockDb db;
+
+    private Query query;
+
+    private ShardQuery shardQuery;
+
+    private List<DALInfo> dalInfos;
+
+    @Before
+    public void before() throws Exception {
+        db = MockDb.create();
+        MockDriver.setHandler(call -> {
+            List<Map<String, Object>> rows = new ArrayList<>();
+            if (call.sql.startsWith("select minfo_.tid")) {
+                int limit = Integer.parseInt(call.sql.substring(call.sql.lastIndexOf(' ') + 1));
+                List<Object> values = call.params();
+                for (Object[] row : shardRows.get(call.catalog)) {
+                    int tid = (Integer) row[0];
+                    if (rows.size() < limit && (!call.sql.contains("tid > ?") || tid > (Integer) values.get(values.size() - 1))) {
+                        rows.add(MockDriver.row("tid", tid, "name", null, "mkey", null));
+                    }
+                }
+                return rows;
+            }
+            for (Object[] row : shardRows.get(call.catalog)) {
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < row.length; i++) {
+                    map.put("c" + i, row[i]);
+                }
+                rows.add(map);
+            }
+            return rows;
+        });
+        query = db.getQuery();
+        shardQuery = new ShardQuery();
+        shardQuery.setQuery(query);
+        shardQuery.setExecutorService(Executors.newFixedThreadPool(2));
+        shardQuery.afterPropertiesSet();
+        dalInfos = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            DALInfo dalInfo = DALInfo.createForManual();
+            dalInfo.setDsKey("db" + i);
+            dalInfo.setRealTable(Minfo.class, "minfo_" + i);
+            dalInfos.add(dalInfo);
+        }
+    }
+
+    @After
+    public void after() {
+        db.destory();
+    }
+
+    /**
+     * @return 执行过的 catalog:sql
+     */
+    private List<String> sqls() {
+        List<String> list = new ArrayList<>();
+        for (MockDriver.Call call : MockDriver.calls()) {
+            list.add(call.catalog + ":" + call.sql);
+        }
+        return list;
+    }
+
+    @Test
+    public void aggregateGroupBy() {
+        // name, count(*), sum(tid), min(tid), max(tid), sum(tid), count(tid)
+        shardRows.put("db0", Arrays.asList(
+                new Object[]{"a", 2L, new BigDecimal(3), 1, 2, new BigDecimal(3), 2L},
+                new Object[]{"b", 1L, new BigDecimal(5), 5, 5, new BigDecimal(5), 1L}));
+        shardRows.put("db1", Arrays.asList(
+                new Object[]{"a", 1L, new BigDecimal(10), 10, 10, new BigDecimal(10), 1L},
+                new Object[]{"c", 1L, null, null, null, null, 0L}));
+        Aggregation aggregation = Aggregation.create().groupBy("name")
+                .count("num").sum("tid", "total").min("tid", "min_tid").max("tid", "max_tid").avg("tid", "avg_tid");
+        List<Map<String, Object>> list = shardQuery.aggregate(Minfo.class, aggregation, "where mkey=?", new Object[]{"k"}, dalInfos);
+        Assert.assertEquals(2, sqls().size());
+        Assert.assertTrue(sqls().contains("db1:select name,count(*),sum(tid),min(tid),max(tid),sum(tid),count(tid) from minfo_1 as minfo_ where mkey=? group by name"));
+        Map<Object, Map<String, Object>> map = new HashMap<>();
+        for (Map<String, Object> row : list) {
+            map.put(row.get("name"), row);
+        }
+        Assert.assertEquals(3, map.size());
+        Map<String, Object> a = map.get("a");
+        Assert.assertEquals(3L, a.get("num"));
+        Assert.assertEquals(new BigDecimal(13), a.get("total"));
+        Assert.assertEquals(1, a.get("min_tid"));
+        Assert.assertEquals(10, a.get("max_tid"));
+        Assert.assertEquals(0, new BigDecimal("4.3333").compareTo((BigDecimal) a.get("avg_tid")));
+        Map<String, Object> c = map.get("c");
+        Assert.assertNull(c.get("total"));
+        Assert.assertNull(c.get("avg_tid"));
+    }
+
+    @Test
+    public void aggregateWithoutGroup() {
+        shardRows.put("db0", Collections.singletonList(new Object[]{4L, 2.5d}));
+        shardRows.put("db1", Collections.singletonList(new Object[]{6L, 1.5d}));
+        List<Map<String, Object>> list = shardQuery.aggregate(Minfo.class, Aggregation.create().count("num").max("tid", "max_tid"), null, null, dalInfos);
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(10L, list.get(0).get("num"));
+        Assert.assertEquals(2.5d, list.get(0).get("max_tid"));
+    }
+
+    private static List<Object[]> tids(int... tids) {
+        List<Object[]> list = new ArrayList<>();
+        for (int tid : tids) {
+            list.add(new Object[]{tid});
+        }
+        return list;
+    }
+
+    @Test
+    public void keysetList() {
+        shardRows.put("db0", tids(1, 2, 3, 4, 5));
+        DALInfo dalInfo = dalInfos.get(0);
+        List<Integer> result = new ArrayList<>();
+        String token = null;
+        int pages = 0;
+        do {
+            KeysetPage<Minfo> page = query.keysetList(Minfo.class, "where mkey=? or name=?", new Object[]{"k", "n"}, new String[]{"tid"}, false, token, 2, createContext(dalInfo));
+            for (Minfo minfo : page.getList()) {
+                result.add(minfo.getTid());
+            }
+            token = page.getNextToken();
+            pages++;
+        } while (token != null);
+        Assert.assertEquals(Arrays.asList(1, 2, 3, 4, 5), result);
+        Assert.assertEquals(3, pages);
+        Assert.assertEquals("db0:select minfo_.tid as minfo_tid,minfo_.name as minfo_name,minfo_.mkey as minfo_mkey from minfo_0 as minfo_ where (mkey=? or name=?) and tid > ? order by tid limit 3", sqls().get(1));
+    }
+
+    private static halo.query.dal.DALContext createContext(DALInfo dalInfo) {
+        halo.query.dal.DALContext dalContext = halo.query.dal.DALContext.create();
+        dalContext.setDalInfo(dalInfo.copy());
+        return dalContext;
+    }
+
+    @Test
+    public void keysetListCrossShard() {
+        shardRows.put("db0", tids(1, 4, 5, 9));
+        shardRows.put("db1", tids(2, 3, 6, 7, 8, 10, 11));
+        List<Integer> result = new ArrayList<>();
+        String token = null;
+        do {
+            KeysetPage<Minfo> page = shardQuery.keysetList(Minfo.class, null, null, new String[]{"tid"}, false, token, 3, dalInfos);
+            Assert.assertTrue(page.getList().size() <= 3);
+            for (Minfo minfo : page.getList()) {
+                result.add(minfo.getTid());
+            }
+            token = page.getNextToken();
+        } while (token != null);
+        Assert.assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11), result);
+        // 第4页时db0已经没有数据，不再查询
+        Assert.assertEquals("db1:select minfo_.tid as minfo_tid,minfo_.name as minfo_name,minfo_.mkey as minfo_mkey from minfo_1 as minfo_ where tid > ? order by tid limit 4", sqls().get(sqls().size() - 1));
+    }
+
+    @Test
+    public void keysetListInvalid() {
+        shardRows.put("db0", tids(1, 2, 3));
+        shardRows.put("db1", tids(4));
+        try {
+            query.keysetList(Minfo.class, null, null, new String[]{"tid"}, false, null, 0, createContext(dalInfos.get(0)));
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("size must be greater than 0", e.getMessage());
+        }
+        try {
+            shardQuery.keysetList(Minfo.class, null, null, new String[]{"tid"}, false, null, 0, dalInfos);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("size must be greater than 0", e.getMessage());
+        }
+        Assert.assertEquals(0, sqls().size());
+        // mkey为null，不能作为下一页的条件
+        try {
+            query.keysetList(Minfo.class, null, null, new String[]{"mkey"}, false, null, 2, createContext(dalInfos.get(0)));
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("key column [ mkey ]"));
+        }
+        try {
+            shardQuery.keysetList(Minfo.class, null, null, new String[]{"mkey"}, false, null, 2, dalInfos);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("key column [ mkey ]"));
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package test;
+
+import halo.query.ShardQuery;
+import halo.query.ShardWriteException;
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALStatus;
+import halo.query.dal.ParsedInfo;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.Minfo;
+import test.bean.ShardItemParser;
+import test.bean.ShardUserItem;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 根据id批量删除与更新，按照分区合并为 in 语句
+ */
+public class ShardWriteByIdsTest {
+
+    private MockDb db;
+
+    private ShardQuery shardQuery;
+
+    private ExecutorService executorService;
+
+    @Before
+    public void before() throws Exception {
+        db = MockDb.create();
+        MockDriver.setHandler(call -> call.sql.split("\\?").length - 1);
+        executorService = Executors.newFixedThreadPool(2);
+        shardQuery = new ShardQuery();
+        shardQuery.setQuery(db.getQuery());
+        shardQuery.setExecutorService(executorService);
+        shardQuery.afterPropertiesSet();
+    }
+
+    @After
+    public void after() {
+        executorService.shutdownNow();
+        db.destory();
+    }
+
+    /**
+     * @return 每次执行的 catalog、sql 与参数
+     */
+    private List<MockDriver.Call> updates() {
+        return MockDriver.calls();
+    }
+
+    @Test
+    public void deleteByShard() {
+        List<Object[]> idValuesList = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            idValuesList.add(new Object[]{(long) i, (long) (i + 100)});
+        }
+        // 每个参数对应一个 ?
+        Assert.assertEquals(80, shardQuery.deleteByIds(ShardUserItem.class, idValuesList));
+        Assert.assertEquals(4, updates().size());
+        ShardItemParser parser = new ShardItemParser();
+        Set<String> tables = new HashSet<>();
+        for (MockDriver.Call update : updates()) {
+            String sql = update.sql;
+            String table = sql.substring("delete from ".length(), sql.indexOf(" where"));
+            Assert.assertTrue(tables.add(table));
+            Assert.assertTrue(sql, sql.contains(" where (uid,itemid) in((?,?),(?,?)"));
+            Object[] values = update.params().toArray();
+            for (int i = 0; i < values.length; i += 2) {
+                Assert.assertEquals((Long) values[i] + 100, values[i + 1]);
+                ParsedInfo parsedInfo = parser.parse(Collections.singletonMap("uid", values[i]));
+                Assert.assertEquals(parsedInfo.getDsKey(), update.catalog);
+                Assert.assertEquals(parsedInfo.getRealTableName(), table);
+            }
+        }
+    }
+
+    @Test
+    public void updateInChunks() {
+        shardQuery.setMaxInSize(2);
+        List<Object[]> idValuesList = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            idValuesList.add(new Object[]{i});
+        }
+        DALInfo dalInfo = DALInfo.createForManual();
+        dalInfo.setDsKey("db1");
+        DALStatus.setDalInfo(dalInfo);
+        Assert.assertEquals(8, shardQuery.updateByIds(Minfo.class, "set name=?", new Object[]{"a"}, idValuesList));
+        Assert.assertEquals(3, updates().size());
+        for (MockDriver.Call update : updates()) {
+            Assert.assertEquals("db1", update.catalog);
+        }
+        Assert.assertEquals("update minfo set name=? where tid in(?,?)", updates().get(0).sql);
+        Assert.assertEquals("update minfo set name=? where tid in(?)", updates().get(2).sql);
+        Assert.assertArrayEquals(new Object[]{"a", 4}, updates().get(2).params().toArray());
+    }
+
+    @Test
+    public void rejectInTransaction() {
+        List<Object[]> idValuesList = Collections.singletonList(new Object[]{1L, 101L});
+        db.inTransaction(status -> {
+            try {
+                shardQuery.deleteByIds(ShardUserItem.class, idValuesList);
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // 各个分区独立提交，不能加入调用线程的事务
+            }
+            return null;
+        });
+        Assert.assertTrue(updates().isEmpty());
+    }
+
+    @Test
+    public void partialFailure() {
+        List<Object[]> idValuesList = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            idValuesList.add(new Object[]{(long) i, (long) (i + 100)});
+        }
+        final List<String> interrupted = Collections.synchronizedList(new ArrayList<>());
+        MockDriver.setHook((catalog, method) -> {
+            if (!method.equals("executeUpdate")) {
+                return;
+            }
+            if (catalog.equals("db1")) {
+                throw new SQLException("error " + catalog);
+            }
+            try {
+                // db1失败后db0仍然执行完成，不会被中断
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                interrupted.add(catalog);
+                Thread.currentThread().interrupt();
+            }
+        });
+        try {
+            shardQuery.deleteByIds(ShardUserItem.class, idValuesList);
+            Assert.fail();
+        } catch (ShardWriteException e) {
+            Assert.assertEquals(2, e.getCounts().size());
+            Assert.assertEquals(2, e.getFailures().size());
+            int count = 0;
+            for (Map.Entry<String, Integer> entry : e.getCounts().entrySet()) {
+                Assert.assertTrue(entry.getKey(), entry.getKey().startsWith("db0.shard_item_"));
+                count += entry.getValue();
+            }
+            for (String shard : e.getFailures().keySet()) {
+                Assert.assertTrue(shard, shard.startsWith("db1.shard_item_"));
+            }
+            Assert.assertEquals(count, updates().stream().filter(call -> call.catalog.equals("db0")).mapToInt(call -> call.params().size()).sum());
+            Assert.assertTrue(count > 0);
+        }
+        Assert.assertTrue(interrupted.isEmpty());
+    }
+
+    @Test
+    public void callerThreadWithoutExecutor() {
+        ShardQuery serial = new ShardQuery();
+        serial.setQuery(db.getQuery());
+        serial.setExecutorService(null);
+        MockDriver.setHook((catalog, method) -> {
+            if (method.equals("executeUpdate") && catalog.equals("db0")) {
+                throw new SQLException("error " + catalog);
+            }
+        });
+        List<Object[]> idValuesList = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            idValuesList.add(new Object[]{(long) i, (long) (i + 100)});
+        }
+        try {
+            serial.deleteByIds(ShardUserItem.class, idValuesList);
+            Assert.fail();
+        } catch (ShardWriteException e) {
+            // 调用线程依次执行，失败的分区不影响之后的分区
+            Assert.assertEquals(2, e.getCounts().size());
+            Assert.assertEquals(2, e.getFailures().size());
+        }
+        Assert.assertEquals(2, updates().size());
+    }
+}
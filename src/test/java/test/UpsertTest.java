@@ -0,0 +1,121 @@
+package test;
+
+import halo.query.InsertFlag;
+import halo.query.Query;
+import halo.query.SqlBuilder;
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.LazyInfo;
+import test.bean.Minfo;
+import test.bean.ShardItem;
+import test.bean.TestUser2;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * insert into ... on duplicate key update
+ */
+public class UpsertTest {
+
+    private MockDb db;
+
+    private Query query;
+
+    @Before
+    public void before() {
+        db = MockDb.create();
+        MockDriver.setHandler(call -> {
+            if (call.sql.startsWith("insert")) {
+                call.generatedKeys = Collections.singletonList(9L);
+                return 3;
+            }
+            return null;
+        });
+        query = db.getQuery();
+    }
+
+    @After
+    public void after() {
+        db.destory();
+    }
+
+    private List<String> sqls() {
+        return db.sqls();
+    }
+
+    private Object[] values(int i) {
+        return MockDriver.calls().get(i).params().toArray();
+    }
+
+    private Minfo createMinfo(int tid, String name) {
+        Minfo minfo = new Minfo();
+        minfo.setTid(tid);
+        minfo.setName(name);
+        minfo.setMkey("k");
+        return minfo;
+    }
+
+    @Test
+    public void buildSQL() {
+        Assert.assertEquals("insert into minfo(tid,name,mkey) values(?,?,?) on duplicate key update name=values(name),mkey=values(mkey)",
+                SqlBuilder.buildInsertSQL(Minfo.class, true, InsertFlag.INSERT_ON_DUPLICATE_KEY_UPDATE));
+        Assert.assertEquals("insert into minfo(tid,name,mkey) values(?,?,?),(?,?,?) on duplicate key update mkey=concat(mkey,values(mkey))",
+                SqlBuilder.buildInsertSQL(Minfo.class, true, InsertFlag.INSERT_ON_DUPLICATE_KEY_UPDATE, "mkey=concat(mkey,values(mkey))", 2));
+        Assert.assertEquals("insert into minfo(tid,name,mkey) values(?,?,?)", SqlBuilder.buildInsertSQL(Minfo.class, true));
+        // 延迟加载的列不更新，cas列加1
+        Assert.assertEquals("insert into lazy_info(oid,name,json_data) values(?,?,?) on duplicate key update name=values(name)",
+                SqlBuilder.buildInsertSQL(LazyInfo.class, true, InsertFlag.INSERT_ON_DUPLICATE_KEY_UPDATE));
+        DALInfo dalInfo = DALInfo.createForManual();
+        dalInfo.setRealTable(ShardItem.class, "shard_item_1");
+        DALStatus.setDalInfo(dalInfo);
+        Assert.assertEquals("insert into shard_item_1(itemid,uid,name,ver) values(?,?,?,?) on duplicate key update uid=values(uid),name=values(name),ver=ver+1",
+                SqlBuilder.buildInsertSQL(ShardItem.class, true, InsertFlag.INSERT_ON_DUPLICATE_KEY_UPDATE));
+        DALStatus.clear();
+    }
+
+    @Test
+    public void upsertWithGeneratedId() {
+        TestUser2 user = new TestUser2();
+        user.setNick("a");
+        Assert.assertEquals(9L, query.upsert(user));
+        Assert.assertEquals(9L, user.getUserid());
+        Assert.assertEquals("insert into testuser00(nick,createtime,gender,money,purchase) values(?,?,?,?,?) on duplicate key update " +
+                "userid=last_insert_id(userid),nick=values(nick),createtime=values(createtime),gender=values(gender),money=values(money),purchase=values(purchase)", sqls().get(0));
+        Assert.assertEquals(5, values(0).length);
+    }
+
+    @Test
+    public void upsertWithSeg() {
+        Assert.assertEquals(0, query.upsert(createMinfo(1, "a"), "name=values(name)"));
+        Assert.assertEquals("insert into minfo(tid,name,mkey) values(?,?,?) on duplicate key update name=values(name)", sqls().get(0));
+    }
+
+    @Test
+    public void batchUpsert() {
+        Assert.assertEquals(3, query.batchUpsert(Arrays.asList(createMinfo(1, "a"), createMinfo(2, "b")), null));
+        Assert.assertEquals(1, sqls().size());
+        Assert.assertEquals("insert into minfo(tid,name,mkey) values(?,?,?),(?,?,?) on duplicate key update name=values(name),mkey=values(mkey)", sqls().get(0));
+        Assert.assertArrayEquals(new Object[]{1, "a", "k", 2, "b", "k"}, values(0));
+    }
+
+    @Test
+    public void batchUpsertChunk() {
+        DALInfo dalInfo = DALInfo.createForManual();
+        dalInfo.setDsKey("db2");
+        DALStatus.setDalInfo(dalInfo);
+        Assert.assertEquals(6, query.batchUpsert(Arrays.asList(createMinfo(1, "a"), createMinfo(2, "b"), createMinfo(3, "c")), null, 2));
+        Assert.assertEquals(2, sqls().size());
+        Assert.assertEquals("insert into minfo(tid,name,mkey) values(?,?,?),(?,?,?) on duplicate key update name=values(name),mkey=values(mkey)", sqls().get(0));
+        Assert.assertEquals("insert into minfo(tid,name,mkey) values(?,?,?) on duplicate key update name=values(name),mkey=values(mkey)", sqls().get(1));
+        Assert.assertArrayEquals(new Object[]{3, "c", "k"}, values(1));
+        // 所有sql使用相同的分区
+        Assert.assertEquals("db2", MockDriver.calls().get(0).catalog);
+        Assert.assertEquals("db2", MockDriver.calls().get(1).catalog);
+    }
+}
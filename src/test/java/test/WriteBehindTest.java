@@ -0,0 +1,185 @@
+package test;
+
+import halo.query.WriteBehind;
+import halo.query.dal.DALInfo;
+import halo.query.dal.DALStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import test.bean.TestUser2;
+
+import java.util.*;
+
+/**
+ * 延迟写入的合并与按分区批量写入
+ */
+public class WriteBehindTest {
+
+    private MockDb db;
+
+    private WriteBehind writeBehind;
+
+    @Before
+    public void before() throws Exception {
+        db = MockDb.create();
+        writeBehind = new WriteBehind();
+        writeBehind.setQuery(db.getQuery());
+        writeBehind.setFlushIntervalMillis(60000);
+        writeBehind.setFlushOnShutdown(false);
+        writeBehind.afterPropertiesSet();
+    }
+
+    @After
+    public void after() {
+        writeBehind.destory();
+        db.destory();
+    }
+
+    /**
+     * @return 每次批量写入的 catalog、sql 与参数
+     */
+    private List<MockDriver.Call> batches() {
+        List<MockDriver.Call> list = new ArrayList<>();
+        for (MockDriver.Call call : MockDriver.calls()) {
+            if (call.type.equals("executeBatch")) {
+                list.add(call);
+            }
+        }
+        return list;
+    }
+
+    private List<Object[]> valuesList(int i) {
+        List<Object[]> list = new ArrayList<>();
+        for (List<Object> values : batches().get(i).batch) {
+            list.add(values.toArray());
+        }
+        return list;
+    }
+
+    @Test
+    public void coalesce() {
+        for (int i = 0; i < 10; i++) {
+            writeBehind.increment(TestUser2.class, 1L, "gender", 1);
+        }
+        writeBehind.increment(TestUser2.class, 2L, "gender", 5);
+        writeBehind.set(TestUser2.class, 1L, "nick", "a");
+        writeBehind.set(TestUser2.class, 1L, "nick", "b");
+        Assert.assertEquals(2, writeBehind.getPendingRows());
+        Assert.assertEquals(11, writeBehind.getCoalescedCount());
+        Assert.assertTrue(batches().isEmpty());
+        writeBehind.flush();
+        Assert.assertEquals(0, writeBehind.getPendingRows());
+        Assert.assertEquals(2, batches().size());
+        Map<Object, Object[]> rows = new HashMap<>();
+        for (int i = 0; i < batches().size(); i++) {
+            for (Object[] values : valuesList(i)) {
+                rows.put(values[values.length - 1], values);
+            }
+            String sql = batches().get(i).sql;
+            if (valuesList(i).get(0).length == 3) {
+                Assert.assertEquals("update testuser00 set gender=gender+?,nick=? where userid=?", sql);
+            } else {
+                Assert.assertEquals("update testuser00 set gender=gender+? where userid=?", sql);
+            }
+        }
+        Assert.assertArrayEquals(new Object[]{10L, "b", 1L}, rows.get(1L));
+        Assert.assertArrayEquals(new Object[]{5L, 2L}, rows.get(2L));
+        Assert.assertEquals(2, writeBehind.getFlushedCount());
+    }
+
+    @Test
+    public void setThenIncrement() {
+        writeBehind.increment(TestUser2.class, 1L, "gender", 3);
+        writeBehind.set(TestUser2.class, 1L, "gender", 10);
+        writeBehind.increment(TestUser2.class, 1L, "gender", 2);
+        writeBehind.flush();
+        Assert.assertEquals(1, batches().size());
+        Assert.assertEquals("update testuser00 set gender=? where userid=?", batches().get(0).sql);
+        Assert.assertArrayEquals(new Object[]{12L, 1L}, valuesList(0).get(0));
+    }
+
+    private void setShard(int i) {
+        DALInfo dalInfo = DALInfo.createForManual();
+        dalInfo.setDsKey("db" + i);
+        dalInfo.setRealTable(TestUser2.class, "testuser0" + i);
+        DALStatus.setDalInfo(dalInfo);
+    }
+
+    @Test
+    public void groupByShard() {
+        setShard(0);
+        writeBehind.increment(TestUser2.class, 1L, "gender", 1);
+        setShard(1);
+        writeBehind.increment(TestUser2.class, 1L, "gender", 1);
+        setShard(0);
+        writeBehind.increment(TestUser2.class, 2L, "gender", 1);
+        Assert.assertEquals(3, writeBehind.getPendingRows());
+        writeBehind.flush();
+        Assert.assertEquals(2, batches().size());
+        Set<String> sqls = new HashSet<>();
+        for (int i = 0; i < batches().size(); i++) {
+            sqls.add(batches().get(i).catalog + ":" + batches().get(i).sql + ":" + valuesList(i).size());
+        }
+        Assert.assertTrue(sqls.contains("db0:update testuser00 set gender=gender+? where userid=?:2"));
+        Assert.assertTrue(sqls.contains("db1:update testuser01 set gender=gender+? where userid=?:1"));
+    }
+
+    @Test
+    public void flushWhenFullAndDestory() {
+        writeBehind.setMaxPendingRows(3);
+        writeBehind.increment(TestUser2.class, 1L, "gender", 1);
+        writeBehind.increment(TestUser2.class, 2L, "gender", 1);
+        Assert.assertTrue(batches().isEmpty());
+        // 达到 maxPendingRows 时调用线程等待写入完成
+        writeBehind.increment(TestUser2.class, 3L, "gender", 1);
+        Assert.assertEquals(1, batches().size());
+        Assert.assertEquals(3, valuesList(0).size());
+        writeBehind.increment(TestUser2.class, 4L, "gender", 1);
+        writeBehind.destory();
+        Assert.assertEquals(2, batches().size());
+        // destory 之后直接写入
+        writeBehind.increment(TestUser2.class, 5L, "gender", 1);
+        Assert.assertEquals(3, batches().size());
+        Assert.assertEquals(0, writeBehind.getPendingRows());
+    }
+
+    @Test
+    public void batchSize() {
+        writeBehind.setBatchSize(2);
+        for (long i = 0; i < 5; i++) {
+            setShard(1);
+            writeBehind.increment(TestUser2.class, i, "gender", 1);
+        }
+        writeBehind.flush();
+        Assert.assertEquals(3, batches().size());
+        for (int i = 0; i < batches().size(); i++) {
+            Assert.assertEquals("db1", batches().get(i).catalog);
+            Assert.assertEquals(i < 2 ? 2 : 1, valuesList(i).size());
+        }
+        Assert.assertEquals(5, writeBehind.getFlushedCount());
+    }
+
+    @Test
+    public void flushOutsideTransaction() {
+        writeBehind.setMaxPendingRows(1);
+        final List<String> threads = new ArrayList<>();
+        MockDriver.setHook((catalog, method) -> {
+            if (method.equals("executeBatch")) {
+                threads.add(Thread.currentThread().getName());
+            }
+        });
+        db.inTransaction(status -> {
+            writeBehind.increment(TestUser2.class, 1L, "gender", 1);
+            // 调用线程返回时已经写入
+            Assert.assertEquals(1, batches().size());
+            status.setRollbackOnly();
+            return null;
+        });
+        // 由写入线程写入并自动提交，不受调用线程事务回滚的影响
+        Assert.assertEquals(1, threads.size());
+        Assert.assertTrue(threads.get(0), threads.get(0).startsWith("WriteBehind-thread-"));
+        Assert.assertEquals(0, MockDriver.countEvents("db0:rollback"));
+        Assert.assertEquals(1, writeBehind.getFlushedCount());
+    }
+}
@@ -0,0 +1,40 @@
+package test.bean;
+
+import halo.query.annotation.Column;
+import halo.query.annotation.Id;
+import halo.query.annotation.Table;
+
+@Table(name = "lazy_info")
+public class LazyInfo {
+    @Id
+    @Column
+    private long oid;
+    @Column
+    private String name;
+    @Column(value = "json_data", lazy = true)
+    private String jsonData;
+
+    public long getOid() {
+        return oid;
+    }
+
+    public void setOid(long oid) {
+        this.oid = oid;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getJsonData() {
+        return jsonData;
+    }
+
+    public void setJsonData(String jsonData) {
+        this.jsonData = jsonData;
+    }
+}
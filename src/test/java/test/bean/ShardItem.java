@@ -0,0 +1,50 @@
+package test.bean;
+
+import halo.query.annotation.Column;
+import halo.query.annotation.Id;
+import halo.query.annotation.Table;
+
+@Table(name = "shard_item", dalParser = ShardItemParser.class)
+public class ShardItem {
+    @Id
+    @Column
+    private long itemid;
+    @Column
+    private long uid;
+    @Column
+    private String name;
+    @Column(cas = true)
+    private long ver;
+
+    public long getItemid() {
+        return itemid;
+    }
+
+    public void setItemid(long itemid) {
+        this.itemid = itemid;
+    }
+
+    public long getUid() {
+        return uid;
+    }
+
+    public void setUid(long uid) {
+        this.uid = uid;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getVer() {
+        return ver;
+    }
+
+    public void setVer(long ver) {
+        this.ver = ver;
+    }
+}
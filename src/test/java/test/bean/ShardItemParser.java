@@ -0,0 +1,25 @@
+package test.bean;
+
+import halo.query.dal.parser.JumpHashDALParser;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ShardItem的解析器，按照uid分为2个数据源的4个表
+ */
+public class ShardItemParser extends JumpHashDALParser {
+
+    public ShardItemParser() {
+        super(cfg(), "shard_item");
+    }
+
+    private static Map<String, String> cfg() {
+        Map<String, String> cfg = new HashMap<>();
+        cfg.put("shard_item.param", "uid");
+        cfg.put("shard_item.table", "shard_item");
+        cfg.put("shard_item.tables", "4");
+        cfg.put("shard_item.dsKeys", "db0,db1");
+        return cfg;
+    }
+}
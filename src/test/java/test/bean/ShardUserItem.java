@@ -0,0 +1,44 @@
+package test.bean;
+
+import halo.query.annotation.Column;
+import halo.query.annotation.Id;
+import halo.query.annotation.Table;
+
+/**
+ * 联合主键包含分区参数uid
+ */
+@Table(name = "shard_item", dalParser = ShardItemParser.class)
+public class ShardUserItem {
+    @Id(0)
+    @Column
+    private long uid;
+    @Id(1)
+    @Column
+    private long itemid;
+    @Column
+    private String name;
+
+    public long getUid() {
+        return uid;
+    }
+
+    public void setUid(long uid) {
+        this.uid = uid;
+    }
+
+    public long getItemid() {
+        return itemid;
+    }
+
+    public void setItemid(long itemid) {
+        this.itemid = itemid;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+}
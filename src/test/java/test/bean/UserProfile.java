@@ -0,0 +1,40 @@
+package test.bean;
+
+import halo.query.annotation.Column;
+import halo.query.annotation.Id;
+import halo.query.annotation.Table;
+
+@Table(name = "user_profile")
+public class UserProfile {
+    @Id
+    @Column
+    private long id;
+    @Column
+    private String user;
+    @Column("user_id")
+    private long userId;
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    public long getUserId() {
+        return userId;
+    }
+
+    public void setUserId(long userId) {
+        this.userId = userId;
+    }
+}